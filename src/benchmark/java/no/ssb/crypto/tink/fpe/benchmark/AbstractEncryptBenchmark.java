@@ -0,0 +1,119 @@
+package no.ssb.crypto.tink.fpe.benchmark;
+
+import com.google.crypto.tink.KeysetHandle;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeConfig;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.FpeSession;
+import no.ssb.crypto.tink.fpe.UnknownCharacterStrategy;
+import no.ssb.crypto.tink.fpe.util.TinkUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+
+/**
+ * The benchmarks of encrypting and decrypting single values, shared by {@link EncryptBenchmark} (FF3-1) and
+ * {@link Ff1EncryptBenchmark} (FF1), which define the inputs that the mode supports.
+ */
+@State(Scope.Benchmark)
+public abstract class AbstractEncryptBenchmark {
+
+    static {
+        try {
+            FpeConfig.register();
+        }
+        catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error initializing Tink FPE", e);
+        }
+    }
+
+    final static String TINY = "2 chars";
+    final static String SHORT = "6 chars";
+    final static String MEDIUM = "sentence";
+    final static String MEDIUM_ASCII = "ascii-sentence";
+    final static String LONG = "long-complex";
+    final static Map<String, String> ENCRYPT_PARAMS = Map.of(
+            TINY, "AB",
+            SHORT, "Foobar",
+            MEDIUM, "If I cøuld gather Åll the stars ænd håld them in my hænd...",
+            MEDIUM_ASCII, "If I could gather all the stars and hold them in my hand...",
+            LONG, "CHAPTER 1. Loomings.\n" +
+                    "\n" +
+                    "Call me Ishmael. Some years ago—never mind how long precisely—having\n" +
+                    "little or no money in my purse, and nothing particular to interest me\n" +
+                    "on shore, I thought I would sail about a little and see the watery part\n" +
+                    "of the world. It is a way I have of driving off the spleen and\n" +
+                    "regulating the circulation. Whenever I find myself growing grim about\n" +
+                    "the mouth; whenever it is a damp, drizzly November in my soul; whenever\n" +
+                    "I find myself involuntarily pausing before coffin warehouses, and\n" +
+                    "bringing up the rear of every funeral I meet; and especially whenever\n" +
+                    "my hypos get such an upper hand of me, that it requires a strong moral\n" +
+                    "principle to prevent me from deliberately stepping into the street, and\n" +
+                    "methodically knocking people’s hats off—then, I account it high time to\n" +
+                    "get to sea as soon as I can. This is my substitute for pistol and ball.\n" +
+                    "With a philosophical flourish Cato throws himself upon his sword; I\n" +
+                    "quietly take to the ship. There is nothing surprising in this. If they\n" +
+                    "but knew it, almost all men in their degree, some time or other,\n" +
+                    "cherish very nearly the same feelings towards the ocean with me."
+    );
+
+    final static String KEYSET_JSON_FF31_256_ALPHANUMERIC = "{\"primaryKeyId\":1720617146,\"key\":[{\"keyData\":{\"typeUrl\":\"type.googleapis.com/ssb.crypto.tink.FpeFfxKey\",\"value\":\"EiBoBeUFkoew7YJObcgcz1uOmzdhJFkPP7driAxAuS0UiRpCEAIaPkFCQ0RFRkdISUpLTE1OT1BRUlNUVVZXWFlaYWJjZGVmZ2hpamtsbW5vcHFyc3R1dnd4eXowMTIzNDU2Nzg5\",\"keyMaterialType\":\"SYMMETRIC\"},\"status\":\"ENABLED\",\"keyId\":1720617146,\"outputPrefixType\":\"RAW\"}]}";
+    final static String KEYSET_JSON_FF1_256_ALPHANUMERIC = "{\"primaryKeyId\":3978408,\"key\":[{\"keyData\":{\"typeUrl\":\"type.googleapis.com/ssb.crypto.tink.FpeFfxKey\",\"value\":\"EiC+NhtC2S8xxY3xsdWJCYvbk12mtH/+PFNvX+PNBtZyghpAGj4wMTIzNDU2Nzg5QUJDREVGR0hJSktMTU5PUFFSU1RVVldYWVphYmNkZWZnaGlqa2xtbm9wcXJzdHV2d3h5eg==\",\"keyMaterialType\":\"SYMMETRIC\"},\"status\":\"ENABLED\",\"keyId\":3978408,\"outputPrefixType\":\"RAW\"}]}";
+
+    public byte[] plaintextBytes;
+
+    public byte[] ciphertextBytes;
+
+    private Fpe fpe;
+    private FpeParams fpeParams;
+    private FpeSession session;
+    private byte[] output;
+
+    /**
+     * @return the name of the input to encrypt, see ENCRYPT_PARAMS
+     */
+    protected abstract String paramName();
+
+    /**
+     * @return the keyset of the FFX mode to benchmark
+     */
+    protected abstract String keysetJson();
+
+    // Prepare the byte array from plaintextString
+    @Setup(Level.Trial)
+    public void prepare() throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(keysetJson());
+        fpe = keysetHandle.getPrimitive(Fpe.class);
+        fpeParams = FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.SKIP);
+
+        plaintextBytes = ENCRYPT_PARAMS.get(paramName()).getBytes(StandardCharsets.UTF_8);
+        ciphertextBytes = fpe.encrypt(plaintextBytes, fpeParams);
+        session = FpeSession.create();
+        output = new byte[plaintextBytes.length * 3];
+    }
+
+    // Benchmark for encrypt(byte[] plaintext) method
+    @Benchmark
+    public byte[] encryptBytes() throws Exception {
+        return fpe.encrypt(plaintextBytes, fpeParams);
+    }
+
+    @Benchmark
+    public byte[] decryptBytes() throws Exception {
+        return fpe.decrypt(ciphertextBytes, fpeParams);
+    }
+
+    // Benchmarks for the allocation-free variants. Run with "-prof gc" to see the allocation rate
+    @Benchmark
+    public int encryptBytesWithSession() throws Exception {
+        return fpe.encrypt(plaintextBytes, 0, plaintextBytes.length, output, 0, fpeParams, session);
+    }
+
+    @Benchmark
+    public int decryptBytesWithSession() throws Exception {
+        return fpe.decrypt(ciphertextBytes, 0, ciphertextBytes.length, output, 0, fpeParams, session);
+    }
+
+}
@@ -0,0 +1,104 @@
+package no.ssb.crypto.tink.fpe.benchmark;
+
+import com.google.crypto.tink.KeysetHandle;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeCache;
+import no.ssb.crypto.tink.fpe.FpeConfig;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.UnknownCharacterStrategy;
+import no.ssb.crypto.tink.fpe.util.TinkUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares encrypting a batch of values with {@link Fpe#encryptAll(List, FpeParams)} to encrypting the values one by
+ * one. The score is the number of batches per second, so the throughput per record is the score times the batch size.
+ * {@code encryptEachCached} encrypts the values one by one through an {@link FpeCache}.
+ */
+@State(Scope.Benchmark)
+public class BatchBenchmark {
+
+    static {
+        try {
+            FpeConfig.register();
+        }
+        catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error initializing Tink FPE", e);
+        }
+    }
+
+    private final static String KEYSET_JSON_FF31_256_ALPHANUMERIC = "{\"primaryKeyId\":1720617146,\"key\":[{\"keyData\":{\"typeUrl\":\"type.googleapis.com/ssb.crypto.tink.FpeFfxKey\",\"value\":\"EiBoBeUFkoew7YJObcgcz1uOmzdhJFkPP7driAxAuS0UiRpCEAIaPkFCQ0RFRkdISUpLTE1OT1BRUlNUVVZXWFlaYWJjZGVmZ2hpamtsbW5vcHFyc3R1dnd4eXowMTIzNDU2Nzg5\",\"keyMaterialType\":\"SYMMETRIC\"},\"status\":\"ENABLED\",\"keyId\":1720617146,\"outputPrefixType\":\"RAW\"}]}";
+
+    private final static String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    // The number of values in each batch
+    @Param(value = {"1", "100", "10000"})
+    public int batchSize;
+
+    private List<byte[]> plaintexts;
+
+    private List<byte[]> ciphertexts;
+
+    private Fpe fpe;
+    private Fpe cachedFpe;
+    private FpeParams fpeParams;
+
+    @Setup(Level.Trial)
+    public void prepare() throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        fpe = keysetHandle.getPrimitive(Fpe.class);
+        cachedFpe = FpeCache.create(64 * 1024 * 1024).wrap(keysetHandle);
+        fpeParams = FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.SKIP);
+
+        // Identifier-like values, such as "AB12-345678"
+        Random random = new Random(42);
+        plaintexts = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            StringBuilder value = new StringBuilder();
+            for (int j = 0; j < 10; j++) {
+                value.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            plaintexts.add(value.insert(4, '-').toString().getBytes(StandardCharsets.UTF_8));
+        }
+        ciphertexts = fpe.encryptAll(plaintexts, fpeParams);
+    }
+
+    @Benchmark
+    public List<byte[]> encryptAll() throws Exception {
+        return fpe.encryptAll(plaintexts, fpeParams);
+    }
+
+    @Benchmark
+    public void encryptEach(Blackhole blackhole) throws Exception {
+        for (byte[] plaintext : plaintexts) {
+            blackhole.consume(fpe.encrypt(plaintext, fpeParams));
+        }
+    }
+
+    @Benchmark
+    public List<byte[]> decryptAll() throws Exception {
+        return fpe.decryptAll(ciphertexts, fpeParams);
+    }
+
+    @Benchmark
+    public void decryptEach(Blackhole blackhole) throws Exception {
+        for (byte[] ciphertext : ciphertexts) {
+            blackhole.consume(fpe.decrypt(ciphertext, fpeParams));
+        }
+    }
+
+    // Encrypts the same values in every invocation, so all but the first encryption of each value are cache hits
+    @Benchmark
+    public void encryptEachCached(Blackhole blackhole) throws Exception {
+        for (byte[] plaintext : plaintexts) {
+            blackhole.consume(cachedFpe.encrypt(plaintext, fpeParams));
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+package no.ssb.crypto.tink.fpe.benchmark;
+
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeConfig;
+import no.ssb.crypto.tink.fpe.FpeFfxKeyType;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.FpeSession;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+/**
+ * Compares encrypting 6 digits values (such as postal or municipality codes) using the FF3-1 Feistel rounds to
+ * encrypting them using a precomputed codebook (see {@link FpeParams#codebookBudget(long)}). The codebook is built
+ * during setup. The score is the number of values per second.
+ */
+@State(Scope.Benchmark)
+public class CodebookBenchmark {
+
+    static {
+        try {
+            FpeConfig.register();
+        }
+        catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error initializing Tink FPE", e);
+        }
+    }
+
+    private static final int VALUES = 1024;
+    private static final int DIGITS = 6;
+
+    // Whether the values are encrypted using a codebook
+    @Param(value = {"false", "true"})
+    public boolean codebook;
+
+    private Fpe fpe;
+    private FpeParams fpeParams;
+    private FpeSession session;
+    private byte[][] plaintexts;
+    private long[] numbers;
+    private byte[] output;
+
+    @Setup(Level.Trial)
+    public void prepare() throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(FpeFfxKeyType.FPE_FF31_256_DIGITS.name()));
+        fpe = keysetHandle.getPrimitive(Fpe.class);
+        fpeParams = fpe.compile(FpeParams.with().codebookBudget(codebook ? 16 * 1024 * 1024 : 0));
+        session = FpeSession.create();
+
+        Random random = new Random(42);
+        plaintexts = new byte[VALUES][];
+        numbers = new long[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            numbers[i] = random.nextInt(1_000_000);
+            plaintexts[i] = String.format("%06d", numbers[i]).getBytes(StandardCharsets.US_ASCII);
+        }
+        output = new byte[DIGITS];
+
+        // Build the codebook (if any)
+        fpe.encryptNumber(0, DIGITS, fpeParams);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void encryptBytesWithSession(Blackhole blackhole) throws Exception {
+        for (byte[] plaintext : plaintexts) {
+            blackhole.consume(fpe.encrypt(plaintext, 0, DIGITS, output, 0, fpeParams, session));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void encryptNumber(Blackhole blackhole) throws Exception {
+        for (long number : numbers) {
+            blackhole.consume(fpe.encryptNumber(number, DIGITS, fpeParams));
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+package no.ssb.crypto.tink.fpe.benchmark;
+
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeConfig;
+import no.ssb.crypto.tink.fpe.FpeFfxKeyType;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+/**
+ * Encrypts 11 digits identifiers with one primitive that is shared by 1 to 16 threads, like a service that shares the
+ * primitive of a keyset between its request threads. JMH only supports one thread count per method, hence the
+ * method per thread count. The score is the total number of values per second for all threads, which should grow
+ * with the number of threads, up to the number of cores.
+ */
+@State(Scope.Benchmark)
+public class ConcurrencyBenchmark {
+
+    static {
+        try {
+            FpeConfig.register();
+        }
+        catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error initializing Tink FPE", e);
+        }
+    }
+
+    private static final int VALUES = 1024;
+
+    private Fpe fpe;
+    private FpeParams fpeParams;
+    private byte[][] plaintexts;
+
+    @Setup(Level.Trial)
+    public void prepare() throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(FpeFfxKeyType.FPE_FF31_256_DIGITS.name()));
+        fpe = keysetHandle.getPrimitive(Fpe.class);
+        fpeParams = fpe.compile(FpeParams.DEFAULT);
+
+        Random random = new Random(42);
+        plaintexts = new byte[VALUES][];
+        for (int i = 0; i < VALUES; i++) {
+            plaintexts[i] = String.format("%011d", Math.floorMod(random.nextLong(), 100_000_000_000L))
+                    .getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * The position of each thread in the values
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        byte[] next(byte[][] values) {
+            next = (next + 1) % values.length;
+            return values[next];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] encrypt01Thread(Cursor cursor) throws Exception {
+        return fpe.encrypt(cursor.next(plaintexts), fpeParams);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public byte[] encrypt02Threads(Cursor cursor) throws Exception {
+        return fpe.encrypt(cursor.next(plaintexts), fpeParams);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] encrypt04Threads(Cursor cursor) throws Exception {
+        return fpe.encrypt(cursor.next(plaintexts), fpeParams);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public byte[] encrypt08Threads(Cursor cursor) throws Exception {
+        return fpe.encrypt(cursor.next(plaintexts), fpeParams);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public byte[] encrypt16Threads(Cursor cursor) throws Exception {
+        return fpe.encrypt(cursor.next(plaintexts), fpeParams);
+    }
+
+}
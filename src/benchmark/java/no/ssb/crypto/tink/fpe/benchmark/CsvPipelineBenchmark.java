@@ -0,0 +1,117 @@
+package no.ssb.crypto.tink.fpe.benchmark;
+
+import com.google.crypto.tink.KeysetHandle;
+import no.ssb.crypto.tink.fpe.FpeConfig;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.UnknownCharacterStrategy;
+import no.ssb.crypto.tink.fpe.pipeline.CsvPipeline;
+import no.ssb.crypto.tink.fpe.pipeline.PipelineResult;
+import no.ssb.crypto.tink.fpe.util.TinkUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+/**
+ * End-to-end benchmark of {@link CsvPipeline}, encrypting two of four columns of a generated CSV file. The score is
+ * the number of rows per second, and the throughput in bytes per second is reported as the secondary result
+ * {@code encrypt:bytes}, see {@link Bytes}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class CsvPipelineBenchmark {
+
+    static {
+        try {
+            FpeConfig.register();
+        }
+        catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error initializing Tink FPE", e);
+        }
+    }
+
+    private final static String KEYSET_JSON_FF31_256_ALPHANUMERIC = "{\"primaryKeyId\":1720617146,\"key\":[{\"keyData\":{\"typeUrl\":\"type.googleapis.com/ssb.crypto.tink.FpeFfxKey\",\"value\":\"EiBoBeUFkoew7YJObcgcz1uOmzdhJFkPP7driAxAuS0UiRpCEAIaPkFCQ0RFRkdISUpLTE1OT1BRUlNUVVZXWFlaYWJjZGVmZ2hpamtsbW5vcHFyc3R1dnd4eXowMTIzNDU2Nzg5\",\"keyMaterialType\":\"SYMMETRIC\"},\"status\":\"ENABLED\",\"keyId\":1720617146,\"outputPrefixType\":\"RAW\"}]}";
+
+    private final static String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private final static int ROWS = 200_000;
+
+    // The number of worker threads
+    @Param(value = {"1", "2", "4", "8"})
+    public int threads;
+
+    private Path input;
+    private Path output;
+    private CsvPipeline pipeline;
+
+    @Setup(Level.Trial)
+    public void prepare() throws Exception {
+        input = Files.createTempFile("fpe-pipeline-benchmark", ".csv");
+        output = Files.createTempFile("fpe-pipeline-benchmark", ".csv");
+
+        // id (11 digits), name (two words), municipality (4 digits), free text
+        Random random = new Random(42);
+        try (BufferedWriter writer = Files.newBufferedWriter(input, StandardCharsets.UTF_8)) {
+            writer.write("id,name,municipality,comment\n");
+            for (int i = 0; i < ROWS; i++) {
+                writer.write(randomText(random, 11, 10));
+                writer.write(",\"");
+                writer.write(randomText(random, 4 + random.nextInt(6), ALPHABET.length()));
+                writer.write(' ');
+                writer.write(randomText(random, 5 + random.nextInt(8), ALPHABET.length()));
+                writer.write("\",");
+                writer.write(randomText(random, 4, 10));
+                writer.write(",registered ");
+                writer.write(Integer.toString(i));
+                writer.write('\n');
+            }
+        }
+
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        pipeline = CsvPipeline.with(keysetHandle)
+                .header(true)
+                .column("id", FpeParams.DEFAULT)
+                .column("name", FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.SKIP))
+                .threads(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws Exception {
+        Files.deleteIfExists(input);
+        Files.deleteIfExists(output);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public PipelineResult encrypt(Bytes bytes) throws Exception {
+        PipelineResult result = pipeline.encrypt(input, output);
+        bytes.bytes += result.getBytesRead();
+        return result;
+    }
+
+    /**
+     * Bytes counts the bytes read by the pipeline. As an operations counter, it is reported per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    private static String randomText(Random random, int len, int radix) {
+        StringBuilder text = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+            text.append(ALPHABET.charAt(random.nextInt(radix)));
+        }
+        return text.toString();
+    }
+
+}
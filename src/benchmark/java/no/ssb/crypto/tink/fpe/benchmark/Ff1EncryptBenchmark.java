@@ -0,0 +1,25 @@
+package no.ssb.crypto.tink.fpe.benchmark;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Encrypts and decrypts single values with an FF1 key, for comparison with {@link EncryptBenchmark}. FF1 rejects
+ * values shorter than its minimum length, so the {@code 2 chars} input is not included.
+ */
+public class Ff1EncryptBenchmark extends AbstractEncryptBenchmark {
+
+    // The inputs of EncryptBenchmark that FF1 can encrypt
+    @Param(value = {SHORT, MEDIUM, MEDIUM_ASCII, LONG})
+    public String paramName;
+
+    @Override
+    protected String paramName() {
+        return paramName;
+    }
+
+    @Override
+    protected String keysetJson() {
+        return KEYSET_JSON_FF1_256_ALPHANUMERIC;
+    }
+
+}
@@ -0,0 +1,89 @@
+package no.ssb.crypto.tink.fpe.benchmark;
+
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeConfig;
+import no.ssb.crypto.tink.fpe.FpeFfxKeyType;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.FpeSession;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+/**
+ * Encrypts and decrypts values that all have the same length, such as 11 digits identifiers, 6 characters codes and
+ * full 30 characters FF3-1 chunks. Each length only needs the FF3-1 round parameters to be computed once. The score
+ * is the number of values per second.
+ */
+@State(Scope.Benchmark)
+public class FixedLengthBenchmark {
+
+    static {
+        try {
+            FpeConfig.register();
+        }
+        catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error initializing Tink FPE", e);
+        }
+    }
+
+    private static final int VALUES = 1024;
+
+    // The kind of values, as <number of characters>-<key type>
+    @Param(value = {"11-FPE_FF31_256_DIGITS", "6-FPE_FF31_256_ALPHANUMERIC", "30-FPE_FF31_256_ALPHANUMERIC"})
+    public String input;
+
+    private Fpe fpe;
+    private FpeParams fpeParams;
+    private FpeSession session;
+    private byte[][] plaintexts;
+    private byte[][] ciphertexts;
+    private byte[] output;
+
+    @Setup(Level.Trial)
+    public void prepare() throws Exception {
+        int length = Integer.parseInt(input.substring(0, input.indexOf('-')));
+        FpeFfxKeyType keyType = FpeFfxKeyType.valueOf(input.substring(input.indexOf('-') + 1));
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(keyType.name()));
+        fpe = keysetHandle.getPrimitive(Fpe.class);
+        fpeParams = fpe.compile(FpeParams.DEFAULT);
+        session = FpeSession.create();
+
+        String alphabet = keyType == FpeFfxKeyType.FPE_FF31_256_DIGITS
+                ? "0123456789"
+                : "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+        Random random = new Random(42);
+        plaintexts = new byte[VALUES][];
+        ciphertexts = new byte[VALUES][];
+        for (int i = 0; i < VALUES; i++) {
+            StringBuilder value = new StringBuilder();
+            for (int j = 0; j < length; j++) {
+                value.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            plaintexts[i] = value.toString().getBytes(StandardCharsets.US_ASCII);
+            ciphertexts[i] = fpe.encrypt(plaintexts[i], fpeParams);
+        }
+        output = new byte[length];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void encryptBytesWithSession(Blackhole blackhole) throws Exception {
+        for (byte[] plaintext : plaintexts) {
+            blackhole.consume(fpe.encrypt(plaintext, 0, plaintext.length, output, 0, fpeParams, session));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void decryptBytesWithSession(Blackhole blackhole) throws Exception {
+        for (byte[] ciphertext : ciphertexts) {
+            blackhole.consume(fpe.decrypt(ciphertext, 0, ciphertext.length, output, 0, fpeParams, session));
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package no.ssb.crypto.tink.fpe.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.crypto.tink.KeysetHandle;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeConfig;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.UnknownCharacterStrategy;
+import no.ssb.crypto.tink.fpe.pipeline.JsonFpeTransformer;
+import no.ssb.crypto.tink.fpe.util.TinkUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+/**
+ * Compares encrypting the values at two paths of newline delimited JSON records with {@link JsonFpeTransformer}
+ * (streaming) to the equivalent {@link ObjectMapper#readTree} based code, which builds a tree of each record. The
+ * score is the number of records per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class JsonTransformBenchmark {
+
+    static {
+        try {
+            FpeConfig.register();
+        }
+        catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error initializing Tink FPE", e);
+        }
+    }
+
+    private final static String KEYSET_JSON_FF31_256_ALPHANUMERIC = "{\"primaryKeyId\":1720617146,\"key\":[{\"keyData\":{\"typeUrl\":\"type.googleapis.com/ssb.crypto.tink.FpeFfxKey\",\"value\":\"EiBoBeUFkoew7YJObcgcz1uOmzdhJFkPP7driAxAuS0UiRpCEAIaPkFCQ0RFRkdISUpLTE1OT1BRUlNUVVZXWFlaYWJjZGVmZ2hpamtsbW5vcHFyc3R1dnd4eXowMTIzNDU2Nzg5\",\"keyMaterialType\":\"SYMMETRIC\"},\"status\":\"ENABLED\",\"keyId\":1720617146,\"outputPrefixType\":\"RAW\"}]}";
+
+    private final static String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private final static int RECORDS = 10_000;
+
+    private byte[] ndjson;
+    private ByteArrayOutputStream out;
+    private Fpe fpe;
+    private FpeParams idParams;
+    private FpeParams nameParams;
+    private JsonFpeTransformer transformer;
+    private ObjectMapper mapper;
+
+    @Setup(Level.Trial)
+    public void prepare() throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        fpe = keysetHandle.getPrimitive(Fpe.class);
+        idParams = FpeParams.DEFAULT;
+        nameParams = FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.SKIP);
+        transformer = JsonFpeTransformer.with(fpe)
+                .path("/id", idParams)
+                .path("/person/name", nameParams);
+        mapper = new ObjectMapper();
+
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < RECORDS; i++) {
+            sb.append("{\"id\":\"").append(randomText(random, 11))
+                    .append("\",\"person\":{\"name\":\"").append(randomText(random, 6)).append(' ')
+                    .append(randomText(random, 9)).append("\",\"born\":").append(1900 + random.nextInt(120))
+                    .append("},\"tags\":[\"a\",\"b\",\"c\"],\"score\":").append(random.nextDouble())
+                    .append(",\"active\":true}\n");
+        }
+        ndjson = sb.toString().getBytes();
+        out = new ByteArrayOutputStream(ndjson.length * 2);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int streaming() throws Exception {
+        out.reset();
+        transformer.encrypt(new ByteArrayInputStream(ndjson), out);
+        return out.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int readTree() throws Exception {
+        out.reset();
+        try (MappingIterator<JsonNode> records = mapper.readerFor(JsonNode.class).readValues(ndjson)) {
+            while (records.hasNext()) {
+                ObjectNode record = (ObjectNode) records.next();
+                ObjectNode person = (ObjectNode) record.get("person");
+                record.put("id", new String(fpe.encrypt(record.get("id").textValue().toCharArray(), idParams)));
+                person.put("name", new String(fpe.encrypt(person.get("name").textValue().toCharArray(), nameParams)));
+                out.write(mapper.writeValueAsBytes(record));
+                out.write('\n');
+            }
+        }
+        return out.size();
+    }
+
+    private static String randomText(Random random, int len) {
+        StringBuilder text = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+            text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return text.toString();
+    }
+
+}
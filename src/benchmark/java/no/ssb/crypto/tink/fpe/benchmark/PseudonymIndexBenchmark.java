@@ -0,0 +1,96 @@
+package no.ssb.crypto.tink.fpe.benchmark;
+
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeConfig;
+import no.ssb.crypto.tink.fpe.FpeFfxKeyType;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.pipeline.PseudonymIndex;
+import no.ssb.crypto.tink.fpe.pipeline.PseudonymIndexBuilder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+/**
+ * Compares encrypting 11 digits identifiers using the primitive to looking them up in a {@link PseudonymIndex} of a
+ * universe of 1M identifiers. The index is built during setup. The score is the number of values per second.
+ */
+@State(Scope.Benchmark)
+public class PseudonymIndexBenchmark {
+
+    static {
+        try {
+            FpeConfig.register();
+        }
+        catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error initializing Tink FPE", e);
+        }
+    }
+
+    private static final int UNIVERSE = 1_000_000;
+    private static final int VALUES = 1024;
+
+    private Path dir;
+    private Fpe fpe;
+    private Fpe indexedFpe;
+    private FpeParams fpeParams;
+    private byte[][] plaintexts;
+
+    @Setup(Level.Trial)
+    public void prepare() throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(FpeFfxKeyType.FPE_FF31_256_DIGITS.name()));
+        fpe = keysetHandle.getPrimitive(Fpe.class);
+        fpeParams = FpeParams.DEFAULT;
+
+        // Every 100_000th 11 digits number, spread over the domain
+        dir = Files.createTempDirectory("pseudonym-index-benchmark");
+        Path values = dir.resolve("values.txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(values, StandardCharsets.US_ASCII)) {
+            for (long i = 0; i < UNIVERSE; i++) {
+                writer.write(String.format("%011d", i * 100_000 + 17));
+                writer.write('\n');
+            }
+        }
+        Path index = dir.resolve("values.idx");
+        PseudonymIndexBuilder.with(keysetHandle).params(fpeParams).build(values, index);
+        indexedFpe = PseudonymIndex.open(index).wrap(fpe);
+
+        Random random = new Random(42);
+        plaintexts = new byte[VALUES][];
+        for (int i = 0; i < VALUES; i++) {
+            plaintexts[i] = String.format("%011d", random.nextInt(UNIVERSE) * 100_000L + 17)
+                    .getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws Exception {
+        Files.delete(dir.resolve("values.txt"));
+        Files.delete(dir.resolve("values.idx"));
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void encrypt(Blackhole blackhole) throws Exception {
+        for (byte[] plaintext : plaintexts) {
+            blackhole.consume(fpe.encrypt(plaintext, fpeParams));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void encryptIndexed(Blackhole blackhole) throws Exception {
+        for (byte[] plaintext : plaintexts) {
+            blackhole.consume(indexedFpe.encrypt(plaintext, fpeParams));
+        }
+    }
+
+}
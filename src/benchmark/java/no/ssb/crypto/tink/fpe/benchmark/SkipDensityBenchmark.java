@@ -0,0 +1,82 @@
+package no.ssb.crypto.tink.fpe.benchmark;
+
+import com.google.common.base.CharMatcher;
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeConfig;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.UnknownCharacterStrategy;
+import no.ssb.crypto.tink.fpe.text.CharacterSkipper;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+/**
+ * Measures the SKIP strategy for texts with an increasing share (density) of characters that are not part of the
+ * alphabet, from none to 80 percent. {@code skipAndInject} measures the CharacterSkipper alone, while
+ * {@code encryptBytes} measures encryption of the same text with each FFX mode.
+ */
+@State(Scope.Benchmark)
+public class SkipDensityBenchmark {
+
+    static {
+        try {
+            FpeConfig.register();
+        }
+        catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error initializing Tink FPE", e);
+        }
+    }
+
+    private final static String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private final static String UNKNOWN = " .,;:!?-()'\"\n";
+    private final static int TEXT_LENGTH = 1000;
+
+    // The percentage of characters that are not part of the alphabet
+    @Param(value = {"0", "20", "40", "60", "80"})
+    public int density;
+
+    // The FFX mode of the key
+    @Param(value = {"FF31", "FF1"})
+    public String mode;
+
+    private String text;
+    private byte[] plaintextBytes;
+    private CharMatcher alphabetMatcher;
+    private Fpe fpe;
+    private FpeParams fpeParams;
+
+    @Setup(Level.Trial)
+    public void prepare() throws Exception {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(TEXT_LENGTH);
+        for (int i = 0; i < TEXT_LENGTH; i++) {
+            String chars = random.nextInt(100) < density ? UNKNOWN : ALPHABET;
+            sb.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        text = sb.toString();
+        plaintextBytes = text.getBytes(StandardCharsets.UTF_8);
+        alphabetMatcher = CharMatcher.anyOf(ALPHABET).precomputed();
+
+        String keyType = mode.equals("FF31") ? "FPE_FF31_256_ALPHANUMERIC" : "FPE_FF1_256_ALPHANUMERIC";
+        fpe = KeysetHandle.generateNew(KeyTemplates.get(keyType)).getPrimitive(Fpe.class);
+        fpeParams = FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.SKIP);
+    }
+
+    @Benchmark
+    public StringBuilder skipAndInject() {
+        CharacterSkipper skipper = CharacterSkipper.of(text, alphabetMatcher);
+        StringBuilder result = new StringBuilder(skipper.getProcessedText());
+        skipper.injectSkippedInto(result);
+        return result;
+    }
+
+    @Benchmark
+    public byte[] encryptBytes() throws Exception {
+        return fpe.encrypt(plaintextBytes, fpeParams);
+    }
+
+}
@@ -0,0 +1,205 @@
+package no.ssb.crypto.tink.fpe;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+/**
+ * CachingFpe is a primitive that looks up results in an {@link FpeCache} before delegating to the wrapped primitive,
+ * see {@link FpeCache#wrap(Fpe, int)}.
+ *
+ * <p>Only {@link #encrypt(byte[], FpeParams)} and {@link #decrypt(byte[], FpeParams)} of values up to
+ * {@link FpeCache#maximumValueBytes()} bytes are cached. All other operations (byte buffers, sessions, texts,
+ * numbers, batches, writers, readers and streams) are delegated straight to the wrapped primitive, so that they keep its
+ * optimized paths, and long texts do not flush the cache.</p>
+ */
+final class CachingFpe implements Fpe {
+
+    private final Fpe delegate;
+    private final FpeCache cache;
+    private final int keyId;
+
+    CachingFpe(Fpe delegate, FpeCache cache, int keyId) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.keyId = keyId;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] plaintext, FpeParams params) throws GeneralSecurityException {
+        return cipher(plaintext, params, true);
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext, FpeParams params) throws GeneralSecurityException {
+        return cipher(ciphertext, params, false);
+    }
+
+    @Override
+    public int encrypt(ByteBuffer in, ByteBuffer out, FpeParams params) throws GeneralSecurityException {
+        return delegate.encrypt(in, out, params);
+    }
+
+    @Override
+    public int decrypt(ByteBuffer in, ByteBuffer out, FpeParams params) throws GeneralSecurityException {
+        return delegate.decrypt(in, out, params);
+    }
+
+    @Override
+    public int encrypt(byte[] in, int off, int len, byte[] out, int outOff, FpeParams params)
+            throws GeneralSecurityException {
+        return delegate.encrypt(in, off, len, out, outOff, params);
+    }
+
+    @Override
+    public int decrypt(byte[] in, int off, int len, byte[] out, int outOff, FpeParams params)
+            throws GeneralSecurityException {
+        return delegate.decrypt(in, off, len, out, outOff, params);
+    }
+
+    @Override
+    public int encrypt(byte[] in, int off, int len, byte[] out, int outOff, FpeParams params, FpeSession session)
+            throws GeneralSecurityException {
+        return delegate.encrypt(in, off, len, out, outOff, params, session);
+    }
+
+    @Override
+    public int decrypt(byte[] in, int off, int len, byte[] out, int outOff, FpeParams params, FpeSession session)
+            throws GeneralSecurityException {
+        return delegate.decrypt(in, off, len, out, outOff, params, session);
+    }
+
+    @Override
+    public CharSequence encrypt(CharSequence plaintext, FpeParams params) throws GeneralSecurityException {
+        return delegate.encrypt(plaintext, params);
+    }
+
+    @Override
+    public char[] encrypt(char[] plaintext, FpeParams params) throws GeneralSecurityException {
+        return delegate.encrypt(plaintext, params);
+    }
+
+    @Override
+    public CharSequence decrypt(CharSequence ciphertext, FpeParams params) throws GeneralSecurityException {
+        return delegate.decrypt(ciphertext, params);
+    }
+
+    @Override
+    public char[] decrypt(char[] ciphertext, FpeParams params) throws GeneralSecurityException {
+        return delegate.decrypt(ciphertext, params);
+    }
+
+    @Override
+    public Writer encryptingWriter(Writer out, FpeParams params) throws GeneralSecurityException {
+        return delegate.encryptingWriter(out, params);
+    }
+
+    @Override
+    public Writer decryptingWriter(Writer out, FpeParams params) throws GeneralSecurityException {
+        return delegate.decryptingWriter(out, params);
+    }
+
+    @Override
+    public OutputStream encryptingStream(OutputStream out, FpeParams params) throws GeneralSecurityException {
+        return delegate.encryptingStream(out, params);
+    }
+
+    @Override
+    public OutputStream decryptingStream(OutputStream out, FpeParams params) throws GeneralSecurityException {
+        return delegate.decryptingStream(out, params);
+    }
+
+    @Override
+    public Reader encryptingReader(Reader in, FpeParams params) throws GeneralSecurityException {
+        return delegate.encryptingReader(in, params);
+    }
+
+    @Override
+    public Reader decryptingReader(Reader in, FpeParams params) throws GeneralSecurityException {
+        return delegate.decryptingReader(in, params);
+    }
+
+    @Override
+    public InputStream encryptingStream(InputStream in, FpeParams params) throws GeneralSecurityException {
+        return delegate.encryptingStream(in, params);
+    }
+
+    @Override
+    public InputStream decryptingStream(InputStream in, FpeParams params) throws GeneralSecurityException {
+        return delegate.decryptingStream(in, params);
+    }
+
+    @Override
+    public List<byte[]> encryptAll(List<byte[]> plaintexts, FpeParams params) throws GeneralSecurityException {
+        return delegate.encryptAll(plaintexts, params);
+    }
+
+    @Override
+    public List<byte[]> decryptAll(List<byte[]> ciphertexts, FpeParams params) throws GeneralSecurityException {
+        return delegate.decryptAll(ciphertexts, params);
+    }
+
+    @Override
+    public void encryptBatch(FpeBatch plaintexts, FpeParams params, FpeBatch.Builder output)
+            throws GeneralSecurityException {
+        delegate.encryptBatch(plaintexts, params, output);
+    }
+
+    @Override
+    public void decryptBatch(FpeBatch ciphertexts, FpeParams params, FpeBatch.Builder output)
+            throws GeneralSecurityException {
+        delegate.decryptBatch(ciphertexts, params, output);
+    }
+
+    @Override
+    public long encryptNumber(long value, int digits, FpeParams params) throws GeneralSecurityException {
+        return delegate.encryptNumber(value, digits, params);
+    }
+
+    @Override
+    public long decryptNumber(long value, int digits, FpeParams params) throws GeneralSecurityException {
+        return delegate.decryptNumber(value, digits, params);
+    }
+
+    @Override
+    public long[] encryptNumbers(long[] values, int digits, FpeParams params) throws GeneralSecurityException {
+        return delegate.encryptNumbers(values, digits, params);
+    }
+
+    @Override
+    public long[] decryptNumbers(long[] values, int digits, FpeParams params) throws GeneralSecurityException {
+        return delegate.decryptNumbers(values, digits, params);
+    }
+
+    @Override
+    public FpeParams compile(FpeParams params) {
+        return delegate.compile(params);
+    }
+
+    private byte[] cipher(byte[] value, FpeParams params, boolean encrypt) throws GeneralSecurityException {
+        if (value.length == 0 || value.length > cache.maximumValueBytes()) {
+            return encrypt ? delegate.encrypt(value, params) : delegate.decrypt(value, params);
+        }
+        byte[] result = cache.get(keyId, encrypt, params, value);
+        if (result == null) {
+            result = encrypt ? delegate.encrypt(value, params) : delegate.decrypt(value, params);
+            // A decryption may have used a non-primary key, so only encryptions are cached in both directions
+            cache.put(keyId, encrypt, params, value, result, encrypt && isInvertible(params));
+        }
+        return result;
+    }
+
+    /**
+     * @return true if decryption is the exact inverse of encryption. Not so for REDACT and DELETE, which lose the
+     * characters that are not part of the alphabet.
+     */
+    private static boolean isInvertible(FpeParams params) {
+        UnknownCharacterStrategy strategy = params.getUnknownCharacterStrategy();
+        return strategy == UnknownCharacterStrategy.FAIL || strategy == UnknownCharacterStrategy.SKIP;
+    }
+
+}
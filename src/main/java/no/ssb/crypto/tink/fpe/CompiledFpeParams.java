@@ -0,0 +1,53 @@
+package no.ssb.crypto.tink.fpe;
+
+/**
+ * CompiledFpeParams is the plan of {@link FpeParams} for a specific primitive: the state that would otherwise be
+ * resolved for each value, i.e. the redaction character and the tweak in the form used by the algorithm. Use
+ * {@link Fpe#compile(FpeParams)} to create it.
+ *
+ * <p>A plan is opaque. It is attached to the copy of the params returned by {@link Fpe#compile(FpeParams)}, and looked
+ * up by the primitive it was compiled for, see {@link #planOf(FpeParams, Fpe)}. Other primitives treat the params as
+ * plain (uncompiled) params. The params stay ordinary, mutable FpeParams: changing the tweak, redaction character or
+ * unknown character strategy drops the plan, so that the new values apply.</p>
+ */
+final class CompiledFpeParams {
+
+    /**
+     * primitive is the primitive that the plan was compiled for
+     */
+    private final Fpe primitive;
+
+    /**
+     * redactionChar is the resolved redaction character, i.e. either the one given by the params or the default for the
+     * alphabet of the primitive
+     */
+    private final char redactionChar;
+
+    /**
+     * tweak is the tweak in the form used by the algorithm of the primitive, e.g. the 64 bits FF3-1 tweak
+     */
+    private final byte[] tweak;
+
+    CompiledFpeParams(Fpe primitive, char redactionChar, byte[] tweak) {
+        this.primitive = primitive;
+        this.redactionChar = redactionChar;
+        this.tweak = tweak;
+    }
+
+    /**
+     * @return the plan of {@code params} if it was compiled for {@code primitive}, or else null
+     */
+    static CompiledFpeParams planOf(FpeParams params, Fpe primitive) {
+        CompiledFpeParams plan = params.getPlan();
+        return plan != null && plan.primitive == primitive ? plan : null;
+    }
+
+    char redactionChar() {
+        return redactionChar;
+    }
+
+    byte[] tweak() {
+        return tweak;
+    }
+
+}
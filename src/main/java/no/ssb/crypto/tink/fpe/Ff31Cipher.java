@@ -0,0 +1,935 @@
+package no.ssb.crypto.tink.fpe;
+
+import no.ssb.crypto.tink.fpe.text.Alphabet;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+/**
+ * Native implementation of the FF3-1 Format-Preserving Encryption algorithm.
+ *
+ * <p>The output is bit-for-bit compatible with the Mysto FF3 implementation (https://github.com/mysto/java-fpe) that
+ * was previously used by {@link FpeFf3}, but the AES key schedule and the alphabet lookup tables (see
+ * {@link Alphabet}) are only computed once (at construction time), and the algorithm operates directly on
+ * {@code char[]} and numeral ({@code int[]}) arrays instead of hex strings and substrings.</p>
+ *
+ * <p>All numeral arithmetic is done with fixed-width longs (see {@link FixedWidthArithmetic}) instead of
+ * {@link java.math.BigInteger}. Short numeral strings, such as the ones produced by the digits key types, are
+ * processed using a single long per half.</p>
+ *
+ * <p>Numeral strings are handled the same way as in Mysto: each half of the input is interpreted as a little-endian
+ * number in the given radix (the first character being the least significant digit).</p>
+ */
+final class Ff31Cipher {
+
+    private static final int NUM_ROUNDS = 8;
+    private static final int BLOCK_SIZE = 16;
+    private static final int TWEAK_LEN = 8;
+    private static final int TWEAK_LEN_NEW = 7;
+    private static final int HALF_TWEAK_LEN = 4;
+    private static final int MAX_RADIX = 256;
+
+    /**
+     * Per the revised FF3-1 spec, radix^minLen must be greater than or equal to DOMAIN_MIN.
+     */
+    private static final int DOMAIN_MIN = 1_000_000;
+
+    /**
+     * The max number of bits of radix^m for which the long-only arithmetic is used. The remainder of the 128 bits
+     * round function output is computed in steps of (64 - LONG_PATH_BITS) bits, so this is a trade-off between the
+     * number of strings that qualify and the number of steps. With 52 bits, all numeral strings of the
+     * FPE_FF31_*_DIGITS key types (max 30 digits per chunk) are processed using long arithmetic only.
+     */
+    private static final int LONG_PATH_BITS = 52;
+
+    private static final long SIGN_BIT_96 = 0x80000000L;
+
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * alphabet maps between characters and numerals (index in the alphabet)
+     */
+    private final Alphabet alphabet;
+
+    private final int radix;
+    private final int minLen;
+    private final int maxLen;
+
+    /**
+     * longPathMaxLen is the max length of a half (u) that is processed using plain long arithmetic, i.e. the max u
+     * such that radix^u &lt; 2^LONG_PATH_BITS. Longer halves are processed using 128 bits arithmetic.
+     */
+    private final int longPathMaxLen;
+
+    /**
+     * maxNumberLength is the max number of digits supported by {@link #encrypt(long, int, byte[])}
+     */
+    private final int maxNumberLength;
+
+    /**
+     * chunkDigits is the number of digits that fits in a positive int, and chunkPow is radix^chunkDigits. Used to
+     * convert between numeral strings and 128 bits numbers with as few 128 bits operations as possible.
+     */
+    private final int chunkDigits;
+    private final int chunkPow;
+
+    /**
+     * roundParams holds the {@link RoundParams} of each length n (indexed by n), created on first use and shared by
+     * all copies of this cipher
+     */
+    private final RoundParams[] roundParams;
+
+    /**
+     * keySpec is the (byte reversed) AES key.
+     */
+    private final SecretKeySpec keySpec;
+
+    /**
+     * aes is the AES-ECB block cipher, initialized with keySpec. A Cipher is not thread-safe, so neither is this
+     * class. Use {@link #copy()} to get an instance that can be used by another thread.
+     */
+    private final Cipher aes;
+
+    /**
+     * Scratch buffers for the AES input and output blocks, the 64 bits tweak, the halves (as numbers or numeral
+     * strings) and NUM(x). Like aes, they are owned by this instance, so that encrypting and decrypting does not
+     * allocate any memory. The AES input and output are separate arrays, since the JDK cipher copies the input if the
+     * arrays are the same.
+     */
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] roundOutput = new byte[BLOCK_SIZE];
+    private final byte[] tweak64 = new byte[TWEAK_LEN];
+    private final long[] ab = new long[2];
+    private final long[] num = new long[2];
+    private final int[] numeralsA;
+    private final int[] numeralsB;
+
+    /**
+     * codebooks holds the precomputed permutations of short numeral strings, shared by all copies of this cipher
+     */
+    private final Ff31Codebooks codebooks;
+
+    /**
+     * batch is the batch engine of this instance, created on first use
+     */
+    private Batch batch;
+
+    Ff31Cipher(final byte[] key, String alphabet) throws GeneralSecurityException {
+        this(key, Alphabet.of(alphabet));
+    }
+
+    Ff31Cipher(final byte[] key, Alphabet alphabet) throws GeneralSecurityException {
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new InvalidKeyException("key length " + key.length + " but must be 128, 192, or 256 bits");
+        }
+
+        this.alphabet = alphabet;
+        this.radix = alphabet.radix();
+        if (radix < 2 || radix > MAX_RADIX) {
+            throw new IllegalArgumentException("radix must be between 2 and " + MAX_RADIX + ", inclusive");
+        }
+
+        this.minLen = (int) Math.ceil(Math.log(DOMAIN_MIN) / Math.log(radix));
+        this.maxLen = (int) (2 * Math.floor(Math.log(Math.pow(2, 96)) / Math.log(radix)));
+        if (minLen < 2 || maxLen < minLen) {
+            throw new IllegalArgumentException("minLen or maxLen invalid, adjust your radix");
+        }
+
+        this.longPathMaxLen = FixedWidthArithmetic.maxDigits(radix, LONG_PATH_BITS);
+        this.maxNumberLength = Math.min(maxLen, Math.min(FixedWidthArithmetic.maxDigits(radix, 62),
+                2 * longPathMaxLen));
+        this.chunkDigits = FixedWidthArithmetic.maxDigits(radix, Integer.SIZE - 1);
+        this.chunkPow = (int) FixedWidthArithmetic.pow(radix, chunkDigits);
+        this.roundParams = new RoundParams[maxLen + 1];
+
+        // FF3 specifies that the key is used in reversed byte order
+        byte[] reversedKey = key.clone();
+        reverse(reversedKey);
+        this.keySpec = new SecretKeySpec(reversedKey, "AES");
+        this.aes = aesOf(keySpec);
+        this.numeralsA = new int[(maxLen + 1) / 2];
+        this.numeralsB = new int[(maxLen + 1) / 2];
+        this.codebooks = new Ff31Codebooks(this, radix);
+    }
+
+    private Ff31Cipher(Ff31Cipher other) throws GeneralSecurityException {
+        this.alphabet = other.alphabet;
+        this.radix = other.radix;
+        this.minLen = other.minLen;
+        this.maxLen = other.maxLen;
+        this.longPathMaxLen = other.longPathMaxLen;
+        this.maxNumberLength = other.maxNumberLength;
+        this.chunkDigits = other.chunkDigits;
+        this.chunkPow = other.chunkPow;
+        this.roundParams = other.roundParams;
+        this.keySpec = other.keySpec;
+        this.aes = aesOf(keySpec);
+        this.numeralsA = new int[other.numeralsA.length];
+        this.numeralsB = new int[other.numeralsB.length];
+        this.codebooks = other.codebooks;
+    }
+
+    /**
+     * @return a new instance with the same key and alphabet, sharing all immutable state with this instance, but with
+     * its own AES cipher and scratch buffers
+     */
+    Ff31Cipher copy() throws GeneralSecurityException {
+        return new Ff31Cipher(this);
+    }
+
+    private static Cipher aesOf(SecretKeySpec keySpec) throws GeneralSecurityException {
+        Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+        aes.init(Cipher.ENCRYPT_MODE, keySpec);
+        return aes;
+    }
+
+    /**
+     * @return the batch engine of this instance, see {@link Batch}
+     */
+    Batch batch() {
+        if (batch == null) {
+            batch = new Batch();
+        }
+        return batch;
+    }
+
+    /**
+     * @return the codebooks of this cipher (and its copies)
+     */
+    Ff31Codebooks codebooks() {
+        return codebooks;
+    }
+
+    /**
+     * @return the number of characters in the alphabet
+     */
+    int radix() {
+        return radix;
+    }
+
+    /**
+     * @return the minimum supported length of a numeral string
+     */
+    int minLength() {
+        return minLen;
+    }
+
+    /**
+     * @return the maximum supported length of a numeral string
+     */
+    int maxLength() {
+        return maxLen;
+    }
+
+    /**
+     * Encrypt {@code len} characters from {@code src} (starting at {@code srcPos}), writing the resulting ciphertext
+     * to {@code dst} (starting at {@code dstPos}). The source and destination may be the same array.
+     *
+     * @param tweak a 56 or 64 bits tweak
+     */
+    void encrypt(char[] src, int srcPos, int len, char[] dst, int dstPos, byte[] tweak) throws GeneralSecurityException {
+        cipher(src, srcPos, len, dst, dstPos, tweak, true);
+    }
+
+    /**
+     * Decrypt {@code len} characters from {@code src} (starting at {@code srcPos}), writing the resulting plaintext
+     * to {@code dst} (starting at {@code dstPos}). The source and destination may be the same array.
+     *
+     * @param tweak a 56 or 64 bits tweak
+     */
+    void decrypt(char[] src, int srcPos, int len, char[] dst, int dstPos, byte[] tweak) throws GeneralSecurityException {
+        cipher(src, srcPos, len, dst, dstPos, tweak, false);
+    }
+
+    /**
+     * Encrypt {@code len} single-byte characters from {@code src} (starting at {@code srcPos}), writing the resulting
+     * ciphertext to {@code dst} (starting at {@code dstPos}). Each byte is the character {@code b & 0xFF} (i.e.
+     * ISO-8859-1), so the alphabet must consist of characters up to U+00FF. The source and destination may be the
+     * same array.
+     *
+     * @param tweak a 56 or 64 bits tweak
+     */
+    void encrypt(byte[] src, int srcPos, int len, byte[] dst, int dstPos, byte[] tweak) throws GeneralSecurityException {
+        cipher(src, srcPos, len, dst, dstPos, tweak, true);
+    }
+
+    /**
+     * Decrypt {@code len} single-byte characters, see {@link #encrypt(byte[], int, int, byte[], int, byte[])}
+     *
+     * @param tweak a 56 or 64 bits tweak
+     */
+    void decrypt(byte[] src, int srcPos, int len, byte[] dst, int dstPos, byte[] tweak) throws GeneralSecurityException {
+        cipher(src, srcPos, len, dst, dstPos, tweak, false);
+    }
+
+    /**
+     * Encrypt the number {@code value}, represented as a numeral string of {@code n} digits in the radix of the
+     * alphabet. The digits are ordered the same way as the characters of a string (most significant digit first), so
+     * with a digits alphabet ("0123456789"), this yields the same result as encrypting the zero-padded decimal string.
+     *
+     * @param value a number {@code 0 <= value < radix^n}
+     * @param n the number of digits, which must not exceed {@link #maxNumberLength()}
+     * @param tweak a 56 or 64 bits tweak
+     * @return the resulting ciphertext number
+     */
+    long encrypt(long value, int n, byte[] tweak) throws GeneralSecurityException {
+        return cipher(value, n, tweak, true);
+    }
+
+    /**
+     * Decrypt the number {@code value}, see {@link #encrypt(long, int, byte[])}
+     *
+     * @param tweak a 56 or 64 bits tweak
+     * @return the resulting plaintext number
+     */
+    long decrypt(long value, int n, byte[] tweak) throws GeneralSecurityException {
+        return cipher(value, n, tweak, false);
+    }
+
+    /**
+     * @return the max number of digits supported by {@link #encrypt(long, int, byte[])}, i.e. the max n such that
+     * radix^n &lt; 2^62 and each half is processed using long arithmetic only
+     */
+    int maxNumberLength() {
+        return maxNumberLength;
+    }
+
+    private long cipher(long value, int n, byte[] tweak, boolean encrypt) throws GeneralSecurityException {
+        if (n < minLen || n > maxNumberLength) {
+            throw new IllegalArgumentException(String.format(
+                    "message length %d is not within min %d and max %d bounds", n, minLen, maxNumberLength));
+        }
+        byte[] tweak64 = tweak64Of(tweak, this.tweak64);
+
+        RoundParams params = roundParamsOf(n);
+        long modV = params.modV;
+        if (value < 0 || value / modV >= params.modU) {
+            throw new IllegalArgumentException("number " + value + " cannot be represented by " + n + " digits");
+        }
+
+        // The first u digits (A) are the most significant digits of the number. FF3-1 interprets each half with the
+        // first digit as the least significant one, so the digits of each half are reversed.
+        ab[0] = reverseDigits(value / modV, params.u);
+        ab[1] = reverseDigits(value % modV, params.v);
+        feistelLongOrLookup(params, tweak64, encrypt);
+        return reverseDigits(ab[0], params.u) * modV + reverseDigits(ab[1], params.v);
+    }
+
+    private long reverseDigits(long num, int len) {
+        long reversed = 0;
+        for (int i = 0; i < len; i++) {
+            reversed = reversed * radix + num % radix;
+            num /= radix;
+        }
+        return reversed;
+    }
+
+    private void cipher(char[] src, int srcPos, int n, char[] dst, int dstPos, byte[] tweak, boolean encrypt)
+            throws GeneralSecurityException {
+        checkLength(n);
+        byte[] tweak64 = tweak64Of(tweak, this.tweak64);
+
+        // Short numeral strings, where NUM(A) and NUM(B) (and the moduli) fit in a long, are kept as numbers. Longer
+        // strings are kept as numeral strings.
+        RoundParams params = roundParamsOf(n);
+        int u = params.u;
+        int v = params.v;
+        if (params.longPath) {
+            ab[0] = numOf(src, srcPos, u);
+            ab[1] = numOf(src, srcPos + u, v);
+            feistelLongOrLookup(params, tweak64, encrypt);
+            strOf(ab[0], dst, dstPos, u);
+            strOf(ab[1], dst, dstPos + u, v);
+        }
+        else {
+            alphabet.toIndexes(src, srcPos, u, numeralsA);
+            alphabet.toIndexes(src, srcPos + u, v, numeralsB);
+            feistel128(u, v, tweak64, encrypt);
+            alphabet.toChars(numeralsA, u, dst, dstPos);
+            alphabet.toChars(numeralsB, v, dst, dstPos + u);
+        }
+    }
+
+    /**
+     * The single-byte variant of {@link #cipher(char[], int, int, char[], int, byte[], boolean)}
+     */
+    private void cipher(byte[] src, int srcPos, int n, byte[] dst, int dstPos, byte[] tweak, boolean encrypt)
+            throws GeneralSecurityException {
+        checkLength(n);
+        byte[] tweak64 = tweak64Of(tweak, this.tweak64);
+
+        RoundParams params = roundParamsOf(n);
+        int u = params.u;
+        int v = params.v;
+        if (params.longPath) {
+            ab[0] = numOf(src, srcPos, u);
+            ab[1] = numOf(src, srcPos + u, v);
+            feistelLongOrLookup(params, tweak64, encrypt);
+            strOf(ab[0], dst, dstPos, u);
+            strOf(ab[1], dst, dstPos + u, v);
+        }
+        else {
+            alphabet.toIndexes(src, srcPos, u, numeralsA);
+            alphabet.toIndexes(src, srcPos + u, v, numeralsB);
+            feistel128(u, v, tweak64, encrypt);
+            alphabet.toBytes(numeralsA, u, dst, dstPos);
+            alphabet.toBytes(numeralsB, v, dst, dstPos + u);
+        }
+    }
+
+    private void checkLength(int n) {
+        if (n < minLen || n > maxLen) {
+            throw new IllegalArgumentException(String.format(
+                    "message length %d is not within min %d and max %d bounds", n, minLen, maxLen));
+        }
+    }
+
+    /**
+     * @return the round parameters of numeral strings of length {@code n}, which must be within bounds
+     */
+    private RoundParams roundParamsOf(int n) {
+        RoundParams params = roundParams[n];
+        if (params == null) {
+            // Threads may race to create the same parameters. This is harmless, since the instances are equal, and
+            // the final fields of RoundParams make them safe to publish without synchronization.
+            params = new RoundParams(n, radix, longPathMaxLen);
+            roundParams[n] = params;
+        }
+        return params;
+    }
+
+    /**
+     * Look up the halves in {@code ab} in the codebook of the tweak and length, if there is one, or else run the
+     * Feistel rounds using long arithmetic.
+     */
+    private void feistelLongOrLookup(RoundParams params, byte[] tweak64, boolean encrypt)
+            throws GeneralSecurityException {
+        Ff31Codebooks.Codebook codebook = codebooks.get(tweak64, params.n);
+        if (codebook != null) {
+            codebook.lookup(ab, encrypt);
+        }
+        else {
+            feistelLong(params, tweak64, encrypt);
+        }
+    }
+
+    /**
+     * Fill entries {@code from} (inclusive) to {@code to} (exclusive) of the codebook of numeral strings of length
+     * {@code n}, see {@link Ff31Codebooks}. Each plaintext index is encrypted using the Feistel rounds, and the
+     * ciphertext index is written to {@code forward}, and the plaintext index to {@code inverse}.
+     */
+    void fillCodebook(int n, byte[] tweak64, int from, int to, int[] forward, int[] inverse)
+            throws GeneralSecurityException {
+        RoundParams params = roundParamsOf(n);
+        long modV = params.modV;
+        for (int i = from; i < to; i++) {
+            ab[0] = i / modV;
+            ab[1] = i % modV;
+            feistelLong(params, tweak64, true);
+            int c = (int) (ab[0] * modV + ab[1]);
+            forward[i] = c;
+            inverse[c] = i;
+        }
+    }
+
+    /**
+     * The Feistel rounds using long arithmetic only. The halves are kept as numbers throughout all rounds. NUM(A) and
+     * NUM(B) are read from {@code ab}, and replaced by the resulting NUM(A) and NUM(B).
+     */
+    private void feistelLong(RoundParams params, byte[] tweak64, boolean encrypt) throws GeneralSecurityException {
+        long a = ab[0];
+        long b = ab[1];
+        long modU = params.modU;
+        long modV = params.modV;
+
+        if (encrypt) {
+            for (int i = 0; i < NUM_ROUNDS; i++) {
+                boolean even = i % 2 == 0;
+                long m = even ? modU : modV;
+                roundFunction(i, tweak64, even ? HALF_TWEAK_LEN : 0, 0, b);
+                long c = a + FixedWidthArithmetic.remainder(yHi(), yLo(), m);
+                a = b;
+                b = c >= m ? c - m : c;
+            }
+        }
+        else {
+            for (int i = NUM_ROUNDS - 1; i >= 0; i--) {
+                boolean even = i % 2 == 0;
+                long m = even ? modU : modV;
+                roundFunction(i, tweak64, even ? HALF_TWEAK_LEN : 0, 0, a);
+                long c = b - FixedWidthArithmetic.remainder(yHi(), yLo(), m);
+                b = a;
+                a = c < 0 ? c + m : c;
+            }
+        }
+
+        ab[0] = a;
+        ab[1] = b;
+    }
+
+    /**
+     * The Feistel rounds for long numeral strings, where NUM(A) and NUM(B) need up to 96 bits. The halves are kept as
+     * numeral strings, and C = (A + y) mod radix^m is computed digit by digit. A and B are read from
+     * {@code numeralsA} and {@code numeralsB}, and replaced by the resulting A and B.
+     */
+    private void feistel128(int u, int v, byte[] tweak64, boolean encrypt) throws GeneralSecurityException {
+        int[] a = numeralsA;
+        int[] b = numeralsB;
+        int aLen = u;
+        int bLen = v;
+
+        if (encrypt) {
+            for (int i = 0; i < NUM_ROUNDS; i++) {
+                FixedWidthArithmetic.num128(b, bLen, radix, chunkDigits, chunkPow, num);
+                roundFunction(i, tweak64, i % 2 == 0 ? HALF_TWEAK_LEN : 0, num[0], num[1]);
+                // The numeral array of A always has the length (m) of the resulting C, and is reused for it
+                FixedWidthArithmetic.addMod(a, aLen, yHi(), yLo(), radix, chunkDigits, chunkPow, false);
+                int[] tmp = a;
+                a = b;
+                b = tmp;
+                int tmpLen = aLen;
+                aLen = bLen;
+                bLen = tmpLen;
+            }
+        }
+        else {
+            for (int i = NUM_ROUNDS - 1; i >= 0; i--) {
+                FixedWidthArithmetic.num128(a, aLen, radix, chunkDigits, chunkPow, num);
+                roundFunction(i, tweak64, i % 2 == 0 ? HALF_TWEAK_LEN : 0, num[0], num[1]);
+                FixedWidthArithmetic.addMod(b, bLen, yHi(), yLo(), radix, chunkDigits, chunkPow, true);
+                int[] tmp = b;
+                b = a;
+                a = tmp;
+                int tmpLen = bLen;
+                bLen = aLen;
+                aLen = tmpLen;
+            }
+        }
+        // The halves are swapped once per round, so after an even number of rounds, A is back in numeralsA
+    }
+
+    /**
+     * The FF3-1 round function: AES-encrypt the block P = W xor i || NUM(x), where NUM(x) is the 96 bits number
+     * {@code (numHi, numLo)}. The result S is left in {@code roundOutput}, see {@link #yHi()} and {@link #yLo()}.
+     *
+     * <p>FF3-1 reverses P before encryption and S after. Instead of reversing, the block is written in little-endian
+     * byte order, and S is read back in little-endian byte order.</p>
+     */
+    private void roundFunction(int round, byte[] tweak64, int tweakPos, long numHi, long numLo)
+            throws GeneralSecurityException {
+        writeBlock(block, 0, round, tweak64, tweakPos, numHi, numLo);
+        aes.doFinal(block, 0, BLOCK_SIZE, roundOutput, 0);
+    }
+
+    /**
+     * Write the round function input block P = W xor i || NUM(x) into {@code dst} (starting at {@code off}), in
+     * little-endian byte order, see {@link #roundFunction}
+     */
+    private static void writeBlock(byte[] dst, int off, int round, byte[] tweak64, int tweakPos, long numHi,
+                                   long numLo) {
+        LONG_LE.set(dst, off, numLo);
+        INT_LE.set(dst, off + 8, (int) numHi);
+        // Mysto copies the two's complement representation of NUM(x), which has a leading sign byte if the number
+        // occupies all 96 bits. This overwrites the last tweak byte, and must be replicated for compatibility.
+        dst[off + 12] = (numHi & SIGN_BIT_96) != 0 ? 0 : (byte) (tweak64[tweakPos + 3] ^ round);
+        dst[off + 13] = tweak64[tweakPos + 2];
+        dst[off + 14] = tweak64[tweakPos + 1];
+        dst[off + 15] = tweak64[tweakPos];
+    }
+
+    /**
+     * @return the high 64 bits of the round function output y = NUM(S)
+     */
+    private long yHi() {
+        return (long) LONG_LE.get(roundOutput, 8);
+    }
+
+    /**
+     * @return the low 64 bits of the round function output y = NUM(S)
+     */
+    private long yLo() {
+        return (long) LONG_LE.get(roundOutput, 0);
+    }
+
+    /**
+     * @return the value of the little-endian numeral string of {@code len} characters in {@code src}, starting at
+     * {@code pos}
+     */
+    private long numOf(char[] src, int pos, int len) {
+        long num = 0;
+        for (int i = pos + len - 1; i >= pos; i--) {
+            num = num * radix + alphabet.numeralOf(src[i]);
+        }
+        return num;
+    }
+
+    /**
+     * Write {@code num} as a little-endian numeral string of {@code len} characters into {@code dst}, starting at
+     * {@code pos}
+     */
+    private void strOf(long num, char[] dst, int pos, int len) {
+        for (int i = pos; i < pos + len; i++) {
+            dst[i] = alphabet.charAt((int) (num % radix));
+            num /= radix;
+        }
+    }
+
+    /**
+     * The single-byte variant of {@link #numOf(char[], int, int)}
+     */
+    private long numOf(byte[] src, int pos, int len) {
+        long num = 0;
+        for (int i = pos + len - 1; i >= pos; i--) {
+            num = num * radix + alphabet.numeralOf((char) (src[i] & 0xFF));
+        }
+        return num;
+    }
+
+    /**
+     * The single-byte variant of {@link #strOf(long, char[], int, int)}
+     */
+    private void strOf(long num, byte[] dst, int pos, int len) {
+        for (int i = pos; i < pos + len; i++) {
+            dst[i] = (byte) alphabet.charAt((int) (num % radix));
+            num /= radix;
+        }
+    }
+
+    /**
+     * Expand a 56 bits FF3-1 tweak to 64 bits into {@code tweak64}, as specified by NIST SP 800-38G Rev. 1. 64 bits
+     * tweaks are returned as is.
+     */
+    static byte[] tweak64Of(byte[] tweak, byte[] tweak64) {
+        if (tweak.length == TWEAK_LEN) {
+            return tweak;
+        }
+        if (tweak.length != TWEAK_LEN_NEW) {
+            throw new IllegalArgumentException(String.format(
+                    "tweak length %d is invalid: tweak must be 56 or 64 bits", tweak.length));
+        }
+
+        tweak64[0] = tweak[0];
+        tweak64[1] = tweak[1];
+        tweak64[2] = tweak[2];
+        tweak64[3] = (byte) (tweak[3] & 0xF0);
+        tweak64[4] = tweak[4];
+        tweak64[5] = tweak[5];
+        tweak64[6] = tweak[6];
+        tweak64[7] = (byte) ((tweak[3] & 0x0F) << 4);
+        return tweak64;
+    }
+
+    /**
+     * RoundParams holds the parameters of the Feistel rounds that only depend on the length {@code n} of the numeral
+     * string: the lengths of the halves (u and v), whether the halves are processed using long arithmetic, and if so,
+     * the moduli radix^u and radix^v. Instances are immutable, and cached per length, see {@link #roundParamsOf}.
+     */
+    private static final class RoundParams {
+        private final int n;
+        private final int u;
+        private final int v;
+        private final boolean longPath;
+        private final long modU;
+        private final long modV;
+
+        private RoundParams(int n, int radix, int longPathMaxLen) {
+            this.n = n;
+            this.u = (n + 1) / 2;
+            this.v = n - u;
+            this.longPath = u <= longPathMaxLen;
+            this.modU = longPath ? FixedWidthArithmetic.pow(radix, u) : 0;
+            this.modV = longPath ? FixedWidthArithmetic.pow(radix, v) : 0;
+        }
+    }
+
+    /**
+     * Batch advances many independent numeral strings (chunks) through the Feistel rounds in lockstep. Chunks are
+     * queued by {@code add}, and processed by {@link #flush()}: for each round, the round function input blocks of all
+     * queued chunks are encrypted by a single multi-block AES-ECB call. The JCE dispatch overhead is thus paid once
+     * per round instead of once per chunk and round, and the AES instructions of consecutive blocks are pipelined.
+     *
+     * <p>Chunks are processed in place, so the arrays must not be modified until the batch is flushed. The batch is
+     * flushed automatically when it is full, or when a chunk is added for the other direction. Chunks that have a
+     * codebook (see {@link Ff31Codebooks}) are looked up right away. A batch uses the AES cipher and scratch buffers
+     * of its Ff31Cipher, and is not thread-safe either.</p>
+     */
+    final class Batch {
+
+        /**
+         * MAX_CHUNKS is the max number of chunks processed by each flush, i.e. the max number of AES blocks per call
+         */
+        static final int MAX_CHUNKS = 32;
+
+        private final char[][] charTargets = new char[MAX_CHUNKS][];
+        private final byte[][] byteTargets = new byte[MAX_CHUNKS][];
+        private final int[] positions = new int[MAX_CHUNKS];
+        private final int[] lengths = new int[MAX_CHUNKS];
+        private final byte[][] tweaks = new byte[MAX_CHUNKS][TWEAK_LEN];
+
+        /**
+         * The state of each chunk: the round parameters of its length, NUM(A) and NUM(B) for chunks processed using
+         * long arithmetic, and the numeral strings A and B (which are swapped each round) and their lengths for
+         * longer chunks
+         */
+        private final RoundParams[] params = new RoundParams[MAX_CHUNKS];
+        private final long[] numA = new long[MAX_CHUNKS];
+        private final long[] numB = new long[MAX_CHUNKS];
+        private final int[][] halvesA = new int[MAX_CHUNKS][];
+        private final int[][] halvesB = new int[MAX_CHUNKS][];
+        private final int[] lenA = new int[MAX_CHUNKS];
+        private final int[] lenB = new int[MAX_CHUNKS];
+
+        private final byte[] blocks = new byte[MAX_CHUNKS * BLOCK_SIZE];
+        private final byte[] outputs = new byte[MAX_CHUNKS * BLOCK_SIZE];
+
+        private int count;
+        private boolean encrypt;
+
+        private Batch() {
+        }
+
+        /**
+         * @return the number of queued chunks
+         */
+        int size() {
+            return count;
+        }
+
+        /**
+         * Queue the {@code len} characters of {@code chars} (starting at {@code pos}) to be encrypted or decrypted
+         * in place. If the chunk is invalid, the queued chunks are discarded.
+         *
+         * @param tweak a 56 or 64 bits tweak
+         */
+        void add(char[] chars, int pos, int len, byte[] tweak, boolean encrypt) throws GeneralSecurityException {
+            if (!queue(len, tweak, encrypt)) {
+                cipher(chars, pos, len, chars, pos, tweak, encrypt);
+                return;
+            }
+            charTargets[count] = chars;
+            positions[count] = pos;
+            lengths[count] = len;
+            count++;
+        }
+
+        /**
+         * The single-byte variant of {@link #add(char[], int, int, byte[], boolean)}
+         */
+        void add(byte[] bytes, int pos, int len, byte[] tweak, boolean encrypt) throws GeneralSecurityException {
+            if (!queue(len, tweak, encrypt)) {
+                cipher(bytes, pos, len, bytes, pos, tweak, encrypt);
+                return;
+            }
+            byteTargets[count] = bytes;
+            positions[count] = pos;
+            lengths[count] = len;
+            count++;
+        }
+
+        /**
+         * Make room for a chunk of {@code n} characters, and copy its 64 bits tweak to the next slot
+         *
+         * @return false if the chunk has a codebook, and should be processed right away
+         */
+        private boolean queue(int n, byte[] tweak, boolean encrypt) throws GeneralSecurityException {
+            if (count == MAX_CHUNKS || (count > 0 && encrypt != this.encrypt)) {
+                flush();
+            }
+            byte[] tweak64;
+            try {
+                checkLength(n);
+                // Expand the tweak straight into the slot rather than the scratch tweak64 of the cipher: the codebook
+                // lookup below may build a codebook, running other tasks of the pool on this thread meanwhile
+                tweak64 = tweak64Of(tweak, tweaks[count]);
+            }
+            catch (IllegalArgumentException e) {
+                clear();
+                throw e;
+            }
+            if (roundParamsOf(n).longPath && codebooks.get(tweak64, n) != null) {
+                return false;
+            }
+            if (tweak64 != tweaks[count]) {
+                System.arraycopy(tweak64, 0, tweaks[count], 0, TWEAK_LEN);
+            }
+            this.encrypt = encrypt;
+            return true;
+        }
+
+        /**
+         * Encrypt or decrypt all queued chunks, writing the results back in place
+         */
+        void flush() throws GeneralSecurityException {
+            int k = count;
+            if (k == 0) {
+                return;
+            }
+            try {
+                if (k == 1) {
+                    // Nothing to interleave
+                    if (charTargets[0] != null) {
+                        cipher(charTargets[0], positions[0], lengths[0], charTargets[0], positions[0], tweaks[0],
+                                encrypt);
+                    }
+                    else {
+                        cipher(byteTargets[0], positions[0], lengths[0], byteTargets[0], positions[0], tweaks[0],
+                                encrypt);
+                    }
+                    return;
+                }
+                load(k);
+                if (encrypt) {
+                    for (int i = 0; i < NUM_ROUNDS; i++) {
+                        round(k, i, true);
+                    }
+                }
+                else {
+                    for (int i = NUM_ROUNDS - 1; i >= 0; i--) {
+                        round(k, i, false);
+                    }
+                }
+                store(k);
+            }
+            finally {
+                clear();
+            }
+        }
+
+        /**
+         * Discard all queued chunks
+         */
+        void clear() {
+            Arrays.fill(charTargets, 0, count, null);
+            Arrays.fill(byteTargets, 0, count, null);
+            count = 0;
+        }
+
+        private void load(int k) {
+            for (int j = 0; j < k; j++) {
+                params[j] = roundParamsOf(lengths[j]);
+                int u = params[j].u;
+                int v = params[j].v;
+                int pos = positions[j];
+                if (params[j].longPath) {
+                    numA[j] = charTargets[j] != null ? numOf(charTargets[j], pos, u) : numOf(byteTargets[j], pos, u);
+                    numB[j] = charTargets[j] != null ? numOf(charTargets[j], pos + u, v)
+                            : numOf(byteTargets[j], pos + u, v);
+                    continue;
+                }
+                if (halvesA[j] == null) {
+                    halvesA[j] = new int[numeralsA.length];
+                    halvesB[j] = new int[numeralsB.length];
+                }
+                if (charTargets[j] != null) {
+                    alphabet.toIndexes(charTargets[j], pos, u, halvesA[j]);
+                    alphabet.toIndexes(charTargets[j], pos + u, v, halvesB[j]);
+                }
+                else {
+                    alphabet.toIndexes(byteTargets[j], pos, u, halvesA[j]);
+                    alphabet.toIndexes(byteTargets[j], pos + u, v, halvesB[j]);
+                }
+                lenA[j] = u;
+                lenB[j] = v;
+            }
+        }
+
+        /**
+         * Apply round {@code round} to the first {@code k} chunks, the same way as {@link #feistelLong} and
+         * {@link #feistel128}, but with a single AES call for all chunks
+         */
+        private void round(int k, int round, boolean encrypt) throws GeneralSecurityException {
+            boolean even = round % 2 == 0;
+            int tweakPos = even ? HALF_TWEAK_LEN : 0;
+            for (int j = 0; j < k; j++) {
+                if (params[j].longPath) {
+                    writeBlock(blocks, j * BLOCK_SIZE, round, tweaks[j], tweakPos, 0, encrypt ? numB[j] : numA[j]);
+                }
+                else {
+                    if (encrypt) {
+                        FixedWidthArithmetic.num128(halvesB[j], lenB[j], radix, chunkDigits, chunkPow, num);
+                    }
+                    else {
+                        FixedWidthArithmetic.num128(halvesA[j], lenA[j], radix, chunkDigits, chunkPow, num);
+                    }
+                    writeBlock(blocks, j * BLOCK_SIZE, round, tweaks[j], tweakPos, num[0], num[1]);
+                }
+            }
+            aes.doFinal(blocks, 0, k * BLOCK_SIZE, outputs, 0);
+
+            for (int j = 0; j < k; j++) {
+                long yHi = (long) LONG_LE.get(outputs, j * BLOCK_SIZE + 8);
+                long yLo = (long) LONG_LE.get(outputs, j * BLOCK_SIZE);
+                if (params[j].longPath) {
+                    long m = even ? params[j].modU : params[j].modV;
+                    if (encrypt) {
+                        long c = numA[j] + FixedWidthArithmetic.remainder(yHi, yLo, m);
+                        numA[j] = numB[j];
+                        numB[j] = c >= m ? c - m : c;
+                    }
+                    else {
+                        long c = numB[j] - FixedWidthArithmetic.remainder(yHi, yLo, m);
+                        numB[j] = numA[j];
+                        numA[j] = c < 0 ? c + m : c;
+                    }
+                    continue;
+                }
+                if (encrypt) {
+                    FixedWidthArithmetic.addMod(halvesA[j], lenA[j], yHi, yLo, radix, chunkDigits, chunkPow, false);
+                }
+                else {
+                    FixedWidthArithmetic.addMod(halvesB[j], lenB[j], yHi, yLo, radix, chunkDigits, chunkPow, true);
+                }
+                int[] tmp = halvesA[j];
+                halvesA[j] = halvesB[j];
+                halvesB[j] = tmp;
+                int tmpLen = lenA[j];
+                lenA[j] = lenB[j];
+                lenB[j] = tmpLen;
+            }
+        }
+
+        private void store(int k) {
+            for (int j = 0; j < k; j++) {
+                int u = params[j].u;
+                int v = params[j].v;
+                int pos = positions[j];
+                char[] chars = charTargets[j];
+                byte[] bytes = byteTargets[j];
+                if (params[j].longPath) {
+                    if (chars != null) {
+                        strOf(numA[j], chars, pos, u);
+                        strOf(numB[j], chars, pos + u, v);
+                    }
+                    else {
+                        strOf(numA[j], bytes, pos, u);
+                        strOf(numB[j], bytes, pos + u, v);
+                    }
+                }
+                else if (chars != null) {
+                    alphabet.toChars(halvesA[j], u, chars, pos);
+                    alphabet.toChars(halvesB[j], v, chars, pos + u);
+                }
+                else {
+                    alphabet.toBytes(halvesA[j], u, bytes, pos);
+                    alphabet.toBytes(halvesB[j], v, bytes, pos + u);
+                }
+            }
+        }
+    }
+
+    private static void reverse(byte[] b) {
+        for (int i = 0, j = b.length - 1; i < j; i++, j--) {
+            byte tmp = b[i];
+            b[i] = b[j];
+            b[j] = tmp;
+        }
+    }
+
+}
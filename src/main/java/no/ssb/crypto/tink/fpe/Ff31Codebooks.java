@@ -0,0 +1,348 @@
+package no.ssb.crypto.tink.fpe;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.Cleaner;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+
+/**
+ * Ff31Codebooks holds the precomputed FF3-1 permutations (codebooks) of a key, for the tweaks that codebooks are
+ * enabled for, see {@link FpeParams#codebookBudget(long)}.
+ *
+ * <p>A codebook covers all numeral strings of one length and one tweak, as a forward (encryption) and an inverse
+ * (decryption) {@code int[]} table, so it takes 8 bytes per value of the domain (radix^n). A codebook is built on
+ * first use of a length, if it fits within the remaining budget of the tweak and within the memory limit shared by all
+ * codebooks of the JVM, see {@link #MEMORY_LIMIT}. Lengths that do not fit (or whose domain does not fit in an int)
+ * are encrypted using the Feistel rounds, as usual. A length that is refused for lack of memory is not retried.</p>
+ *
+ * <p>Codebooks are only used for the tweak arrays returned by {@link #enable(byte[], long)}, so values of the same
+ * tweak ciphered with params that have no codebook budget never use (or build) them. At most {@link #MAX_TWEAKS}
+ * tweaks have codebooks: enabling another one disables the least recently used tweak, whose memory is released right
+ * away (values of a disabled tweak are encrypted using the Feistel rounds until it is enabled again).</p>
+ *
+ * <p>The tables are indexed by the number that the long path of {@link Ff31Cipher} works on, i.e.
+ * {@code NUM(A) * radix^v + NUM(B)}, so a lookup replaces the Feistel rounds and nothing else.</p>
+ *
+ * <p>Ff31Codebooks is thread-safe, and shared by all copies of a cipher. A codebook is built once, in parallel (using
+ * the common pool), while other threads needing the same codebook wait for it.</p>
+ */
+final class Ff31Codebooks {
+
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * NONE marks a length without codebook
+     */
+    private static final Object NONE = new Object();
+
+    /**
+     * MIN_BUILD_RANGE is the min number of values of a codebook computed by one task
+     */
+    private static final int MIN_BUILD_RANGE = 4096;
+
+    /**
+     * MEMORY_LIMIT is the max number of bytes of all codebooks of the JVM. It defaults to a quarter of the max heap
+     * size, and can be set with the system property {@code no.ssb.crypto.tink.fpe.codebookMemoryLimit}.
+     */
+    static final long MEMORY_LIMIT = Long.getLong("no.ssb.crypto.tink.fpe.codebookMemoryLimit",
+            Runtime.getRuntime().maxMemory() / 4);
+
+    /**
+     * MEMORY_USED is the number of bytes reserved by the codebooks of the JVM, released when the tweak of a codebook
+     * is disabled, or else when the codebook is garbage collected
+     */
+    private static final AtomicLong MEMORY_USED = new AtomicLong();
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * MAX_TWEAKS is the default max number of tweaks with codebooks of a key
+     */
+    static final int MAX_TWEAKS = 64;
+
+    /**
+     * cipher is the cipher that codebooks are built for, and copied from
+     */
+    private final Ff31Cipher cipher;
+
+    /**
+     * maxLength is the max length of a numeral string with a codebook, i.e. the max n such that radix^n &lt; 2^31
+     */
+    private final int maxLength;
+
+    /**
+     * tweaks holds the enabled tweaks by their 64 bits value, releasing the codebooks of the tweaks it evicts
+     */
+    private final Cache<Long, Tweak> tweaks;
+
+    /**
+     * last is the most recently used tweak, which avoids a map lookup for consecutive values of the same tweak
+     */
+    private volatile Tweak last;
+
+    Ff31Codebooks(Ff31Cipher cipher, int radix) {
+        this(cipher, radix, MAX_TWEAKS);
+    }
+
+    Ff31Codebooks(Ff31Cipher cipher, int radix, int maxTweaks) {
+        this.cipher = cipher;
+        this.maxLength = FixedWidthArithmetic.maxDigits(radix, Integer.SIZE - 1);
+        this.tweaks = CacheBuilder.newBuilder()
+                .maximumSize(maxTweaks)
+                .removalListener((RemovalNotification<Long, Tweak> notification) -> notification.getValue().release())
+                .build();
+    }
+
+    /**
+     * Enable codebooks for the 64 bits tweak {@code tweak64}, using at most {@code budget} bytes. The budget is a hint:
+     * if codebooks are already enabled for the tweak, the budget they were enabled with is kept. This may disable the
+     * least recently used tweak, see {@link #MAX_TWEAKS}.
+     *
+     * @return a copy of {@code tweak64} to cipher with, the only tweak array that {@link #get(byte[], int)} returns
+     * codebooks for
+     */
+    byte[] enable(byte[] tweak64, long budget) {
+        long key = (long) LONG_LE.get(tweak64, 0);
+        Tweak tweak = last;
+        if (tweak == null || tweak.key != key || tweak.released) {
+            tweak = tweaks.asMap().computeIfAbsent(key, k -> new Tweak(k, tweak64.clone(), budget));
+            last = tweak;
+        }
+        return tweak.tweak64;
+    }
+
+    /**
+     * @return the codebook for numeral strings of length {@code n} and the 64 bits tweak {@code tweak64}, building
+     * it if needed, or null if there is no codebook or {@code tweak64} was not returned by
+     * {@link #enable(byte[], long)} (or its tweak has been disabled since)
+     */
+    Codebook get(byte[] tweak64, int n) throws GeneralSecurityException {
+        Tweak tweak = last;
+        if (tweak == null || n > maxLength) {
+            return null;
+        }
+        if (tweak.tweak64 != tweak64) {
+            tweak = tweaks.getIfPresent((long) LONG_LE.get(tweak64, 0));
+            if (tweak == null || tweak.tweak64 != tweak64) {
+                return null;
+            }
+            last = tweak;
+        }
+        return tweak.codebook(n);
+    }
+
+    /**
+     * @return the number of bytes reserved by the codebooks of the JVM
+     */
+    static long memoryUsed() {
+        return MEMORY_USED.get();
+    }
+
+    /**
+     * @return true if {@code bytes} more bytes of codebooks fit within {@link #MEMORY_LIMIT}, reserving them
+     */
+    private static boolean reserveMemory(long bytes) {
+        long used;
+        do {
+            used = MEMORY_USED.get();
+            if (used + bytes > MEMORY_LIMIT) {
+                return false;
+            }
+        } while (!MEMORY_USED.compareAndSet(used, used + bytes));
+        return true;
+    }
+
+    /**
+     * Tweak holds the codebooks of one tweak, by length
+     */
+    private final class Tweak {
+        private final long key;
+        private final byte[] tweak64;
+        private final long budget;
+        private final AtomicReferenceArray<Object> codebooks = new AtomicReferenceArray<>(maxLength + 1);
+
+        /**
+         * cleanables release the memory of the codebooks built for this tweak
+         */
+        private final List<Cleaner.Cleanable> cleanables = new ArrayList<>();
+
+        /**
+         * used is the number of bytes reserved by the codebooks of this tweak
+         */
+        private long used;
+
+        /**
+         * released is set once this tweak is disabled, after which it has no codebooks
+         */
+        private volatile boolean released;
+
+        private Tweak(long key, byte[] tweak64, long budget) {
+            this.key = key;
+            this.tweak64 = tweak64;
+            this.budget = budget;
+        }
+
+        /**
+         * Disable this tweak, releasing the memory of its codebooks. Threads still using a codebook keep it until they
+         * are done.
+         */
+        private synchronized void release() {
+            released = true;
+            for (int n = 0; n < codebooks.length(); n++) {
+                // A codebook being built is dropped by the thread that builds it, see codebook(int)
+                if (!(codebooks.get(n) instanceof FutureTask)) {
+                    codebooks.set(n, NONE);
+                }
+            }
+            cleanables.forEach(Cleaner.Cleanable::clean);
+            cleanables.clear();
+        }
+
+        /**
+         * @return the codebook of length {@code n}, or null
+         */
+        @SuppressWarnings("unchecked")
+        private Codebook codebook(int n) throws GeneralSecurityException {
+            Object state = codebooks.get(n);
+            if (state == null) {
+                state = reserve(n);
+            }
+            if (state instanceof FutureTask) {
+                // Build the codebook, or wait for the thread that does
+                FutureTask<Codebook> task = (FutureTask<Codebook>) state;
+                task.run();
+                try {
+                    state = Uninterruptibles.getUninterruptibly(task);
+                }
+                catch (ExecutionException e) {
+                    // Release the reservation, so that the next value retries
+                    if (codebooks.compareAndSet(n, task, null)) {
+                        long bytes = 8 * FixedWidthArithmetic.pow(cipher.radix(), n);
+                        synchronized (this) {
+                            used -= bytes;
+                        }
+                        MEMORY_USED.addAndGet(-bytes);
+                    }
+                    Throwables.throwIfInstanceOf(e.getCause(), GeneralSecurityException.class);
+                    Throwables.throwIfUnchecked(e.getCause());
+                    throw new GeneralSecurityException(e.getCause());
+                }
+                codebooks.compareAndSet(n, task, state);
+                if (released) {
+                    codebooks.set(n, NONE);
+                }
+            }
+            return state == NONE || released ? null : (Codebook) state;
+        }
+
+        /**
+         * @return the state of length {@code n}: a task building the codebook if it fits within the budget and the
+         * memory limit, or else NONE
+         */
+        private synchronized Object reserve(int n) {
+            Object state = codebooks.get(n);
+            if (state != null) {
+                return state;
+            }
+            if (released || n < cipher.minLength()) {
+                state = NONE;
+            }
+            else {
+                int size = (int) FixedWidthArithmetic.pow(cipher.radix(), n);
+                long bytes = 8L * size;
+                if (used + bytes > budget || !reserveMemory(bytes)) {
+                    state = NONE;
+                }
+                else {
+                    used += bytes;
+                    state = new FutureTask<>(() -> build(n, size));
+                }
+            }
+            codebooks.set(n, state);
+            return state;
+        }
+
+        private Codebook build(int n, int size) throws GeneralSecurityException {
+            int[] forward = new int[size];
+            int[] inverse = new int[size];
+            int tasks = Math.max(1, Math.min(4 * Runtime.getRuntime().availableProcessors(), size / MIN_BUILD_RANGE));
+            Ff31Cipher[] ciphers = new Ff31Cipher[tasks];
+            for (int i = 0; i < tasks; i++) {
+                ciphers[i] = cipher.copy();
+            }
+            try {
+                IntStream.range(0, tasks).parallel().forEach(i -> {
+                    try {
+                        ciphers[i].fillCodebook(n, tweak64, (int) ((long) size * i / tasks),
+                                (int) ((long) size * (i + 1) / tasks), forward, inverse);
+                    }
+                    catch (GeneralSecurityException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+            }
+            catch (IllegalStateException e) {
+                Throwables.throwIfInstanceOf(e.getCause(), GeneralSecurityException.class);
+                throw e;
+            }
+            Codebook codebook = new Codebook(forward, inverse,
+                    FixedWidthArithmetic.pow(cipher.radix(), n - (n + 1) / 2));
+            long bytes = 8L * size;
+            Cleaner.Cleanable cleanable = CLEANER.register(codebook, () -> MEMORY_USED.addAndGet(-bytes));
+            synchronized (this) {
+                if (released) {
+                    cleanable.clean();
+                }
+                else {
+                    cleanables.add(cleanable);
+                }
+            }
+            return codebook;
+        }
+    }
+
+    /**
+     * Codebook is the precomputed permutation of one length and tweak
+     */
+    static final class Codebook {
+        private final int[] forward;
+        private final int[] inverse;
+
+        /**
+         * modV is radix^v, where v is the length of the B half
+         */
+        private final long modV;
+
+        private Codebook(int[] forward, int[] inverse, long modV) {
+            this.forward = forward;
+            this.inverse = inverse;
+            this.modV = modV;
+        }
+
+        /**
+         * Replace the halves NUM(A) and NUM(B) in {@code ab} by the halves of the ciphertext ({@code encrypt}) or
+         * plaintext.
+         */
+        void lookup(long[] ab, boolean encrypt) {
+            int index = (int) (ab[0] * modV + ab[1]);
+            int result = encrypt ? forward[index] : inverse[index];
+            ab[0] = result / modV;
+            ab[1] = result % modV;
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package no.ssb.crypto.tink.fpe;
+
+/**
+ * Fixed-width (64 and 128 bits) arithmetic on numeral strings, used by the FF3-1 round computations.
+ *
+ * <p>Numeral strings are little-endian (the first numeral is the least significant digit). Unsigned 128 bits numbers
+ * are represented by two longs ({@code hi} and {@code lo}). With a radix of at most 256 and a numeral string length of
+ * at most 32, every intermediate value fits in 128 bits, so no {@link java.math.BigInteger} is needed.</p>
+ */
+final class FixedWidthArithmetic {
+
+    private static final long LOW_32_BITS = 0xFFFFFFFFL;
+
+    private FixedWidthArithmetic() {}
+
+    /**
+     * @return the high 64 bits of the unsigned 128 bits product of {@code a} (unsigned) and {@code b} (non-negative)
+     */
+    static long multiplyHighUnsigned(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b);
+    }
+
+    /**
+     * @return radix^exponent, which must be less than 2^63
+     */
+    static long pow(int radix, int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= radix;
+        }
+        return result;
+    }
+
+    /**
+     * @return the max number of digits k such that radix^k &lt; 2^bits, where bits &lt; 63
+     */
+    static int maxDigits(int radix, int bits) {
+        int k = 0;
+        for (long p = radix; p < (1L << bits); p *= radix) {
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * @return the remainder of the unsigned 128 bits number {@code (hi, lo)} divided by {@code m}, where
+     * {@code 2 <= m < 2^63}
+     */
+    static long remainder(long hi, long lo, long m) {
+        // The partial remainder r is less than m, so it can be shifted left by the number of leading zeros of m
+        // without overflowing an unsigned long
+        int shift = Long.numberOfLeadingZeros(m);
+        long r = Long.remainderUnsigned(hi, m);
+        for (int bit = Long.SIZE; bit > 0; ) {
+            int take = Math.min(shift, bit);
+            bit -= take;
+            r = Long.remainderUnsigned((r << take) | ((lo >>> bit) & ((1L << take) - 1)), m);
+        }
+        return r;
+    }
+
+    /**
+     * Compute the value of the numeral string of the first {@code len} numerals of {@code x} as an unsigned 128 bits
+     * number. The high and low 64 bits are stored in {@code out[0]} and {@code out[1]}.
+     *
+     * @param chunkDigits the number of digits to process per 128 bits multiplication, see {@link #maxDigits(int, int)}
+     * @param chunkPow radix^chunkDigits
+     */
+    static void num128(int[] x, int len, int radix, int chunkDigits, int chunkPow, long[] out) {
+        long hi = 0;
+        long lo = 0;
+        int i = len - 1;
+        int group = len % chunkDigits == 0 ? chunkDigits : len % chunkDigits;
+        long multiplier = pow(radix, group);
+        while (i >= 0) {
+            int chunk = 0;
+            for (int j = 0; j < group; j++, i--) {
+                chunk = chunk * radix + x[i];
+            }
+            // (hi, lo) = (hi, lo) * multiplier + chunk
+            long carry = multiplyHighUnsigned(lo, multiplier);
+            long product = lo * multiplier;
+            hi = hi * multiplier + carry;
+            lo = product + chunk;
+            if (Long.compareUnsigned(lo, product) < 0) {
+                hi++;
+            }
+            group = chunkDigits;
+            multiplier = chunkPow;
+        }
+        out[0] = hi;
+        out[1] = lo;
+    }
+
+    /**
+     * Compute {@code x = (x + y) mod radix^len} (or {@code x = (x - y) mod radix^len} if {@code subtract} is true),
+     * in place, where {@code x} is a numeral string of length {@code len} and {@code y} is the unsigned 128 bits
+     * number {@code (yHi, yLo)}.
+     *
+     * <p>Only the {@code len} least significant digits of {@code y} affect the result. They are extracted by dividing
+     * {@code y} by radix^chunkDigits (a 31 bits divisor) using 32 bits limbs, and added to {@code x} digit by digit.</p>
+     *
+     * @param chunkDigits the number of digits extracted per 128 bits division, see {@link #maxDigits(int, int)}
+     * @param chunkPow radix^chunkDigits
+     */
+    static void addMod(int[] x, int len, long yHi, long yLo, int radix, int chunkDigits, int chunkPow, boolean subtract) {
+        int carry = 0;
+        int i = 0;
+        while (i < len) {
+            long t = yHi >>> 32;
+            long q3 = t / chunkPow;
+            t = ((t - q3 * chunkPow) << 32) | (yHi & LOW_32_BITS);
+            long q2 = t / chunkPow;
+            t = ((t - q2 * chunkPow) << 32) | (yLo >>> 32);
+            long q1 = t / chunkPow;
+            t = ((t - q1 * chunkPow) << 32) | (yLo & LOW_32_BITS);
+            long q0 = t / chunkPow;
+            int digits = (int) (t - q0 * chunkPow);
+            yHi = (q3 << 32) | q2;
+            yLo = (q1 << 32) | q0;
+
+            for (int j = 0; j < chunkDigits && i < len; j++, i++) {
+                int d = digits % radix;
+                digits /= radix;
+                int s;
+                if (subtract) {
+                    s = x[i] - d - carry;
+                    carry = s < 0 ? 1 : 0;
+                    x[i] = s + carry * radix;
+                }
+                else {
+                    s = x[i] + d + carry;
+                    carry = s >= radix ? 1 : 0;
+                    x[i] = s - carry * radix;
+                }
+            }
+        }
+    }
+
+}
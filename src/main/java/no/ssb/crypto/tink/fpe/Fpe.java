@@ -1,6 +1,18 @@
 package no.ssb.crypto.tink.fpe;
 
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.b2s;
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.s2b;
 
 /**
  * Interface for Format-Preserving Encryption.
@@ -8,6 +20,11 @@ import java.security.GeneralSecurityException;
  * <p>FPE is a type of encryption family that allows for the encryption of data while preserving the original format
  * and length of the plaintext. This is useful in scenarios where data must be encrypted, but the format of the data
  * must remain unchanged for compatibility with existing systems or processes.</p>
+ *
+ * <p>The primitives returned by {@code KeysetHandle.getPrimitive(Fpe.class)} are thread-safe, and are meant to be
+ * shared by all threads of an application. Concurrent calls are not serialized: each call takes a cipher state of its
+ * own from a small pool of the primitive, while the key and lookup tables are shared. Writers, streams and
+ * {@link FpeSession}s are not thread-safe.</p>
  */
 public interface Fpe {
 
@@ -61,4 +78,552 @@ public interface Fpe {
                 return decrypt(ciphertext, FpeParams.DEFAULT);
         }
 
+        /**
+         * Deterministically encrypt the remaining bytes of {@code in} with {@code FpeParams}, writing the resulting
+         * ciphertext to {@code out}.
+         *
+         * <p>On success, the position of {@code in} is advanced to its limit, and the position of {@code out} is
+         * advanced by the number of bytes written. Both heap and direct buffers are supported. Implementations may
+         * override this to write directly to {@code out}, without intermediate copies. The default implementation
+         * copies the input to a new array and invokes {@link #encrypt(byte[], FpeParams)}.</p>
+         *
+         * @param in plaintext to encrypt
+         * @param out buffer to write the resulting ciphertext to
+         * @param params options that adjust how encryption will be performed.
+         * @return the number of bytes written to {@code out}
+         * @throws javax.crypto.ShortBufferException if {@code out} has insufficient space for the ciphertext. Neither
+         * buffer is modified in this case.
+         * @throws GeneralSecurityException
+         */
+        default int encrypt(final ByteBuffer in, final ByteBuffer out, FpeParams params)
+                throws GeneralSecurityException {
+                byte[] plaintext = new byte[in.remaining()];
+                in.duplicate().get(plaintext);
+                return FpeBuffers.put(plaintext.length == 0 ? plaintext : encrypt(plaintext, params), in, out);
+        }
+
+        /**
+         * Deterministically encrypt {@code len} bytes of {@code in} (starting at {@code off}) with {@code FpeParams},
+         * writing the resulting ciphertext to {@code out} (starting at {@code outOff}). The input and output may be
+         * the same array.
+         *
+         * @param params options that adjust how encryption will be performed.
+         * @return the number of bytes written to {@code out}
+         * @throws javax.crypto.ShortBufferException if {@code out} has insufficient space for the ciphertext
+         * @throws GeneralSecurityException
+         * @see #encrypt(ByteBuffer, ByteBuffer, FpeParams)
+         */
+        default int encrypt(final byte[] in, int off, int len, byte[] out, int outOff, FpeParams params)
+                throws GeneralSecurityException {
+                return encrypt(ByteBuffer.wrap(in, off, len), ByteBuffer.wrap(out, outOff, out.length - outOff), params);
+        }
+
+        /**
+         * Deterministically encrypt {@code len} bytes of {@code in} (starting at {@code off}) using default
+         * {@code FpeParams}, writing the resulting ciphertext to {@code out} (starting at {@code outOff}).
+         *
+         * @return the number of bytes written to {@code out}
+         * @throws GeneralSecurityException
+         * @see #encrypt(byte[], int, int, byte[], int, FpeParams)
+         */
+        default int encrypt(final byte[] in, int off, int len, byte[] out, int outOff)
+                throws GeneralSecurityException {
+                return encrypt(in, off, len, out, outOff, FpeParams.DEFAULT);
+        }
+
+        /**
+         * Deterministically encrypt {@code len} bytes of {@code in} (starting at {@code off}) with {@code FpeParams},
+         * writing the resulting ciphertext to {@code out} (starting at {@code outOff}), using the scratch buffers of
+         * {@code session}.
+         *
+         * <p>Implementations may use the session to avoid allocating memory. Once warmed up, encrypting values of up
+         * to {@link FpeSession#capacity()} bytes with FF3-1 keys allocates nothing. The default implementation ignores
+         * the session and invokes {@link #encrypt(byte[], int, int, byte[], int, FpeParams)}.</p>
+         *
+         * @param params options that adjust how encryption will be performed.
+         * @param session the scratch buffers to use. A session must not be used by several threads concurrently.
+         * @return the number of bytes written to {@code out}
+         * @throws javax.crypto.ShortBufferException if {@code out} has insufficient space for the ciphertext
+         * @throws GeneralSecurityException
+         */
+        default int encrypt(final byte[] in, int off, int len, byte[] out, int outOff, FpeParams params,
+                            FpeSession session) throws GeneralSecurityException {
+                return encrypt(in, off, len, out, outOff, params);
+        }
+
+        /**
+         * Deterministically decrypt the remaining bytes of {@code in} with {@code FpeParams}, writing the resulting
+         * plaintext to {@code out}.
+         *
+         * @param in ciphertext to decrypt
+         * @param out buffer to write the resulting plaintext to
+         * @param params options that adjust how decryption will be performed. This should usually be the same as the
+         *               params used to {@link #encrypt(ByteBuffer, ByteBuffer, FpeParams)}
+         * @return the number of bytes written to {@code out}
+         * @throws javax.crypto.ShortBufferException if {@code out} has insufficient space for the plaintext. Neither
+         * buffer is modified in this case.
+         * @throws GeneralSecurityException
+         * @see #encrypt(ByteBuffer, ByteBuffer, FpeParams)
+         */
+        default int decrypt(final ByteBuffer in, final ByteBuffer out, FpeParams params)
+                throws GeneralSecurityException {
+                byte[] ciphertext = new byte[in.remaining()];
+                in.duplicate().get(ciphertext);
+                return FpeBuffers.put(ciphertext.length == 0 ? ciphertext : decrypt(ciphertext, params), in, out);
+        }
+
+        /**
+         * Deterministically decrypt {@code len} bytes of {@code in} (starting at {@code off}) with {@code FpeParams},
+         * writing the resulting plaintext to {@code out} (starting at {@code outOff}). The input and output may be
+         * the same array.
+         *
+         * @param params options that adjust how decryption will be performed. This should usually be the same as the
+         *               params used to {@link #encrypt(byte[], int, int, byte[], int, FpeParams)}
+         * @return the number of bytes written to {@code out}
+         * @throws javax.crypto.ShortBufferException if {@code out} has insufficient space for the plaintext
+         * @throws GeneralSecurityException
+         * @see #decrypt(ByteBuffer, ByteBuffer, FpeParams)
+         */
+        default int decrypt(final byte[] in, int off, int len, byte[] out, int outOff, FpeParams params)
+                throws GeneralSecurityException {
+                return decrypt(ByteBuffer.wrap(in, off, len), ByteBuffer.wrap(out, outOff, out.length - outOff), params);
+        }
+
+        /**
+         * Deterministically decrypt {@code len} bytes of {@code in} (starting at {@code off}) with {@code FpeParams},
+         * writing the resulting plaintext to {@code out} (starting at {@code outOff}), using the scratch buffers of
+         * {@code session}.
+         *
+         * @param params options that adjust how decryption will be performed. This should usually be the same as the
+         *               params used to {@link #encrypt(byte[], int, int, byte[], int, FpeParams, FpeSession)}
+         * @param session the scratch buffers to use. A session must not be used by several threads concurrently.
+         * @return the number of bytes written to {@code out}
+         * @throws javax.crypto.ShortBufferException if {@code out} has insufficient space for the plaintext
+         * @throws GeneralSecurityException
+         * @see #encrypt(byte[], int, int, byte[], int, FpeParams, FpeSession)
+         */
+        default int decrypt(final byte[] in, int off, int len, byte[] out, int outOff, FpeParams params,
+                            FpeSession session) throws GeneralSecurityException {
+                return decrypt(in, off, len, out, outOff, params);
+        }
+
+        /**
+         * Deterministically decrypt {@code len} bytes of {@code in} (starting at {@code off}) using default
+         * {@code FpeParams}, writing the resulting plaintext to {@code out} (starting at {@code outOff}).
+         *
+         * @return the number of bytes written to {@code out}
+         * @throws GeneralSecurityException
+         * @see #decrypt(byte[], int, int, byte[], int, FpeParams)
+         */
+        default int decrypt(final byte[] in, int off, int len, byte[] out, int outOff)
+                throws GeneralSecurityException {
+                return decrypt(in, off, len, out, outOff, FpeParams.DEFAULT);
+        }
+
+        /**
+         * Deterministically encrypt the text {@code plaintext} with {@code FpeParams}.
+         *
+         * <p>The result is the same as encrypting the bytes of {@code plaintext} (encoded with the charset of
+         * {@code params}) and decoding the resulting ciphertext. Implementations may override this to operate directly
+         * on the characters, skipping the charset transcoding. The default implementation transcodes.</p>
+         *
+         * @param plaintext plaintext to encrypt
+         * @param params options that adjust how encryption will be performed.
+         * @return resulting ciphertext
+         * @throws GeneralSecurityException
+         */
+        default CharSequence encrypt(final CharSequence plaintext, FpeParams params)
+                throws GeneralSecurityException {
+                if (plaintext == null || plaintext.length() == 0) {
+                        return "";
+                }
+                byte[] ciphertext = encrypt(s2b(plaintext.toString(), params.getCharset()), params);
+                return ciphertext.length == 0 ? "" : b2s(ciphertext, params.getCharset());
+        }
+
+        /**
+         * Deterministically encrypt the characters {@code plaintext} with {@code FpeParams}.
+         *
+         * @param plaintext plaintext to encrypt
+         * @param params options that adjust how encryption will be performed.
+         * @return a new array with the resulting ciphertext
+         * @throws GeneralSecurityException
+         * @see #encrypt(CharSequence, FpeParams)
+         */
+        default char[] encrypt(final char[] plaintext, FpeParams params)
+                throws GeneralSecurityException {
+                if (plaintext == null || plaintext.length == 0) {
+                        return new char[0];
+                }
+                return encrypt(new String(plaintext), params).toString().toCharArray();
+        }
+
+        /**
+         * Deterministically decrypt the text {@code ciphertext} with {@code FpeParams}.
+         *
+         * @param ciphertext ciphertext to decrypt
+         * @param params options that adjust how decryption will be performed. This should usually be the same as the
+         *               params used to {@link #encrypt(CharSequence, FpeParams)}
+         * @return resulting plaintext
+         * @throws GeneralSecurityException
+         * @see #encrypt(CharSequence, FpeParams)
+         */
+        default CharSequence decrypt(final CharSequence ciphertext, FpeParams params)
+                throws GeneralSecurityException {
+                if (ciphertext == null || ciphertext.length() == 0) {
+                        return "";
+                }
+                byte[] plaintext = decrypt(s2b(ciphertext.toString(), params.getCharset()), params);
+                return plaintext.length == 0 ? "" : b2s(plaintext, params.getCharset());
+        }
+
+        /**
+         * Deterministically decrypt the characters {@code ciphertext} with {@code FpeParams}.
+         *
+         * @param ciphertext ciphertext to decrypt
+         * @param params options that adjust how decryption will be performed. This should usually be the same as the
+         *               params used to {@link #encrypt(char[], FpeParams)}
+         * @return a new array with the resulting plaintext
+         * @throws GeneralSecurityException
+         * @see #encrypt(CharSequence, FpeParams)
+         */
+        default char[] decrypt(final char[] ciphertext, FpeParams params)
+                throws GeneralSecurityException {
+                if (ciphertext == null || ciphertext.length == 0) {
+                        return new char[0];
+                }
+                return decrypt(new String(ciphertext), params).toString().toCharArray();
+        }
+
+        /**
+         * Create a writer that encrypts all text written to it with {@code FpeParams}, and writes the resulting
+         * ciphertext to {@code out}. Closing the writer encrypts any remaining text, and closes {@code out}.
+         *
+         * <p>The resulting ciphertext is the same as if the whole text was encrypted by
+         * {@link #encrypt(CharSequence, FpeParams)}. Implementations may override this to encrypt the text piece by
+         * piece, using constant memory (FF3-1 does). The default implementation (used by FF1, which encrypts the text
+         * as one value) buffers the whole text in memory, and only encrypts it when the writer is closed.</p>
+         *
+         * <p>The writer is not thread-safe.</p>
+         *
+         * @param out the writer that the ciphertext is written to
+         * @param params options that adjust how encryption will be performed.
+         * @return a writer that encrypts into {@code out}
+         * @throws GeneralSecurityException
+         */
+        default Writer encryptingWriter(final Writer out, FpeParams params)
+                throws GeneralSecurityException {
+                return new FpeBufferedWriter(this, out, params, true);
+        }
+
+        /**
+         * Create a writer that decrypts all text written to it with {@code FpeParams}, and writes the resulting
+         * plaintext to {@code out}.
+         *
+         * @param out the writer that the plaintext is written to
+         * @param params options that adjust how decryption will be performed. This should usually be the same as the
+         *               params used to {@link #encryptingWriter(Writer, FpeParams)}
+         * @return a writer that decrypts into {@code out}
+         * @throws GeneralSecurityException
+         * @see #encryptingWriter(Writer, FpeParams)
+         */
+        default Writer decryptingWriter(final Writer out, FpeParams params)
+                throws GeneralSecurityException {
+                return new FpeBufferedWriter(this, out, params, false);
+        }
+
+        /**
+         * Create an output stream that encrypts all bytes written to it with {@code FpeParams}, and writes the
+         * resulting ciphertext to {@code out}. The bytes are decoded and encoded with the charset of {@code params}.
+         * Closing the stream encrypts any remaining text, and closes {@code out}.
+         *
+         * <p>The resulting ciphertext is the same as if all bytes were encrypted by
+         * {@link #encrypt(byte[], FpeParams)} (without any ciphertext prefix). Memory usage is the same as for
+         * {@link #encryptingWriter(Writer, FpeParams)}.</p>
+         *
+         * @param out the stream that the ciphertext is written to
+         * @param params options that adjust how encryption will be performed.
+         * @return a stream that encrypts into {@code out}
+         * @throws GeneralSecurityException
+         * @see #encryptingWriter(Writer, FpeParams)
+         */
+        default OutputStream encryptingStream(final OutputStream out, FpeParams params)
+                throws GeneralSecurityException {
+                Writer writer = encryptingWriter(new OutputStreamWriter(out, params.getCharset()), params);
+                return new FpeOutputStream(writer, params.getCharset());
+        }
+
+        /**
+         * Create an output stream that decrypts all bytes written to it with {@code FpeParams}, and writes the
+         * resulting plaintext to {@code out}.
+         *
+         * @param out the stream that the plaintext is written to
+         * @param params options that adjust how decryption will be performed. This should usually be the same as the
+         *               params used to {@link #encryptingStream(OutputStream, FpeParams)}
+         * @return a stream that decrypts into {@code out}
+         * @throws GeneralSecurityException
+         * @see #encryptingStream(OutputStream, FpeParams)
+         */
+        default OutputStream decryptingStream(final OutputStream out, FpeParams params)
+                throws GeneralSecurityException {
+                Writer writer = decryptingWriter(new OutputStreamWriter(out, params.getCharset()), params);
+                return new FpeOutputStream(writer, params.getCharset());
+        }
+
+        /**
+         * Create a reader that reads text from {@code in}, and returns it encrypted with {@code FpeParams}. Closing
+         * the reader closes {@code in}.
+         *
+         * <p>The text read is the same as if the whole text of {@code in} was encrypted by
+         * {@link #encrypt(CharSequence, FpeParams)}. The text is pushed through
+         * {@link #encryptingWriter(Writer, FpeParams)}, so memory usage is the same: constant with FF3-1, while the
+         * default writer reads the whole text of {@code in} before the first character is returned.</p>
+         *
+         * <p>The reader is not thread-safe.</p>
+         *
+         * @param in the reader that the plaintext is read from
+         * @param params options that adjust how encryption will be performed.
+         * @return a reader of the ciphertext of {@code in}
+         * @throws GeneralSecurityException
+         */
+        default Reader encryptingReader(final Reader in, FpeParams params)
+                throws GeneralSecurityException {
+                return new FpeReader(this, in, params, true);
+        }
+
+        /**
+         * Create a reader that reads text from {@code in}, and returns it decrypted with {@code FpeParams}.
+         *
+         * @param in the reader that the ciphertext is read from
+         * @param params options that adjust how decryption will be performed. This should usually be the same as the
+         *               params used to {@link #encryptingReader(Reader, FpeParams)}
+         * @return a reader of the plaintext of {@code in}
+         * @throws GeneralSecurityException
+         * @see #encryptingReader(Reader, FpeParams)
+         */
+        default Reader decryptingReader(final Reader in, FpeParams params)
+                throws GeneralSecurityException {
+                return new FpeReader(this, in, params, false);
+        }
+
+        /**
+         * Create an input stream that reads bytes from {@code in}, and returns them encrypted with
+         * {@code FpeParams}. The bytes are decoded and encoded with the charset of {@code params}. Closing the stream
+         * closes {@code in}.
+         *
+         * <p>The bytes read are the same as if all bytes of {@code in} were encrypted by
+         * {@link #encrypt(byte[], FpeParams)} (without any ciphertext prefix). Memory usage is the same as for
+         * {@link #encryptingReader(Reader, FpeParams)}.</p>
+         *
+         * @param in the stream that the plaintext is read from
+         * @param params options that adjust how encryption will be performed.
+         * @return a stream of the ciphertext of {@code in}
+         * @throws GeneralSecurityException
+         * @see #encryptingReader(Reader, FpeParams)
+         */
+        default InputStream encryptingStream(final InputStream in, FpeParams params)
+                throws GeneralSecurityException {
+                Reader reader = encryptingReader(new InputStreamReader(in, params.getCharset()), params);
+                return new FpeInputStream(reader, params.getCharset());
+        }
+
+        /**
+         * Create an input stream that reads bytes from {@code in}, and returns them decrypted with
+         * {@code FpeParams}.
+         *
+         * @param in the stream that the ciphertext is read from
+         * @param params options that adjust how decryption will be performed. This should usually be the same as the
+         *               params used to {@link #encryptingStream(InputStream, FpeParams)}
+         * @return a stream of the plaintext of {@code in}
+         * @throws GeneralSecurityException
+         * @see #encryptingStream(InputStream, FpeParams)
+         */
+        default InputStream decryptingStream(final InputStream in, FpeParams params)
+                throws GeneralSecurityException {
+                Reader reader = decryptingReader(new InputStreamReader(in, params.getCharset()), params);
+                return new FpeInputStream(reader, params.getCharset());
+        }
+
+        /**
+         * Deterministically encrypt all {@code plaintexts} with {@code FpeParams}.
+         *
+         * <p>The result is the same as invoking {@link #encrypt(byte[], FpeParams)} for each plaintext, but
+         * implementations may override this to do the per-call setup (such as resolving the tweak and key) only once
+         * for the whole batch.</p>
+         *
+         * @param plaintexts plaintexts to encrypt
+         * @param params options that adjust how encryption will be performed.
+         * @return a new list with the resulting ciphertexts, in the same order as {@code plaintexts}
+         * @throws GeneralSecurityException
+         */
+        default List<byte[]> encryptAll(final List<byte[]> plaintexts, FpeParams params)
+                throws GeneralSecurityException {
+                List<byte[]> ciphertexts = new ArrayList<>(plaintexts.size());
+                for (byte[] plaintext : plaintexts) {
+                        ciphertexts.add(encrypt(plaintext, params));
+                }
+                return ciphertexts;
+        }
+
+        /**
+         * Deterministically decrypt all {@code ciphertexts} with {@code FpeParams}.
+         *
+         * @param ciphertexts ciphertexts to decrypt
+         * @param params options that adjust how decryption will be performed. This should usually be the same as the
+         *               params used to {@link #encryptAll(List, FpeParams)}
+         * @return a new list with the resulting plaintexts, in the same order as {@code ciphertexts}
+         * @throws GeneralSecurityException
+         * @see #encryptAll(List, FpeParams)
+         */
+        default List<byte[]> decryptAll(final List<byte[]> ciphertexts, FpeParams params)
+                throws GeneralSecurityException {
+                List<byte[]> plaintexts = new ArrayList<>(ciphertexts.size());
+                for (byte[] ciphertext : ciphertexts) {
+                        plaintexts.add(decrypt(ciphertext, params));
+                }
+                return plaintexts;
+        }
+
+        /**
+         * Deterministically encrypt a columnar batch of plaintexts with {@code FpeParams}, appending the resulting
+         * ciphertexts to {@code output}, in the same order as the plaintexts.
+         *
+         * <p>Each distinct plaintext in the batch is only encrypted once, straight into {@code output} (using
+         * {@link #encrypt(byte[], int, int, byte[], int, FpeParams, FpeSession)} with a session for the batch), and
+         * the result is copied to all later positions where the plaintext occurs.</p>
+         *
+         * @param plaintexts plaintexts to encrypt
+         * @param params options that adjust how encryption will be performed.
+         * @param output the builder that the resulting ciphertexts are appended to. May be preallocated and reused.
+         * @throws GeneralSecurityException
+         */
+        default void encryptBatch(final FpeBatch plaintexts, FpeParams params, FpeBatch.Builder output)
+                throws GeneralSecurityException {
+                FpeSession session = FpeSession.create();
+                FpeBatch.transformDistinct(plaintexts, output,
+                        (in, off, len, out, outOff) -> encrypt(in, off, len, out, outOff, params, session));
+        }
+
+        /**
+         * Deterministically decrypt a columnar batch of ciphertexts with {@code FpeParams}, appending the resulting
+         * plaintexts to {@code output}, in the same order as the ciphertexts.
+         *
+         * @param ciphertexts ciphertexts to decrypt
+         * @param params options that adjust how decryption will be performed. This should usually be the same as the
+         *               params used to {@link #encryptBatch(FpeBatch, FpeParams, FpeBatch.Builder)}
+         * @param output the builder that the resulting plaintexts are appended to. May be preallocated and reused.
+         * @throws GeneralSecurityException
+         * @see #encryptBatch(FpeBatch, FpeParams, FpeBatch.Builder)
+         */
+        default void decryptBatch(final FpeBatch ciphertexts, FpeParams params, FpeBatch.Builder output)
+                throws GeneralSecurityException {
+                FpeSession session = FpeSession.create();
+                FpeBatch.transformDistinct(ciphertexts, output,
+                        (in, off, len, out, outOff) -> decrypt(in, off, len, out, outOff, params, session));
+        }
+
+        /**
+         * Deterministically encrypt the non-negative number {@code value} with {@code FpeParams}.
+         *
+         * <p>The number is treated as a plaintext of exactly {@code digits} decimal digits (zero-padded), and the
+         * resulting ciphertext digits are returned as a number. Thus, {@code encryptNumber(42, 6, params)} yields the
+         * same result as encrypting the plaintext {@code "000042"}. This requires a key with a digits-only alphabet,
+         * such as the {@code FPE_*_DIGITS} key types.</p>
+         *
+         * <p>Both FF3-1 and FF1 require a domain of at least 10^6 values, so numbers must have at least 6 digits. Unlike
+         * short text values, which FF3-1 leaves unencrypted, shorter numbers are rejected.</p>
+         *
+         * <p>Implementations may override this to operate directly on the number, without creating any intermediate
+         * strings or byte arrays. The default implementation encrypts the zero-padded string representation.</p>
+         *
+         * @param value the number to encrypt, {@code 0 <= value < 10^digits}
+         * @param digits the number of digits of the plaintext (6-18)
+         * @param params options that adjust how encryption will be performed.
+         * @return resulting ciphertext number, {@code 0 <= ciphertext < 10^digits}
+         * @throws IncompatiblePlaintextException if {@code digits} is less than 6
+         * @throws GeneralSecurityException
+         */
+        default long encryptNumber(long value, int digits, FpeParams params)
+                throws GeneralSecurityException {
+                FpeNumbers.checkNumber(value, digits);
+                byte[] ciphertext = encrypt(FpeNumbers.toBytes(value, digits, params.getCharset()), params);
+                return FpeNumbers.fromBytes(ciphertext, digits, params.getCharset());
+        }
+
+        /**
+         * Deterministically decrypt the non-negative number {@code value} with {@code FpeParams}.
+         *
+         * @param value the number to decrypt, {@code 0 <= value < 10^digits}
+         * @param digits the number of digits of the ciphertext (6-18)
+         * @param params options that adjust how decryption will be performed. This should usually be the same as the
+         *               params used to {@link #encryptNumber(long, int, FpeParams)}
+         * @return resulting plaintext number, {@code 0 <= plaintext < 10^digits}
+         * @throws IncompatiblePlaintextException if {@code digits} is less than 6
+         * @throws GeneralSecurityException
+         * @see #encryptNumber(long, int, FpeParams)
+         */
+        default long decryptNumber(long value, int digits, FpeParams params)
+                throws GeneralSecurityException {
+                FpeNumbers.checkNumber(value, digits);
+                byte[] plaintext = decrypt(FpeNumbers.toBytes(value, digits, params.getCharset()), params);
+                return FpeNumbers.fromBytes(plaintext, digits, params.getCharset());
+        }
+
+        /**
+         * Deterministically encrypt all {@code values} with {@code FpeParams}.
+         *
+         * @param values the numbers to encrypt, {@code 0 <= value < 10^digits}
+         * @param digits the number of digits of each plaintext (6-18)
+         * @param params options that adjust how encryption will be performed.
+         * @return a new array with the resulting ciphertext numbers, in the same order as {@code values}
+         * @throws GeneralSecurityException
+         * @see #encryptNumber(long, int, FpeParams)
+         */
+        default long[] encryptNumbers(long[] values, int digits, FpeParams params)
+                throws GeneralSecurityException {
+                long[] result = new long[values.length];
+                for (int i = 0; i < values.length; i++) {
+                        result[i] = encryptNumber(values[i], digits, params);
+                }
+                return result;
+        }
+
+        /**
+         * Deterministically decrypt all {@code values} with {@code FpeParams}.
+         *
+         * @param values the numbers to decrypt, {@code 0 <= value < 10^digits}
+         * @param digits the number of digits of each ciphertext (6-18)
+         * @param params options that adjust how decryption will be performed. This should usually be the same as the
+         *               params used to {@link #encryptNumbers(long[], int, FpeParams)}
+         * @return a new array with the resulting plaintext numbers, in the same order as {@code values}
+         * @throws GeneralSecurityException
+         * @see #decryptNumber(long, int, FpeParams)
+         */
+        default long[] decryptNumbers(long[] values, int digits, FpeParams params)
+                throws GeneralSecurityException {
+                long[] result = new long[values.length];
+                for (int i = 0; i < values.length; i++) {
+                        result[i] = decryptNumber(values[i], digits, params);
+                }
+                return result;
+        }
+
+        /**
+         * Compile {@code params} into a prevalidated plan for this primitive, attached to a copy of the params. Passing
+         * the copy instead of the params avoids resolving the redaction character, tweak and alphabet for each value,
+         * which makes a difference when encrypting many values with the same params.
+         *
+         * <p>The copy is equal to {@code params}, and can be used anywhere FpeParams are expected, also with other
+         * primitives, which ignore the plan. Changing the tweak, redaction character or unknown character strategy of
+         * the copy drops the plan. The default implementation returns a copy of {@code params} without any plan.</p>
+         *
+         * @param params the params to compile
+         * @return a copy of {@code params} with the compiled plan of this primitive
+         * @throws IllegalArgumentException if the params are not valid for this primitive, e.g. if the tweak length is
+         * not supported by the algorithm or the redaction character is not part of the alphabet
+         */
+        default FpeParams compile(FpeParams params) {
+                return new FpeParams(params);
+        }
+
 }
@@ -0,0 +1,287 @@
+package no.ssb.crypto.tink.fpe;
+
+import javax.crypto.ShortBufferException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * FpeBatch is a columnar batch of values, used with {@link Fpe#encryptBatch(FpeBatch, FpeParams, Builder)} and
+ * {@link Fpe#decryptBatch(FpeBatch, FpeParams, Builder)}.
+ *
+ * <p>Similar to a variable-size binary vector in Apache Arrow, all values are stored in one contiguous {@code data}
+ * array. Value {@code i} is {@code data[offsets[i]]} (inclusive) to {@code data[offsets[i + 1]]} (exclusive), so the
+ * offsets array has one more element than the number of values.</p>
+ *
+ * <p>An FpeBatch is a view of the given arrays. The arrays are not copied, and must not be modified while the batch
+ * is in use.</p>
+ */
+public final class FpeBatch {
+
+    private final byte[] data;
+    private final int[] offsets;
+    private final int size;
+
+    private FpeBatch(byte[] data, int[] offsets, int size) {
+        this.data = data;
+        this.offsets = offsets;
+        this.size = size;
+    }
+
+    /**
+     * @param data the contiguous bytes of all values
+     * @param offsets the start offset of each value in {@code data}, followed by the end offset of the last value
+     * @return a batch of the {@code offsets.length - 1} values in {@code data}
+     */
+    public static FpeBatch of(byte[] data, int[] offsets) {
+        if (offsets.length == 0) {
+            throw new IllegalArgumentException("offsets must contain at least one element");
+        }
+        for (int i = 0; i < offsets.length - 1; i++) {
+            if (offsets[i] < 0 || offsets[i] > offsets[i + 1]) {
+                throw new IllegalArgumentException("offsets must be non-negative and non-decreasing");
+            }
+        }
+        if (offsets[offsets.length - 1] > data.length) {
+            throw new IllegalArgumentException("offsets must not exceed the length of data");
+        }
+        return new FpeBatch(data, offsets, offsets.length - 1);
+    }
+
+    /**
+     * @return a batch with a copy of {@code values}
+     */
+    public static FpeBatch of(List<byte[]> values) {
+        Builder builder = builder(values.size(), values.stream().mapToInt(v -> v.length).sum());
+        for (byte[] value : values) {
+            builder.add(value);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param expectedSize the expected number of values
+     * @param expectedDataSize the expected total number of bytes of all values
+     * @return a new builder, preallocated for the expected number of values and bytes
+     */
+    public static Builder builder(int expectedSize, int expectedDataSize) {
+        return new Builder(expectedSize, expectedDataSize);
+    }
+
+    /**
+     * @return the number of values in the batch
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the underlying data array (not a copy)
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    /**
+     * @return the underlying offsets array (not a copy). Only the first {@code size() + 1} elements are valid.
+     */
+    public int[] offsets() {
+        return offsets;
+    }
+
+    /**
+     * @return the start offset of value {@code i} in {@link #data()}
+     */
+    public int offset(int i) {
+        checkIndex(i);
+        return offsets[i];
+    }
+
+    /**
+     * @return the length (number of bytes) of value {@code i}
+     */
+    public int length(int i) {
+        checkIndex(i);
+        return offsets[i + 1] - offsets[i];
+    }
+
+    /**
+     * @return a copy of value {@code i}
+     */
+    public byte[] get(int i) {
+        checkIndex(i);
+        return Arrays.copyOfRange(data, offsets[i], offsets[i + 1]);
+    }
+
+    /**
+     * @return a copy of all values
+     */
+    public List<byte[]> toList() {
+        List<byte[]> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(get(i));
+        }
+        return values;
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("index " + i + " is out of bounds for batch of size " + size);
+        }
+    }
+
+    /**
+     * Apply {@code function} to each distinct value of {@code input}, writing the results straight into
+     * {@code output}, in the same order as the input values. Values that occur more than once in the batch are only
+     * passed to the function once, and their later occurrences copy the first result, which reduces the work
+     * considerably for low-cardinality columns.
+     *
+     * <p>Distinct values are found with an open-addressing table of the index of their first occurrence, probed by
+     * the hash of the value, so neither the values nor the results are copied to separate arrays.</p>
+     */
+    static void transformDistinct(FpeBatch input, Builder output, RangeFunction function)
+            throws GeneralSecurityException {
+        int size = input.size;
+        output.ensureCapacity(size, input.offsets[size] - input.offsets[0]);
+        int base = output.size;
+        int[] hashes = new int[size];
+        // 1 + the index of the first occurrence of a value, or 0 for an empty slot. The table is at least half empty.
+        int[] table = new int[Integer.highestOneBit(Math.max(1, size)) << 2];
+        int mask = table.length - 1;
+        for (int i = 0; i < size; i++) {
+            int from = input.offsets[i];
+            int to = input.offsets[i + 1];
+            int hash = hash(input.data, from, to);
+            hashes[i] = hash;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            int first;
+            while ((first = table[slot] - 1) >= 0 && !input.equals(first, hashes[first], hash, from, to)) {
+                slot = (slot + 1) & mask;
+            }
+            if (first < 0) {
+                table[slot] = i + 1;
+                output.add(function, input.data, from, to - from);
+            }
+            else {
+                int resultFrom = output.offsets[base + first];
+                output.add(output.data, resultFrom, output.offsets[base + first + 1] - resultFrom);
+            }
+        }
+    }
+
+    /**
+     * @return true if value {@code i} (whose hash is {@code hashI}) is equal to {@code data[from]} to {@code data[to]}
+     */
+    private boolean equals(int i, int hashI, int hash, int from, int to) {
+        return hashI == hash && Arrays.equals(data, offsets[i], offsets[i + 1], data, from, to);
+    }
+
+    private static int hash(byte[] data, int from, int to) {
+        int h = 1;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + data[i];
+        }
+        return h;
+    }
+
+    /**
+     * A function that transforms {@code len} bytes of {@code in} (starting at {@code off}) into {@code out} (starting
+     * at {@code outOff}), such as {@link Fpe#encrypt(byte[], int, int, byte[], int, FpeParams, FpeSession)}.
+     */
+    @FunctionalInterface
+    interface RangeFunction {
+
+        /**
+         * @return the number of bytes written to {@code out}
+         * @throws ShortBufferException if {@code out} has insufficient space for the result
+         */
+        int apply(byte[] in, int off, int len, byte[] out, int outOff) throws GeneralSecurityException;
+    }
+
+    /**
+     * Builder appends values to a growable, contiguous buffer. A builder can be preallocated and reused for several
+     * batches (see {@link #clear()}) to avoid allocating new buffers for each batch.
+     */
+    public static final class Builder {
+        private byte[] data;
+        private int[] offsets;
+        private int size = 0;
+
+        private Builder(int expectedSize, int expectedDataSize) {
+            this.data = new byte[Math.max(0, expectedDataSize)];
+            this.offsets = new int[Math.max(0, expectedSize) + 1];
+        }
+
+        /**
+         * Append {@code value} to the batch.
+         */
+        public Builder add(byte[] value) {
+            return add(value, 0, value.length);
+        }
+
+        /**
+         * Append {@code len} bytes from {@code value} (starting at {@code pos}) to the batch.
+         */
+        public Builder add(byte[] value, int pos, int len) {
+            ensureCapacity(1, len);
+            int offset = offsets[size];
+            System.arraycopy(value, pos, data, offset, len);
+            offsets[++size] = offset + len;
+            return this;
+        }
+
+        /**
+         * Append the result of {@code function} for {@code len} bytes of {@code in} (starting at {@code off}),
+         * growing the data buffer until the result fits.
+         */
+        void add(RangeFunction function, byte[] in, int off, int len) throws GeneralSecurityException {
+            ensureCapacity(1, len);
+            while (true) {
+                int offset = offsets[size];
+                try {
+                    int written = function.apply(in, off, len, data, offset);
+                    offsets[++size] = offset + written;
+                    return;
+                }
+                catch (ShortBufferException e) {
+                    ensureCapacity(1, 2 * (data.length - offset) + 16);
+                }
+            }
+        }
+
+        /**
+         * @return the number of values added since the builder was created or cleared
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Remove all values, keeping the allocated buffers.
+         */
+        public Builder clear() {
+            size = 0;
+            return this;
+        }
+
+        /**
+         * @return a batch of the values added so far. The batch is a view of the builder's buffers, so it is only
+         * valid until the builder is cleared or modified.
+         */
+        public FpeBatch build() {
+            return new FpeBatch(data, offsets, size);
+        }
+
+        void ensureCapacity(int additionalValues, int additionalBytes) {
+            if (size + additionalValues + 1 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, Math.max(offsets.length * 2, size + additionalValues + 1));
+            }
+            int required = offsets[size] + additionalBytes;
+            if (required > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, required));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package no.ssb.crypto.tink.fpe;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+
+/**
+ * FpeBufferedWriter is the default implementation of {@link Fpe#encryptingWriter(Writer, FpeParams)} and
+ * {@link Fpe#decryptingWriter(Writer, FpeParams)}. The whole text is buffered, and encrypted or decrypted in one piece
+ * when the writer is closed. This works for all primitives, but holds the whole text in memory.
+ *
+ * <p>The text cannot be processed in pieces here, since a primitive may encrypt it as one value: FF1 does, so that
+ * splitting the text would change the ciphertext. Primitives that chunk texts (FF3-1) override the writer instead.</p>
+ */
+final class FpeBufferedWriter extends Writer {
+
+    private final Fpe fpe;
+    private final Writer out;
+    private final FpeParams params;
+    private final boolean encrypt;
+    private final StringBuilder text = new StringBuilder();
+    private boolean closed;
+
+    FpeBufferedWriter(Fpe fpe, Writer out, FpeParams params, boolean encrypt) {
+        this.fpe = fpe;
+        this.out = out;
+        this.params = params;
+        this.encrypt = encrypt;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        ensureOpen();
+        text.append(cbuf, off, len);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        ensureOpen();
+        text.append((char) c);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        ensureOpen();
+        text.append(str, off, off + len);
+    }
+
+    /**
+     * Flush the underlying writer. The buffered text is not written until the writer is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try (Writer w = out) {
+            w.append(encrypt ? fpe.encrypt(text, params) : fpe.decrypt(text, params));
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package no.ssb.crypto.tink.fpe;
+
+import javax.crypto.ShortBufferException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Helpers for the buffer based Fpe API, see {@link Fpe#encrypt(ByteBuffer, ByteBuffer, FpeParams)}.
+ */
+final class FpeBuffers {
+
+    private FpeBuffers() {}
+
+    /**
+     * Write {@code result} to {@code out}, and consume all remaining bytes of {@code in}.
+     *
+     * @return the number of bytes written
+     * @throws ShortBufferException if {@code out} has insufficient space. Neither buffer is modified in this case.
+     */
+    static int put(byte[] result, ByteBuffer in, ByteBuffer out) throws ShortBufferException {
+        checkRemaining(out, result.length);
+        out.put(result);
+        in.position(in.limit());
+        return result.length;
+    }
+
+    /**
+     * @throws ShortBufferException if {@code out} has less than {@code required} bytes remaining
+     */
+    static void checkRemaining(ByteBuffer out, int required) throws ShortBufferException {
+        if (out.remaining() < required) {
+            throw new ShortBufferException(String.format(
+                    "output buffer has %d bytes remaining, but %d bytes are required", out.remaining(), required));
+        }
+    }
+
+    /**
+     * @return the remaining bytes of {@code in}, decoded with {@code charset}. The position of {@code in} is not
+     * modified. Malformed input is replaced, as with {@link String#String(byte[], Charset)}.
+     */
+    static String decode(ByteBuffer in, Charset charset) {
+        return charset.decode(in.duplicate()).toString();
+    }
+
+    /**
+     * Encode {@code text} with {@code charset} directly into {@code out}. Unmappable characters are replaced, as with
+     * {@link String#getBytes(Charset)}.
+     *
+     * @return the number of bytes written
+     * @throws ShortBufferException if {@code out} has insufficient space. The position of {@code out} is not modified
+     * in this case.
+     */
+    static int encode(String text, Charset charset, ByteBuffer out) throws ShortBufferException {
+        int start = out.position();
+        CharsetEncoder encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CoderResult result = encoder.encode(CharBuffer.wrap(text), out, true);
+        if (result.isUnderflow()) {
+            result = encoder.flush(out);
+        }
+        if (result.isOverflow()) {
+            out.position(start);
+            throw new ShortBufferException("output buffer has insufficient space for the result");
+        }
+        return out.position() - start;
+    }
+
+}
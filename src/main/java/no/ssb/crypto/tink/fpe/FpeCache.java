@@ -0,0 +1,232 @@
+package no.ssb.crypto.tink.fpe;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.google.crypto.tink.KeysetHandle;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.b2s;
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.s2b;
+
+/**
+ * FpeCache is an opt-in, bounded cache of encryption and decryption results, for data where the same values occur
+ * many times (such as identifiers that occur in many tables).
+ *
+ * <pre>
+ * FpeCache cache = FpeCache.create(64 * 1024 * 1024);
+ * Fpe fpe = cache.wrap(keysetHandle);
+ * </pre>
+ *
+ * <p>Since FPE is deterministic, a result only depends on the key, the tweak, the unknown character strategy, the
+ * redaction character, the charset and the value. Entries are keyed on all of these, so one cache can be shared by
+ * primitives of several keys. With the FAIL and SKIP strategies, decryption is the exact inverse of encryption, so
+ * encrypting a value also caches the decryption of its ciphertext, as long as the value is valid in the charset. The
+ * opposite is not done: the ciphertext may have been decrypted with a key other than the primary one (such as after a
+ * key rotation), and the primary key would not give it back when encrypting.</p>
+ *
+ * <p>Only the results of {@link Fpe#encrypt(byte[], FpeParams)} and {@link Fpe#decrypt(byte[], FpeParams)} for values
+ * of at most {@link #maximumValueBytes()} bytes are cached, since repeated values are usually short. All other
+ * operations are passed straight to the wrapped primitive.</p>
+ *
+ * <p>The cache is a concurrent, segmented LRU cache (see {@link CacheBuilder}), bounded by the approximate number of
+ * bytes held by the entries. The values of an entry are zeroed when the entry is evicted or invalidated. Results are
+ * always returned as copies, so callers never see (or modify) the cached arrays.</p>
+ *
+ * <p>A cache and its primitives are thread-safe if the wrapped primitives are.</p>
+ */
+public final class FpeCache {
+
+    /**
+     * ENTRY_OVERHEAD is the approximate number of bytes used by an entry, in addition to its values
+     */
+    static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * DEFAULT_MAXIMUM_VALUE_BYTES is the default max length of the values that are cached
+     */
+    public static final int DEFAULT_MAXIMUM_VALUE_BYTES = 256;
+
+    private final Cache<Key, Entry> cache;
+
+    /**
+     * maximumValueBytes is the max length of the values that are cached. Longer values are passed straight to the
+     * wrapped primitive.
+     */
+    private final int maximumValueBytes;
+
+    private FpeCache(long maximumBytes, int maximumValueBytes) {
+        this.maximumValueBytes = maximumValueBytes;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher((Key key, Entry entry) -> key.value.length + entry.length + ENTRY_OVERHEAD)
+                .removalListener(FpeCache::clear)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @param maximumBytes the approximate max number of bytes held by the cached entries
+     * @return a new, empty cache of values up to {@link #DEFAULT_MAXIMUM_VALUE_BYTES} bytes
+     */
+    public static FpeCache create(long maximumBytes) {
+        return create(maximumBytes, DEFAULT_MAXIMUM_VALUE_BYTES);
+    }
+
+    /**
+     * @param maximumBytes the approximate max number of bytes held by the cached entries
+     * @param maximumValueBytes the max length of the values that are cached
+     * @return a new, empty cache
+     */
+    public static FpeCache create(long maximumBytes, int maximumValueBytes) {
+        if (maximumBytes < 0) {
+            throw new IllegalArgumentException("maximumBytes must be non-negative, but was " + maximumBytes);
+        }
+        if (maximumValueBytes < 0) {
+            throw new IllegalArgumentException("maximumValueBytes must be non-negative, but was " + maximumValueBytes);
+        }
+        return new FpeCache(maximumBytes, maximumValueBytes);
+    }
+
+    /**
+     * @return a primitive for the primary key of {@code keysetHandle}, with results cached in this cache
+     */
+    public Fpe wrap(@NonNull KeysetHandle keysetHandle) throws GeneralSecurityException {
+        return wrap(keysetHandle.getPrimitive(Fpe.class), keysetHandle.getKeysetInfo().getPrimaryKeyId());
+    }
+
+    /**
+     * @param keyId identifies the key of {@code fpe}. Primitives of different keys sharing this cache must use
+     *              different key ids.
+     * @return a primitive that delegates to {@code fpe}, with results cached in this cache
+     */
+    public Fpe wrap(@NonNull Fpe fpe, int keyId) {
+        return new CachingFpe(fpe, this, keyId);
+    }
+
+    /**
+     * @return the max length of the values that are cached
+     */
+    public int maximumValueBytes() {
+        return maximumValueBytes;
+    }
+
+    /**
+     * @return the hit, miss and eviction counts of the cache
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * @return the approximate number of entries in the cache
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Remove (and zero) all entries.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+        cache.cleanUp();
+    }
+
+    /**
+     * @return a copy of the cached result of encrypting ({@code encrypt}) or decrypting {@code value}, or null if not
+     * cached
+     */
+    byte[] get(int keyId, boolean encrypt, FpeParams params, byte[] value) {
+        Entry entry = cache.getIfPresent(new Key(keyId, encrypt, params, value));
+        return entry == null ? null : entry.copy();
+    }
+
+    /**
+     * Cache the result of encrypting ({@code encrypt}) or decrypting {@code value}. If {@code inverse}, the opposite
+     * direction is cached too (which is only correct if the result was produced by the key of {@code keyId}), unless {@code value} is not valid in the charset of {@code params}: such bytes are
+     * replaced when decoded, so the opposite direction would not give them back.
+     */
+    void put(int keyId, boolean encrypt, FpeParams params, byte[] value, byte[] result, boolean inverse) {
+        cache.put(new Key(keyId, encrypt, params, value.clone()), new Entry(result.clone()));
+        if (inverse && roundTrips(value, params.getCharset())) {
+            cache.put(new Key(keyId, !encrypt, params, result.clone()), new Entry(value.clone()));
+        }
+    }
+
+    /**
+     * @return true if {@code value} is encoded back to the same bytes once decoded using {@code charset}
+     */
+    private static boolean roundTrips(byte[] value, Charset charset) {
+        return Arrays.equals(s2b(b2s(value, charset), charset), value);
+    }
+
+    private static void clear(RemovalNotification<Key, Entry> notification) {
+        Entry entry = notification.getValue();
+        if (entry != null) {
+            // A replaced entry keeps its original key, so only the value is cleared
+            entry.clear(notification.getCause() == RemovalCause.REPLACED ? null : notification.getKey());
+        }
+    }
+
+    /**
+     * Key is what determines the result of encrypting or decrypting a value. Since keys are only compared once the
+     * hashes match, and cleared entries are treated as misses, zeroing the value of an evicted key is safe.
+     */
+    @EqualsAndHashCode
+    private static final class Key {
+        private final int keyId;
+        private final boolean encrypt;
+        private final FpeTweak tweak;
+        private final UnknownCharacterStrategy strategy;
+        private final Character redactionChar;
+        private final Charset charset;
+        private final byte[] value;
+
+        private Key(int keyId, boolean encrypt, FpeParams params, byte[] value) {
+            this.keyId = keyId;
+            this.encrypt = encrypt;
+            this.tweak = params.getFpeTweak();
+            this.strategy = params.getUnknownCharacterStrategy();
+            this.redactionChar = params.getRedactionChar();
+            this.charset = params.getCharset();
+            this.value = value;
+        }
+    }
+
+    /**
+     * Entry is a cached result. Copying and clearing are synchronized, so a concurrent reader either gets an intact
+     * copy or a miss.
+     */
+    private static final class Entry {
+        private final int length;
+        private byte[] value;
+
+        private Entry(byte[] value) {
+            this.length = value.length;
+            this.value = value;
+        }
+
+        private synchronized byte[] copy() {
+            return value == null ? null : value.clone();
+        }
+
+        private synchronized void clear(Key key) {
+            if (value != null) {
+                Arrays.fill(value, (byte) 0);
+                value = null;
+            }
+            if (key != null) {
+                Arrays.fill(key.value, (byte) 0);
+            }
+        }
+    }
+
+}
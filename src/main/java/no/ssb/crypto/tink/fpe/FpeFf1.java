@@ -0,0 +1,275 @@
+package no.ssb.crypto.tink.fpe;
+
+import com.google.common.base.CharMatcher;
+import com.idealista.fpe.algorithm.ff1.Cipher;
+import com.idealista.fpe.component.functions.prf.PseudoRandomFunction;
+import no.ssb.crypto.tink.fpe.text.Alphabet;
+import no.ssb.crypto.tink.fpe.text.CharacterSkipper;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.b2s;
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.s2b;
+
+/**
+ * Fpe primitive for the FF1 mode of Format-Preserving Encryption.
+ *
+ * <p>Unlike FF3-1, FF1 has no practical upper limit on the plaintext length, so the plaintext is encrypted in a single
+ * cipher invocation (no chunking).</p>
+ *
+ * <p>An FpeFf1 primitive is thread-safe, and can be shared by any number of threads, see {@link CbcMacPrf}.</p>
+ */
+public final class FpeFf1 implements Fpe {
+
+    /**
+     * DOMAIN_MIN is the minimum number of possible plaintext values that is required for a plaintext to be encrypted.
+     *
+     * <p>NIST SP 800-38G Rev. 1 requires radix^minlen to be at least one million. Plaintexts (and ciphertexts) with
+     * fewer alphabet characters than the corresponding minimum length are rejected with an
+     * {@link IncompatiblePlaintextException}, like FF3-1 rejects values that are too short.</p>
+     */
+    private static final int DOMAIN_MIN = 1_000_000;
+
+    /**
+     * The supported key sizes - either 128, 192 or 256 bits (16, 24 or 32 chars)
+     */
+    private static final Collection<Integer> SUPPORTED_KEY_SIZES = Arrays.asList(128, 192, 256);
+
+    /**
+     * NULL_TWEAK is used if a tweak is not explicitly specified by the user. FF1 supports tweaks of arbitrary length.
+     */
+    private static final byte[] NULL_TWEAK = new byte[0];
+
+    /**
+     * alphabet is the set of possible characters or symbols used to represent the data being encrypted.
+     */
+    private final Alphabet alphabet;
+
+    /**
+     * minLength is the minimum plaintext length (number of alphabet characters) that can be encrypted.
+     */
+    private final int minLength;
+
+    /**
+     * defaultRedactionChar is the precalculated char to use for redacting non-alphabet characters. This is only
+     * applicable if unknownCharacterStrategy is REDACT.
+     */
+    private final char defaultRedactionChar;
+
+    /**
+     * alphabetMatcher matches the characters of the alphabet (backed by the membership bitset of the alphabet). Used to
+     * apply the unknown character strategy.
+     */
+    private final CharMatcher alphabetMatcher;
+
+    /**
+     * ff1 contains the underlying FF1 algorithm implementation provided by
+     * https://github.com/idealista/format-preserving-encryption-java
+     */
+    private final Cipher ff1 = new Cipher();
+
+    private final PseudoRandomFunction prf;
+
+    FpeFf1(final byte[] key, String alphabet) throws GeneralSecurityException {
+        if (!SUPPORTED_KEY_SIZES.contains(key.length * 8)) {
+            throw new InvalidKeyException("invalid key size: " + (key.length * 8) + " bits");
+        }
+
+        this.alphabet = Alphabet.of(alphabet);
+        this.minLength = Math.max(2, (int) Math.ceil(Math.log(DOMAIN_MIN) / Math.log(this.alphabet.radix())));
+        this.defaultRedactionChar = FpeFf3.redactionCharOf(this.alphabet);
+        this.alphabetMatcher = this.alphabet.matcher();
+        this.prf = new CbcMacPrf(key);
+    }
+
+    /**
+     * Deterministically encrypt {@code plaintext} with {@code FpeParams} using FF1 mode.
+     *
+     * @param plaintext plaintext to encrypt
+     * @param params options that adjust how encryption will be performed.
+     * @return resulting ciphertext
+     * @throws GeneralSecurityException
+     */
+    @Override
+    public byte[] encrypt(final byte[] plaintext, final FpeParams params)
+            throws GeneralSecurityException {
+        if (plaintext == null || plaintext.length == 0) {
+            return new byte[0];
+        }
+
+        String pt = b2s(plaintext, params.getCharset());
+
+        CharacterSkipper charSkipper = null;
+        if (params.getUnknownCharacterStrategy() == UnknownCharacterStrategy.SKIP) {
+            charSkipper = new CharacterSkipper(pt, alphabetMatcher);
+            pt = charSkipper.getProcessedText();
+        }
+        else if (params.getUnknownCharacterStrategy() == UnknownCharacterStrategy.DELETE) {
+            pt = alphabetMatcher.retainFrom(pt);
+        }
+        else if (params.getUnknownCharacterStrategy() == UnknownCharacterStrategy.REDACT) {
+            pt = alphabetMatcher.negate().replaceFrom(pt, redactionCharOf(params));
+        }
+        else if (params.getUnknownCharacterStrategy() == UnknownCharacterStrategy.FAIL) {
+            if (! alphabetMatcher.matchesAllOf(pt)) {
+                throw new IncompatiblePlaintextException("Plaintext can only contain characters from the alphabet '" + alphabet + "'");
+            }
+        }
+
+        StringBuilder ciphertext = new StringBuilder(cipher(pt, tweakOf(params), true));
+        if (charSkipper != null && charSkipper.hasSkipped()) {
+            charSkipper.injectSkippedInto(ciphertext);
+        }
+
+        return s2b(ciphertext.toString(), params.getCharset());
+    }
+
+    /**
+     * Deterministically decrypt {@code ciphertext} with {@code FpeParams} using FF1 mode.
+     *
+     * @param ciphertext ciphertext to decrypt
+     * @param params options that adjust how decryption will be performed. This should usually be the same as the
+     *               params used to {@link #encrypt(byte[], FpeParams)}
+     * @return resulting plaintext
+     * @throws GeneralSecurityException
+     */
+    @Override
+    public byte[] decrypt(final byte[] ciphertext, final FpeParams params)
+            throws GeneralSecurityException {
+        if (ciphertext == null || ciphertext.length == 0) {
+            return new byte[0];
+        }
+
+        String ct = b2s(ciphertext, params.getCharset());
+        CharacterSkipper charSkipper = null;
+
+        if (params.getUnknownCharacterStrategy() == UnknownCharacterStrategy.SKIP) {
+            charSkipper = new CharacterSkipper(ct, alphabetMatcher);
+            ct = charSkipper.getProcessedText();
+        }
+
+        StringBuilder plaintext = new StringBuilder(cipher(ct, tweakOf(params), false));
+        if (charSkipper != null && charSkipper.hasSkipped()) {
+            charSkipper.injectSkippedInto(plaintext);
+        }
+
+        return s2b(plaintext.toString(), params.getCharset());
+    }
+
+    private String cipher(String text, byte[] tweak, boolean encrypt) {
+        if (text.isEmpty()) {
+            return text;
+        }
+        if (text.length() < minLength) {
+            throw new IncompatiblePlaintextException(String.format(
+                    "message length %d is not within min %d bounds", text.length(), minLength));
+        }
+
+        int[] x = new int[text.length()];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = alphabet.numeralOf(text.charAt(i));
+        }
+
+        int[] y = encrypt
+                ? ff1.encrypt(x, alphabet.radix(), tweak, prf)
+                : ff1.decrypt(x, alphabet.radix(), tweak, prf);
+
+        char[] result = new char[y.length];
+        alphabet.toChars(y, y.length, result, 0);
+        return new String(result);
+    }
+
+    private static byte[] tweakOf(FpeTweak tweak) {
+        return tweak == null ? NULL_TWEAK : tweak.value();
+    }
+
+    private byte[] tweakOf(FpeParams params) {
+        CompiledFpeParams plan = CompiledFpeParams.planOf(params, this);
+        return plan != null ? plan.tweak() : tweakOf(params.getFpeTweak());
+    }
+
+    private char redactionCharOf(FpeParams params) {
+        CompiledFpeParams plan = CompiledFpeParams.planOf(params, this);
+        if (plan != null) {
+            return plan.redactionChar();
+        }
+        return params.getRedactionChar() != null ? params.getRedactionChar() : defaultRedactionChar;
+    }
+
+    /**
+     * Compile {@code params} into a plan for this primitive, with the redaction character and the tweak resolved up
+     * front.
+     *
+     * @see Fpe#compile(FpeParams)
+     */
+    @Override
+    public FpeParams compile(FpeParams params) {
+        if (CompiledFpeParams.planOf(params, this) != null) {
+            return params;
+        }
+        char redactionChar = params.getRedactionChar() != null ? params.getRedactionChar() : defaultRedactionChar;
+        FpeFf3.checkRedactionChar(params, redactionChar, alphabet);
+        return params.withPlan(new CompiledFpeParams(this, redactionChar, tweakOf(params.getFpeTweak())));
+    }
+
+    /**
+     * The FF1 PRF: AES-CBC-MAC with a zero IV, returning the last ciphertext block. Equivalent to the default PRF of
+     * the idealista library, but reuses the AES key schedule instead of initializing a new cipher for every round.
+     *
+     * <p>An AES cipher is not thread-safe, so each call takes one from a small pool of the PRF (see
+     * {@link StatePool}), and returns it once done. The PRF (and thus the primitive) can be shared by any number of
+     * threads.</p>
+     */
+    private static final class CbcMacPrf implements PseudoRandomFunction {
+        private static final int BLOCK_SIZE = 16;
+        private final SecretKeySpec keySpec;
+        private final StatePool<javax.crypto.Cipher> ciphers = new StatePool<>(this::newCipher);
+
+        CbcMacPrf(byte[] key) throws GeneralSecurityException {
+            this.keySpec = new SecretKeySpec(key, "AES");
+            // Fail early if the key is invalid
+            ciphers.release(aesOf(keySpec));
+        }
+
+        private static javax.crypto.Cipher aesOf(SecretKeySpec keySpec) throws GeneralSecurityException {
+            javax.crypto.Cipher aes = javax.crypto.Cipher.getInstance("AES/ECB/NoPadding");
+            aes.init(javax.crypto.Cipher.ENCRYPT_MODE, keySpec);
+            return aes;
+        }
+
+        private javax.crypto.Cipher newCipher() {
+            try {
+                return aesOf(keySpec);
+            }
+            catch (GeneralSecurityException e) {
+                throw new SecurityException(e);
+            }
+        }
+
+        @Override
+        public byte[] apply(byte[] input) {
+            javax.crypto.Cipher aes = ciphers.acquire();
+            byte[] block = new byte[BLOCK_SIZE];
+            try {
+                for (int pos = 0; pos < input.length; pos += BLOCK_SIZE) {
+                    for (int i = 0; i < BLOCK_SIZE; i++) {
+                        block[i] ^= input[pos + i];
+                    }
+                    aes.doFinal(block, 0, BLOCK_SIZE, block, 0);
+                }
+            }
+            catch (GeneralSecurityException e) {
+                throw new SecurityException(e);
+            }
+            finally {
+                ciphers.release(aes);
+            }
+            return block;
+        }
+    }
+
+}
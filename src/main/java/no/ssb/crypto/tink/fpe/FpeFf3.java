@@ -1,22 +1,40 @@
 package no.ssb.crypto.tink.fpe;
 
-import com.google.common.base.CharMatcher;
-import com.privacylogistics.FF3Cipher;
-import no.ssb.crypto.tink.fpe.text.CharacterSkipper;
+import no.ssb.crypto.tink.fpe.text.Alphabet;
+import no.ssb.crypto.tink.fpe.text.CharacterGroup;
 
+import javax.crypto.ShortBufferException;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.*;
 
 
-// TODO: Validate/restrict tweak lengths for user provided tweaks?
-
 /**
  * Fpe primitive for the FF3-1 mode of Format-Preserving Encryption.
+ *
+ * <p>Byte array values are processed directly on the bytes if each character is a single byte, i.e. if the charset is
+ * ISO-8859-1, or if the charset is US-ASCII or UTF-8 and the value is pure ASCII. The alphabet (and redaction
+ * character) must also fit in a single byte. Other values are decoded to characters using the charset, and encoded
+ * back when processed.</p>
+ *
+ * <p>An FpeFf3 primitive is thread-safe, and can be shared by any number of threads without serializing them. The AES
+ * cipher and the scratch buffers of the FF3-1 algorithm are not thread-safe, so each call uses an FF3-1 cipher state
+ * of its own, taken from a small pool of the primitive (see {@link StatePool}) and created from the key schedule and
+ * lookup tables of the primitive if the pool is empty. A state is a few kilobytes, and the pool keeps at most a few
+ * per processor, which are garbage collected along with the primitive.</p>
  */
 public final class FpeFf3 implements Fpe {
 
@@ -40,8 +58,13 @@ public final class FpeFf3 implements Fpe {
     private static final int MAX_CHUNK_SIZE = 30;
 
     /**
-     * NULL_HEX_TWEAK is hexadecimal string representation of the default tweak. It is used if a tweak is not explicitly
-     * specified by the user.
+     * MIN_CHUNKS_PER_TASK is the min number of chunks processed by each task when chunks are processed concurrently.
+     * Each task has a scheduling cost, which is only worthwhile if the task has enough chunks to process.
+     */
+    private static final int MIN_CHUNKS_PER_TASK = 16;
+
+    /**
+     * NULL_TWEAK is the default tweak. It is used if a tweak is not explicitly specified by the user.
      *
      * <p>The tweak is a value used as an additional input to the encryption process. A tweak ensures that the same
      * plaintext and key will encrypt to different ciphertexts.</p>
@@ -52,7 +75,7 @@ public final class FpeFf3 implements Fpe {
      * enforced here.
      * </p>
      */
-    private static final String NULL_HEX_TWEAK = "00000000000000"; // 56 bits
+    private static final FpeTweak NULL_TWEAK = FpeTweak.of(new byte[7]); // 56 bits
 
     /**
      * The supported key sizes - either 128, 192 or 256 bits (16, 24 or 32 chars)
@@ -60,13 +83,16 @@ public final class FpeFf3 implements Fpe {
     private static final Collection<Integer> SUPPORTED_KEY_SIZES = Arrays.asList(128, 192, 256);
 
     /**
-     * alphabet is a string of possible characters or symbols used to represent the data being encrypted.
+     * alphabet is the set of possible characters or symbols used to represent the data being encrypted.
      *
      * <p>The alphabet typically consists of a limited number of characters such as letters, numbers, and special
      * characters. The size and composition of the alphabet determine the number of possible combinations of characters
      * that can be used to encrypt the data, which affects the level of security provided by the encryption process.</p>
+     *
+     * <p>The alphabet is built once per key, and is used both to classify characters according to the unknown
+     * character strategy, and (by the FF3-1 cipher) to convert between characters and numerals.</p>
      */
-    private final String alphabet;
+    private final Alphabet alphabet;
 
     /**
      * defaultRedactionChar is the precalculated char to use for redacting non-alphabet characters. This is only
@@ -75,18 +101,40 @@ public final class FpeFf3 implements Fpe {
     private final char defaultRedactionChar;
 
     /**
-     * ff3 contains the underlying FF3-1 algorithm implementation provided by https://github.com/mysto/java-fpe
+     * ff3 contains the underlying FF3-1 algorithm implementation. It holds the key and the tables shared by all
+     * threads (including the codebooks), and is the prototype of the ciphers of {@link #ciphers}. It is never used to
+     * encrypt or decrypt directly.
+     */
+    private final Ff31Cipher ff3;
+
+    /**
+     * ciphers holds the idle FF3-1 ciphers of this primitive. Each call takes a cipher of its own, and returns it once
+     * done.
+     */
+    private final StatePool<Ff31Cipher> ciphers;
+
+    /**
+     * sessions holds the idle scratch buffers of the calls that are not given a session by the caller, such as
+     * {@link #encrypt(ByteBuffer, ByteBuffer, FpeParams)} and {@link #encrypt(CharSequence, FpeParams)}
      */
-    private final FF3Cipher ff3;
+    private final StatePool<FpeSession> sessions = new StatePool<>(FpeSession::create);
+
+    /**
+     * numeric is true if the alphabet consists of the decimal digits only. If so, numbers are encrypted directly by
+     * {@link #encryptNumber(long, int, FpeParams)}, without the intermediate string representation.
+     */
+    private final boolean numeric;
 
     FpeFf3(final byte[] key, String alphabet) throws GeneralSecurityException {
         if (!SUPPORTED_KEY_SIZES.contains(key.length * 8)) {
             throw new InvalidKeyException("invalid key size: " + (key.length * 8) + " bits");
         }
 
-        this.alphabet = alphabet;
-        this.defaultRedactionChar = redactionCharOf(alphabet);
-        this.ff3 = new FF3Cipher(byteArrayToHexString(key), NULL_HEX_TWEAK, alphabet);
+        this.alphabet = Alphabet.of(alphabet);
+        this.defaultRedactionChar = redactionCharOf(this.alphabet);
+        this.ff3 = new Ff31Cipher(key, this.alphabet);
+        this.ciphers = new StatePool<>(this::copyCipher);
+        this.numeric = alphabet.equals(CharacterGroup.DIGITS.getChars());
     }
 
     /**
@@ -104,40 +152,134 @@ public final class FpeFf3 implements Fpe {
             return new byte[0];
         }
 
-        String tweak = hexTweakOf(params.getTweak());
-        String pt = b2s(plaintext, params.getCharset());
+        return encrypt(plaintext, params, tweakOf(params), redactionCharOf(params));
+    }
+
+    /**
+     * Deterministically encrypt all {@code plaintexts} with {@code FpeParams} using FF3-1 mode. The tweak and the
+     * redaction character are only resolved once for the whole batch, and the chunks of single-byte values are
+     * advanced through the FF3-1 rounds together (see {@link Ff31Cipher.Batch}), so that many values share each AES
+     * call.
+     *
+     * @see Fpe#encryptAll(List, FpeParams)
+     */
+    @Override
+    public List<byte[]> encryptAll(final List<byte[]> plaintexts, final FpeParams params)
+            throws GeneralSecurityException {
+        return cipherAll(plaintexts, params, tweakOf(params), redactionCharOf(params), true);
+    }
 
-        CharacterSkipper charSkipper = null;
-        if (params.getUnknownCharacterStrategy() == UnknownCharacterStrategy.SKIP) {
-            charSkipper = new CharacterSkipper(pt, alphabet);
-            pt = charSkipper.getProcessedText();
+    /**
+     * Deterministically encrypt {@code plaintext} with {@code FpeParams} using FF3-1 mode, without any charset
+     * transcoding.
+     *
+     * @see Fpe#encrypt(CharSequence, FpeParams)
+     */
+    @Override
+    public CharSequence encrypt(final CharSequence plaintext, final FpeParams params)
+            throws GeneralSecurityException {
+        if (plaintext == null || plaintext.length() == 0) {
+            return "";
         }
-        else if (params.getUnknownCharacterStrategy() == UnknownCharacterStrategy.DELETE) {
-            pt = CharMatcher.anyOf(alphabet).retainFrom(pt);
+
+        return encryptText(plaintext.toString(), params, tweakOf(params), redactionCharOf(params));
+    }
+
+    /**
+     * Deterministically encrypt {@code plaintext} with {@code FpeParams} using FF3-1 mode, without any charset
+     * transcoding.
+     *
+     * @see Fpe#encrypt(char[], FpeParams)
+     */
+    @Override
+    public char[] encrypt(final char[] plaintext, final FpeParams params)
+            throws GeneralSecurityException {
+        if (plaintext == null || plaintext.length == 0) {
+            return new char[0];
         }
-        else if (params.getUnknownCharacterStrategy() == UnknownCharacterStrategy.REDACT) {
-            pt = CharMatcher.noneOf(alphabet).replaceFrom(pt, Optional.ofNullable(params.getRedactionChar()).orElse(defaultRedactionChar));
+
+        return encryptText(new String(plaintext), params, tweakOf(params), redactionCharOf(params))
+                .toCharArray();
+    }
+
+    /**
+     * Deterministically encrypt the remaining bytes of {@code in} with {@code FpeParams} using FF3-1 mode. The
+     * ciphertext is written directly into {@code out}, see {@link #cipherBuffer}.
+     *
+     * @see Fpe#encrypt(ByteBuffer, ByteBuffer, FpeParams)
+     */
+    @Override
+    public int encrypt(final ByteBuffer in, final ByteBuffer out, final FpeParams params)
+            throws GeneralSecurityException {
+        if (!in.hasRemaining()) {
+            return 0;
         }
-        else if (params.getUnknownCharacterStrategy() == UnknownCharacterStrategy.FAIL) {
-            if (! CharMatcher.anyOf(alphabet).matchesAllOf(pt)) {
-                throw new IncompatiblePlaintextException("Plaintext can only contain characters from the alphabet '" + alphabet + "'");
-            }
+
+        return cipherBuffer(in, out, params, redactionCharOf(params), true);
+    }
+
+    /**
+     * Deterministically encrypt {@code len} bytes of {@code in} with {@code FpeParams} using FF3-1 mode. The text is
+     * decoded, encrypted and encoded using the buffers of {@code session}, so no memory is allocated if the value
+     * fits in the session.
+     *
+     * @see Fpe#encrypt(byte[], int, int, byte[], int, FpeParams, FpeSession)
+     */
+    @Override
+    public int encrypt(final byte[] in, int off, int len, byte[] out, int outOff, final FpeParams params,
+                       FpeSession session) throws GeneralSecurityException {
+        if (len == 0) {
+            return 0;
         }
 
-        // TODO: Optimize and protect - use byte[] instead of String?
-        StringBuilder ciphertext = new StringBuilder();
-        for (int pos=0, chunkNo=1; pos<pt.length(); pos+=MAX_CHUNK_SIZE, chunkNo++) {
-            String chunk = pt.substring(pos, Math.min(chunkNo*MAX_CHUNK_SIZE, pt.length()));
-            ciphertext.append(chunk.length() < MIN_CHUNK_SIZE
-                    ? chunk
-                    : ff3.encrypt(chunk, tweak));
+        char redactionChar = redactionCharOf(params);
+        if (len <= session.capacity() && out.length - outOff >= len
+                && isSingleByte(in, off, len, params, redactionChar)) {
+            Ff31Cipher cipher = ciphers.acquire();
+            try {
+                return cipherBytes(cipher, in, off, len, out, outOff, params, tweakOf(params), redactionChar, true,
+                        session, null);
+            }
+            finally {
+                release(cipher);
+            }
         }
+        int n = session.decode(in, off, len, params.getCharset());
+        if (n < 0) {
+            return encrypt(in, off, len, out, outOff, params);
+        }
+        n = cipherText(session, n, params, tweakOf(params), redactionChar, true);
+        return session.encode(n, out, outOff);
+    }
 
-        if (charSkipper != null && charSkipper.hasSkipped()) {
-            charSkipper.injectSkippedInto(ciphertext);
+    private byte[] encrypt(final byte[] plaintext, final FpeParams params, byte[] tweak, char redactionChar)
+            throws GeneralSecurityException {
+        if (isSingleByte(plaintext, 0, plaintext.length, params, redactionChar)) {
+            byte[] ciphertext = new byte[plaintext.length];
+            Ff31Cipher cipher = ciphers.acquire();
+            int len;
+            try {
+                len = cipherBytes(cipher, plaintext, 0, plaintext.length, ciphertext, 0, params, tweak, redactionChar,
+                        true, null, null);
+            }
+            finally {
+                release(cipher);
+            }
+            return len == ciphertext.length ? ciphertext : Arrays.copyOf(ciphertext, len);
         }
+        return s2b(encryptText(b2s(plaintext, params.getCharset()), params, tweak, redactionChar), params.getCharset());
+    }
 
-        return s2b(ciphertext.toString(), params.getCharset());
+    private String encryptText(String pt, final FpeParams params, byte[] tweak, char redactionChar)
+            throws GeneralSecurityException {
+        FpeSession session = sessionOf(pt);
+        try {
+            int len = cipherText(session, pt.length(), params, tweak, redactionChar, true);
+            return new String(session.chars, 0, len);
+        }
+        finally {
+            release(session);
+        }
     }
 
     /**
@@ -156,34 +298,849 @@ public final class FpeFf3 implements Fpe {
             return new byte[0];
         }
 
-        String tweak = hexTweakOf(params.getTweak());
-        String ct = b2s(ciphertext, params.getCharset());
-        CharacterSkipper charSkipper = null;
+        return decrypt(ciphertext, params, tweakOf(params));
+    }
+
+    /**
+     * Deterministically decrypt all {@code ciphertexts} with {@code FpeParams} using FF3-1 mode. The tweak is only
+     * resolved once for the whole batch, and the chunks of single-byte values share AES calls, see
+     * {@link #encryptAll(List, FpeParams)}.
+     *
+     * @see Fpe#decryptAll(List, FpeParams)
+     */
+    @Override
+    public List<byte[]> decryptAll(final List<byte[]> ciphertexts, final FpeParams params)
+            throws GeneralSecurityException {
+        return cipherAll(ciphertexts, params, tweakOf(params), defaultRedactionChar, false);
+    }
+
+    /**
+     * Encrypt or decrypt all {@code values}. Single-byte values are processed by {@link #cipherBytes} without
+     * flushing the batch of the cipher in between. Skipped characters are only written back, and the results that
+     * are shorter than the value (i.e. if characters were deleted) are only truncated, once the batch has been
+     * flushed.
+     */
+    private List<byte[]> cipherAll(final List<byte[]> values, final FpeParams params, byte[] tweak,
+                                   char redactionChar, boolean encrypt) throws GeneralSecurityException {
+        List<byte[]> results = new ArrayList<>(values.size());
+        int[] lengths = new int[values.size()];
+        List<Scatter> scatters = new ArrayList<>();
+        Ff31Cipher cipher = ciphers.acquire();
+        try {
+            for (byte[] value : values) {
+                byte[] result;
+                if (value == null || value.length == 0) {
+                    result = new byte[0];
+                    lengths[results.size()] = 0;
+                }
+                else if (isSingleByte(value, 0, value.length, params, redactionChar)) {
+                    result = new byte[value.length];
+                    lengths[results.size()] = cipherBytes(cipher, value, 0, value.length, result, 0, params, tweak,
+                            redactionChar, encrypt, null, scatters);
+                }
+                else {
+                    result = encrypt
+                            ? encrypt(value, params, tweak, redactionChar)
+                            : decrypt(value, params, tweak);
+                    lengths[results.size()] = result.length;
+                }
+                results.add(result);
+            }
+            cipher.batch().flush();
+        }
+        finally {
+            release(cipher);
+        }
+        for (Scatter scatter : scatters) {
+            scatter.apply();
+        }
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] != results.get(i).length) {
+                results.set(i, Arrays.copyOf(results.get(i), lengths[i]));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Deterministically decrypt {@code ciphertext} with {@code FpeParams} using FF3-1 mode, without any charset
+     * transcoding.
+     *
+     * @see Fpe#decrypt(CharSequence, FpeParams)
+     */
+    @Override
+    public CharSequence decrypt(final CharSequence ciphertext, final FpeParams params)
+            throws GeneralSecurityException {
+        if (ciphertext == null || ciphertext.length() == 0) {
+            return "";
+        }
+
+        return decryptText(ciphertext.toString(), params, tweakOf(params));
+    }
+
+    /**
+     * Deterministically decrypt {@code ciphertext} with {@code FpeParams} using FF3-1 mode, without any charset
+     * transcoding.
+     *
+     * @see Fpe#decrypt(char[], FpeParams)
+     */
+    @Override
+    public char[] decrypt(final char[] ciphertext, final FpeParams params)
+            throws GeneralSecurityException {
+        if (ciphertext == null || ciphertext.length == 0) {
+            return new char[0];
+        }
+
+        return decryptText(new String(ciphertext), params, tweakOf(params)).toCharArray();
+    }
+
+    /**
+     * Deterministically decrypt the remaining bytes of {@code in} with {@code FpeParams} using FF3-1 mode. The
+     * plaintext is written directly into {@code out}, see {@link #cipherBuffer}.
+     *
+     * @see Fpe#decrypt(ByteBuffer, ByteBuffer, FpeParams)
+     */
+    @Override
+    public int decrypt(final ByteBuffer in, final ByteBuffer out, final FpeParams params)
+            throws GeneralSecurityException {
+        if (!in.hasRemaining()) {
+            return 0;
+        }
+
+        return cipherBuffer(in, out, params, defaultRedactionChar, false);
+    }
+
+    /**
+     * Encrypt or decrypt the remaining bytes of {@code in}, writing the result to {@code out}. Single-byte text in
+     * heap buffers is ciphered directly from the backing array of {@code in} to that of {@code out}. Other values are
+     * decoded and encoded with the buffers of a pooled session, so only values larger than
+     * {@link FpeSession#DEFAULT_CAPACITY} bytes go through intermediate strings.
+     *
+     * @return the number of bytes written
+     * @throws ShortBufferException if {@code out} has insufficient space. Neither buffer is modified in this case.
+     */
+    private int cipherBuffer(final ByteBuffer in, final ByteBuffer out, final FpeParams params, char redactionChar,
+                             boolean encrypt) throws GeneralSecurityException {
+        byte[] tweak = tweakOf(params);
+        int len = in.remaining();
+        FpeSession session = sessions.acquire();
+        try {
+            if (in.hasArray() && out.hasArray() && len <= session.capacity() && out.remaining() >= len
+                    && isSingleByte(in.array(), in.arrayOffset() + in.position(), len, params, redactionChar)) {
+                Ff31Cipher cipher = ciphers.acquire();
+                int written;
+                try {
+                    written = cipherBytes(cipher, in.array(), in.arrayOffset() + in.position(), len, out.array(),
+                            out.arrayOffset() + out.position(), params, tweak, redactionChar, encrypt, session, null);
+                }
+                finally {
+                    release(cipher);
+                }
+                out.position(out.position() + written);
+                in.position(in.limit());
+                return written;
+            }
+            int n = session.decode(in, params.getCharset());
+            if (n >= 0) {
+                n = cipherText(session, n, params, tweak, redactionChar, encrypt);
+                int written = session.encode(n, out);
+                in.position(in.limit());
+                return written;
+            }
+        }
+        finally {
+            release(session);
+        }
+
+        String text = FpeBuffers.decode(in, params.getCharset());
+        String result = encrypt ? encryptText(text, params, tweak, redactionChar) : decryptText(text, params, tweak);
+        int written = FpeBuffers.encode(result, params.getCharset(), out);
+        in.position(in.limit());
+        return written;
+    }
+
+    /**
+     * Deterministically decrypt {@code len} bytes of {@code in} with {@code FpeParams} using FF3-1 mode, using the
+     * buffers of {@code session}.
+     *
+     * @see Fpe#decrypt(byte[], int, int, byte[], int, FpeParams, FpeSession)
+     */
+    @Override
+    public int decrypt(final byte[] in, int off, int len, byte[] out, int outOff, final FpeParams params,
+                       FpeSession session) throws GeneralSecurityException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (len <= session.capacity() && out.length - outOff >= len
+                && isSingleByte(in, off, len, params, defaultRedactionChar)) {
+            Ff31Cipher cipher = ciphers.acquire();
+            try {
+                return cipherBytes(cipher, in, off, len, out, outOff, params, tweakOf(params), defaultRedactionChar,
+                        false, session, null);
+            }
+            finally {
+                release(cipher);
+            }
+        }
+        int n = session.decode(in, off, len, params.getCharset());
+        if (n < 0) {
+            return decrypt(in, off, len, out, outOff, params);
+        }
+        n = cipherText(session, n, params, tweakOf(params), defaultRedactionChar, false);
+        return session.encode(n, out, outOff);
+    }
+
+    private byte[] decrypt(final byte[] ciphertext, final FpeParams params, byte[] tweak)
+            throws GeneralSecurityException {
+        if (isSingleByte(ciphertext, 0, ciphertext.length, params, defaultRedactionChar)) {
+            byte[] plaintext = new byte[ciphertext.length];
+            Ff31Cipher cipher = ciphers.acquire();
+            try {
+                cipherBytes(cipher, ciphertext, 0, ciphertext.length, plaintext, 0, params, tweak, defaultRedactionChar,
+                        false, null, null);
+            }
+            finally {
+                release(cipher);
+            }
+            return plaintext;
+        }
+        return s2b(decryptText(b2s(ciphertext, params.getCharset()), params, tweak), params.getCharset());
+    }
+
+    private String decryptText(String ct, final FpeParams params, byte[] tweak)
+            throws GeneralSecurityException {
+        FpeSession session = sessionOf(ct);
+        try {
+            int len = cipherText(session, ct.length(), params, tweak, defaultRedactionChar, false);
+            return new String(session.chars, 0, len);
+        }
+        finally {
+            release(session);
+        }
+    }
+
+    /**
+     * Create a writer that encrypts text using FF3-1 mode, one chunk at a time.
+     *
+     * <p>The writer holds back at most one chunk (MAX_CHUNK_SIZE characters) of alphabet characters, along with any
+     * skipped characters in between. Skipped characters that are not in the middle of a chunk are passed straight
+     * through. Memory usage is thus constant, regardless of the length of the text, unless the text has long runs of
+     * skipped characters within a chunk.</p>
+     *
+     * @see Fpe#encryptingWriter(Writer, FpeParams)
+     */
+    @Override
+    public Writer encryptingWriter(final Writer out, final FpeParams params) throws GeneralSecurityException {
+        return new ChunkWriter(out, params, tweakOf(params), redactionCharOf(params), true);
+    }
+
+    /**
+     * Create a writer that decrypts text using FF3-1 mode, one chunk at a time.
+     *
+     * @see #encryptingWriter(Writer, FpeParams)
+     */
+    @Override
+    public Writer decryptingWriter(final Writer out, final FpeParams params) throws GeneralSecurityException {
+        return new ChunkWriter(out, params, tweakOf(params), defaultRedactionChar, false);
+    }
+
+    /**
+     * Encrypt or decrypt the text of {@code len} characters in {@code session.chars} in place, applying the unknown
+     * character strategy of {@code params}. This is shared by all text and byte variants of encrypt and decrypt, and
+     * does not allocate any memory (unless chunks are processed concurrently).
+     *
+     * <p>When encrypting, unknown characters are deleted, redacted or rejected according to the strategy. When
+     * decrypting, only skipped characters are handled, since the other strategies leave no unknown characters in the
+     * ciphertext. Skipped characters are left at their positions, and only the other characters are encrypted.</p>
+     *
+     * @return the length of the resulting text in {@code session.chars}
+     */
+    private int cipherText(FpeSession session, int len, final FpeParams params, byte[] tweak, char redactionChar,
+                           boolean encrypt) throws GeneralSecurityException {
+        char[] chars = session.chars;
+        UnknownCharacterStrategy strategy = params.getUnknownCharacterStrategy();
+        if (strategy == UnknownCharacterStrategy.SKIP) {
+            char[] text = session.text;
+            int[] positions = session.positions;
+            int n = 0;
+            for (int i = 0; i < len; i++) {
+                if (alphabet.contains(chars[i])) {
+                    text[n] = chars[i];
+                    positions[n++] = i;
+                }
+            }
+            cipherChunks(text, n, tweak, params, encrypt);
+            for (int i = 0; i < n; i++) {
+                chars[positions[i]] = text[i];
+            }
+            return len;
+        }
+
+        if (encrypt && strategy == UnknownCharacterStrategy.DELETE) {
+            int n = 0;
+            for (int i = 0; i < len; i++) {
+                if (alphabet.contains(chars[i])) {
+                    chars[n++] = chars[i];
+                }
+            }
+            len = n;
+        }
+        else if (encrypt && strategy == UnknownCharacterStrategy.REDACT) {
+            for (int i = 0; i < len; i++) {
+                if (!alphabet.contains(chars[i])) {
+                    chars[i] = redactionChar;
+                }
+            }
+        }
+        else if (encrypt && strategy == UnknownCharacterStrategy.FAIL) {
+            for (int i = 0; i < len; i++) {
+                if (!alphabet.contains(chars[i])) {
+                    throw new IncompatiblePlaintextException("Plaintext can only contain characters from the alphabet '" + alphabet + "'");
+                }
+            }
+        }
+
+        cipherChunks(chars, len, tweak, params, encrypt);
+        return len;
+    }
+
+    /**
+     * @return a session holding {@code text} in its chars buffer: a pooled session if the text fits, or else a
+     * temporary one
+     */
+    private FpeSession sessionOf(String text) {
+        if (text.length() > FpeSession.DEFAULT_CAPACITY) {
+            return FpeSession.of(text);
+        }
+        FpeSession session = sessions.acquire();
+        text.getChars(0, text.length(), session.chars, 0);
+        return session;
+    }
+
+    /**
+     * Return {@code session} to the pool, unless it is a temporary session of another capacity
+     */
+    private void release(FpeSession session) {
+        if (session.capacity() == FpeSession.DEFAULT_CAPACITY) {
+            sessions.release(session);
+        }
+    }
+
+    /**
+     * Return {@code cipher} to the pool, dropping any chunks left in its batch by a failed call
+     */
+    private void release(Ff31Cipher cipher) {
+        cipher.batch().clear();
+        ciphers.release(cipher);
+    }
+
+    /**
+     * @return a new FF3-1 cipher with the key and tables of ff3, but with its own AES cipher and scratch buffers
+     */
+    private Ff31Cipher copyCipher() {
+        try {
+            return ff3.copy();
+        }
+        catch (GeneralSecurityException e) {
+            // The constructor has already initialized an AES cipher with the same key
+            throw new IllegalStateException("Error copying the FF3-1 cipher", e);
+        }
+    }
+
+    /**
+     * Encrypt or decrypt the first {@code len} characters of {@code chars} in place, chunk by chunk. Chunks are
+     * independent of each other, so if the text is at least {@link FpeParams#getParallelChunkThreshold()} characters
+     * long, they are processed concurrently.
+     */
+    private void cipherChunks(char[] chars, int len, byte[] tweak, FpeParams params, boolean encrypt)
+            throws GeneralSecurityException {
+        int threshold = params.getParallelChunkThreshold();
+        if (threshold == 0 || len < threshold || len <= MAX_CHUNK_SIZE) {
+            Ff31Cipher cipher = ciphers.acquire();
+            try {
+                cipherChunks(cipher, chars, 0, len, tweak, encrypt);
+            }
+            finally {
+                release(cipher);
+            }
+            return;
+        }
+
+        ForkJoinPool pool = Optional.ofNullable(params.getForkJoinPool()).orElse(ForkJoinPool.commonPool());
+        int numChunks = (len + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE;
+        int chunksPerTask = Math.max(MIN_CHUNKS_PER_TASK, numChunks / (pool.getParallelism() * 4));
+        try {
+            pool.invoke(new ChunkTask(chars, len, 0, numChunks, chunksPerTask, tweak, encrypt));
+        }
+        catch (RuntimeException e) {
+            // A checked exception from a task is wrapped (possibly more than once by the pool)
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof GeneralSecurityException) {
+                    throw (GeneralSecurityException) t;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Encrypt or decrypt the characters from {@code from} (inclusive) to {@code to} (exclusive) in place, chunk by
+     * chunk. The chunks are advanced through the FF3-1 rounds in lockstep, see {@link Ff31Cipher.Batch}.
+     */
+    private static void cipherChunks(Ff31Cipher cipher, char[] chars, int from, int to, byte[] tweak, boolean encrypt)
+            throws GeneralSecurityException {
+        Ff31Cipher.Batch batch = cipher.batch();
+        for (int pos=from; pos<to; pos+=MAX_CHUNK_SIZE) {
+            int chunkSize = Math.min(MAX_CHUNK_SIZE, to - pos);
+            if (chunkSize < MIN_CHUNK_SIZE) {
+                continue;
+            }
+            batch.add(chars, pos, chunkSize, tweak, encrypt);
+        }
+        batch.flush();
+    }
+
+    /**
+     * @return true if the {@code len} bytes of {@code bytes} (starting at {@code off}) can be processed by
+     * {@link #cipherBytes}, i.e. if each byte is a character of its own, and the alphabet and the redaction character
+     * can be represented by a single byte in the charset. Texts that are processed concurrently (see
+     * {@link FpeParams#getParallelChunkThreshold()}) are left to the character path.
+     */
+    private boolean isSingleByte(byte[] bytes, int off, int len, FpeParams params, char redactionChar) {
+        int threshold = params.getParallelChunkThreshold();
+        if (threshold != 0 && len >= threshold && len > MAX_CHUNK_SIZE) {
+            return false;
+        }
+        int maxChar = singleByteMaxCharOf(params.getCharset());
+        if (alphabet.maxChar() > maxChar || redactionChar > maxChar) {
+            return false;
+        }
+        if (maxChar == 0xFF) {
+            return true;
+        }
+        for (int i = off; i < off + len; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the largest character that is represented by a single byte in {@code charset} (given that all
+     * characters of the text are), or -1 if the charset is not supported by the single-byte fast path
+     */
+    private static int singleByteMaxCharOf(Charset charset) {
+        if (charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)) {
+            return 0x7F;
+        }
+        if (charset.equals(StandardCharsets.ISO_8859_1)) {
+            return 0xFF;
+        }
+        return -1;
+    }
+
+    /**
+     * The single-byte variant of {@link #cipherText}: encrypt or decrypt {@code len} bytes of {@code src} (starting
+     * at {@code srcOff}), writing the result to {@code dst} (starting at {@code dstOff}). Each byte is the character
+     * {@code b & 0xFF}, see {@link #isSingleByte}. The source and destination may be the same array.
+     *
+     * @param session holds the buffers used if characters are skipped, or null to allocate temporary buffers
+     * @param scatters null if the result must be complete on return, or else the list to add the write-back of
+     *                 skipped characters to, which must be applied once the chunks that are left in the batch of the
+     *                 cipher (see {@link Ff31Cipher.Batch}) have been flushed by the caller. The session must be null.
+     * @return the length of the resulting text in {@code dst}
+     */
+    private int cipherBytes(Ff31Cipher cipher, byte[] src, int srcOff, int len, byte[] dst, int dstOff,
+                            final FpeParams params, byte[] tweak, char redactionChar, boolean encrypt,
+                            FpeSession session, List<Scatter> scatters) throws GeneralSecurityException {
+        UnknownCharacterStrategy strategy = params.getUnknownCharacterStrategy();
+        if (encrypt && strategy == UnknownCharacterStrategy.FAIL) {
+            for (int i = srcOff; i < srcOff + len; i++) {
+                if (!alphabet.contains((char) (src[i] & 0xFF))) {
+                    throw new IncompatiblePlaintextException("Plaintext can only contain characters from the alphabet '" + alphabet + "'");
+                }
+            }
+        }
+        System.arraycopy(src, srcOff, dst, dstOff, len);
+        int end = dstOff + len;
+
+        if (strategy == UnknownCharacterStrategy.SKIP) {
+            int first = dstOff;
+            while (first < end && alphabet.contains((char) (dst[first] & 0xFF))) {
+                first++;
+            }
+            if (first == end) {
+                cipherByteChunks(cipher, dst, dstOff, end, tweak, encrypt);
+                if (scatters == null) {
+                    cipher.batch().flush();
+                }
+                return len;
+            }
+            byte[] text = session != null ? session.byteText() : new byte[len];
+            int[] positions = session != null ? session.positions : new int[len];
+            int n = 0;
+            for (int i = dstOff; i < end; i++) {
+                if (alphabet.contains((char) (dst[i] & 0xFF))) {
+                    text[n] = dst[i];
+                    positions[n++] = i;
+                }
+            }
+            cipherByteChunks(cipher, text, 0, n, tweak, encrypt);
+            Scatter scatter = new Scatter(text, positions, n, dst);
+            if (scatters == null) {
+                cipher.batch().flush();
+                scatter.apply();
+            }
+            else {
+                scatters.add(scatter);
+            }
+            return len;
+        }
+
+        if (encrypt && strategy == UnknownCharacterStrategy.DELETE) {
+            int n = dstOff;
+            for (int i = dstOff; i < end; i++) {
+                if (alphabet.contains((char) (dst[i] & 0xFF))) {
+                    dst[n++] = dst[i];
+                }
+            }
+            len = n - dstOff;
+        }
+        else if (encrypt && strategy == UnknownCharacterStrategy.REDACT) {
+            for (int i = dstOff; i < end; i++) {
+                if (!alphabet.contains((char) (dst[i] & 0xFF))) {
+                    dst[i] = (byte) redactionChar;
+                }
+            }
+        }
+
+        cipherByteChunks(cipher, dst, dstOff, dstOff + len, tweak, encrypt);
+        if (scatters == null) {
+            cipher.batch().flush();
+        }
+        return len;
+    }
+
+    /**
+     * The single-byte variant of {@link #cipherChunks(Ff31Cipher, char[], int, int, byte[], boolean)}. The chunks are
+     * only queued in the batch of the cipher, and processed when the batch is flushed.
+     */
+    private static void cipherByteChunks(Ff31Cipher cipher, byte[] bytes, int from, int to, byte[] tweak,
+                                         boolean encrypt) throws GeneralSecurityException {
+        Ff31Cipher.Batch batch = cipher.batch();
+        for (int pos=from; pos<to; pos+=MAX_CHUNK_SIZE) {
+            int chunkSize = Math.min(MAX_CHUNK_SIZE, to - pos);
+            if (chunkSize < MIN_CHUNK_SIZE) {
+                continue;
+            }
+            batch.add(bytes, pos, chunkSize, tweak, encrypt);
+        }
+    }
+
+    /**
+     * Scatter writes the {@code n} encrypted (or decrypted) alphabet characters of {@code text} back to their
+     * {@code positions} in {@code dst}, around the skipped characters
+     */
+    private static final class Scatter {
+        private final byte[] text;
+        private final int[] positions;
+        private final int n;
+        private final byte[] dst;
+
+        Scatter(byte[] text, int[] positions, int n, byte[] dst) {
+            this.text = text;
+            this.positions = positions;
+            this.n = n;
+            this.dst = dst;
+        }
+
+        void apply() {
+            for (int i = 0; i < n; i++) {
+                dst[positions[i]] = text[i];
+            }
+        }
+    }
+
+    /**
+     * ChunkTask processes the chunks from {@code fromChunk} (inclusive) to {@code toChunk} (exclusive), splitting the
+     * range until there are at most {@code chunksPerTask} chunks left. Each leaf task takes an FF3-1 cipher of its own
+     * from the pool.
+     */
+    private final class ChunkTask extends RecursiveAction {
+        private final char[] chars;
+        private final int len;
+        private final int fromChunk;
+        private final int toChunk;
+        private final int chunksPerTask;
+        private final byte[] tweak;
+        private final boolean encrypt;
+
+        ChunkTask(char[] chars, int len, int fromChunk, int toChunk, int chunksPerTask, byte[] tweak,
+                  boolean encrypt) {
+            this.chars = chars;
+            this.len = len;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+            this.chunksPerTask = chunksPerTask;
+            this.tweak = tweak;
+            this.encrypt = encrypt;
+        }
+
+        @Override
+        protected void compute() {
+            if (toChunk - fromChunk <= chunksPerTask) {
+                Ff31Cipher cipher = ciphers.acquire();
+                try {
+                    cipherChunks(cipher, chars, fromChunk * MAX_CHUNK_SIZE,
+                            Math.min(len, toChunk * MAX_CHUNK_SIZE), tweak, encrypt);
+                }
+                catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+                finally {
+                    release(cipher);
+                }
+                return;
+            }
+            int mid = (fromChunk + toChunk) >>> 1;
+            invokeAll(new ChunkTask(chars, len, fromChunk, mid, chunksPerTask, tweak, encrypt),
+                    new ChunkTask(chars, len, mid, toChunk, chunksPerTask, tweak, encrypt));
+        }
+    }
 
-        if (params.getUnknownCharacterStrategy() == UnknownCharacterStrategy.SKIP) {
-            charSkipper = new CharacterSkipper(ct, alphabet);
-            ct = charSkipper.getProcessedText();
+    /**
+     * ChunkWriter applies the unknown character strategy to the characters written to it, and encrypts or decrypts
+     * the text one chunk at a time, the same way as {@link #cipherText}. Each writer uses its own copy of the FF3-1
+     * cipher.
+     */
+    private final class ChunkWriter extends Writer {
+        private final Writer out;
+        private final UnknownCharacterStrategy strategy;
+        private final byte[] tweak;
+        private final char redactionChar;
+        private final boolean encrypt;
+        private final Ff31Cipher cipher;
+
+        /**
+         * pending holds the characters that are held back until the current chunk is complete, and positions holds
+         * the positions in pending of the characters in the chunk.
+         */
+        private char[] pending = new char[2 * MAX_CHUNK_SIZE];
+        private int pendingLen;
+        private final char[] chunk = new char[MAX_CHUNK_SIZE];
+        private final int[] positions = new int[MAX_CHUNK_SIZE];
+        private int chunkLen;
+        private boolean closed;
+
+        ChunkWriter(Writer out, FpeParams params, byte[] tweak, char redactionChar, boolean encrypt)
+                throws GeneralSecurityException {
+            this.out = out;
+            this.strategy = params.getUnknownCharacterStrategy();
+            this.tweak = tweak;
+            this.redactionChar = redactionChar;
+            this.encrypt = encrypt;
+            this.cipher = ff3.copy();
         }
 
-        StringBuilder plaintext = new StringBuilder();
-        for (int pos=0, chunkNo=1; pos<ct.length(); pos+=MAX_CHUNK_SIZE, chunkNo++) {
-            String chunk = ct.substring(pos, Math.min(chunkNo*MAX_CHUNK_SIZE, ct.length()));
-            plaintext.append(chunk.length() < MIN_CHUNK_SIZE
-                    ? chunk
-                    : ff3.decrypt(chunk, tweak));
+        @Override
+        public void write(int c) throws IOException {
+            ensureOpen();
+            put((char) c);
         }
 
-        if (charSkipper != null && charSkipper.hasSkipped()) {
-            charSkipper.injectSkippedInto(plaintext);
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            ensureOpen();
+            for (int i = off; i < off + len; i++) {
+                put(cbuf[i]);
+            }
         }
 
-        return s2b(plaintext.toString(), params.getCharset());
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            ensureOpen();
+            for (int i = off; i < off + len; i++) {
+                put(str.charAt(i));
+            }
+        }
+
+        private void put(char c) throws IOException {
+            if (!alphabet.contains(c)) {
+                if (strategy == UnknownCharacterStrategy.SKIP) {
+                    if (chunkLen == 0) {
+                        out.write(c);
+                    }
+                    else {
+                        hold(c);
+                    }
+                    return;
+                }
+                // When decrypting, the other strategies leave no unknown characters, so the cipher will reject it
+                if (encrypt && strategy == UnknownCharacterStrategy.DELETE) {
+                    return;
+                }
+                else if (encrypt && strategy == UnknownCharacterStrategy.REDACT) {
+                    c = redactionChar;
+                }
+                else if (encrypt && strategy == UnknownCharacterStrategy.FAIL) {
+                    throw new IncompatiblePlaintextException("Plaintext can only contain characters from the alphabet '" + alphabet + "'");
+                }
+            }
+            positions[chunkLen++] = pendingLen;
+            hold(c);
+            if (chunkLen == MAX_CHUNK_SIZE) {
+                writeChunk();
+            }
+        }
+
+        private void hold(char c) {
+            if (pendingLen == pending.length) {
+                pending = Arrays.copyOf(pending, 2 * pending.length);
+            }
+            pending[pendingLen++] = c;
+        }
+
+        /**
+         * Encrypt or decrypt the current chunk (unless it is shorter than MIN_CHUNK_SIZE), and write it, including
+         * the skipped characters in between
+         */
+        private void writeChunk() throws IOException {
+            if (chunkLen >= MIN_CHUNK_SIZE) {
+                for (int i = 0; i < chunkLen; i++) {
+                    chunk[i] = pending[positions[i]];
+                }
+                try {
+                    if (encrypt) {
+                        cipher.encrypt(chunk, 0, chunkLen, chunk, 0, tweak);
+                    }
+                    else {
+                        cipher.decrypt(chunk, 0, chunkLen, chunk, 0, tweak);
+                    }
+                }
+                catch (GeneralSecurityException e) {
+                    throw new IOException(e);
+                }
+                for (int i = 0; i < chunkLen; i++) {
+                    pending[positions[i]] = chunk[i];
+                }
+            }
+            out.write(pending, 0, pendingLen);
+            pendingLen = 0;
+            chunkLen = 0;
+        }
+
+        /**
+         * Flush the underlying writer. The characters of an incomplete chunk are not written until the chunk is
+         * complete, or the writer is closed.
+         */
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try (Writer w = out) {
+                writeChunk();
+            }
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+        }
     }
 
-    // TODO: Unit test
-    static char redactionCharOf(String alphabet) {
+    /**
+     * Deterministically encrypt the number {@code value} with {@code FpeParams} using FF3-1 mode.
+     *
+     * <p>If the alphabet is digits-only, the number is encrypted directly, without creating any intermediate strings or
+     * byte arrays. Unlike short plaintexts, numbers are never left unencrypted: numbers of less than 6 digits (the min
+     * length of FF3-1 for radix 10) are rejected.</p>
+     *
+     * @see Fpe#encryptNumber(long, int, FpeParams)
+     */
+    @Override
+    public long encryptNumber(long value, int digits, FpeParams params) throws GeneralSecurityException {
+        if (!numeric) {
+            return Fpe.super.encryptNumber(value, digits, params);
+        }
+        FpeNumbers.checkNumber(value, digits);
+        byte[] tweak = tweakOf(params);
+        Ff31Cipher cipher = ciphers.acquire();
+        try {
+            return cipher.encrypt(value, digits, tweak);
+        }
+        finally {
+            release(cipher);
+        }
+    }
+
+    /**
+     * Deterministically decrypt the number {@code value} with {@code FpeParams} using FF3-1 mode.
+     *
+     * @see #encryptNumber(long, int, FpeParams)
+     */
+    @Override
+    public long decryptNumber(long value, int digits, FpeParams params) throws GeneralSecurityException {
+        if (!numeric) {
+            return Fpe.super.decryptNumber(value, digits, params);
+        }
+        FpeNumbers.checkNumber(value, digits);
+        byte[] tweak = tweakOf(params);
+        Ff31Cipher cipher = ciphers.acquire();
+        try {
+            return cipher.decrypt(value, digits, tweak);
+        }
+        finally {
+            release(cipher);
+        }
+    }
+
+    /**
+     * Compile {@code params} into a plan for this primitive, with the redaction character and the 64 bits FF3-1 tweak
+     * resolved up front.
+     *
+     * @see Fpe#compile(FpeParams)
+     */
+    @Override
+    public FpeParams compile(FpeParams params) {
+        if (CompiledFpeParams.planOf(params, this) != null) {
+            return params;
+        }
+        char redactionChar = params.getRedactionChar() != null ? params.getRedactionChar() : defaultRedactionChar;
+        checkRedactionChar(params, redactionChar, alphabet);
+        return params.withPlan(new CompiledFpeParams(this, redactionChar, tweakOf(params.getFpeTweak())));
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code params} redact unknown characters with a character that is not part of
+     * the alphabet
+     */
+    static void checkRedactionChar(FpeParams params, char redactionChar, Alphabet alphabet) {
+        if (params.getUnknownCharacterStrategy() == UnknownCharacterStrategy.REDACT
+                && !alphabet.contains(redactionChar)) {
+            throw new IllegalArgumentException(
+                    "redaction character '" + redactionChar + "' is not part of the alphabet '" + alphabet + "'");
+        }
+    }
+
+    /**
+     * @return the first of the characters {@code *?_-Xx0} that is part of {@code alphabet}, used as the redaction
+     * character of params that do not set one
+     * @throws IllegalStateException if the alphabet contains none of them
+     */
+    static char redactionCharOf(Alphabet alphabet) {
         for (char c : "*?_-Xx0".toCharArray()) {
-            if (alphabet.indexOf(c) != -1) {
+            if (alphabet.contains(c)) {
                 return c;
             }
         }
@@ -191,11 +1148,35 @@ public final class FpeFf3 implements Fpe {
         throw new IllegalStateException("Unable to deduce redaction character for alphabet '" + alphabet + "'");
     }
 
-    // TODO: Validate bitsize of tweak
-    private String hexTweakOf(byte[] bArr) {
-        return (bArr == null || bArr.length == 0)
-                ? NULL_HEX_TWEAK
-                : byteArrayToHexString(bArr);
+    private char redactionCharOf(FpeParams params) {
+        CompiledFpeParams plan = CompiledFpeParams.planOf(params, this);
+        if (plan != null) {
+            return plan.redactionChar();
+        }
+        return params.getRedactionChar() != null ? params.getRedactionChar() : defaultRedactionChar;
+    }
+
+    /**
+     * @return the precomputed 64 bits FF3-1 tweak of {@code params}, or the tweak that codebooks are used for if
+     * {@code params} have a codebook budget
+     */
+    private byte[] tweakOf(FpeParams params) {
+        CompiledFpeParams plan = CompiledFpeParams.planOf(params, this);
+        byte[] tweak = plan != null ? plan.tweak() : tweakOf(params.getFpeTweak());
+        if (params.getCodebookBudget() > 0) {
+            return ff3.codebooks().enable(tweak, params.getCodebookBudget());
+        }
+        return tweak;
+    }
+
+    /**
+     * @return the precomputed 64 bits FF3-1 tweak
+     * @throws IllegalArgumentException if the tweak is not 56 or 64 bits
+     */
+    private byte[] tweakOf(FpeTweak tweak) {
+        return (tweak == null || tweak.length() == 0)
+                ? NULL_TWEAK.ff31()
+                : tweak.ff31();
     }
 
 }
@@ -25,7 +25,8 @@ import java.util.*;
 
 
 /**
- * This key manager generates new {@code FpeFfxKey} keys and produces new instances of {@code FpeFf3}.
+ * This key manager generates new {@code FpeFfxKey} keys and produces new instances of {@code FpeFf3} or
+ * {@code FpeFf1}, depending on the mode of the key.
  */
 public final class FpeFfxKeyManager extends KeyTypeManager<FpeFfxKey> {
 
@@ -38,8 +39,11 @@ public final class FpeFfxKeyManager extends KeyTypeManager<FpeFfxKey> {
                         if (key.getParams().getMode() == FfxMode.FF31) {
                             return new FpeFf3(key.getKeyValue().toByteArray(), key.getParams().getAlphabet());
                         }
+                        else if (key.getParams().getMode() == FfxMode.FF1) {
+                            return new FpeFf1(key.getKeyValue().toByteArray(), key.getParams().getAlphabet());
+                        }
                         else {
-                            throw new UnsupportedOperationException(key.getParams().getMode() + " is not a supported mode. Currently, only " + FfxMode.FF31 + " is supported");
+                            throw new UnsupportedOperationException(key.getParams().getMode() + " is not a supported mode. Currently, only " + FfxMode.FF1 + " and " + FfxMode.FF31 + " are supported");
                         }
                     }
                 });
@@ -3,6 +3,7 @@ package no.ssb.crypto.tink.fpe;
 import no.ssb.crypto.tink.fpe.text.CharacterGroup;
 import no.ssb.crypto.tink.proto.FfxMode;
 
+import static no.ssb.crypto.tink.proto.FfxMode.FF1;
 import static no.ssb.crypto.tink.proto.FfxMode.FF31;
 
 public enum FpeFfxKeyType {
@@ -36,6 +37,36 @@ public enum FpeFfxKeyType {
      * FF3-1 (128 bits) key with digit-only alphabet (0123456789)
      */
     FPE_FF31_128_DIGITS(FF31, 128, CharacterGroup.DIGITS),
+
+    /**
+     * FF1 (256 bits) key with alphanumeric alphabet (0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz)
+     */
+    FPE_FF1_256_ALPHANUMERIC(FF1, 256, CharacterGroup.ALPHANUMERIC),
+
+    /**
+     * FF1 (192 bits) key with alphanumeric alphabet (0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz)
+     */
+    FPE_FF1_192_ALPHANUMERIC(FF1, 192, CharacterGroup.ALPHANUMERIC),
+
+    /**
+     * FF1 (128 bits) key with alphanumeric alphabet (0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz)
+     */
+    FPE_FF1_128_ALPHANUMERIC(FF1, 128, CharacterGroup.ALPHANUMERIC),
+
+    /**
+     * FF1 (256 bits) key with digit-only alphabet (0123456789)
+     */
+    FPE_FF1_256_DIGITS(FF1, 256, CharacterGroup.DIGITS),
+
+    /**
+     * FF1 (192 bits) key with digit-only alphabet (0123456789)
+     */
+    FPE_FF1_192_DIGITS(FF1, 192, CharacterGroup.DIGITS),
+
+    /**
+     * FF1 (128 bits) key with digit-only alphabet (0123456789)
+     */
+    FPE_FF1_128_DIGITS(FF1, 128, CharacterGroup.DIGITS),
     ;
 
     private final FfxMode mode;
@@ -0,0 +1,120 @@
+package no.ssb.crypto.tink.fpe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * FpeInputStream reads the characters of an encrypting or decrypting reader, and returns them encoded with a charset,
+ * see {@link Fpe#encryptingStream(InputStream, FpeParams)}.
+ *
+ * <p>Unmappable characters are replaced, as with {@link String#getBytes(Charset)}. The counterpart of
+ * {@link FpeOutputStream}.</p>
+ */
+final class FpeInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private boolean endOfInput;
+    private boolean encoded;
+    private boolean flushed;
+    private boolean closed;
+
+    FpeInputStream(Reader reader, Charset charset) {
+        this.reader = reader;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        bytes.flip();
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureOpen();
+        if (!fill()) {
+            return -1;
+        }
+        return bytes.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, bytes.remaining());
+        bytes.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return bytes.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        reader.close();
+    }
+
+    /**
+     * Encode more characters if all encoded bytes have been read, keeping an incomplete trailing surrogate pair for
+     * the next round (unless at the end of the input).
+     *
+     * @return false if there are no more bytes
+     */
+    private boolean fill() throws IOException {
+        while (!bytes.hasRemaining()) {
+            if (flushed) {
+                return false;
+            }
+            if (!endOfInput) {
+                int n = reader.read(chars.array(), chars.position(), chars.remaining());
+                if (n < 0) {
+                    endOfInput = true;
+                }
+                else {
+                    chars.position(chars.position() + n);
+                }
+            }
+            chars.flip();
+            bytes.clear();
+            if (!encoded) {
+                CoderResult result = encoder.encode(chars, bytes, endOfInput);
+                encoded = endOfInput && result.isUnderflow();
+            }
+            if (encoded) {
+                flushed = encoder.flush(bytes).isUnderflow();
+            }
+            chars.compact();
+            bytes.flip();
+        }
+        return true;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package no.ssb.crypto.tink.fpe;
+
+import java.nio.charset.Charset;
+
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.b2s;
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.s2b;
+
+/**
+ * Helpers for the numeric Fpe API, see {@link Fpe#encryptNumber(long, int, FpeParams)}.
+ */
+final class FpeNumbers {
+
+    /**
+     * MAX_DIGITS is the max number of decimal digits of a number. Any 18 digits number fits in a long.
+     */
+    static final int MAX_DIGITS = 18;
+
+    /**
+     * MIN_DIGITS is the min number of decimal digits of a number. Both FF3-1 and FF1 require a domain of at least
+     * 10^6 values.
+     */
+    static final int MIN_DIGITS = 6;
+
+    private FpeNumbers() {}
+
+    /**
+     * @throws IncompatiblePlaintextException if {@code digits} is less than MIN_DIGITS
+     * @throws IllegalArgumentException if {@code digits} is greater than MAX_DIGITS, or if {@code value} cannot be
+     * represented by {@code digits} decimal digits
+     */
+    static void checkNumber(long value, int digits) {
+        if (digits < MIN_DIGITS) {
+            throw new IncompatiblePlaintextException(String.format(
+                    "number of digits %d is not within min %d and max %d bounds", digits, MIN_DIGITS, MAX_DIGITS));
+        }
+        if (digits > MAX_DIGITS) {
+            throw new IllegalArgumentException(String.format(
+                    "number of digits %d is not within min %d and max %d bounds", digits, MIN_DIGITS, MAX_DIGITS));
+        }
+        if (value < 0 || value >= FixedWidthArithmetic.pow(10, digits)) {
+            throw new IllegalArgumentException(String.format(
+                    "number %d cannot be represented by %d digits", value, digits));
+        }
+    }
+
+    /**
+     * @return the zero-padded decimal representation of {@code value}, encoded with {@code charset}
+     */
+    static byte[] toBytes(long value, int digits, Charset charset) {
+        char[] chars = new char[digits];
+        for (int i = digits - 1; i >= 0; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return s2b(new String(chars), charset);
+    }
+
+    /**
+     * @return the number represented by the {@code digits} decimal digits in {@code bytes}
+     * @throws IncompatiblePlaintextException if {@code bytes} is not a number of {@code digits} decimal digits. This
+     * can happen if the key alphabet is not digits-only.
+     */
+    static long fromBytes(byte[] bytes, int digits, Charset charset) {
+        String s = b2s(bytes, charset);
+        if (s == null || s.length() != digits) {
+            throw new IncompatiblePlaintextException("Result is not a number of " + digits + " digits. Numeric encryption requires a digits-only alphabet");
+        }
+        long value = 0;
+        for (int i = 0; i < digits; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IncompatiblePlaintextException("Result is not a number of " + digits + " digits. Numeric encryption requires a digits-only alphabet");
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,112 @@
+package no.ssb.crypto.tink.fpe;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * FpeOutputStream decodes the bytes written to it with a charset, and writes the resulting characters to an encrypting
+ * or decrypting writer, see {@link Fpe#encryptingStream(java.io.OutputStream, FpeParams)}.
+ *
+ * <p>Malformed input is replaced, as with {@link String#String(byte[], Charset)}. Multi-byte characters may be split
+ * across writes.</p>
+ */
+final class FpeOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Writer writer;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private boolean closed;
+
+    FpeOutputStream(Writer writer, Charset charset) {
+        this.writer = writer;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        bytes.put((byte) b);
+        if (!bytes.hasRemaining()) {
+            decode(false);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, bytes.remaining());
+            bytes.put(b, off, n);
+            off += n;
+            len -= n;
+            if (!bytes.hasRemaining()) {
+                decode(false);
+            }
+        }
+    }
+
+    /**
+     * Decode the buffered bytes, and flush the writer. Characters that are still held back by the writer (such as an
+     * incomplete chunk) are not written until the stream is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        decode(false);
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try (Writer w = writer) {
+            decode(true);
+            while (decoder.flush(chars).isOverflow()) {
+                drain();
+            }
+            drain();
+        }
+    }
+
+    /**
+     * Decode as many of the buffered bytes as possible, leaving an incomplete trailing character in the buffer (unless
+     * {@code endOfInput}).
+     */
+    private void decode(boolean endOfInput) throws IOException {
+        bytes.flip();
+        CoderResult result;
+        do {
+            result = decoder.decode(bytes, chars, endOfInput);
+            drain();
+        } while (result.isOverflow());
+        bytes.compact();
+    }
+
+    private void drain() throws IOException {
+        chars.flip();
+        writer.write(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+        chars.clear();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+}
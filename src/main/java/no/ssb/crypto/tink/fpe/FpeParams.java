@@ -1,6 +1,7 @@
 package no.ssb.crypto.tink.fpe;
 
 
+import lombok.AccessLevel;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NonNull;
@@ -8,10 +9,14 @@ import no.ssb.crypto.tink.fpe.util.ByteArrayUtil;
 
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * FpeParams is used as an argument when invoking encrypt and decrypt functions. It allows the user to specify
  * additional details such as how to handle unknown characters, using a custom tweak, etc.
+ *
+ * Params are equal if they give the same results, so the settings that only affect how the work is done
+ * (parallelChunkThreshold, forkJoinPool and codebookBudget) are not part of equals and hashCode.
  */
 @Getter
 @EqualsAndHashCode
@@ -19,6 +24,19 @@ public class FpeParams {
 
     private FpeParams() {}
 
+    /**
+     * Copy constructor, used by {@link Fpe#compile(FpeParams)}. The plan is not copied.
+     */
+    FpeParams(FpeParams other) {
+        this.unknownCharacterStrategy = other.unknownCharacterStrategy;
+        this.tweak = other.tweak;
+        this.redactionChar = other.redactionChar;
+        this.charset = other.charset;
+        this.parallelChunkThreshold = other.parallelChunkThreshold;
+        this.forkJoinPool = other.forkJoinPool;
+        this.codebookBudget = other.codebookBudget;
+    }
+
     /**
      * @return a new FpeParams instance
      */
@@ -43,7 +61,8 @@ public class FpeParams {
      * tweak is used as an additional input to the encryption process that ensures that the same plaintext and key
      * will encrypt to different ciphertexts.
      */
-    private byte[] tweak = ByteArrayUtil.hexStringToByteArray("00000000000000");
+    @Getter(AccessLevel.NONE)
+    private FpeTweak tweak = FpeTweak.of(ByteArrayUtil.hexStringToByteArray("00000000000000"));
 
     /**
      * redactionChar is the character to use for redacting non-alphabet characters. This is only applicable if
@@ -60,12 +79,68 @@ public class FpeParams {
      */
     private Charset charset = StandardCharsets.UTF_8;
 
+    /**
+     * parallelChunkThreshold is the min text length (number of characters) for which the chunks of a text are
+     * encrypted concurrently. This is only applicable for FF3-1, which encrypts long texts in chunks.
+     *
+     * Defaults to 0, meaning that chunks are always processed sequentially. The result is the same either way.
+     */
+    @EqualsAndHashCode.Exclude
+    private int parallelChunkThreshold = 0;
+
+    /**
+     * forkJoinPool is the pool used for concurrent chunk encryption, see parallelChunkThreshold.
+     *
+     * If forkJoinPool is not defined, the common pool is used.
+     */
+    @EqualsAndHashCode.Exclude
+    private ForkJoinPool forkJoinPool = null;
+
+    /**
+     * codebookBudget is the max number of bytes used by precomputed codebooks for the tweak of these params. This is
+     * only applicable for FF3-1.
+     *
+     * A codebook is the complete FF3-1 permutation of all values of one length, stored as two int tables (8 bytes per
+     * value), which turns encryption and decryption of a value (or chunk) of that length into a table lookup. It is
+     * built on first use of a length whose tables fit within the remaining budget. FF3-1 requires at least 10^6
+     * values, so codebooks cover lengths such as 6 and 7 digits (8 and 80 MB) or 4 alphanumeric characters (118 MB).
+     *
+     * Codebooks are only used by calls with a codebook budget. The budget is a hint: the budget of a tweak is set by
+     * the first such call, and later calls with another budget for the same tweak (and key) use the same codebooks,
+     * within the first budget. All codebooks of the JVM are also bounded by a memory limit, a quarter of the max heap
+     * size by default, which can be set with the system property {@code no.ssb.crypto.tink.fpe.codebookMemoryLimit}.
+     * Lengths that do not fit are encrypted without codebook. At most 64 tweaks of a key have codebooks: using
+     * codebooks for another tweak disables those of the least recently used tweak, releasing their memory.
+     *
+     * Defaults to 0, meaning that no codebooks are used. The result is the same either way.
+     */
+    @EqualsAndHashCode.Exclude
+    private long codebookBudget = 0;
+
+    /**
+     * plan is the compiled plan of these params for a specific primitive, see {@link Fpe#compile(FpeParams)}. It is
+     * dropped by the setters of the params that it depends on.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    @EqualsAndHashCode.Exclude
+    private CompiledFpeParams plan = null;
+
+    /**
+     * @return a copy of these params, with {@code plan} attached
+     */
+    FpeParams withPlan(CompiledFpeParams plan) {
+        FpeParams params = new FpeParams(this);
+        params.plan = plan;
+        return params;
+    }
+
     /**
      * unknownCharacterStrategy defines the strategy for how the encryption/decryption process should handle characters
      * that are not in the FPE alphabet.
      */
     public FpeParams unknownCharacterStrategy(@NonNull UnknownCharacterStrategy unknownCharacterStrategy) {
         this.unknownCharacterStrategy = unknownCharacterStrategy;
+        this.plan = null;
         return this;
     }
 
@@ -74,11 +149,37 @@ public class FpeParams {
      * will encrypt to different ciphertexts.
      */
     public FpeParams tweak(@NonNull byte[] tweak) {
-        // TODO: Validate tweak length
+        this.tweak = FpeTweak.of(tweak);
+        this.plan = null;
+        return this;
+    }
+
+    /**
+     * tweak is used as an additional input to the encryption process that ensures that the same plaintext and key
+     * will encrypt to different ciphertexts.
+     *
+     * The tweak is validated and precomputed once, so reusing an FpeTweak avoids any per-call tweak conversions.
+     */
+    public FpeParams tweak(@NonNull FpeTweak tweak) {
         this.tweak = tweak;
+        this.plan = null;
         return this;
     }
 
+    /**
+     * @return a copy of the tweak
+     */
+    public byte[] getTweak() {
+        return tweak.toByteArray();
+    }
+
+    /**
+     * @return the tweak
+     */
+    public FpeTweak getFpeTweak() {
+        return tweak;
+    }
+
     /**
      * redactionChar is the character to use for redacting non-alphabet characters. This is only applicable if
      * unknownCharacterStrategy is REDACT.
@@ -87,6 +188,7 @@ public class FpeParams {
      */
     public FpeParams redactionChar(char redactionChar) {
         this.redactionChar = redactionChar;
+        this.plan = null;
         return this;
     }
 
@@ -100,4 +202,47 @@ public class FpeParams {
         return this;
     }
 
+    /**
+     * parallelChunkThreshold is the min text length (number of characters) for which the chunks of a text are
+     * encrypted concurrently. This is only applicable for FF3-1, which encrypts long texts in chunks.
+     *
+     * Defaults to 0, meaning that chunks are always processed sequentially. The result is the same either way.
+     */
+    public FpeParams parallelChunkThreshold(int parallelChunkThreshold) {
+        if (parallelChunkThreshold < 0) {
+            throw new IllegalArgumentException("parallelChunkThreshold must not be negative");
+        }
+        this.parallelChunkThreshold = parallelChunkThreshold;
+        return this;
+    }
+
+    /**
+     * forkJoinPool is the pool used for concurrent chunk encryption, see parallelChunkThreshold.
+     *
+     * If forkJoinPool is not defined, the common pool is used.
+     */
+    public FpeParams forkJoinPool(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+        return this;
+    }
+
+    /**
+     * codebookBudget is the max number of bytes used by precomputed codebooks for the tweak of these params. This is
+     * only applicable for FF3-1.
+     *
+     * A codebook is the complete FF3-1 permutation of all values of one length, stored as two int tables (8 bytes per
+     * value), which turns encryption and decryption of a value (or chunk) of that length into a table lookup. It is
+     * built on first use of a length whose tables fit within the remaining budget. FF3-1 requires at least 10^6
+     * values, so codebooks cover lengths such as 6 and 7 digits (8 and 80 MB) or 4 alphanumeric characters (118 MB).
+     *
+     * Defaults to 0, meaning that no codebooks are built. The result is the same either way.
+     */
+    public FpeParams codebookBudget(long codebookBudget) {
+        if (codebookBudget < 0) {
+            throw new IllegalArgumentException("codebookBudget must not be negative");
+        }
+        this.codebookBudget = codebookBudget;
+        return this;
+    }
+
 }
@@ -0,0 +1,120 @@
+package no.ssb.crypto.tink.fpe;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+
+/**
+ * FpeReader reads text from a reader, and returns it encrypted or decrypted, see
+ * {@link Fpe#encryptingReader(Reader, FpeParams)}.
+ *
+ * <p>The text is pushed through the encrypting or decrypting writer of the primitive, which writes its output to a
+ * buffer that the reads are served from. Memory usage is thus the same as for the writer: constant with FF3-1, which
+ * holds back at most one chunk, while the default writer only returns the text once the whole input has been
+ * read.</p>
+ */
+final class FpeReader extends Reader {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader in;
+    private final char[] input = new char[BUFFER_SIZE];
+    private final Output output = new Output();
+    private final Writer writer;
+    private boolean endOfInput;
+    private boolean closed;
+
+    FpeReader(Fpe fpe, Reader in, FpeParams params, boolean encrypt) throws GeneralSecurityException {
+        this.in = in;
+        this.writer = encrypt ? fpe.encryptingWriter(output, params) : fpe.decryptingWriter(output, params);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        ensureOpen();
+        if (len == 0) {
+            return 0;
+        }
+        while (output.available() == 0) {
+            if (endOfInput) {
+                return -1;
+            }
+            int n = in.read(input, 0, input.length);
+            if (n < 0) {
+                // Closing the writer writes the text that it holds back, but leaves the output buffer readable
+                endOfInput = true;
+                writer.close();
+            }
+            else {
+                writer.write(input, 0, n);
+            }
+        }
+        return output.read(cbuf, off, len);
+    }
+
+    @Override
+    public boolean ready() throws IOException {
+        ensureOpen();
+        return output.available() > 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        in.close();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Output is the buffer that the writer writes to, and that the reads are served from
+     */
+    private static final class Output extends Writer {
+        private char[] chars = new char[BUFFER_SIZE];
+        private int start;
+        private int end;
+
+        int available() {
+            return end - start;
+        }
+
+        int read(char[] cbuf, int off, int len) {
+            int n = Math.min(len, end - start);
+            System.arraycopy(chars, start, cbuf, off, n);
+            start += n;
+            return n;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            if (end + len > chars.length) {
+                // Move the unread characters to the front, and grow if they still do not fit
+                int n = end - start;
+                char[] dst = n + len > chars.length ? new char[Math.max(2 * chars.length, n + len)] : chars;
+                System.arraycopy(chars, start, dst, 0, n);
+                chars = dst;
+                start = 0;
+                end = n;
+            }
+            System.arraycopy(cbuf, off, chars, end, len);
+            end += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+package no.ssb.crypto.tink.fpe;
+
+import javax.crypto.ShortBufferException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * FpeSession holds reusable scratch buffers for encrypting and decrypting, see
+ * {@link Fpe#encrypt(byte[], int, int, byte[], int, FpeParams, FpeSession)}.
+ *
+ * <p>Reusing a session across calls means that, once warmed up, encrypting or decrypting a value of up to
+ * {@link #capacity()} bytes allocates no memory. Larger values are still supported, but use temporary buffers.</p>
+ *
+ * <p>A session is not thread-safe. Either create one session per thread (e.g. in a {@link ThreadLocal}), or let each
+ * caller own its session.</p>
+ */
+public final class FpeSession {
+
+    /**
+     * DEFAULT_CAPACITY is the default max length (number of bytes) of values that are processed without allocating
+     * any memory.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+
+    /**
+     * chars holds the input text, which is encrypted or decrypted in place.
+     */
+    final char[] chars;
+
+    /**
+     * text and positions hold the characters being encrypted if some characters are skipped, and their positions in
+     * chars. Used to restore the skipped characters.
+     */
+    final char[] text;
+    final int[] positions;
+
+    /**
+     * byteText holds the characters being encrypted if some characters are skipped by the single-byte fast path (see
+     * {@link FpeFf3}). Allocated on first use.
+     */
+    private byte[] byteText;
+
+    /**
+     * Buffers used to decode and encode bytes. These are allocated on first use, since a session that is only used
+     * for text does not need them.
+     */
+    private final CharBuffer charBuffer;
+    private byte[] bytes;
+    private ByteBuffer byteBuffer;
+    private byte[] encoded;
+    private ByteBuffer encodedBuffer;
+    private Charset charset;
+    private CharsetDecoder decoder;
+    private CharsetEncoder encoder;
+
+    private FpeSession(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must be non-negative, but was " + capacity);
+        }
+        this.capacity = capacity;
+        this.chars = new char[capacity];
+        this.text = new char[capacity];
+        this.positions = new int[capacity];
+        this.charBuffer = CharBuffer.wrap(chars);
+    }
+
+    /**
+     * @return a new session for values of up to DEFAULT_CAPACITY bytes
+     */
+    public static FpeSession create() {
+        return new FpeSession(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the max length (number of bytes) of values that are processed without allocating any memory
+     * @return a new session for values of up to {@code capacity} bytes
+     */
+    public static FpeSession create(int capacity) {
+        return new FpeSession(capacity);
+    }
+
+    /**
+     * @return the max length (number of bytes) of values that are processed without allocating any memory
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return a new (temporary) session holding {@code text} in its {@link #chars} buffer. Used for texts that are
+     * too long for the pooled sessions of {@link FpeFf3}.
+     */
+    static FpeSession of(String text) {
+        FpeSession session = new FpeSession(text.length());
+        text.getChars(0, text.length(), session.chars, 0);
+        return session;
+    }
+
+    /**
+     * @return the buffer used by the single-byte fast path to hold the characters being encrypted if some characters
+     * are skipped
+     */
+    byte[] byteText() {
+        if (byteText == null) {
+            this.byteText = new byte[capacity];
+        }
+        return byteText;
+    }
+
+    /**
+     * Decode {@code len} bytes of {@code in} (starting at {@code off}) with {@code charset} into {@link #chars}.
+     * Malformed input is replaced, as with {@link String#String(byte[], Charset)}.
+     *
+     * @return the number of decoded characters, or -1 if the input does not fit in the buffers of this session
+     */
+    int decode(byte[] in, int off, int len, Charset charset) {
+        if (len > capacity) {
+            return -1;
+        }
+        useCharset(charset);
+        System.arraycopy(in, off, bytes, 0, len);
+        byteBuffer.clear().limit(len);
+        return decode(byteBuffer);
+    }
+
+    /**
+     * Decode the remaining bytes of {@code in} with {@code charset} into {@link #chars}, as with
+     * {@link #decode(byte[], int, int, Charset)}. The position of {@code in} is not modified.
+     *
+     * @return the number of decoded characters, or -1 if the input does not fit in the buffers of this session
+     */
+    int decode(ByteBuffer in, Charset charset) {
+        if (in.remaining() > capacity) {
+            return -1;
+        }
+        useCharset(charset);
+        int position = in.position();
+        int n = decode(in);
+        in.position(position);
+        return n;
+    }
+
+    private int decode(ByteBuffer in) {
+        charBuffer.clear();
+        decoder.reset();
+        CoderResult result = decoder.decode(in, charBuffer, true);
+        if (result.isUnderflow()) {
+            result = decoder.flush(charBuffer);
+        }
+        return result.isOverflow() ? -1 : charBuffer.position();
+    }
+
+    /**
+     * Encode the first {@code len} characters of {@link #chars} with the charset of the last {@link #decode} call, and
+     * write the result to {@code out} (starting at {@code outOff}). Unmappable characters are replaced, as with
+     * {@link String#getBytes(Charset)}.
+     *
+     * @return the number of bytes written
+     * @throws ShortBufferException if {@code out} has insufficient space. Nothing is written to {@code out} in this
+     * case.
+     */
+    int encode(int len, byte[] out, int outOff) throws ShortBufferException {
+        int written = encode(len);
+        if (out.length - outOff < written) {
+            throw new ShortBufferException(String.format(
+                    "output buffer has %d bytes remaining, but %d bytes are required", out.length - outOff, written));
+        }
+        System.arraycopy(encoded, 0, out, outOff, written);
+        return written;
+    }
+
+    /**
+     * Encode the first {@code len} characters of {@link #chars} into {@code out}, as with
+     * {@link #encode(int, byte[], int)}.
+     *
+     * @return the number of bytes written
+     * @throws ShortBufferException if {@code out} has insufficient space. Nothing is written to {@code out} in this
+     * case.
+     */
+    int encode(int len, ByteBuffer out) throws ShortBufferException {
+        int written = encode(len);
+        FpeBuffers.checkRemaining(out, written);
+        out.put(encoded, 0, written);
+        return written;
+    }
+
+    /**
+     * Encode the first {@code len} characters of {@link #chars} into {@link #encoded}
+     *
+     * @return the number of encoded bytes
+     */
+    private int encode(int len) throws ShortBufferException {
+        charBuffer.clear().limit(len);
+        encodedBuffer.clear();
+        encoder.reset();
+        CoderResult result = encoder.encode(charBuffer, encodedBuffer, true);
+        if (result.isUnderflow()) {
+            result = encoder.flush(encodedBuffer);
+        }
+        if (result.isOverflow()) {
+            throw new ShortBufferException("encoded text exceeds the session buffer");
+        }
+        return encodedBuffer.position();
+    }
+
+    private void useCharset(Charset charset) {
+        if (charset.equals(this.charset)) {
+            return;
+        }
+        if (bytes == null) {
+            this.bytes = new byte[capacity];
+            this.byteBuffer = ByteBuffer.wrap(bytes);
+        }
+        this.charset = charset;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.encoded = new byte[(int) Math.ceil(capacity * (double) encoder.maxBytesPerChar())];
+        this.encodedBuffer = ByteBuffer.wrap(encoded);
+    }
+
+}
@@ -0,0 +1,75 @@
+package no.ssb.crypto.tink.fpe;
+
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+
+/**
+ * FpeTweak is an immutable tweak, see {@link FpeParams#tweak(FpeTweak)}.
+ *
+ * <p>The tweak is validated and converted to the form used by the FF3-1 algorithm once, when it is created. Tweaks
+ * usually identify a column or a dataset, so a few tweaks are typically reused for a large number of values. Create
+ * the tweak (or the FpeParams) once, and reuse it for all values.</p>
+ */
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
+public final class FpeTweak {
+
+    /**
+     * value is the tweak, as given by the user
+     */
+    @EqualsAndHashCode.Include
+    private final byte[] value;
+
+    /**
+     * ff31 is the tweak expanded to 64 bits, as used by the FF3-1 algorithm, or null if the tweak is not 56 or 64 bits
+     */
+    private final byte[] ff31;
+
+    private FpeTweak(byte[] value) {
+        this.value = value;
+        this.ff31 = value.length == 7 || value.length == 8
+                ? Ff31Cipher.tweak64Of(value, new byte[8])
+                : null;
+    }
+
+    /**
+     * @param tweak the tweak. FF3-1 requires a 56 or 64 bits tweak, while FF1 supports tweaks of any length.
+     * @return an FpeTweak with a copy of {@code tweak}
+     */
+    public static FpeTweak of(@NonNull byte[] tweak) {
+        return new FpeTweak(tweak.clone());
+    }
+
+    /**
+     * @return the length of the tweak (number of bytes)
+     */
+    public int length() {
+        return value.length;
+    }
+
+    /**
+     * @return a copy of the tweak
+     */
+    public byte[] toByteArray() {
+        return value.clone();
+    }
+
+    /**
+     * @return the tweak (not a copy)
+     */
+    byte[] value() {
+        return value;
+    }
+
+    /**
+     * @return the 64 bits FF3-1 tweak (not a copy)
+     * @throws IllegalArgumentException if the tweak is not 56 or 64 bits
+     */
+    byte[] ff31() {
+        if (ff31 == null) {
+            throw new IllegalArgumentException(String.format(
+                    "tweak length %d is invalid: tweak must be 56 or 64 bits", value.length));
+        }
+        return ff31;
+    }
+
+}
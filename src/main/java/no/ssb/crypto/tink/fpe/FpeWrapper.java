@@ -26,10 +26,13 @@ import com.google.crypto.tink.monitoring.MonitoringClient;
 import com.google.crypto.tink.monitoring.MonitoringKeysetInfo;
 import com.google.crypto.tink.subtle.Bytes;
 
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
+import javax.crypto.ShortBufferException;
 
 /**
  * The implementation of {@code PrimitiveWrapper<Fpe>}.
@@ -43,14 +46,35 @@ import java.util.logging.Logger;
 public class FpeWrapper implements PrimitiveWrapper<Fpe, Fpe> {
   private static final Logger logger = Logger.getLogger(FpeWrapper.class.getName());
 
+  private static final FpeWrapper WRAPPER = new FpeWrapper();
+
   private static class WrappedFpe implements Fpe {
     private final PrimitiveSet<Fpe> primitives;
 
     private final MonitoringClient.Logger encLogger;
     private final MonitoringClient.Logger decLogger;
 
+    /**
+     * True if no key in the keyset has a ciphertext prefix, which allows batches to be decrypted as
+     * a whole.
+     */
+    private final boolean allRaw;
+
+    /**
+     * The ciphertext prefix of the primary key and the RAW keys, resolved once since the primitive
+     * set copies the prefix on each lookup.
+     */
+    private final byte[] primaryPrefix;
+
+    private final List<PrimitiveSet.Entry<Fpe>> rawPrimitives;
+
     public WrappedFpe(PrimitiveSet<Fpe> primitives) {
       this.primitives = primitives;
+      this.allRaw =
+          primitives.getAllInKeysetOrder().stream()
+              .allMatch(entry -> entry.getIdentifier().length == 0);
+      this.primaryPrefix = primitives.getPrimary().getIdentifier();
+      this.rawPrimitives = primitives.getRawPrimitives();
       if (primitives.hasAnnotations()) {
         MonitoringClient client = MutableMonitoringRegistry.globalInstance().getMonitoringClient();
         MonitoringKeysetInfo keysetInfo = MonitoringUtil.getMonitoringKeysetInfo(primitives);
@@ -117,6 +141,409 @@ public class FpeWrapper implements PrimitiveWrapper<Fpe, Fpe> {
       decLogger.logFailure();
       throw new GeneralSecurityException("decryption failed");
     }
+
+    /**
+     * Writes the ciphertext prefix and the ciphertext of the primary key directly to {@code out},
+     * without concatenating intermediate arrays.
+     */
+    @Override
+    public int encrypt(final ByteBuffer in, final ByteBuffer out, final FpeParams params)
+        throws GeneralSecurityException {
+      PrimitiveSet.Entry<Fpe> primary = primitives.getPrimary();
+      byte[] prefix = primary.getIdentifier();
+      int numBytes = in.remaining();
+      int start = out.position();
+      try {
+        FpeBuffers.checkRemaining(out, prefix.length);
+        out.put(prefix);
+        int written = prefix.length + primary.getPrimitive().encrypt(in, out, params);
+        encLogger.log(primary.getKeyId(), numBytes);
+        return written;
+      } catch (GeneralSecurityException e) {
+        out.position(start);
+        encLogger.logFailure();
+        throw e;
+      }
+    }
+
+    /**
+     * Decrypts the remaining bytes of {@code in} the same way as {@link #decrypt(byte[],
+     * FpeParams)}, but skips the ciphertext prefix by position instead of copying the ciphertext.
+     * A {@link ShortBufferException} from a matching key is rethrown rather than treated as a
+     * decryption failure.
+     */
+    @Override
+    public int decrypt(final ByteBuffer in, final ByteBuffer out, final FpeParams params)
+        throws GeneralSecurityException {
+      int numBytes = in.remaining();
+      if (numBytes > CryptoFormat.NON_RAW_PREFIX_SIZE) {
+        byte[] prefix = new byte[CryptoFormat.NON_RAW_PREFIX_SIZE];
+        in.duplicate().get(prefix);
+        List<PrimitiveSet.Entry<Fpe>> entries = primitives.getPrimitive(prefix);
+        for (PrimitiveSet.Entry<Fpe> entry : entries) {
+          ByteBuffer ciphertextNoPrefix = in.duplicate();
+          ciphertextNoPrefix.position(in.position() + CryptoFormat.NON_RAW_PREFIX_SIZE);
+          try {
+            int written = entry.getPrimitive().decrypt(ciphertextNoPrefix, out, params);
+            decLogger.log(entry.getKeyId(), numBytes - CryptoFormat.NON_RAW_PREFIX_SIZE);
+            in.position(in.limit());
+            return written;
+          } catch (ShortBufferException e) {
+            decLogger.logFailure();
+            throw e;
+          } catch (GeneralSecurityException e) {
+            logger.info("ciphertext prefix matches a key, but cannot decrypt: " + e);
+            continue;
+          }
+        }
+      }
+
+      // Let's try all RAW keys.
+      List<PrimitiveSet.Entry<Fpe>> entries = primitives.getRawPrimitives();
+      for (PrimitiveSet.Entry<Fpe> entry : entries) {
+        try {
+          int written = entry.getPrimitive().decrypt(in.duplicate(), out, params);
+          decLogger.log(entry.getKeyId(), numBytes);
+          in.position(in.limit());
+          return written;
+        } catch (ShortBufferException e) {
+          decLogger.logFailure();
+          throw e;
+        } catch (GeneralSecurityException e) {
+          continue;
+        }
+      }
+      // nothing works.
+      decLogger.logFailure();
+      throw new GeneralSecurityException("decryption failed");
+    }
+
+    /**
+     * Writes the ciphertext prefix and the ciphertext of the primary key directly to {@code out}.
+     * The prefix and the monitoring loggers are resolved up front, so the session is the only state
+     * used.
+     */
+    @Override
+    public int encrypt(
+        final byte[] in,
+        int off,
+        int len,
+        byte[] out,
+        int outOff,
+        final FpeParams params,
+        FpeSession session)
+        throws GeneralSecurityException {
+      PrimitiveSet.Entry<Fpe> primary = primitives.getPrimary();
+      try {
+        if (out.length - outOff < primaryPrefix.length) {
+          throw new ShortBufferException("output buffer has insufficient space for the prefix");
+        }
+        int written =
+            primary
+                .getPrimitive()
+                .encrypt(in, off, len, out, outOff + primaryPrefix.length, params, session);
+        System.arraycopy(primaryPrefix, 0, out, outOff, primaryPrefix.length);
+        encLogger.log(primary.getKeyId(), len);
+        return primaryPrefix.length + written;
+      } catch (GeneralSecurityException e) {
+        encLogger.logFailure();
+        throw e;
+      }
+    }
+
+    /**
+     * If no key in the keyset uses a ciphertext prefix, the RAW keys are tried without looking up
+     * the prefix. Otherwise the ciphertext is decrypted the same way as {@link #decrypt(ByteBuffer,
+     * ByteBuffer, FpeParams)}, and the session is not used.
+     */
+    @Override
+    public int decrypt(
+        final byte[] in,
+        int off,
+        int len,
+        byte[] out,
+        int outOff,
+        final FpeParams params,
+        FpeSession session)
+        throws GeneralSecurityException {
+      if (!allRaw) {
+        return Fpe.super.decrypt(in, off, len, out, outOff, params, session);
+      }
+
+      for (int i = 0; i < rawPrimitives.size(); i++) {
+        PrimitiveSet.Entry<Fpe> entry = rawPrimitives.get(i);
+        try {
+          int written = entry.getPrimitive().decrypt(in, off, len, out, outOff, params, session);
+          decLogger.log(entry.getKeyId(), len);
+          return written;
+        } catch (ShortBufferException e) {
+          decLogger.logFailure();
+          throw e;
+        } catch (GeneralSecurityException e) {
+          continue;
+        }
+      }
+      decLogger.logFailure();
+      throw new GeneralSecurityException("decryption failed");
+    }
+
+    /**
+     * Compiles the params for the primary key, which is used for encryption. When decrypting with
+     * other keys, the plan is used as plain params.
+     */
+    @Override
+    public FpeParams compile(final FpeParams params) {
+      return primitives.getPrimary().getPrimitive().compile(params);
+    }
+
+    /**
+     * Encrypts the whole batch with the primary key. The key lookup and the monitoring log call are
+     * done once per batch (logging the total number of plaintext bytes).
+     */
+    @Override
+    public List<byte[]> encryptAll(final List<byte[]> plaintexts, final FpeParams params)
+        throws GeneralSecurityException {
+      PrimitiveSet.Entry<Fpe> primary = primitives.getPrimary();
+      byte[] prefix = primary.getIdentifier();
+      try {
+        List<byte[]> output = primary.getPrimitive().encryptAll(plaintexts, params);
+        long numBytes = 0;
+        for (int i = 0; i < output.size(); i++) {
+          numBytes += plaintexts.get(i).length;
+          if (prefix.length > 0) {
+            output.set(i, Bytes.concat(prefix, output.get(i)));
+          }
+        }
+        encLogger.log(primary.getKeyId(), numBytes);
+        return output;
+      } catch (GeneralSecurityException e) {
+        encLogger.logFailure();
+        throw e;
+      }
+    }
+
+    /**
+     * If no key in the keyset uses a ciphertext prefix, the whole batch is decrypted by the first
+     * RAW key that works, the same way as for single ciphertexts. Otherwise each ciphertext is
+     * decrypted separately, since they may have been encrypted with different keys.
+     */
+    @Override
+    public List<byte[]> decryptAll(final List<byte[]> ciphertexts, final FpeParams params)
+        throws GeneralSecurityException {
+      if (!allRaw) {
+        return Fpe.super.decryptAll(ciphertexts, params);
+      }
+
+      for (PrimitiveSet.Entry<Fpe> entry : primitives.getRawPrimitives()) {
+        try {
+          List<byte[]> output = entry.getPrimitive().decryptAll(ciphertexts, params);
+          long numBytes = 0;
+          for (byte[] ciphertext : ciphertexts) {
+            numBytes += ciphertext.length;
+          }
+          decLogger.log(entry.getKeyId(), numBytes);
+          return output;
+        } catch (GeneralSecurityException e) {
+          continue;
+        }
+      }
+      decLogger.logFailure();
+      throw new GeneralSecurityException("decryption failed");
+    }
+
+    /**
+     * Text ciphertexts have no room for a (binary) ciphertext prefix, so text encryption is only
+     * supported if the primary key uses the {@link
+     * com.google.crypto.tink.proto.OutputPrefixType#RAW} output prefix.
+     */
+    @Override
+    public CharSequence encrypt(final CharSequence plaintext, final FpeParams params)
+        throws GeneralSecurityException {
+      PrimitiveSet.Entry<Fpe> primary = rawPrimary(encLogger);
+      try {
+        CharSequence output = primary.getPrimitive().encrypt(plaintext, params);
+        encLogger.log(primary.getKeyId(), plaintext == null ? 0 : plaintext.length());
+        return output;
+      } catch (GeneralSecurityException e) {
+        encLogger.logFailure();
+        throw e;
+      }
+    }
+
+    @Override
+    public char[] encrypt(final char[] plaintext, final FpeParams params)
+        throws GeneralSecurityException {
+      PrimitiveSet.Entry<Fpe> primary = rawPrimary(encLogger);
+      try {
+        char[] output = primary.getPrimitive().encrypt(plaintext, params);
+        encLogger.log(primary.getKeyId(), plaintext == null ? 0 : plaintext.length);
+        return output;
+      } catch (GeneralSecurityException e) {
+        encLogger.logFailure();
+        throw e;
+      }
+    }
+
+    /**
+     * Text ciphertexts have no prefix, so all keys with {@link
+     * com.google.crypto.tink.proto.OutputPrefixType#RAW} are tried, the same way as for unprefixed
+     * ciphertexts.
+     */
+    @Override
+    public CharSequence decrypt(final CharSequence ciphertext, final FpeParams params)
+        throws GeneralSecurityException {
+      for (PrimitiveSet.Entry<Fpe> entry : primitives.getRawPrimitives()) {
+        try {
+          CharSequence output = entry.getPrimitive().decrypt(ciphertext, params);
+          decLogger.log(entry.getKeyId(), ciphertext == null ? 0 : ciphertext.length());
+          return output;
+        } catch (GeneralSecurityException e) {
+          continue;
+        }
+      }
+      decLogger.logFailure();
+      throw new GeneralSecurityException("decryption failed");
+    }
+
+    @Override
+    public char[] decrypt(final char[] ciphertext, final FpeParams params)
+        throws GeneralSecurityException {
+      for (PrimitiveSet.Entry<Fpe> entry : primitives.getRawPrimitives()) {
+        try {
+          char[] output = entry.getPrimitive().decrypt(ciphertext, params);
+          decLogger.log(entry.getKeyId(), ciphertext == null ? 0 : ciphertext.length);
+          return output;
+        } catch (GeneralSecurityException e) {
+          continue;
+        }
+      }
+      decLogger.logFailure();
+      throw new GeneralSecurityException("decryption failed");
+    }
+
+    /**
+     * Like text ciphertexts, streamed ciphertexts have no prefix, so streaming is only supported if
+     * the primary key uses the {@link com.google.crypto.tink.proto.OutputPrefixType#RAW} output
+     * prefix. The bytes are logged when the writer is created, as the length of the text is not
+     * known up front.
+     */
+    @Override
+    public Writer encryptingWriter(final Writer out, final FpeParams params)
+        throws GeneralSecurityException {
+      PrimitiveSet.Entry<Fpe> primary = rawPrimary(encLogger);
+      try {
+        Writer writer = primary.getPrimitive().encryptingWriter(out, params);
+        encLogger.log(primary.getKeyId(), 0);
+        return writer;
+      } catch (GeneralSecurityException e) {
+        encLogger.logFailure();
+        throw e;
+      }
+    }
+
+    /**
+     * A stream cannot be decrypted with several keys to find the right one, so the stream is
+     * decrypted with the primary key, which must use the {@link
+     * com.google.crypto.tink.proto.OutputPrefixType#RAW} output prefix.
+     */
+    @Override
+    public Writer decryptingWriter(final Writer out, final FpeParams params)
+        throws GeneralSecurityException {
+      PrimitiveSet.Entry<Fpe> primary = rawPrimary(decLogger);
+      try {
+        Writer writer = primary.getPrimitive().decryptingWriter(out, params);
+        decLogger.log(primary.getKeyId(), 0);
+        return writer;
+      } catch (GeneralSecurityException e) {
+        decLogger.logFailure();
+        throw e;
+      }
+    }
+
+    /**
+     * Numbers have no room for a ciphertext prefix, so numeric encryption is only supported if the
+     * primary key uses the {@link com.google.crypto.tink.proto.OutputPrefixType#RAW} output prefix.
+     */
+    @Override
+    public long encryptNumber(long value, int digits, FpeParams params)
+        throws GeneralSecurityException {
+      PrimitiveSet.Entry<Fpe> primary = rawPrimary(encLogger);
+      try {
+        long output = primary.getPrimitive().encryptNumber(value, digits, params);
+        encLogger.log(primary.getKeyId(), digits);
+        return output;
+      } catch (GeneralSecurityException e) {
+        encLogger.logFailure();
+        throw e;
+      }
+    }
+
+    @Override
+    public long[] encryptNumbers(long[] values, int digits, FpeParams params)
+        throws GeneralSecurityException {
+      PrimitiveSet.Entry<Fpe> primary = rawPrimary(encLogger);
+      try {
+        long[] output = primary.getPrimitive().encryptNumbers(values, digits, params);
+        encLogger.log(primary.getKeyId(), (long) values.length * digits);
+        return output;
+      } catch (GeneralSecurityException e) {
+        encLogger.logFailure();
+        throw e;
+      }
+    }
+
+    /**
+     * Numeric ciphertexts have no prefix, so all keys with {@link
+     * com.google.crypto.tink.proto.OutputPrefixType#RAW} are tried, the same way as for unprefixed
+     * ciphertexts.
+     */
+    @Override
+    public long decryptNumber(long value, int digits, FpeParams params)
+        throws GeneralSecurityException {
+      for (PrimitiveSet.Entry<Fpe> entry : primitives.getRawPrimitives()) {
+        try {
+          long output = entry.getPrimitive().decryptNumber(value, digits, params);
+          decLogger.log(entry.getKeyId(), digits);
+          return output;
+        } catch (GeneralSecurityException e) {
+          continue;
+        }
+      }
+      decLogger.logFailure();
+      throw new GeneralSecurityException("decryption failed");
+    }
+
+    @Override
+    public long[] decryptNumbers(long[] values, int digits, FpeParams params)
+        throws GeneralSecurityException {
+      for (PrimitiveSet.Entry<Fpe> entry : primitives.getRawPrimitives()) {
+        try {
+          long[] output = entry.getPrimitive().decryptNumbers(values, digits, params);
+          decLogger.log(entry.getKeyId(), (long) values.length * digits);
+          return output;
+        } catch (GeneralSecurityException e) {
+          continue;
+        }
+      }
+      decLogger.logFailure();
+      throw new GeneralSecurityException("decryption failed");
+    }
+
+    /**
+     * Returns the primary key, which must use the {@link
+     * com.google.crypto.tink.proto.OutputPrefixType#RAW} output prefix. A failure is logged on
+     * {@code logger}, the monitoring logger of the direction of the call.
+     */
+    private PrimitiveSet.Entry<Fpe> rawPrimary(MonitoringClient.Logger logger)
+        throws GeneralSecurityException {
+      PrimitiveSet.Entry<Fpe> primary = primitives.getPrimary();
+      if (primary.getIdentifier().length != 0) {
+        logger.logFailure();
+        throw new GeneralSecurityException(
+            "numeric, text and stream operations require a primary key with RAW output prefix");
+      }
+      return primary;
+    }
   }
 
   FpeWrapper() {}
@@ -137,6 +564,6 @@ public class FpeWrapper implements PrimitiveWrapper<Fpe, Fpe> {
   }
 
   public static void register() throws GeneralSecurityException {
-    Registry.registerPrimitiveWrapper(new FpeWrapper());
+    Registry.registerPrimitiveWrapper(WRAPPER);
   }
 }
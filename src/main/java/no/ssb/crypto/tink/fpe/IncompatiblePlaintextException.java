@@ -6,4 +6,8 @@ public class IncompatiblePlaintextException extends IllegalArgumentException {
         super(s);
     }
 
+    public IncompatiblePlaintextException(String s, Throwable cause) {
+        super(s, cause);
+    }
+
 }
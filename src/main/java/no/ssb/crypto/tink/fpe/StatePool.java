@@ -0,0 +1,64 @@
+package no.ssb.crypto.tink.fpe;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * StatePool keeps the idle instances of a cipher state that is not thread-safe (such as an AES cipher and its scratch
+ * buffers) for reuse by the next call, so that a primitive can be shared by any number of threads without creating a
+ * state per call.
+ *
+ * <p>At most {@link #MAX_IDLE} states are kept, whatever the number of threads that use the primitive, and they are
+ * owned by the pool (and thus the primitive) only, so they are garbage collected along with the primitive. If more
+ * threads than that use the primitive at once, the states that do not fit are dropped when released.</p>
+ */
+final class StatePool<T> {
+
+    /**
+     * MAX_IDLE is the max number of idle states kept by a pool
+     */
+    static final int MAX_IDLE = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final AtomicReferenceArray<T> idle = new AtomicReferenceArray<>(MAX_IDLE);
+
+    private final Supplier<T> factory;
+
+    StatePool(Supplier<T> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @return an idle state, or a new one if there is none. The state must be {@link #release(Object) released} by the
+     * same caller once it is done with it.
+     */
+    T acquire() {
+        // Start at a slot of its own, so that a thread usually gets back the state it released
+        int start = slotOf(Thread.currentThread());
+        for (int i = 0; i < MAX_IDLE; i++) {
+            int slot = (start + i) % MAX_IDLE;
+            T state = idle.get(slot);
+            if (state != null && idle.compareAndSet(slot, state, null)) {
+                return state;
+            }
+        }
+        return factory.get();
+    }
+
+    /**
+     * Return {@code state} to the pool, or drop it if the pool is full
+     */
+    void release(T state) {
+        int start = slotOf(Thread.currentThread());
+        for (int i = 0; i < MAX_IDLE; i++) {
+            int slot = (start + i) % MAX_IDLE;
+            if (idle.get(slot) == null && idle.compareAndSet(slot, null, state)) {
+                return;
+            }
+        }
+    }
+
+    private static int slotOf(Thread thread) {
+        return (int) (thread.getId() % MAX_IDLE);
+    }
+
+}
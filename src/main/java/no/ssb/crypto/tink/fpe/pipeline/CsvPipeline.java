@@ -0,0 +1,325 @@
+package no.ssb.crypto.tink.fpe.pipeline;
+
+import com.google.crypto.tink.KeysetHandle;
+import lombok.NonNull;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeParams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * CsvPipeline encrypts or decrypts selected columns of a CSV file, using all cores.
+ *
+ * <pre>
+ * PipelineResult result = CsvPipeline.with(keysetHandle)
+ *         .header(true)
+ *         .column("fnr", FpeParams.with().tweak(fnrTweak))
+ *         .column(3, FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.SKIP))
+ *         .encrypt(input, output);
+ * </pre>
+ *
+ * <p>The input is split into segments of about {@link #segmentSize(int)} bytes, ending on a line break. Each segment
+ * is read into a reusable buffer of a worker thread and processed by it, and the processed segments are written to the output in order.
+ * At most two segments per thread are held in memory at a time, so files much larger than the heap (and larger than
+ * 2 GB) are supported.</p>
+ *
+ * <p>The file must use an ASCII-compatible charset (such as UTF-8 or ISO-8859-1), see {@link #charset(Charset)},
+ * matching the charset of the column params. Records are split on line breaks, so quoted fields must not contain line breaks, see
+ * {@link CsvSegmentProcessor} for details on the parsing.</p>
+ *
+ * <p>Primitives are not shared between threads. Each worker thread gets its own primitive from the keyset handle. The
+ * keyset should use RAW output prefix, since any key prefix would be written as binary data into the fields.</p>
+ */
+public final class CsvPipeline {
+
+    private static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private final KeysetHandle keysetHandle;
+    private final Map<Integer, FpeParams> columnsByIndex = new LinkedHashMap<>();
+    private final Map<String, FpeParams> columnsByName = new LinkedHashMap<>();
+    private char delimiter = ',';
+    private boolean header = false;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private Charset charset = StandardCharsets.UTF_8;
+
+    private CsvPipeline(KeysetHandle keysetHandle) {
+        this.keysetHandle = keysetHandle;
+    }
+
+    /**
+     * @return a new CsvPipeline using the primary key of {@code keysetHandle}
+     */
+    public static CsvPipeline with(@NonNull KeysetHandle keysetHandle) {
+        return new CsvPipeline(keysetHandle);
+    }
+
+    /**
+     * delimiter is the character separating the fields of a record. Must be an ASCII character, other than double
+     * quote and line breaks. Defaults to comma.
+     */
+    public CsvPipeline delimiter(char delimiter) {
+        if (delimiter >= 0x80 || delimiter == '"' || delimiter == '\r' || delimiter == '\n') {
+            throw new IllegalArgumentException("invalid delimiter '" + delimiter + "'");
+        }
+        this.delimiter = delimiter;
+        return this;
+    }
+
+    /**
+     * header defines if the first line of the file holds the column names. The header is copied as is. Defaults to
+     * false.
+     */
+    public CsvPipeline header(boolean header) {
+        this.header = header;
+        return this;
+    }
+
+    /**
+     * charset is the charset of the file, used to decode the column names of the header. Must be ASCII-compatible,
+     * and should match the charset of the column params. Defaults to UTF-8.
+     */
+    public CsvPipeline charset(@NonNull Charset charset) {
+        this.charset = charset;
+        return this;
+    }
+
+    /**
+     * Encrypt or decrypt the column with (zero based) {@code index}, using {@code params}.
+     */
+    public CsvPipeline column(int index, @NonNull FpeParams params) {
+        if (index < 0) {
+            throw new IllegalArgumentException("column index must be non-negative, but was " + index);
+        }
+        columnsByIndex.put(index, params);
+        return this;
+    }
+
+    /**
+     * Encrypt or decrypt the column named {@code name} in the header, using {@code params}. Requires
+     * {@link #header(boolean)}.
+     */
+    public CsvPipeline column(@NonNull String name, @NonNull FpeParams params) {
+        columnsByName.put(name, params);
+        return this;
+    }
+
+    /**
+     * threads is the number of worker threads. Defaults to the number of available processors.
+     */
+    public CsvPipeline threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive, but was " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * segmentSize is the approximate number of bytes processed by a worker thread at a time. A segment is extended to
+     * the end of the record it ends within. Defaults to 8 MB.
+     */
+    public CsvPipeline segmentSize(int segmentSize) {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("segmentSize must be positive, but was " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * Encrypt the selected columns of {@code input}, writing the result to {@code output}.
+     *
+     * @return the statistics of the run
+     * @throws GeneralSecurityException if a field cannot be encrypted
+     * @throws no.ssb.crypto.tink.fpe.IncompatiblePlaintextException if a field is incompatible with the key or params
+     */
+    public PipelineResult encrypt(@NonNull Path input, @NonNull Path output)
+            throws IOException, GeneralSecurityException {
+        return run(input, output, true);
+    }
+
+    /**
+     * Decrypt the selected columns of {@code input}, writing the result to {@code output}. The pipeline should be
+     * configured with the same columns and params as the pipeline used to encrypt.
+     *
+     * @return the statistics of the run
+     * @throws GeneralSecurityException if a field cannot be decrypted
+     */
+    public PipelineResult decrypt(@NonNull Path input, @NonNull Path output)
+            throws IOException, GeneralSecurityException {
+        return run(input, output, false);
+    }
+
+    private PipelineResult run(Path input, Path output, boolean encrypt)
+            throws IOException, GeneralSecurityException {
+        long startTime = System.nanoTime();
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long pos = 0;
+            List<String> columnNames = new ArrayList<>();
+            if (header) {
+                pos = lineEnd(in, 0, size);
+                ByteBuffer headerBytes = ByteBuffer.allocate((int) pos);
+                readFully(in, headerBytes, 0);
+                columnNames = parseHeader(headerBytes.array());
+                writeFully(out, headerBytes);
+            }
+            FpeParams[] columnParams = columnParams(columnNames);
+
+            ThreadLocal<CsvSegmentProcessor> processors = new ThreadLocal<>();
+            ExecutorService executor = Pipelines.newExecutor("fpe-csv-pipeline", threads);
+            try {
+                ArrayDeque<Future<CsvSegmentProcessor.Result>> inFlight = new ArrayDeque<>();
+                long rows = 0;
+                long written = pos;
+                while (pos < size || !inFlight.isEmpty()) {
+                    while (pos < size && inFlight.size() < 2 * threads) {
+                        long start = pos;
+                        long end = lineEnd(in, Math.min(size, start + segmentSize), size);
+                        if (end - start > Integer.MAX_VALUE) {
+                            throw new IOException("record at byte offset " + start + " is too large");
+                        }
+                        inFlight.add(executor.submit(() -> processor(processors, columnParams, encrypt)
+                                .process(in, start, (int) (end - start))));
+                        pos = end;
+                    }
+                    CsvSegmentProcessor.Result segment = Pipelines.await(inFlight.poll());
+                    writeFully(out, ByteBuffer.wrap(segment.data, 0, segment.length));
+                    rows += segment.rows;
+                    written += segment.length;
+                }
+                return new PipelineResult(rows, size, written, Duration.ofNanos(System.nanoTime() - startTime));
+            }
+            finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private CsvSegmentProcessor processor(ThreadLocal<CsvSegmentProcessor> processors, FpeParams[] columnParams,
+                                          boolean encrypt) throws GeneralSecurityException {
+        CsvSegmentProcessor processor = processors.get();
+        if (processor == null) {
+            Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+            processor = new CsvSegmentProcessor(fpe, columnParams, (byte) delimiter, encrypt);
+            processors.set(processor);
+        }
+        return processor;
+    }
+
+    /**
+     * @return the params of each column, indexed by column
+     */
+    private FpeParams[] columnParams(List<String> columnNames) {
+        Map<Integer, FpeParams> columns = new LinkedHashMap<>(columnsByIndex);
+        for (Map.Entry<String, FpeParams> column : columnsByName.entrySet()) {
+            if (!header) {
+                throw new IllegalArgumentException("column '" + column.getKey()
+                        + "' can only be selected by name if the CSV has a header");
+            }
+            int index = columnNames.indexOf(column.getKey());
+            if (index < 0) {
+                throw new IllegalArgumentException("column '" + column.getKey() + "' is not in the header "
+                        + columnNames);
+            }
+            columns.put(index, column.getValue());
+        }
+        FpeParams[] params = new FpeParams[columns.keySet().stream().mapToInt(i -> i + 1).max().orElse(0)];
+        columns.forEach((index, p) -> params[index] = p);
+        return params;
+    }
+
+    private List<String> parseHeader(byte[] line) {
+        int len = line.length;
+        if (len > 0 && line[len - 1] == '\n') {
+            len--;
+        }
+        if (len > 0 && line[len - 1] == '\r') {
+            len--;
+        }
+        List<String> names = new ArrayList<>();
+        StringBuilder name = new StringBuilder();
+        boolean quoted = false;
+        String text = new String(line, 0, len, charset);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                    name.append(c);
+                    i++;
+                }
+                else {
+                    quoted = !quoted;
+                }
+            }
+            else if (c == delimiter && !quoted) {
+                names.add(name.toString());
+                name.setLength(0);
+            }
+            else {
+                name.append(c);
+            }
+        }
+        names.add(name.toString());
+        return names;
+    }
+
+    /**
+     * @return the position after the first line break at or after {@code from}, or {@code size} if there is none
+     */
+    private static long lineEnd(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long pos = from;
+        while (pos < size) {
+            buffer.clear();
+            int n = channel.read(buffer, pos);
+            if (n < 0) {
+                break;
+            }
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < n; i++) {
+                if (bytes[i] == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, pos + buffer.position());
+            if (n < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+}
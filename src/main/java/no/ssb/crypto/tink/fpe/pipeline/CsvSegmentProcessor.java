@@ -0,0 +1,268 @@
+package no.ssb.crypto.tink.fpe.pipeline;
+
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.FpeSession;
+import no.ssb.crypto.tink.fpe.IncompatiblePlaintextException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * CsvSegmentProcessor encrypts or decrypts the selected columns of a segment of a CSV file, i.e. a range of complete
+ * records. It is used by one {@link CsvPipeline} worker thread, and owns the primitive, session and scratch buffers of
+ * that thread, so it is not thread-safe.
+ *
+ * <p>Fields are parsed as in RFC 4180: a field may be enclosed in double quotes, in which case a double quote within
+ * the field is escaped by another double quote. Line breaks within quoted fields are not supported, since records
+ * are split on line breaks. Records may end with either LF or CRLF.</p>
+ *
+ * <p>Only the selected columns are rewritten, everything else (including the quoting of other fields and the line
+ * endings) is copied as is. A rewritten field is quoted if it was quoted in the input, or if the result contains a
+ * delimiter, double quote or line break. Empty fields are left as is.</p>
+ */
+final class CsvSegmentProcessor {
+
+    private static final byte QUOTE = '"';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    /**
+     * A UTF-8 character is at most 3 bytes per char, and no input char is shorter than a byte, so a value never grows
+     * by more than this factor. Padded with room for a key prefix.
+     */
+    private static final int MAX_EXPANSION = 3;
+    private static final int PADDING = 16;
+
+    private final Fpe fpe;
+    private final FpeParams[] columnParams;
+    private final byte delimiter;
+    private final boolean encrypt;
+    private final FpeSession session = FpeSession.create();
+
+    private byte[] in = new byte[0];
+    private byte[] field = new byte[256];
+    private byte[] cipher = new byte[256];
+    private byte[] out;
+    private int outLen;
+
+    /**
+     * @param columnParams the params of each column, indexed by column. Columns with null params (or beyond the end
+     *                     of the array) are copied as is.
+     */
+    CsvSegmentProcessor(Fpe fpe, FpeParams[] columnParams, byte delimiter, boolean encrypt) {
+        this.fpe = fpe;
+        this.columnParams = new FpeParams[columnParams.length];
+        for (int i = 0; i < columnParams.length; i++) {
+            this.columnParams[i] = columnParams[i] == null ? null : fpe.compile(columnParams[i]);
+        }
+        this.delimiter = delimiter;
+        this.encrypt = encrypt;
+    }
+
+    /**
+     * The processed segment
+     */
+    static final class Result {
+        final byte[] data;
+        final int length;
+        final long rows;
+
+        private Result(byte[] data, int length, long rows) {
+            this.data = data;
+            this.length = length;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * Process the {@code len} bytes of {@code channel} starting at {@code start}. The range must start at the
+     * beginning of a record and end after a line break (or at the end of the file). The bytes are read straight into
+     * the input buffer of this processor, which is reused by the next segment.
+     */
+    Result process(FileChannel channel, long start, int len) throws IOException, GeneralSecurityException {
+        if (in.length < len) {
+            in = new byte[len];
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(in, 0, len);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("unexpected end of file at byte offset " + (start + buffer.position()));
+            }
+        }
+
+        out = new byte[len + (len >>> 4) + PADDING];
+        outLen = 0;
+        long rows = 0;
+        int pos = 0;
+        while (pos < len) {
+            int lf = indexOf(LF, pos, len);
+            int next = lf < 0 ? len : lf + 1;
+            int end = lf < 0 ? len : lf;
+            if (end > pos && in[end - 1] == CR) {
+                end--;
+            }
+            processRecord(pos, end, next, start);
+            rows++;
+            pos = next;
+        }
+        Result result = new Result(out, outLen, rows);
+        out = null;
+        return result;
+    }
+
+    /**
+     * Process the record {@code in[from, end)}, followed by its line break {@code in[end, next)}.
+     */
+    private void processRecord(int from, int end, int next, long segmentStart)
+            throws IOException, GeneralSecurityException {
+        int pending = from;
+        int pos = from;
+        for (int col = 0; col < columnParams.length; col++) {
+            boolean quoted = pos < end && in[pos] == QUOTE;
+            int fieldEnd = quoted ? quotedEnd(pos, end, segmentStart) : indexOf(delimiter, pos, end);
+            if (fieldEnd < 0) {
+                fieldEnd = end;
+            }
+            FpeParams params = columnParams[col];
+            if (params != null && fieldEnd - pos > (quoted ? 2 : 0)) {
+                append(in, pending, pos - pending);
+                try {
+                    if (quoted) {
+                        transform(field, 0, unquote(pos, fieldEnd), params, true);
+                    }
+                    else {
+                        transform(in, pos, fieldEnd - pos, params, false);
+                    }
+                }
+                catch (GeneralSecurityException e) {
+                    throw new GeneralSecurityException(errorMessage(col, segmentStart + from, e), e);
+                }
+                catch (IllegalArgumentException e) {
+                    throw new IncompatiblePlaintextException(errorMessage(col, segmentStart + from, e), e);
+                }
+                pending = fieldEnd;
+            }
+            if (fieldEnd >= end) {
+                break;
+            }
+            pos = fieldEnd + 1;
+        }
+        append(in, pending, next - pending);
+    }
+
+    /**
+     * @return the end (exclusive) of the quoted field starting at {@code from}
+     */
+    private int quotedEnd(int from, int end, long segmentStart) throws IOException {
+        int pos = from + 1;
+        while (true) {
+            if (pos >= end) {
+                throw new IOException("unterminated quoted field at byte offset " + (segmentStart + from)
+                        + " (line breaks within quoted fields are not supported)");
+            }
+            if (in[pos++] == QUOTE) {
+                if (pos < end && in[pos] == QUOTE) {
+                    pos++;
+                }
+                else {
+                    break;
+                }
+            }
+        }
+        if (pos < end && in[pos] != delimiter) {
+            throw new IOException("unexpected character after quoted field at byte offset " + (segmentStart + pos));
+        }
+        return pos;
+    }
+
+    /**
+     * Copy the value of the quoted field {@code in[from, to)} to {@link #field}, without the enclosing quotes and
+     * with escaped quotes collapsed.
+     *
+     * @return the length of the value
+     */
+    private int unquote(int from, int to) {
+        if (field.length < to - from) {
+            field = new byte[Math.max(to - from, field.length * 2)];
+        }
+        int n = 0;
+        for (int i = from + 1; i < to - 1; i++) {
+            byte b = in[i];
+            field[n++] = b;
+            if (b == QUOTE) {
+                i++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Encrypt or decrypt {@code src[off, off + len)} and append the result, quoted if required.
+     */
+    private void transform(byte[] src, int off, int len, FpeParams params, boolean quoted)
+            throws GeneralSecurityException {
+        int capacity = len * MAX_EXPANSION + PADDING;
+        if (cipher.length < capacity) {
+            cipher = new byte[Math.max(capacity, cipher.length * 2)];
+        }
+        int n = encrypt
+                ? fpe.encrypt(src, off, len, cipher, 0, params, session)
+                : fpe.decrypt(src, off, len, cipher, 0, params, session);
+        if (!quoted) {
+            for (int i = 0; i < n; i++) {
+                byte b = cipher[i];
+                if (b == delimiter || b == QUOTE || b == CR || b == LF) {
+                    quoted = true;
+                    break;
+                }
+            }
+        }
+        if (!quoted) {
+            append(cipher, 0, n);
+            return;
+        }
+        ensureCapacity(2 * n + 2);
+        out[outLen++] = QUOTE;
+        for (int i = 0; i < n; i++) {
+            byte b = cipher[i];
+            out[outLen++] = b;
+            if (b == QUOTE) {
+                out[outLen++] = QUOTE;
+            }
+        }
+        out[outLen++] = QUOTE;
+    }
+
+    private void append(byte[] src, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(src, off, out, outLen, len);
+        outLen += len;
+    }
+
+    private void ensureCapacity(int len) {
+        if (outLen + len > out.length) {
+            byte[] grown = new byte[Math.max(outLen + len, out.length + (out.length >>> 1))];
+            System.arraycopy(out, 0, grown, 0, outLen);
+            out = grown;
+        }
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (in[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String errorMessage(int col, long offset, Exception e) {
+        return "Error " + (encrypt ? "encrypting" : "decrypting") + " column " + col + " of the record at byte offset "
+                + offset + ": " + e.getMessage();
+    }
+
+}
@@ -0,0 +1,285 @@
+package no.ssb.crypto.tink.fpe.pipeline;
+
+import com.google.crypto.tink.KeysetHandle;
+import lombok.NonNull;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.FpeSession;
+import no.ssb.crypto.tink.fpe.IncompatiblePlaintextException;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * FixedWidthPipeline encrypts or decrypts fields of a file of fixed-width records in place, using all cores.
+ *
+ * <pre>
+ * PipelineResult result = FixedWidthPipeline.with(keysetHandle)
+ *         .recordLength(81)
+ *         .field(0, 11, FpeParams.DEFAULT)
+ *         .field(11, 30, FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.SKIP))
+ *         .encrypt(file);
+ * </pre>
+ *
+ * <p>Since FPE preserves the length of a value (for single-byte charsets, or values that only contain single-byte
+ * characters), the ciphertext of a field is written back where the plaintext was. The file is split into segments of
+ * whole records, each segment is memory-mapped read-write by a worker thread, and the fields are read from and written
+ * back to the mapped buffer, through a scratch buffer owned by the worker. So the file is read once and written back
+ * once, without any output file.</p>
+ *
+ * <p>The record length includes any line terminator. A trailing partial record (such as a last line without line
+ * terminator) is processed if it holds all fields.</p>
+ *
+ * <p>If a field cannot be encrypted (or the ciphertext would have a different length, e.g. with the DELETE strategy),
+ * an exception is thrown and the field is left as is. Records processed up to that point have already been written
+ * back, so the file must be restored from a copy. Use the SKIP or REDACT strategy for fields that may hold characters
+ * (such as padding) outside the alphabet.</p>
+ *
+ * <p>Each worker thread gets its own primitive from the keyset handle. The keyset should use RAW output prefix.</p>
+ */
+public final class FixedWidthPipeline {
+
+    private static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private final KeysetHandle keysetHandle;
+    private final List<Field> fields = new ArrayList<>();
+    private int recordLength;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    private FixedWidthPipeline(KeysetHandle keysetHandle) {
+        this.keysetHandle = keysetHandle;
+    }
+
+    /**
+     * @return a new FixedWidthPipeline using the primary key of {@code keysetHandle}
+     */
+    public static FixedWidthPipeline with(@NonNull KeysetHandle keysetHandle) {
+        return new FixedWidthPipeline(keysetHandle);
+    }
+
+    /**
+     * recordLength is the number of bytes of each record, including any line terminator. Required.
+     */
+    public FixedWidthPipeline recordLength(int recordLength) {
+        if (recordLength < 1) {
+            throw new IllegalArgumentException("recordLength must be positive, but was " + recordLength);
+        }
+        this.recordLength = recordLength;
+        return this;
+    }
+
+    /**
+     * Encrypt or decrypt the {@code length} bytes starting at {@code offset} of each record, using {@code params}.
+     *
+     * @throws IllegalArgumentException if the field overlaps a field that is already configured
+     */
+    public FixedWidthPipeline field(int offset, int length, @NonNull FpeParams params) {
+        if (offset < 0 || length < 1) {
+            throw new IllegalArgumentException("invalid field (offset " + offset + ", length " + length + ")");
+        }
+        for (Field field : fields) {
+            if (offset < field.offset + field.length && field.offset < offset + length) {
+                throw new IllegalArgumentException("field (offset " + offset + ", length " + length
+                        + ") overlaps field (offset " + field.offset + ", length " + field.length + ")");
+            }
+        }
+        fields.add(new Field(offset, length, params));
+        return this;
+    }
+
+    /**
+     * threads is the number of worker threads. Defaults to the number of available processors.
+     */
+    public FixedWidthPipeline threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive, but was " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * segmentSize is the approximate number of bytes processed by a worker thread at a time. A segment holds at least
+     * one record. Defaults to 8 MB.
+     */
+    public FixedWidthPipeline segmentSize(int segmentSize) {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("segmentSize must be positive, but was " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * Encrypt the configured fields of each record of {@code file}, in place.
+     *
+     * @return the statistics of the run
+     * @throws GeneralSecurityException if a field cannot be encrypted
+     * @throws IncompatiblePlaintextException if a field is incompatible with the key or params
+     */
+    public PipelineResult encrypt(@NonNull Path file) throws IOException, GeneralSecurityException {
+        return run(file, true);
+    }
+
+    /**
+     * Decrypt the configured fields of each record of {@code file}, in place.
+     *
+     * @return the statistics of the run
+     * @throws GeneralSecurityException if a field cannot be decrypted
+     */
+    public PipelineResult decrypt(@NonNull Path file) throws IOException, GeneralSecurityException {
+        return run(file, false);
+    }
+
+    private PipelineResult run(Path file, boolean encrypt) throws IOException, GeneralSecurityException {
+        if (recordLength == 0) {
+            throw new IllegalStateException("recordLength must be defined");
+        }
+        int fieldsEnd = 0;
+        for (Field field : fields) {
+            fieldsEnd = Math.max(fieldsEnd, field.offset + field.length);
+        }
+        if (fieldsEnd > recordLength) {
+            throw new IllegalStateException("fields must be within the record length " + recordLength);
+        }
+
+        long startTime = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long records = size / recordLength;
+            int partial = (int) (size % recordLength);
+            if (partial > 0 && partial >= fieldsEnd) {
+                records++;
+            }
+            else if (partial > 0) {
+                throw new IOException("the last record is truncated (" + partial + " of " + recordLength + " bytes)");
+            }
+            long segmentRecords = Math.max(1, segmentSize / recordLength);
+
+            ThreadLocal<Worker> workers = new ThreadLocal<>();
+            ExecutorService executor = Pipelines.newExecutor("fpe-fixed-width-pipeline", threads);
+            try {
+                ArrayDeque<Future<Void>> inFlight = new ArrayDeque<>();
+                long record = 0;
+                while (record < records || !inFlight.isEmpty()) {
+                    while (record < records && inFlight.size() < 2 * threads) {
+                        long first = record;
+                        int count = (int) Math.min(segmentRecords, records - first);
+                        inFlight.add(executor.submit(() -> {
+                            worker(workers, encrypt).process(channel, first, count, size);
+                            return null;
+                        }));
+                        record += count;
+                    }
+                    Pipelines.await(inFlight.poll());
+                }
+                return new PipelineResult(records, size, size, Duration.ofNanos(System.nanoTime() - startTime));
+            }
+            finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private Worker worker(ThreadLocal<Worker> workers, boolean encrypt) throws GeneralSecurityException {
+        Worker worker = workers.get();
+        if (worker == null) {
+            worker = new Worker(keysetHandle.getPrimitive(Fpe.class), encrypt);
+            workers.set(worker);
+        }
+        return worker;
+    }
+
+    /**
+     * Field is a byte range of each record
+     */
+    private static final class Field {
+        private final int offset;
+        private final int length;
+        private final FpeParams params;
+
+        private Field(int offset, int length, FpeParams params) {
+            this.offset = offset;
+            this.length = length;
+            this.params = params;
+        }
+    }
+
+    /**
+     * Worker holds the primitive, compiled params and scratch buffers of one worker thread
+     */
+    private final class Worker {
+        private final Fpe fpe;
+        private final boolean encrypt;
+        private final FpeParams[] params;
+        private final FpeSession session = FpeSession.create();
+        private final byte[] scratch;
+
+        private Worker(Fpe fpe, boolean encrypt) {
+            this.fpe = fpe;
+            this.encrypt = encrypt;
+            this.params = new FpeParams[fields.size()];
+            int maxLength = 0;
+            for (int i = 0; i < params.length; i++) {
+                params[i] = fpe.compile(fields.get(i).params);
+                maxLength = Math.max(maxLength, fields.get(i).length);
+            }
+            // Room for a longer ciphertext, which is detected and rejected
+            this.scratch = new byte[maxLength * 3 + 16];
+        }
+
+        /**
+         * Process {@code count} records starting at record {@code first}, in the mapped buffer.
+         */
+        private void process(FileChannel channel, long first, int count, long size)
+                throws IOException, GeneralSecurityException {
+            long start = first * recordLength;
+            int len = (int) Math.min((long) count * recordLength, size - start);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, start, len);
+            for (int r = 0; r < count; r++) {
+                int base = r * recordLength;
+                for (int f = 0; f < params.length; f++) {
+                    Field field = fields.get(f);
+                    mapped.position(base + field.offset);
+                    mapped.get(scratch, 0, field.length);
+                    int n;
+                    try {
+                        n = encrypt
+                                ? fpe.encrypt(scratch, 0, field.length, scratch, 0, params[f], session)
+                                : fpe.decrypt(scratch, 0, field.length, scratch, 0, params[f], session);
+                        if (n != field.length) {
+                            throw new IncompatiblePlaintextException("the result is " + n + " bytes, but must be "
+                                    + field.length + " bytes to be written in place");
+                        }
+                    }
+                    catch (GeneralSecurityException e) {
+                        throw new GeneralSecurityException(errorMessage(field, start + base, e), e);
+                    }
+                    catch (IllegalArgumentException e) {
+                        throw new IncompatiblePlaintextException(errorMessage(field, start + base, e), e);
+                    }
+                    mapped.position(base + field.offset);
+                    mapped.put(scratch, 0, n);
+                }
+            }
+            mapped.force();
+        }
+
+        private String errorMessage(Field field, long recordOffset, Exception e) {
+            return "Error " + (encrypt ? "encrypting" : "decrypting") + " the field at offset " + field.offset
+                    + " of the record at byte offset " + recordOffset + ": " + e.getMessage();
+        }
+    }
+
+}
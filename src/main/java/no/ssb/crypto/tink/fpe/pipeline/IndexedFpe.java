@@ -0,0 +1,84 @@
+package no.ssb.crypto.tink.fpe.pipeline;
+
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeParams;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * IndexedFpe is a primitive that looks up values in a {@link PseudonymIndex} before delegating to the wrapped
+ * primitive, see {@link PseudonymIndex#wrap(Fpe)}.
+ *
+ * <p>All operations of the {@link Fpe} interface that are implemented on top of {@link #encrypt(byte[], FpeParams)}
+ * and {@link #decrypt(byte[], FpeParams)} by default (byte buffers, texts, numbers) use the index. Batches
+ * ({@link #encryptAll(List, FpeParams)} and {@link #decryptAll(List, FpeParams)}) are served from the index, and only
+ * the values that are not in it are passed on to the batch operation of the wrapped primitive.</p>
+ */
+final class IndexedFpe implements Fpe {
+
+    private final Fpe delegate;
+    private final PseudonymIndex index;
+
+    IndexedFpe(Fpe delegate, PseudonymIndex index) {
+        this.delegate = delegate;
+        this.index = index;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] plaintext, FpeParams params) throws GeneralSecurityException {
+        byte[] ciphertext = index.lookup(plaintext, params, true);
+        return ciphertext != null ? ciphertext : delegate.encrypt(plaintext, params);
+    }
+
+    @Override
+    public byte[] decrypt(byte[] ciphertext, FpeParams params) throws GeneralSecurityException {
+        byte[] plaintext = index.lookup(ciphertext, params, false);
+        return plaintext != null ? plaintext : delegate.decrypt(ciphertext, params);
+    }
+
+    @Override
+    public List<byte[]> encryptAll(List<byte[]> plaintexts, FpeParams params) throws GeneralSecurityException {
+        return cipherAll(plaintexts, params, true);
+    }
+
+    @Override
+    public List<byte[]> decryptAll(List<byte[]> ciphertexts, FpeParams params) throws GeneralSecurityException {
+        return cipherAll(ciphertexts, params, false);
+    }
+
+    @Override
+    public FpeParams compile(FpeParams params) {
+        return delegate.compile(params);
+    }
+
+    /**
+     * Look up all {@code values} in the index, and encrypt ({@code encrypt}) or decrypt the others in one batch of the
+     * wrapped primitive
+     */
+    private List<byte[]> cipherAll(List<byte[]> values, FpeParams params, boolean encrypt)
+            throws GeneralSecurityException {
+        List<byte[]> results = new ArrayList<>(values.size());
+        List<byte[]> misses = new ArrayList<>();
+        List<Integer> missPositions = new ArrayList<>();
+        for (byte[] value : values) {
+            byte[] result = value == null ? null : index.lookup(value, params, encrypt);
+            if (result == null) {
+                misses.add(value);
+                missPositions.add(results.size());
+            }
+            results.add(result);
+        }
+        if (!misses.isEmpty()) {
+            List<byte[]> missResults = encrypt
+                    ? delegate.encryptAll(misses, params)
+                    : delegate.decryptAll(misses, params);
+            for (int i = 0; i < missResults.size(); i++) {
+                results.set(missPositions.get(i), missResults.get(i));
+            }
+        }
+        return results;
+    }
+
+}
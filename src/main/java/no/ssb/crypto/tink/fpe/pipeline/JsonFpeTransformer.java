@@ -0,0 +1,286 @@
+package no.ssb.crypto.tink.fpe.pipeline;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonFactoryBuilder;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import lombok.NonNull;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.IncompatiblePlaintextException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * JsonFpeTransformer encrypts or decrypts the values at selected paths of JSON documents, streaming from a
+ * {@link JsonParser} to a {@link JsonGenerator} without building a tree.
+ *
+ * <pre>
+ * JsonFpeTransformer transformer = JsonFpeTransformer.with(fpe)
+ *         .path("/person/name", FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.SKIP))
+ *         .path("/accounts/*&#47;number", FpeParams.DEFAULT);
+ * transformer.encrypt(in, out);
+ * </pre>
+ *
+ * <p>Paths are JSON Pointers (RFC 6901), where a {@code *} token matches any property name or array index. If several
+ * paths match a value, the first configured path is used. Only string and integer values are transformed. Other
+ * values (such as booleans and floating point numbers) are copied as is, and so are objects and arrays, although
+ * their descendants may match a path. Integers are encrypted with
+ * {@link Fpe#encryptNumber(long, int, FpeParams)}, and so require a path configured with the number of digits and a
+ * digits-only key.</p>
+ *
+ * <p>The paths are compiled into a state machine (see {@link JsonPathMatcher}) on first use. Subtrees that do not
+ * match any path are copied without being matched. Memory usage is constant, regardless of the size of the documents
+ * and arrays, and a stream may hold any number of root values, such as newline delimited JSON (NDJSON). The streaming
+ * methods write each root value on a separate line.</p>
+ *
+ * <p>The transformer can be shared between threads if the primitive can. Paths may also be added while it is in use:
+ * each transformation uses the paths that were configured when it started.</p>
+ */
+public final class JsonFpeTransformer {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactoryBuilder()
+            .rootValueSeparator((String) null)
+            .disable(StreamReadFeature.AUTO_CLOSE_SOURCE)
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
+
+    private static final int INITIAL_DEPTH = 16;
+
+    private final Fpe fpe;
+    /**
+     * targets is replaced rather than modified when a path is added, so that it can be compiled without locking out
+     * the transformations that are in progress. Both fields are only written while holding the lock of this.
+     */
+    private volatile List<JsonPathMatcher.Target> targets = Collections.emptyList();
+    private volatile JsonPathMatcher matcher;
+
+    private JsonFpeTransformer(Fpe fpe) {
+        this.fpe = fpe;
+    }
+
+    /**
+     * @return a new JsonFpeTransformer using {@code fpe}
+     */
+    public static JsonFpeTransformer with(@NonNull Fpe fpe) {
+        return new JsonFpeTransformer(fpe);
+    }
+
+    /**
+     * Encrypt or decrypt the string values at {@code path}, using {@code params}.
+     *
+     * @param path a JSON Pointer, where {@code *} matches any property name or array index
+     * @throws IllegalArgumentException if the path is not a valid JSON Pointer
+     */
+    public JsonFpeTransformer path(@NonNull String path, @NonNull FpeParams params) {
+        return path(path, 0, params);
+    }
+
+    /**
+     * Encrypt or decrypt the string values and the integer values at {@code path}, using {@code params}. Integers
+     * are treated as numbers of exactly {@code digits} digits (zero-padded), see
+     * {@link Fpe#encryptNumber(long, int, FpeParams)}.
+     *
+     * @param path a JSON Pointer, where {@code *} matches any property name or array index
+     * @throws IllegalArgumentException if the path is not a valid JSON Pointer
+     */
+    public JsonFpeTransformer path(@NonNull String path, int digits, @NonNull FpeParams params) {
+        JsonPathMatcher.parse(path);
+        if (digits < 0) {
+            throw new IllegalArgumentException("digits must be non-negative, but was " + digits);
+        }
+        FpeParams compiled = fpe.compile(params);
+        synchronized (this) {
+            List<JsonPathMatcher.Target> added = new ArrayList<>(targets);
+            added.add(new JsonPathMatcher.Target(path, compiled, digits, added.size()));
+            targets = Collections.unmodifiableList(added);
+            matcher = null;
+        }
+        return this;
+    }
+
+    /**
+     * Encrypt the JSON values of {@code in}, writing the result to {@code out}. The streams are not closed.
+     *
+     * @return the number of values encrypted
+     * @throws GeneralSecurityException if a value cannot be encrypted
+     * @throws IncompatiblePlaintextException if a value is incompatible with the key or params
+     */
+    public long encrypt(@NonNull InputStream in, @NonNull OutputStream out)
+            throws IOException, GeneralSecurityException {
+        try (JsonParser parser = JSON_FACTORY.createParser(in);
+             JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            return transform(parser, generator, true, true);
+        }
+    }
+
+    /**
+     * Decrypt the JSON values of {@code in}, writing the result to {@code out}. The streams are not closed.
+     *
+     * @return the number of values decrypted
+     * @throws GeneralSecurityException if a value cannot be decrypted
+     */
+    public long decrypt(@NonNull InputStream in, @NonNull OutputStream out)
+            throws IOException, GeneralSecurityException {
+        try (JsonParser parser = JSON_FACTORY.createParser(in);
+             JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            return transform(parser, generator, false, true);
+        }
+    }
+
+    /**
+     * Encrypt the remaining JSON values of {@code parser}, writing the result to {@code generator}.
+     *
+     * @return the number of values encrypted
+     */
+    public long encrypt(@NonNull JsonParser parser, @NonNull JsonGenerator generator)
+            throws IOException, GeneralSecurityException {
+        return transform(parser, generator, true, false);
+    }
+
+    /**
+     * Decrypt the remaining JSON values of {@code parser}, writing the result to {@code generator}.
+     *
+     * @return the number of values decrypted
+     */
+    public long decrypt(@NonNull JsonParser parser, @NonNull JsonGenerator generator)
+            throws IOException, GeneralSecurityException {
+        return transform(parser, generator, false, false);
+    }
+
+    private JsonPathMatcher matcher() {
+        JsonPathMatcher m = matcher;
+        if (m == null) {
+            synchronized (this) {
+                m = matcher;
+                if (m == null) {
+                    m = JsonPathMatcher.compile(targets);
+                    matcher = m;
+                }
+            }
+        }
+        return m;
+    }
+
+    private long transform(JsonParser parser, JsonGenerator generator, boolean encrypt, boolean lineDelimited)
+            throws IOException, GeneralSecurityException {
+        JsonPathMatcher.State root = matcher().root();
+        // The state and the next array index of each enclosing object or array
+        JsonPathMatcher.State[] states = new JsonPathMatcher.State[INITIAL_DEPTH];
+        int[] indexes = new int[INITIAL_DEPTH];
+        boolean[] arrays = new boolean[INITIAL_DEPTH];
+        int depth = 0;
+        long count = 0;
+
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+            JsonPathMatcher.State state;
+            if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                generator.copyCurrentEvent(parser);
+                depth--;
+                endOfValue(generator, depth, lineDelimited);
+                continue;
+            }
+            if (depth == 0) {
+                state = root;
+            }
+            else if (arrays[depth - 1]) {
+                state = states[depth - 1].index(indexes[depth - 1]++);
+            }
+            else {
+                generator.copyCurrentEvent(parser);
+                state = states[depth - 1].field(parser.currentName());
+                token = parser.nextToken();
+            }
+
+            if (state == null) {
+                generator.copyCurrentStructure(parser);
+            }
+            else if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                generator.copyCurrentEvent(parser);
+                if (depth == states.length) {
+                    states = Arrays.copyOf(states, depth * 2);
+                    indexes = Arrays.copyOf(indexes, depth * 2);
+                    arrays = Arrays.copyOf(arrays, depth * 2);
+                }
+                states[depth] = state;
+                indexes[depth] = 0;
+                arrays[depth] = token == JsonToken.START_ARRAY;
+                depth++;
+                continue;
+            }
+            else if (state.target() != null && transformValue(parser, generator, token, state.target(), encrypt)) {
+                count++;
+            }
+            else {
+                generator.copyCurrentEvent(parser);
+            }
+            endOfValue(generator, depth, lineDelimited);
+        }
+        generator.flush();
+        return count;
+    }
+
+    private static void endOfValue(JsonGenerator generator, int depth, boolean lineDelimited) throws IOException {
+        if (depth == 0 && lineDelimited) {
+            generator.writeRaw('\n');
+        }
+    }
+
+    /**
+     * Encrypt or decrypt the current value of {@code parser}, if it is a string or an integer.
+     *
+     * @return true if the value was transformed and written, false if it should be copied as is
+     */
+    private boolean transformValue(JsonParser parser, JsonGenerator generator, JsonToken token,
+                                   JsonPathMatcher.Target target, boolean encrypt)
+            throws IOException, GeneralSecurityException {
+        try {
+            if (token == JsonToken.VALUE_STRING) {
+                int offset = parser.getTextOffset();
+                int length = parser.getTextLength();
+                if (length == 0) {
+                    return false;
+                }
+                char[] text = Arrays.copyOfRange(parser.getTextCharacters(), offset, offset + length);
+                char[] result = encrypt ? fpe.encrypt(text, target.params) : fpe.decrypt(text, target.params);
+                generator.writeString(result, 0, result.length);
+                return true;
+            }
+            if (token == JsonToken.VALUE_NUMBER_INT) {
+                if (target.digits == 0) {
+                    throw new IllegalArgumentException("the path '" + target.path
+                            + "' must be configured with digits to transform numbers");
+                }
+                long value = parser.getLongValue();
+                generator.writeNumber(encrypt
+                        ? fpe.encryptNumber(value, target.digits, target.params)
+                        : fpe.decryptNumber(value, target.digits, target.params));
+                return true;
+            }
+            return false;
+        }
+        catch (GeneralSecurityException e) {
+            throw new GeneralSecurityException(errorMessage(parser, encrypt, e), e);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IncompatiblePlaintextException(errorMessage(parser, encrypt, e), e);
+        }
+    }
+
+    private static String errorMessage(JsonParser parser, boolean encrypt, Exception e) {
+        return "Error " + (encrypt ? "encrypting" : "decrypting") + " the value at "
+                + parser.getParsingContext().pathAsPointer() + ": " + e.getMessage();
+    }
+
+}
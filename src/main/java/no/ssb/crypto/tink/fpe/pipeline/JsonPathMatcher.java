@@ -0,0 +1,197 @@
+package no.ssb.crypto.tink.fpe.pipeline;
+
+import no.ssb.crypto.tink.fpe.FpeParams;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * JsonPathMatcher is a deterministic state machine that matches the location of a JSON value against a set of JSON
+ * Pointer (RFC 6901) paths, see {@link JsonFpeTransformer}.
+ *
+ * <p>The paths are compiled into a trie, where a {@code *} token matches any property name or array index. The trie
+ * is then determinized, so that a location in the document corresponds to exactly one state, and moving to a child
+ * value is a single lookup. A null state means that no path matches the value or any of its descendants, so the
+ * whole subtree can be copied without being inspected.</p>
+ *
+ * <p>A JsonPathMatcher is immutable and can be shared between threads.</p>
+ */
+final class JsonPathMatcher {
+
+    static final String WILDCARD = "*";
+
+    /**
+     * Target is what to do with a matched scalar value
+     */
+    static final class Target {
+        final String path;
+        final FpeParams params;
+
+        /**
+         * digits is the number of digits that numbers are encrypted as, or 0 if numbers are not supported
+         */
+        final int digits;
+
+        /**
+         * order is the position of the path in the configuration. If several paths match a value, the first one is
+         * used.
+         */
+        private final int order;
+
+        Target(String path, FpeParams params, int digits, int order) {
+            this.path = path;
+            this.params = params;
+            this.digits = digits;
+            this.order = order;
+        }
+    }
+
+    /**
+     * State is the set of (partial) paths matching a location in the document
+     */
+    static final class State {
+        private final Map<String, State> children;
+        private final State any;
+        private final Target target;
+
+        private State(Map<String, State> children, State any, Target target) {
+            this.children = children;
+            this.any = any;
+            this.target = target;
+        }
+
+        /**
+         * @return the state of property {@code name} of an object in this state, or null if no path matches
+         */
+        State field(String name) {
+            State child = children.get(name);
+            return child != null ? child : any;
+        }
+
+        /**
+         * @return the state of element {@code index} of an array in this state, or null if no path matches
+         */
+        State index(int index) {
+            if (children.isEmpty()) {
+                return any;
+            }
+            return field(Integer.toString(index));
+        }
+
+        /**
+         * @return the target of a scalar value in this state, or null if the value should be copied as is
+         */
+        Target target() {
+            return target;
+        }
+    }
+
+    private final State root;
+
+    private JsonPathMatcher(State root) {
+        this.root = root;
+    }
+
+    /**
+     * @return the state of a root value
+     */
+    State root() {
+        return root;
+    }
+
+    /**
+     * Compile {@code targets} into a matcher.
+     */
+    static JsonPathMatcher compile(List<Target> targets) {
+        Node trie = new Node();
+        for (Target target : targets) {
+            Node node = trie;
+            for (String token : parse(target.path)) {
+                node = token.equals(WILDCARD)
+                        ? (node.any != null ? node.any : (node.any = new Node()))
+                        : node.children.computeIfAbsent(token, t -> new Node());
+            }
+            if (node.target == null || node.target.order > target.order) {
+                node.target = target;
+            }
+        }
+        return new JsonPathMatcher(determinize(Collections.singleton(trie), new HashMap<>()));
+    }
+
+    /**
+     * Node is a node of the (non-deterministic) trie of paths
+     */
+    private static final class Node {
+        private final Map<String, Node> children = new LinkedHashMap<>();
+        private Node any;
+        private Target target;
+    }
+
+    /**
+     * Build the state matching all of {@code nodes}, merging the children of each property name with the wildcard
+     * children.
+     */
+    private static State determinize(Set<Node> nodes, Map<Set<Node>, State> states) {
+        State state = states.get(nodes);
+        if (state != null) {
+            return state;
+        }
+        Target target = null;
+        Set<Node> any = new LinkedHashSet<>();
+        Set<String> names = new LinkedHashSet<>();
+        for (Node node : nodes) {
+            if (node.target != null && (target == null || target.order > node.target.order)) {
+                target = node.target;
+            }
+            if (node.any != null) {
+                any.add(node.any);
+            }
+            names.addAll(node.children.keySet());
+        }
+        Map<String, State> children = new HashMap<>();
+        for (String name : names) {
+            Set<Node> next = new LinkedHashSet<>(any);
+            for (Node node : nodes) {
+                Node child = node.children.get(name);
+                if (child != null) {
+                    next.add(child);
+                }
+            }
+            children.put(name, determinize(next, states));
+        }
+        state = new State(children, any.isEmpty() ? null : determinize(any, states), target);
+        states.put(nodes, state);
+        return state;
+    }
+
+    /**
+     * @return the unescaped reference tokens of the JSON Pointer {@code path}
+     * @throws IllegalArgumentException if the path is not a valid JSON Pointer
+     */
+    static List<String> parse(String path) {
+        List<String> tokens = new ArrayList<>();
+        if (path.isEmpty()) {
+            return tokens;
+        }
+        if (path.charAt(0) != '/') {
+            throw new IllegalArgumentException("invalid JSON Pointer '" + path + "': must be empty or start with '/'");
+        }
+        for (String token : path.substring(1).split("/", -1)) {
+            for (int i = token.indexOf('~'); i != -1; i = token.indexOf('~', i + 1)) {
+                if (i + 1 == token.length() || (token.charAt(i + 1) != '0' && token.charAt(i + 1) != '1')) {
+                    throw new IllegalArgumentException("invalid JSON Pointer '" + path
+                            + "': '~' must be followed by '0' or '1'");
+                }
+            }
+            tokens.add(token.replace("~1", "/").replace("~0", "~"));
+        }
+        return tokens;
+    }
+
+}
@@ -0,0 +1,68 @@
+package no.ssb.crypto.tink.fpe.pipeline;
+
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * PipelineResult holds the statistics of a pipeline run (see {@link CsvPipeline} and {@link FixedWidthPipeline}),
+ * such as the number of rows processed and the throughput.
+ */
+@Getter
+public final class PipelineResult {
+
+    /**
+     * rows is the number of records processed, not including any header
+     */
+    private final long rows;
+
+    /**
+     * bytesRead is the size of the input file
+     */
+    private final long bytesRead;
+
+    /**
+     * bytesWritten is the size of the output file. For pipelines that process a file in place, this is the size of
+     * the file.
+     */
+    private final long bytesWritten;
+
+    /**
+     * elapsed is the wall clock time of the run
+     */
+    private final Duration elapsed;
+
+    PipelineResult(long rows, long bytesRead, long bytesWritten, Duration elapsed) {
+        this.rows = rows;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.elapsed = elapsed;
+    }
+
+    /**
+     * @return the number of rows processed per second
+     */
+    public double rowsPerSecond() {
+        return perSecond(rows);
+    }
+
+    /**
+     * @return the number of input bytes processed per second
+     */
+    public double bytesPerSecond() {
+        return perSecond(bytesRead);
+    }
+
+    private double perSecond(long count) {
+        long nanos = Math.max(1, elapsed.toNanos());
+        return count * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d rows, %d bytes in %.3f s (%.0f rows/s, %.1f MB/s)",
+                rows, bytesRead, elapsed.toNanos() / 1e9, rowsPerSecond(), bytesPerSecond() / 1e6);
+    }
+
+}
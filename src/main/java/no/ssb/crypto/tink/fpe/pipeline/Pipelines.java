@@ -0,0 +1,60 @@
+package no.ssb.crypto.tink.fpe.pipeline;
+
+import lombok.experimental.UtilityClass;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Helpers shared by the pipelines for running segments on worker threads.
+ */
+@UtilityClass
+class Pipelines {
+
+    /**
+     * @return a fixed thread pool of {@code threads} daemon threads, named {@code name-1}, {@code name-2}, etc.
+     */
+    static ExecutorService newExecutor(String name, int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Wait for {@code future}, rethrowing the exception of a failed worker as is.
+     */
+    static <T> T await(Future<T> future) throws IOException, GeneralSecurityException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+}
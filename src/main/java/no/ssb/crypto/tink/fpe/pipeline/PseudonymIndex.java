@@ -0,0 +1,342 @@
+package no.ssb.crypto.tink.fpe.pipeline;
+
+import com.google.crypto.tink.KeysetHandle;
+import lombok.NonNull;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.FpeTweak;
+import no.ssb.crypto.tink.fpe.UnknownCharacterStrategy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * PseudonymIndex answers encryption and decryption of a known universe of values (see {@link PseudonymIndexBuilder})
+ * by lookups in a memory-mapped index file, instead of running the FPE algorithm.
+ *
+ * <pre>
+ * PseudonymIndex index = PseudonymIndex.open(indexFile);
+ * Fpe fpe = index.wrap(keysetHandle);
+ * </pre>
+ *
+ * <p>The index file has a header of {@value #HEADER_SIZE} bytes (with the number of values, their length, and the
+ * tweak, strategy and charset of the params used), followed by two sections of fixed-width records. The first section
+ * holds (plaintext, ciphertext) records sorted by plaintext, and the second (ciphertext, plaintext) records sorted by
+ * ciphertext. Bytes are compared unsigned. A lookup is a binary search in the mapped section, so it is served from the
+ * page cache, off-heap, and the index can be shared by all threads and processes on a host.</p>
+ *
+ * <p>The wrapped primitive falls back to the primitive of the key for values that are not in the index, and for
+ * params with another tweak, strategy or charset than the index was built with. So the results are the same as
+ * without the index.</p>
+ *
+ * <p>A PseudonymIndex is immutable and thread-safe. Its primitives are thread-safe if the wrapped primitives are.</p>
+ */
+public final class PseudonymIndex {
+
+    static final int HEADER_SIZE = 256;
+    private static final byte[] MAGIC = {'F', 'P', 'E', 'I', 'N', 'D', 'E', 'X'};
+    private static final int VERSION = 1;
+
+    /**
+     * FENCE_INTERVAL is the number of records between fence keys, see {@link Section}
+     */
+    private static final int FENCE_INTERVAL = 64;
+
+    private final int width;
+    private final long count;
+    private final FpeTweak tweak;
+    private final UnknownCharacterStrategy strategy;
+    private final Charset charset;
+
+    /**
+     * byPlaintext and byCiphertext are the sections of the file, each mapped in windows of whole records
+     */
+    private final Section byPlaintext;
+    private final Section byCiphertext;
+
+    private PseudonymIndex(int width, long count, FpeTweak tweak, UnknownCharacterStrategy strategy, Charset charset,
+                           Section byPlaintext, Section byCiphertext) {
+        this.width = width;
+        this.count = count;
+        this.tweak = tweak;
+        this.strategy = strategy;
+        this.charset = charset;
+        this.byPlaintext = byPlaintext;
+        this.byCiphertext = byCiphertext;
+    }
+
+    /**
+     * Memory-map the index file {@code file}.
+     *
+     * @throws IOException if the file is not a valid index
+     */
+    public static PseudonymIndex open(@NonNull Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("not a pseudonym index: " + file);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    throw new EOFException();
+                }
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(header.array()));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("not a pseudonym index: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported pseudonym index version " + version);
+            }
+            int width = in.readInt();
+            long count = in.readLong();
+            byte[] tweak = new byte[in.readUnsignedByte()];
+            in.readFully(tweak);
+            UnknownCharacterStrategy strategy = UnknownCharacterStrategy.valueOf(in.readUTF());
+            Charset charset = Charset.forName(in.readUTF());
+
+            long sectionSize = count * 2 * width;
+            if (channel.size() != HEADER_SIZE + 2 * sectionSize) {
+                throw new IOException("the pseudonym index is truncated: expected " + (HEADER_SIZE + 2 * sectionSize)
+                        + " bytes, but was " + channel.size());
+            }
+            return new PseudonymIndex(width, count, FpeTweak.of(tweak), strategy, charset,
+                    new Section(channel, HEADER_SIZE, count, width),
+                    new Section(channel, HEADER_SIZE + sectionSize, count, width));
+        }
+    }
+
+    static void writeHeader(DataOutputStream out, int width, long count, FpeParams params) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE);
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.write(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(width);
+        header.writeLong(count);
+        byte[] tweak = params.getTweak();
+        header.writeByte(tweak.length);
+        header.write(tweak);
+        header.writeUTF(params.getUnknownCharacterStrategy().name());
+        header.writeUTF(params.getCharset().name());
+        if (bytes.size() > HEADER_SIZE) {
+            throw new IllegalArgumentException("the params do not fit in the index header");
+        }
+        out.write(Arrays.copyOf(bytes.toByteArray(), HEADER_SIZE));
+    }
+
+    /**
+     * @return a primitive for the primary key of {@code keysetHandle}, answering from this index where possible
+     * @throws GeneralSecurityException if the index was not built with the primary key of {@code keysetHandle}
+     */
+    public Fpe wrap(@NonNull KeysetHandle keysetHandle) throws GeneralSecurityException {
+        return wrap(keysetHandle.getPrimitive(Fpe.class));
+    }
+
+    /**
+     * @return a primitive that delegates to {@code fpe}, answering from this index where possible
+     * @throws GeneralSecurityException if the index was not built with the key of {@code fpe}
+     */
+    public Fpe wrap(@NonNull Fpe fpe) throws GeneralSecurityException {
+        if (count > 0) {
+            // The first record tells if the index was built with the same key
+            byte[] plaintext = byPlaintext.key(0);
+            byte[] expected = byPlaintext.value(0);
+            if (!Arrays.equals(fpe.encrypt(plaintext, params()), expected)) {
+                throw new GeneralSecurityException("the pseudonym index was built with another key");
+            }
+        }
+        return new IndexedFpe(fpe, this);
+    }
+
+    /**
+     * @return the number of values in the index
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes of each value in the index
+     */
+    public int width() {
+        return width;
+    }
+
+    /**
+     * @return new params with the tweak, strategy and charset that the index was built with
+     */
+    public FpeParams params() {
+        return FpeParams.with().tweak(tweak).unknownCharacterStrategy(strategy).charset(charset);
+    }
+
+    /**
+     * @return the ciphertext ({@code encrypt}) or plaintext of {@code value}, or null if {@code value} or
+     * {@code params} are not covered by the index
+     */
+    byte[] lookup(byte[] value, FpeParams params, boolean encrypt) {
+        if (value.length != width || count == 0 || params.getUnknownCharacterStrategy() != strategy
+                || !params.getFpeTweak().equals(tweak) || !params.getCharset().equals(charset)) {
+            return null;
+        }
+        Section section = encrypt ? byPlaintext : byCiphertext;
+        // Narrow the search to the records between the fences around the prefix, then search the mapped records
+        long prefix = prefixOf(value);
+        int fence = section.fenceOf(prefix);
+        long lo = (long) fence * FENCE_INTERVAL;
+        long hi = Math.min(count, (long) section.fenceAfter(prefix, fence) * FENCE_INTERVAL) - 1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            int cmp = section.compare(mid, value, prefix);
+            if (cmp < 0) {
+                lo = mid + 1;
+            }
+            else if (cmp > 0) {
+                hi = mid - 1;
+            }
+            else {
+                return section.value(mid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the first (up to) 8 bytes of {@code key} as a big-endian number, with the sign bit flipped, so that
+     * prefixes compare (signed) in the same order as the keys compare (unsigned)
+     */
+    private static long prefixOf(byte[] key) {
+        long prefix = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            prefix = (prefix << 8) | (i < key.length ? key[i] & 0xFF : 0);
+        }
+        return prefix ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Section is a sorted section of (key, value) records, mapped in windows of up to 2 GB, each holding whole
+     * records. Only absolute gets are used, so a section can be read by several threads.
+     *
+     * <p>The key prefix of every {@value #FENCE_INTERVAL}th record (a fence) is kept on the heap, so a lookup only
+     * touches the mapped records of one or a few fence intervals, instead of paging in about log2(count) records
+     * spread over the whole section.</p>
+     */
+    private static final class Section {
+        private final int width;
+        private final int recordSize;
+        private final long recordsPerWindow;
+        private final MappedByteBuffer[] windows;
+        private final long[] fences;
+
+        private Section(FileChannel channel, long offset, long count, int width) throws IOException {
+            this.width = width;
+            this.recordSize = 2 * width;
+            this.recordsPerWindow = recordSize == 0 ? 1 : Integer.MAX_VALUE / recordSize;
+            this.windows = new MappedByteBuffer[(int) ((count + recordsPerWindow - 1) / recordsPerWindow)];
+            for (int i = 0; i < windows.length; i++) {
+                long records = Math.min(recordsPerWindow, count - i * recordsPerWindow);
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + i * recordsPerWindow * recordSize,
+                        records * recordSize);
+            }
+            this.fences = new long[(int) ((count + FENCE_INTERVAL - 1) / FENCE_INTERVAL)];
+            for (int i = 0; i < fences.length; i++) {
+                fences[i] = prefixOf(key((long) i * FENCE_INTERVAL));
+            }
+        }
+
+        /**
+         * @return the index of the last fence before {@code prefix}, or 0
+         */
+        private int fenceOf(long prefix) {
+            int lo = 0;
+            int hi = fences.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (fences[mid] < prefix) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid - 1;
+                }
+            }
+            return Math.max(0, lo - 1);
+        }
+
+        /**
+         * @return the index of the first fence after {@code fence} with a prefix greater than {@code prefix}, or the
+         * number of fences
+         */
+        private int fenceAfter(long prefix, int fence) {
+            int lo = fence + 1;
+            int hi = fences.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (fences[mid] <= prefix) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid - 1;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * @return the result of comparing the key of record {@code record} to {@code key} (with the prefix
+         * {@code prefix}), as unsigned bytes
+         */
+        private int compare(long record, byte[] key, long prefix) {
+            MappedByteBuffer window = windows[(int) (record / recordsPerWindow)];
+            int pos = (int) (record % recordsPerWindow) * recordSize;
+            int i = 0;
+            if (width >= Long.BYTES) {
+                // The first 8 bytes in one (big-endian) read
+                int cmp = Long.compare(window.getLong(pos) ^ Long.MIN_VALUE, prefix);
+                if (cmp != 0) {
+                    return cmp;
+                }
+                i = Long.BYTES;
+            }
+            for (; i < width; i++) {
+                int cmp = Byte.compareUnsigned(window.get(pos + i), key[i]);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+
+        private byte[] key(long record) {
+            return bytes(record, 0);
+        }
+
+        private byte[] value(long record) {
+            return bytes(record, width);
+        }
+
+        private byte[] bytes(long record, int offset) {
+            MappedByteBuffer window = windows[(int) (record / recordsPerWindow)];
+            int pos = (int) (record % recordsPerWindow) * recordSize + offset;
+            byte[] bytes = new byte[width];
+            for (int i = 0; i < width; i++) {
+                bytes[i] = window.get(pos + i);
+            }
+            return bytes;
+        }
+    }
+
+}
@@ -0,0 +1,269 @@
+package no.ssb.crypto.tink.fpe.pipeline;
+
+import com.google.crypto.tink.KeysetHandle;
+import lombok.NonNull;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.FpeSession;
+import no.ssb.crypto.tink.fpe.IncompatiblePlaintextException;
+import no.ssb.crypto.tink.fpe.UnknownCharacterStrategy;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * PseudonymIndexBuilder precomputes a {@link PseudonymIndex} file for a known universe of values, such as all
+ * national identity numbers ever issued, using all cores.
+ *
+ * <pre>
+ * PipelineResult result = PseudonymIndexBuilder.with(keysetHandle)
+ *         .params(FpeParams.with().tweak(fnrTweak))
+ *         .build(valuesFile, indexFile);
+ * </pre>
+ *
+ * <p>The values file holds one value per line (empty lines are ignored), and all values must have the same number of
+ * bytes. The values are encrypted in parallel, with one primitive per worker thread, and written to the index twice:
+ * sorted by plaintext (for encryption) and sorted by ciphertext (for decryption), see {@link PseudonymIndex} for the
+ * layout. All values and ciphertexts are held in memory while the index is built, i.e. about 2 bytes per byte of the
+ * universe, plus 12 bytes per value.</p>
+ *
+ * <p>Only the FAIL and SKIP strategies are supported, since a ciphertext must decrypt to exactly one value.</p>
+ */
+public final class PseudonymIndexBuilder {
+
+    private final KeysetHandle keysetHandle;
+    private FpeParams params = FpeParams.DEFAULT;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private PseudonymIndexBuilder(KeysetHandle keysetHandle) {
+        this.keysetHandle = keysetHandle;
+    }
+
+    /**
+     * @return a new PseudonymIndexBuilder using the primary key of {@code keysetHandle}
+     */
+    public static PseudonymIndexBuilder with(@NonNull KeysetHandle keysetHandle) {
+        return new PseudonymIndexBuilder(keysetHandle);
+    }
+
+    /**
+     * params are the params used to encrypt the values. The index is only used for lookups with the same tweak,
+     * strategy and charset. Defaults to {@link FpeParams#DEFAULT}.
+     *
+     * @throws IllegalArgumentException if the unknown character strategy is not FAIL or SKIP
+     */
+    public PseudonymIndexBuilder params(@NonNull FpeParams params) {
+        UnknownCharacterStrategy strategy = params.getUnknownCharacterStrategy();
+        if (strategy != UnknownCharacterStrategy.FAIL && strategy != UnknownCharacterStrategy.SKIP) {
+            throw new IllegalArgumentException("the unknown character strategy must be FAIL or SKIP, but was "
+                    + strategy);
+        }
+        this.params = params;
+        return this;
+    }
+
+    /**
+     * threads is the number of worker threads. Defaults to the number of available processors.
+     */
+    public PseudonymIndexBuilder threads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive, but was " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Encrypt each value of {@code values} (one per line), and write the index to {@code index}.
+     *
+     * @return the statistics of the run, where rows is the number of values
+     * @throws IllegalArgumentException if the values do not have the same length, or a value occurs more than once
+     * @throws IncompatiblePlaintextException if a value is incompatible with the key or params
+     */
+    public PipelineResult build(@NonNull Path values, @NonNull Path index) throws IOException, GeneralSecurityException {
+        long startTime = System.nanoTime();
+        Universe universe = Universe.read(values);
+        int width = Math.max(universe.width, 0);
+        int count = universe.count;
+        byte[] plaintexts = universe.values;
+        byte[] ciphertexts = new byte[plaintexts.length];
+
+        ExecutorService executor = Pipelines.newExecutor("fpe-pseudonym-index", threads);
+        try {
+            List<Future<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int from = (int) ((long) count * t / threads);
+                int to = (int) ((long) count * (t + 1) / threads);
+                tasks.add(executor.submit(() -> {
+                    encrypt(plaintexts, ciphertexts, width, from, to);
+                    return null;
+                }));
+            }
+            for (Future<Void> task : tasks) {
+                Pipelines.await(task);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        int[] byPlaintext = sortedOrder(plaintexts, width, count);
+        for (int i = 1; i < count; i++) {
+            if (Arrays.equals(plaintexts, byPlaintext[i - 1] * width, byPlaintext[i - 1] * width + width,
+                    plaintexts, byPlaintext[i] * width, byPlaintext[i] * width + width)) {
+                throw new IllegalArgumentException("the values must be unique, but value " + (byPlaintext[i] + 1)
+                        + " is the same as value " + (byPlaintext[i - 1] + 1));
+            }
+        }
+        int[] byCiphertext = sortedOrder(ciphertexts, width, count);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(index),
+                64 * 1024))) {
+            PseudonymIndex.writeHeader(out, width, count, params);
+            writeSection(out, plaintexts, ciphertexts, byPlaintext, width);
+            writeSection(out, ciphertexts, plaintexts, byCiphertext, width);
+        }
+        return new PipelineResult(count, Files.size(values), Files.size(index),
+                Duration.ofNanos(System.nanoTime() - startTime));
+    }
+
+    /**
+     * Encrypt values {@code from} (inclusive) to {@code to} (exclusive), using a primitive of the calling thread.
+     */
+    private void encrypt(byte[] plaintexts, byte[] ciphertexts, int width, int from, int to)
+            throws GeneralSecurityException {
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams compiled = fpe.compile(params);
+        FpeSession session = FpeSession.create();
+        // Room for a longer ciphertext, which is detected and rejected
+        byte[] scratch = new byte[width * 3 + 16];
+        for (int i = from; i < to; i++) {
+            int n;
+            try {
+                n = fpe.encrypt(plaintexts, i * width, width, scratch, 0, compiled, session);
+                if (n != width) {
+                    throw new IncompatiblePlaintextException("the ciphertext is " + n + " bytes, but must be "
+                            + width + " bytes");
+                }
+            }
+            catch (IllegalArgumentException e) {
+                throw new IncompatiblePlaintextException("Error encrypting value " + (i + 1) + ": " + e.getMessage(),
+                        e);
+            }
+            System.arraycopy(scratch, 0, ciphertexts, i * width, width);
+        }
+    }
+
+    private static void writeSection(OutputStream out, byte[] keys, byte[] values, int[] order, int width)
+            throws IOException {
+        for (int i : order) {
+            out.write(keys, i * width, width);
+            out.write(values, i * width, width);
+        }
+    }
+
+    /**
+     * @return the indexes of the {@code count} records of {@code width} bytes in {@code records}, in the unsigned
+     * lexicographic order of the records. The records are sorted using an LSD radix sort, one pass per byte.
+     */
+    static int[] sortedOrder(byte[] records, int width, int count) {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        int[] sorted = new int[count];
+        int[] offsets = new int[257];
+        for (int pos = width - 1; pos >= 0; pos--) {
+            Arrays.fill(offsets, 0);
+            for (int i = 0; i < count; i++) {
+                offsets[(records[i * width + pos] & 0xFF) + 1]++;
+            }
+            for (int b = 0; b < 256; b++) {
+                offsets[b + 1] += offsets[b];
+            }
+            for (int i : order) {
+                sorted[offsets[records[i * width + pos] & 0xFF]++] = i;
+            }
+            int[] tmp = order;
+            order = sorted;
+            sorted = tmp;
+        }
+        return order;
+    }
+
+    /**
+     * Universe holds the values of a values file, back to back
+     */
+    private static final class Universe {
+        private int width = -1;
+        private int count;
+        private byte[] values = new byte[64 * 1024];
+
+        private static Universe read(Path file) throws IOException {
+            Universe universe = new Universe();
+            byte[] line = new byte[256];
+            int len = 0;
+            long lineNumber = 1;
+            try (InputStream in = Files.newInputStream(file)) {
+                byte[] buffer = new byte[64 * 1024];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    for (int i = 0; i < n; i++) {
+                        byte b = buffer[i];
+                        if (b == '\n') {
+                            universe.add(line, len, lineNumber++);
+                            len = 0;
+                        }
+                        else {
+                            if (len == line.length) {
+                                line = Arrays.copyOf(line, line.length * 2);
+                            }
+                            line[len++] = b;
+                        }
+                    }
+                }
+            }
+            universe.add(line, len, lineNumber);
+            return universe;
+        }
+
+        private void add(byte[] line, int len, long lineNumber) {
+            if (len > 0 && line[len - 1] == '\r') {
+                len--;
+            }
+            if (len == 0) {
+                return;
+            }
+            if (width < 0) {
+                width = len;
+            }
+            else if (len != width) {
+                throw new IllegalArgumentException("line " + lineNumber + " has " + len
+                        + " bytes, but the values must all have " + width + " bytes");
+            }
+            long size = (long) (count + 1) * width;
+            if (size > Integer.MAX_VALUE - 16) {
+                throw new IllegalArgumentException("the values file is too large (max " + (Integer.MAX_VALUE - 16)
+                        + " bytes of values)");
+            }
+            if (size > values.length) {
+                values = Arrays.copyOf(values, (int) Math.min(Integer.MAX_VALUE - 16, Math.max(size,
+                        2L * values.length)));
+            }
+            System.arraycopy(line, 0, values, count * width, width);
+            count++;
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+package no.ssb.crypto.tink.fpe.text;
+
+import com.google.common.base.CharMatcher;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Alphabet is the set of characters that a format-preserving cipher operates on, with O(1) lookups between
+ * characters and their numerals (the index of the character in the alphabet).
+ *
+ * <p>The lookup tables are computed once, when the alphabet is created:</p>
+ * <ul>
+ *     <li>a dense index to character table</li>
+ *     <li>a dense character to index table, sized to hold the largest character of the alphabet</li>
+ *     <li>a membership bitset, one bit per character of the Basic Multilingual Plane up to the largest character of
+ *     the alphabet</li>
+ * </ul>
+ *
+ * <p>An Alphabet is immutable and can be shared between threads.</p>
+ */
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
+public final class Alphabet {
+
+    /**
+     * chars are the characters of the alphabet, as given by the user
+     */
+    @EqualsAndHashCode.Include
+    private final String chars;
+
+    /**
+     * indexToChar maps from index (numeral) to character
+     */
+    private final char[] indexToChar;
+
+    /**
+     * charToIndex maps from character to index (numeral), or -1 if the character is not in the alphabet
+     */
+    private final int[] charToIndex;
+
+    /**
+     * members holds one bit per character, set if the character is in the alphabet
+     */
+    private final long[] members;
+
+    private Alphabet(String chars) {
+        if (chars.length() < 2) {
+            throw new IllegalArgumentException("alphabet must contain at least 2 characters");
+        }
+        this.chars = chars;
+        this.indexToChar = chars.toCharArray();
+
+        char maxChar = 0;
+        for (char c : indexToChar) {
+            maxChar = (char) Math.max(maxChar, c);
+        }
+        this.charToIndex = new int[maxChar + 1];
+        this.members = new long[(maxChar >>> 6) + 1];
+        Arrays.fill(charToIndex, -1);
+        for (int i = 0; i < indexToChar.length; i++) {
+            char c = indexToChar[i];
+            if (charToIndex[c] != -1) {
+                throw new IllegalArgumentException("alphabet contains duplicate character '" + c + "'");
+            }
+            charToIndex[c] = i;
+            members[c >>> 6] |= 1L << c;
+        }
+    }
+
+    /**
+     * @param chars the characters of the alphabet, in numeral order. Must contain at least 2 distinct characters.
+     * @throws IllegalArgumentException if the alphabet is too short or contains duplicate characters
+     */
+    public static Alphabet of(@NonNull String chars) {
+        return new Alphabet(chars);
+    }
+
+    public static Alphabet of(@NonNull CharacterGroup characterGroup) {
+        return new Alphabet(characterGroup.getChars());
+    }
+
+    /**
+     * @return the number of characters in the alphabet
+     */
+    public int radix() {
+        return indexToChar.length;
+    }
+
+    /**
+     * @return the largest character of the alphabet. If it is at most U+007F (or U+00FF), all characters of the
+     * alphabet are represented by a single byte in ASCII and UTF-8 (or ISO-8859-1).
+     */
+    public char maxChar() {
+        return (char) (charToIndex.length - 1);
+    }
+
+    /**
+     * @return true if {@code c} is part of the alphabet
+     */
+    public boolean contains(char c) {
+        int word = c >>> 6;
+        return word < members.length && (members[word] & (1L << c)) != 0;
+    }
+
+    /**
+     * @return the index (numeral) of {@code c}, or -1 if {@code c} is not part of the alphabet
+     */
+    public int indexOf(char c) {
+        return c < charToIndex.length ? charToIndex[c] : -1;
+    }
+
+    /**
+     * @return the character with index (numeral) {@code index}
+     * @throws ArrayIndexOutOfBoundsException if the index is not within the alphabet
+     */
+    public char charAt(int index) {
+        return indexToChar[index];
+    }
+
+    /**
+     * Convert {@code len} characters of {@code src} (starting at {@code srcPos}) to numerals.
+     *
+     * @throws IllegalArgumentException if a character is not part of the alphabet
+     */
+    public void toIndexes(char[] src, int srcPos, int len, int[] dst) {
+        for (int i = 0; i < len; i++) {
+            dst[i] = numeralOf(src[srcPos + i]);
+        }
+    }
+
+    /**
+     * Convert {@code len} numerals of {@code src} to characters, writing them to {@code dst} (starting at
+     * {@code dstPos}).
+     */
+    public void toChars(int[] src, int len, char[] dst, int dstPos) {
+        for (int i = 0; i < len; i++) {
+            dst[dstPos + i] = indexToChar[src[i]];
+        }
+    }
+
+    /**
+     * Convert {@code len} single-byte characters of {@code src} (starting at {@code srcPos}) to numerals. Each byte
+     * is the character {@code b & 0xFF}, i.e. as decoded by ISO-8859-1.
+     *
+     * @throws IllegalArgumentException if a character is not part of the alphabet
+     */
+    public void toIndexes(byte[] src, int srcPos, int len, int[] dst) {
+        for (int i = 0; i < len; i++) {
+            dst[i] = numeralOf((char) (src[srcPos + i] & 0xFF));
+        }
+    }
+
+    /**
+     * Convert {@code len} numerals of {@code src} to single-byte characters, writing them to {@code dst} (starting at
+     * {@code dstPos}). Only applicable if {@link #maxChar()} is at most U+00FF.
+     */
+    public void toBytes(int[] src, int len, byte[] dst, int dstPos) {
+        for (int i = 0; i < len; i++) {
+            dst[dstPos + i] = (byte) indexToChar[src[i]];
+        }
+    }
+
+    /**
+     * @return the index (numeral) of {@code c}
+     * @throws IllegalArgumentException if {@code c} is not part of the alphabet
+     */
+    public int numeralOf(char c) {
+        int index = indexOf(c);
+        if (index == -1) {
+            throw new IllegalArgumentException("character '" + c + "' is not part of the alphabet");
+        }
+        return index;
+    }
+
+    /**
+     * @return a CharMatcher that matches the characters of the alphabet, backed by the membership bitset
+     */
+    public CharMatcher matcher() {
+        return new CharMatcher() {
+            @Override
+            public boolean matches(char c) {
+                return contains(c);
+            }
+
+            @Override
+            public String toString() {
+                return "Alphabet.matcher(" + chars + ")";
+            }
+        };
+    }
+
+    /**
+     * @return the characters of the alphabet, in numeral order
+     */
+    @Override
+    public String toString() {
+        return chars;
+    }
+
+}
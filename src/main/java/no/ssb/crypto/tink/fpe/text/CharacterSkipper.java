@@ -2,35 +2,58 @@ package no.ssb.crypto.tink.fpe.text;
 
 
 import com.google.common.base.CharMatcher;
-import lombok.Value;
-
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * CharacterSkipper is used for removing "non-allowed" characters from a string.
  *
  * It keeps track of removed/skipped characters including their original indexes, and provides a function for
  * injecting these characters at their respective indexes.
+ *
+ * The skipped characters and their indexes are kept in parallel arrays, and are injected in a single pass over the
+ * text, so both removing and injecting is linear in the length of the text.
  */
 public class CharacterSkipper {
-    private final List<IndexedCharacter> skipped = new ArrayList<>();
+    private static final int[] NO_POSITIONS = new int[0];
+    private static final char[] NO_CHARS = new char[0];
+
+    private final int[] skippedPositions;
+    private final char[] skippedChars;
+    private final int skippedCount;
     private final String processedText;
-    private final CharMatcher filter;
 
     public CharacterSkipper(String text, String allowedChars) {
-        filter = CharMatcher.noneOf(allowedChars);
-        StringBuilder retained = new StringBuilder();
-        char[] textChars = text.toCharArray();
-        for (int i = 0; i < textChars.length; i++) {
-            if (filter.matches(textChars[i])) {
-                skipped.add(new IndexedCharacter(i, textChars[i]));
+        this(text, CharMatcher.anyOf(allowedChars));
+    }
+
+    /**
+     * @param allowed matches the allowed characters. Use a precomputed matcher if many texts are processed.
+     */
+    public CharacterSkipper(String text, CharMatcher allowed) {
+        int len = text.length();
+        char[] retained = new char[len];
+        int[] positions = NO_POSITIONS;
+        char[] chars = NO_CHARS;
+        int retainedCount = 0;
+        int count = 0;
+        for (int i = 0; i < len; i++) {
+            char c = text.charAt(i);
+            if (allowed.matches(c)) {
+                retained[retainedCount++] = c;
             }
             else {
-                retained.append(textChars[i]);
+                if (count == 0) {
+                    // At most all remaining characters are skipped
+                    positions = new int[len - i];
+                    chars = new char[len - i];
+                }
+                positions[count] = i;
+                chars[count++] = c;
             }
         }
-        processedText = retained.toString();
+        this.skippedPositions = positions;
+        this.skippedChars = chars;
+        this.skippedCount = count;
+        this.processedText = count == 0 ? text : new String(retained, 0, retainedCount);
     }
 
     /**
@@ -44,31 +67,43 @@ public class CharacterSkipper {
      * @return true if the CharacterSkipper has removed any characters
      */
     public boolean hasSkipped() {
-        return ! skipped.isEmpty();
+        return skippedCount > 0;
     }
 
     /**
      * Inject skipped characters at their respective indexes into a string.
      *
+     * The text is expanded in place, merging the existing characters and the skipped characters from the end.
+     *
      * @param text the StringBuilder to be injected with skipped characters
      */
     public void injectSkippedInto(StringBuilder text) {
-        for (IndexedCharacter c : skipped) {
-            text.insert(c.getPos(), c.getCharacter());
+        if (skippedCount == 0) {
+            return;
+        }
+        int from = text.length() - 1;
+        int to = text.length() + skippedCount - 1;
+        if (skippedPositions[skippedCount - 1] > to) {
+            throw new StringIndexOutOfBoundsException("skipped character at index " + skippedPositions[skippedCount - 1]
+                    + " cannot be injected into text of length " + text.length());
+        }
+        text.setLength(to + 1);
+        for (int s = skippedCount - 1; s >= 0; to--) {
+            if (skippedPositions[s] == to) {
+                text.setCharAt(to, skippedChars[s--]);
+            }
+            else {
+                text.setCharAt(to, text.charAt(from--));
+            }
         }
-    }
-
-    /**
-     * "Tuple class" used by the CharacterSkipper for keeping track of skipped characters and their indexes.
-     */
-    @Value
-    static class IndexedCharacter {
-        private final int pos;
-        private final char character;
     }
 
     public static CharacterSkipper of(String text, String allowedChars) {
         return new CharacterSkipper(text, allowedChars);
     }
 
+    public static CharacterSkipper of(String text, CharMatcher allowed) {
+        return new CharacterSkipper(text, allowed);
+    }
+
 }
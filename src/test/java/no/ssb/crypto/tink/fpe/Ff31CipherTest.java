@@ -0,0 +1,157 @@
+package no.ssb.crypto.tink.fpe;
+
+import com.privacylogistics.FF3Cipher;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static no.ssb.crypto.tink.fpe.text.CharacterGroup.*;
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.byteArrayToHexString;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class Ff31CipherTest {
+
+    /**
+     * An alphabet with radix 84. With 15 characters per half, numbers can occupy all 96 bits of the round function
+     * input block, which triggers a quirk in Mysto that must be replicated.
+     */
+    private static final String ALPHABET_RADIX_84 = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz!#$%&()*+,-./:;<=>?@[]";
+
+    @ParameterizedTest
+    @ValueSource(strings = {"0123456789", "01", "ABCDEFGHIJKLMNOPQRSTUVWXYZ", "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz", "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZÅÆØabcdefghijklmnopqrstuvwxyzåæø", ALPHABET_RADIX_84})
+    void encryptDecrypt_shouldMatchMysto(String alphabet) throws Exception {
+        Random random = new Random(alphabet.hashCode());
+        for (int keySize : new int[] {16, 24, 32}) {
+            byte[] key = randomBytes(random, keySize);
+            Ff31Cipher cipher = new Ff31Cipher(key, alphabet);
+            for (int tweakSize : new int[] {7, 8}) {
+                byte[] tweak = randomBytes(random, tweakSize);
+                FF3Cipher mysto = new FF3Cipher(byteArrayToHexString(key), byteArrayToHexString(tweak), alphabet);
+                for (int len = cipher.minLength(); len <= Math.min(cipher.maxLength(), 40); len++) {
+                    char[] plaintext = randomText(random, alphabet, len);
+                    String expected = mysto.encrypt(new String(plaintext));
+
+                    char[] ciphertext = new char[len];
+                    cipher.encrypt(plaintext, 0, len, ciphertext, 0, tweak);
+                    assertThat(new String(ciphertext)).isEqualTo(expected);
+
+                    cipher.decrypt(ciphertext, 0, len, ciphertext, 0, tweak);
+                    assertThat(ciphertext).isEqualTo(plaintext);
+                }
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"0123456789", "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz", ALPHABET_RADIX_84})
+    void batch_shouldMatchSingleChunks(String alphabet) throws Exception {
+        Random random = new Random(alphabet.hashCode());
+        Ff31Cipher cipher = new Ff31Cipher(randomBytes(random, 32), alphabet);
+        Ff31Cipher.Batch batch = cipher.batch();
+        byte[][] tweaks = {randomBytes(random, 7), randomBytes(random, 8)};
+
+        // More chunks than fit in a batch, of all lengths (both long and 128 bits arithmetic), in chars and bytes
+        int numChunks = Ff31Cipher.Batch.MAX_CHUNKS * 2 + 5;
+        char[][] plaintexts = new char[numChunks][];
+        char[][] texts = new char[numChunks][];
+        byte[][] bytes = new byte[numChunks][];
+        for (int i = 0; i < numChunks; i++) {
+            int len = cipher.minLength() + random.nextInt(Math.min(cipher.maxLength(), 30) - cipher.minLength() + 1);
+            plaintexts[i] = randomText(random, alphabet, len);
+            texts[i] = plaintexts[i].clone();
+            bytes[i] = new String(plaintexts[i]).getBytes(StandardCharsets.ISO_8859_1);
+            batch.add(texts[i], 0, len, tweaks[i % 2], true);
+            batch.add(bytes[i], 0, len, tweaks[i % 2], true);
+        }
+        batch.flush();
+        assertThat(batch.size()).isZero();
+
+        for (int i = 0; i < numChunks; i++) {
+            char[] expected = new char[plaintexts[i].length];
+            cipher.encrypt(plaintexts[i], 0, expected.length, expected, 0, tweaks[i % 2]);
+            assertThat(texts[i]).isEqualTo(expected);
+            assertThat(new String(bytes[i], StandardCharsets.ISO_8859_1)).isEqualTo(new String(expected));
+            batch.add(texts[i], 0, expected.length, tweaks[i % 2], false);
+        }
+        batch.flush();
+        for (int i = 0; i < numChunks; i++) {
+            assertThat(texts[i]).isEqualTo(plaintexts[i]);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {2, 3, 33})
+    void encrypt_lengthOutOfBounds_shouldFail(int len) throws Exception {
+        Ff31Cipher cipher = new Ff31Cipher(new byte[16], ALPHANUMERIC.getChars());
+        char[] text = new char[len];
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> cipher.encrypt(text, 0, len, text, 0, new byte[7]))
+                .withMessage("message length " + len + " is not within min 4 and max 32 bounds");
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 6, 9, 16})
+    void encrypt_invalidTweakLength_shouldFail(int tweakSize) throws Exception {
+        Ff31Cipher cipher = new Ff31Cipher(new byte[16], DIGITS.getChars());
+        char[] text = "123456".toCharArray();
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> cipher.encrypt(text, 0, text.length, text, 0, new byte[tweakSize]))
+                .withMessage("tweak length " + tweakSize + " is invalid: tweak must be 56 or 64 bits");
+    }
+
+    @Test
+    void codebooks_shouldOnlyBeUsedForTheEnabledTweak() throws Exception {
+        Ff31Cipher cipher = new Ff31Cipher(new byte[16], DIGITS.getChars());
+        byte[] tweak = new byte[8];
+        // Room for the 6 digits codebook (8 MB), but not the 7 digits one
+        byte[] codebookTweak = cipher.codebooks().enable(tweak, 10_000_000);
+
+        assertThat(cipher.codebooks().get(tweak, 6)).isNull();
+        assertThat(cipher.codebooks().get(codebookTweak, 6)).isNotNull();
+        assertThat(cipher.codebooks().get(codebookTweak, 7)).isNull();
+        assertThat(cipher.codebooks().enable(tweak, 10_000_000)).isSameAs(codebookTweak);
+        // The first budget of a tweak is kept
+        assertThat(cipher.codebooks().enable(tweak, 100_000_000)).isSameAs(codebookTweak);
+        assertThat(cipher.codebooks().get(codebookTweak, 7)).isNull();
+    }
+
+    @Test
+    void codebooks_leastRecentlyUsedTweak_shouldBeDisabled() throws Exception {
+        Ff31Cipher cipher = new Ff31Cipher(new byte[16], DIGITS.getChars());
+        Ff31Codebooks codebooks = new Ff31Codebooks(cipher, 10, 1);
+        byte[] tweak = codebooks.enable(new byte[8], 10_000_000);
+        assertThat(codebooks.get(tweak, 6)).isNotNull();
+        long memoryUsed = Ff31Codebooks.memoryUsed();
+
+        byte[] otherTweak = codebooks.enable(new byte[] {1, 0, 0, 0, 0, 0, 0, 0}, 10_000_000);
+        // The memory of the 6 digits codebook (8 MB) is released right away
+        assertThat(Ff31Codebooks.memoryUsed()).isLessThanOrEqualTo(memoryUsed - 8_000_000);
+        assertThat(codebooks.get(tweak, 6)).isNull();
+        assertThat(codebooks.get(otherTweak, 6)).isNotNull();
+
+        // Enabling the tweak again rebuilds its codebooks
+        byte[] enabledAgain = codebooks.enable(new byte[8], 10_000_000);
+        assertThat(enabledAgain).isNotSameAs(tweak);
+        assertThat(codebooks.get(otherTweak, 6)).isNull();
+        assertThat(codebooks.get(enabledAgain, 6)).isNotNull();
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static char[] randomText(Random random, String alphabet, int len) {
+        char[] text = new char[len];
+        for (int i = 0; i < len; i++) {
+            text[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+        }
+        return text;
+    }
+
+}
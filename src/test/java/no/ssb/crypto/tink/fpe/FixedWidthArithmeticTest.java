@@ -0,0 +1,77 @@
+package no.ssb.crypto.tink.fpe;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FixedWidthArithmeticTest {
+
+    private static final BigInteger TWO_64 = BigInteger.ONE.shiftLeft(64);
+
+    @Test
+    void remainder_shouldMatchBigInteger() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            long hi = random.nextLong();
+            long lo = random.nextLong();
+            long m = 2 + (random.nextLong() >>> (1 + random.nextInt(62)));
+            assertThat(FixedWidthArithmetic.remainder(hi, lo, m))
+                    .isEqualTo(toBigInteger(hi, lo).mod(BigInteger.valueOf(m)).longValueExact());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {2, 10, 26, 62, 84, 256})
+    void num128AndAddMod_shouldMatchBigInteger(int radix) {
+        Random random = new Random(radix);
+        int chunkDigits = FixedWidthArithmetic.maxDigits(radix, 31);
+        int chunkPow = (int) FixedWidthArithmetic.pow(radix, chunkDigits);
+        // The max length of an FF3-1 half: radix^len <= 2^96
+        int maxLen = (int) Math.floor(96 / (Math.log(radix) / Math.log(2)));
+        long[] num = new long[2];
+
+        for (int len = 1; len <= maxLen; len++) {
+            BigInteger mod = BigInteger.valueOf(radix).pow(len);
+            for (boolean subtract : new boolean[] {false, true}) {
+                int[] x = randomNumerals(random, radix, len);
+                long yHi = random.nextLong();
+                long yLo = random.nextLong();
+
+                FixedWidthArithmetic.num128(x, x.length, radix, chunkDigits, chunkPow, num);
+                BigInteger numX = toBigInteger(num[0], num[1]);
+                assertThat(numX).isEqualTo(numOf(x, radix));
+
+                BigInteger y = toBigInteger(yHi, yLo);
+                BigInteger expected = (subtract ? numX.subtract(y) : numX.add(y)).mod(mod);
+                FixedWidthArithmetic.addMod(x, len, yHi, yLo, radix, chunkDigits, chunkPow, subtract);
+                assertThat(numOf(x, radix)).isEqualTo(expected);
+            }
+        }
+    }
+
+    private static BigInteger toBigInteger(long hi, long lo) {
+        return new BigInteger(Long.toUnsignedString(hi)).multiply(TWO_64).add(new BigInteger(Long.toUnsignedString(lo)));
+    }
+
+    private static BigInteger numOf(int[] x, int radix) {
+        BigInteger num = BigInteger.ZERO;
+        for (int i = x.length - 1; i >= 0; i--) {
+            num = num.multiply(BigInteger.valueOf(radix)).add(BigInteger.valueOf(x[i]));
+        }
+        return num;
+    }
+
+    private static int[] randomNumerals(Random random, int radix, int len) {
+        int[] x = new int[len];
+        for (int i = 0; i < len; i++) {
+            x[i] = random.nextInt(radix);
+        }
+        return x;
+    }
+
+}
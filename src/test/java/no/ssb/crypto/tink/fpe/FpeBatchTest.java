@@ -0,0 +1,109 @@
+package no.ssb.crypto.tink.fpe;
+
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static no.ssb.crypto.tink.fpe.FpeFfxKeyType.FPE_FF31_256_ALPHANUMERIC;
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.b2s;
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.s2b;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class FpeBatchTest {
+
+    @BeforeAll
+    static void initTink() throws Exception {
+        FpeConfig.register();
+    }
+
+    @Test
+    void encryptBatch_shouldMatchSingleValueCalls() throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name()));
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.SKIP);
+        List<byte[]> plaintexts = List.of(s2b("Oslo"), s2b("Bergen"), new byte[0], s2b("Oslo"), s2b("Trondheim"), s2b("Bergen"));
+
+        FpeBatch.Builder ciphertexts = FpeBatch.builder(0, 0);
+        fpe.encryptBatch(FpeBatch.of(plaintexts), params, ciphertexts);
+        FpeBatch result = ciphertexts.build();
+        assertThat(result.size()).isEqualTo(plaintexts.size());
+        for (int i = 0; i < plaintexts.size(); i++) {
+            assertThat(result.get(i)).isEqualTo(fpe.encrypt(plaintexts.get(i), params));
+        }
+
+        FpeBatch.Builder decrypted = FpeBatch.builder(plaintexts.size(), 64);
+        fpe.decryptBatch(result, params, decrypted);
+        assertThat(decrypted.build().toList()).containsExactlyElementsOf(plaintexts);
+    }
+
+    @Test
+    void encryptBatch_shouldEncryptEachDistinctValueOnce() throws Exception {
+        List<byte[]> encrypted = new ArrayList<>();
+        Fpe fpe = new Fpe() {
+            @Override
+            public byte[] encrypt(byte[] plaintext, FpeParams params) {
+                encrypted.add(plaintext);
+                return plaintext;
+            }
+
+            @Override
+            public byte[] decrypt(byte[] ciphertext, FpeParams params) {
+                return ciphertext;
+            }
+        };
+        byte[] data = s2b("MFMMFXF");
+        FpeBatch batch = FpeBatch.of(data, new int[] {0, 1, 2, 3, 4, 5, 6, 7});
+
+        FpeBatch.Builder output = FpeBatch.builder(batch.size(), data.length);
+        fpe.encryptBatch(batch, FpeParams.DEFAULT, output);
+        assertThat(encrypted).containsExactly(s2b("M"), s2b("F"), s2b("X"));
+        assertThat(output.build().data()).startsWith(data);
+    }
+
+    @Test
+    void encryptBatch_longerResults_shouldGrowTheOutput() throws Exception {
+        Fpe fpe = new Fpe() {
+            @Override
+            public byte[] encrypt(byte[] plaintext, FpeParams params) {
+                return s2b(b2s(plaintext).repeat(3));
+            }
+
+            @Override
+            public byte[] decrypt(byte[] ciphertext, FpeParams params) {
+                return ciphertext;
+            }
+        };
+        FpeBatch.Builder output = FpeBatch.builder(0, 0).add(s2b("x"));
+        fpe.encryptBatch(FpeBatch.of(List.of(s2b("ab"), s2b("c"), s2b("ab"))), FpeParams.DEFAULT, output);
+        assertThat(output.build().toList()).containsExactly(s2b("x"), s2b("ababab"), s2b("ccc"), s2b("ababab"));
+    }
+
+    @Test
+    void builder_shouldGrowAndBeReusable() {
+        FpeBatch.Builder builder = FpeBatch.builder(1, 1);
+        builder.add(s2b("abc")).add(s2b("defgh")).add(new byte[0]);
+        FpeBatch batch = builder.build();
+        assertThat(batch.size()).isEqualTo(3);
+        assertThat(batch.get(1)).isEqualTo(s2b("defgh"));
+        assertThat(batch.length(2)).isZero();
+
+        builder.clear().add(s2b("xyz"));
+        assertThat(builder.build().toList()).containsExactly(s2b("xyz"));
+    }
+
+    @Test
+    void of_invalidOffsets_shouldFail() {
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> FpeBatch.of(new byte[4], new int[] {0, 3, 2}))
+                .withMessage("offsets must be non-negative and non-decreasing");
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> FpeBatch.of(new byte[4], new int[] {0, 5}))
+                .withMessage("offsets must not exceed the length of data");
+    }
+
+}
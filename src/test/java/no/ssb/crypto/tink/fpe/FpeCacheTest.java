@@ -0,0 +1,155 @@
+package no.ssb.crypto.tink.fpe;
+
+import com.google.common.cache.CacheStats;
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.KeysetManager;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static no.ssb.crypto.tink.fpe.FpeFfxKeyType.FPE_FF31_256_ALPHANUMERIC;
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.s2b;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FpeCacheTest {
+
+    @BeforeAll
+    static void initTink() throws Exception {
+        FpeConfig.register();
+    }
+
+    @Test
+    void encryptAndDecrypt_shouldCacheBothDirections() throws Exception {
+        Fpe fpe = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name())).getPrimitive(Fpe.class);
+        List<String> calls = new ArrayList<>();
+        FpeCache cache = FpeCache.create(1024 * 1024);
+        Fpe cached = cache.wrap(countingFpe(fpe, calls), 1);
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.SKIP);
+
+        byte[] ciphertext = cached.encrypt(s2b("Ola Nordmann"), params);
+        assertThat(ciphertext).isEqualTo(fpe.encrypt(s2b("Ola Nordmann"), params));
+        assertThat(cached.encrypt(s2b("Ola Nordmann"), params)).isEqualTo(ciphertext);
+        assertThat(cached.decrypt(ciphertext, params)).isEqualTo(s2b("Ola Nordmann"));
+        assertThat(calls).containsExactly("encrypt");
+
+        // Another tweak and another direction (without the inverse, since REDACT is lossy) are separate entries
+        FpeParams redact = FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.REDACT)
+                .tweak(s2b("1234567"));
+        byte[] redacted = cached.encrypt(s2b("Ola Nordmann"), redact);
+        cached.decrypt(redacted, redact);
+        assertThat(calls).containsExactly("encrypt", "encrypt", "decrypt");
+
+        CacheStats stats = cache.stats();
+        assertThat(stats.hitCount()).isEqualTo(2);
+        assertThat(stats.missCount()).isEqualTo(3);
+        assertThat(cache.size()).isEqualTo(4);
+    }
+
+    @Test
+    void decryptWithOldKey_shouldNotCacheTheInverse() throws Exception {
+        KeysetHandle oldKeyset = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name()));
+        int oldKeyId = oldKeyset.getKeysetInfo().getPrimaryKeyId();
+        KeysetHandle keyset = KeysetManager.withKeysetHandle(oldKeyset)
+                .add(KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name()))
+                .getKeysetHandle();
+        int newKeyId = keyset.getKeysetInfo().getKeyInfoList().stream()
+                .filter(k -> k.getKeyId() != oldKeyId).findFirst().orElseThrow().getKeyId();
+        keyset = KeysetManager.withKeysetHandle(keyset).setPrimary(newKeyId).getKeysetHandle();
+        FpeCache cache = FpeCache.create(1024 * 1024);
+        Fpe cached = cache.wrap(keyset);
+        byte[] oldCiphertext = oldKeyset.getPrimitive(Fpe.class).encrypt(s2b("OlaNordmann"));
+
+        assertThat(cached.decrypt(oldCiphertext, FpeParams.DEFAULT)).isEqualTo(s2b("OlaNordmann"));
+        assertThat(cached.encrypt(s2b("OlaNordmann"), FpeParams.DEFAULT))
+                .isEqualTo(keyset.getPrimitive(Fpe.class).encrypt(s2b("OlaNordmann")))
+                .isNotEqualTo(oldCiphertext);
+    }
+
+    @Test
+    void otherOperationsAndLongValues_shouldBeDelegated() throws Exception {
+        Fpe fpe = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name())).getPrimitive(Fpe.class);
+        List<String> calls = new ArrayList<>();
+        FpeCache cache = FpeCache.create(1024 * 1024, 16);
+        Fpe cached = cache.wrap(countingFpe(fpe, calls), 1);
+        byte[] longValue = s2b("abcdefghijklmnopq");
+
+        cached.encrypt(longValue, FpeParams.DEFAULT);
+        cached.encrypt(longValue, FpeParams.DEFAULT);
+        cached.encryptAll(List.of(s2b("Ola"), s2b("Nordmann")), FpeParams.DEFAULT);
+        assertThat(cached.encrypt("Nordmann", FpeParams.DEFAULT).toString())
+                .isEqualTo(fpe.encrypt("Nordmann", FpeParams.DEFAULT).toString());
+        assertThat(calls).containsExactly("encrypt", "encrypt", "encryptAll", "encryptText");
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void encryptInvalidBytes_shouldNotCacheTheInverse() throws Exception {
+        Fpe fpe = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name())).getPrimitive(Fpe.class);
+        List<String> calls = new ArrayList<>();
+        FpeCache cache = FpeCache.create(1024 * 1024);
+        Fpe cached = cache.wrap(countingFpe(fpe, calls), 1);
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.SKIP);
+        // 0xFF is not valid UTF-8, and is decoded as U+FFFD
+        byte[] plaintext = {'a', 'b', 'c', (byte) 0xFF, 'd', 'e', 'f'};
+
+        byte[] ciphertext = cached.encrypt(plaintext, params);
+        assertThat(cached.decrypt(ciphertext, params)).isEqualTo(fpe.decrypt(ciphertext, params))
+                .isNotEqualTo(plaintext);
+        assertThat(calls).containsExactly("encrypt", "decrypt");
+    }
+
+    @Test
+    void eviction_shouldBoundSizeAndKeepResultsIntact() throws Exception {
+        Fpe fpe = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name())).getPrimitive(Fpe.class);
+        FpeCache cache = FpeCache.create(10 * (FpeCache.ENTRY_OVERHEAD + 20));
+        Fpe cached = cache.wrap(fpe, 1);
+
+        List<byte[]> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            results.add(cached.encrypt(s2b("value" + (1000 + i)), FpeParams.DEFAULT));
+        }
+        assertThat(cache.size()).isLessThanOrEqualTo(10);
+        assertThat(cache.stats().evictionCount()).isGreaterThan(0);
+        for (int i = 0; i < 100; i++) {
+            assertThat(results.get(i)).isEqualTo(fpe.encrypt(s2b("value" + (1000 + i)), FpeParams.DEFAULT));
+        }
+
+        cache.invalidateAll();
+        assertThat(cache.size()).isZero();
+        assertThat(cached.decrypt(results.get(99), FpeParams.DEFAULT)).isEqualTo(s2b("value1099"));
+    }
+
+    private static Fpe countingFpe(Fpe fpe, List<String> calls) {
+        return new Fpe() {
+            @Override
+            public byte[] encrypt(byte[] plaintext, FpeParams params) throws GeneralSecurityException {
+                calls.add("encrypt");
+                return fpe.encrypt(plaintext, params);
+            }
+
+            @Override
+            public byte[] decrypt(byte[] ciphertext, FpeParams params) throws GeneralSecurityException {
+                calls.add("decrypt");
+                return fpe.decrypt(ciphertext, params);
+            }
+
+            @Override
+            public List<byte[]> encryptAll(List<byte[]> plaintexts, FpeParams params)
+                    throws GeneralSecurityException {
+                calls.add("encryptAll");
+                return fpe.encryptAll(plaintexts, params);
+            }
+
+            @Override
+            public CharSequence encrypt(CharSequence plaintext, FpeParams params) throws GeneralSecurityException {
+                calls.add("encryptText");
+                return fpe.encrypt(plaintext, params);
+            }
+        };
+    }
+
+}
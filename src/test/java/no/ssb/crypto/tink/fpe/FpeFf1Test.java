@@ -0,0 +1,93 @@
+package no.ssb.crypto.tink.fpe;
+
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static no.ssb.crypto.tink.fpe.UnknownCharacterStrategy.*;
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.b2s;
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.hexStringToByteArray;
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.s2b;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class FpeFf1Test {
+
+    @BeforeAll
+    static void initTink() throws Exception {
+        FpeConfig.register();
+    }
+
+    /**
+     * Sample vectors from https://csrc.nist.gov/CSRC/media/Projects/Cryptographic-Standards-and-Guidelines/documents/examples/FF1samples.pdf
+     */
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {
+            "2B7E151628AED2A6ABF7158809CF4F3C;0123456789;;0123456789;2433477484",
+            "2B7E151628AED2A6ABF7158809CF4F3C;0123456789;39383736353433323130;0123456789;6124200773",
+            "2B7E151628AED2A6ABF7158809CF4F3C;0123456789abcdefghijklmnopqrstuvwxyz;3737373770717273373737;0123456789abcdefghi;a9tv40mll9kdu509eum",
+            "2B7E151628AED2A6ABF7158809CF4F3CEF4359D8D580AA4F;0123456789;;0123456789;2830668132",
+            "2B7E151628AED2A6ABF7158809CF4F3CEF4359D8D580AA4F7F036D6F04FC6A94;0123456789;;0123456789;6657667009",
+    })
+    void ff1_nistSampleVectors(String key, String alphabet, String tweak, String plaintext, String expectedCiphertext) throws Exception {
+        Fpe fpe = new FpeFf1(hexStringToByteArray(key), alphabet);
+        FpeParams params = FpeParams.with().tweak(tweak == null ? new byte[0] : hexStringToByteArray(tweak));
+
+        byte[] ciphertext = fpe.encrypt(s2b(plaintext), params);
+        assertThat(b2s(ciphertext)).isEqualTo(expectedCiphertext);
+        assertThat(b2s(fpe.decrypt(ciphertext, params))).isEqualTo(plaintext);
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = FpeFfxKeyType.class, names = "FPE_FF1_.*", mode = EnumSource.Mode.MATCH_ALL)
+    void ff1_encryptAndDecryptLongTextInOneCall(FpeFfxKeyType keyType) throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(keyType.name()));
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(SKIP);
+
+        String plaintext = "Storgata 1, 0182 Oslo. Postboks 2633 St. Hanshaugen, 0131 Oslo. Kongsvingervegen 100, 2211 Kongsvinger";
+        byte[] ciphertext = fpe.encrypt(s2b(plaintext), params);
+        assertThat(b2s(ciphertext)).hasSameSizeAs(plaintext).isNotEqualTo(plaintext);
+        assertThat(b2s(fpe.decrypt(ciphertext, params))).isEqualTo(plaintext);
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz;A;1;4",
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz;abc;3;4",
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz;a b c;3;4",
+            "0123456789;1234;4;6",
+            "0123456789;12345;5;6",
+    })
+    void ff1_plaintextBelowMinLength_shouldFail(String alphabet, String plaintext, int len, int minLen)
+            throws Exception {
+        Fpe fpe = new FpeFf1(new byte[32], alphabet);
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(SKIP);
+        assertThatExceptionOfType(IncompatiblePlaintextException.class)
+                .isThrownBy(() -> fpe.encrypt(s2b(plaintext), params))
+                .withMessage("message length " + len + " is not within min " + minLen + " bounds");
+        assertThatExceptionOfType(IncompatiblePlaintextException.class)
+                .isThrownBy(() -> fpe.decrypt(s2b(plaintext), params));
+    }
+
+    @Test
+    void ff1_emptyOrSkippedOnlyPlaintext_shouldBeReturnedAsIs() throws Exception {
+        Fpe fpe = new FpeFf1(new byte[32], "0123456789");
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(SKIP);
+        assertThat(fpe.encrypt(new byte[0], params)).isEmpty();
+        assertThat(b2s(fpe.encrypt(s2b("--"), params))).isEqualTo("--");
+    }
+
+    @Test
+    void ff1_encryptUnknownCharsWithDefaultParams_shouldFail() throws Exception {
+        Fpe fpe = new FpeFf1(new byte[16], "0123456789");
+        assertThatExceptionOfType(IncompatiblePlaintextException.class)
+                .isThrownBy(() -> fpe.encrypt(s2b("12345-6789")))
+                .withMessage("Plaintext can only contain characters from the alphabet '0123456789'");
+    }
+
+}
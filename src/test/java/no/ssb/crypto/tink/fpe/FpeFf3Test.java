@@ -1,14 +1,37 @@
 package no.ssb.crypto.tink.fpe;
 
+import com.google.crypto.tink.KeyTemplate;
 import com.google.crypto.tink.KeyTemplates;
 import com.google.crypto.tink.KeysetHandle;
+import no.ssb.crypto.tink.fpe.text.Alphabet;
+import no.ssb.crypto.tink.fpe.text.CharacterGroup;
 import no.ssb.crypto.tink.fpe.util.TinkUtil;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.EnumSource;
 
+import javax.crypto.ShortBufferException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import static no.ssb.crypto.tink.fpe.FpeFfxKeyType.FPE_FF31_256_ALPHANUMERIC;
 import static no.ssb.crypto.tink.fpe.UnknownCharacterStrategy.*;
@@ -192,4 +215,570 @@ public class FpeFf3Test {
         assertThat(plaintextStr).isEqualTo(new String(latin1PlaintextRestored, StandardCharsets.ISO_8859_1));
     }
 
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {
+            "FPE_FF31_256_DIGITS",
+            "FPE_FF31_128_DIGITS",
+            "FPE_FF1_256_DIGITS",
+    })
+    void encryptNumber_shouldMatchEncryptedZeroPaddedString(FpeFfxKeyType keyType) throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(keyType.name()));
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams params = FpeParams.with().tweak(s2b("someTwk"));
+        Random random = new Random(42);
+
+        for (int digits = 6; digits <= 18; digits++) {
+            long plaintext = Math.floorMod(random.nextLong(), (long) Math.pow(10, digits));
+            String plaintextStr = String.format("%0" + digits + "d", plaintext);
+
+            long ciphertext = fpe.encryptNumber(plaintext, digits, params);
+            assertThat(String.format("%0" + digits + "d", ciphertext))
+                    .isEqualTo(b2s(fpe.encrypt(s2b(plaintextStr), params)));
+            assertThat(fpe.decryptNumber(ciphertext, digits, params)).isEqualTo(plaintext);
+        }
+    }
+
+    @Test
+    void encryptNumbers_shouldEncryptAllValues() throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(FpeFfxKeyType.FPE_FF31_256_DIGITS.name()));
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        long[] plaintexts = {0, 1, 12345678901L, 99999999999L, 6655443322L};
+
+        long[] ciphertexts = fpe.encryptNumbers(plaintexts, 11, FpeParams.DEFAULT);
+        for (int i = 0; i < plaintexts.length; i++) {
+            assertThat(ciphertexts[i]).isEqualTo(fpe.encryptNumber(plaintexts[i], 11, FpeParams.DEFAULT));
+        }
+        assertThat(fpe.decryptNumbers(ciphertexts, 11, FpeParams.DEFAULT)).isEqualTo(plaintexts);
+    }
+
+    @Test
+    void encryptNumber_tooFewDigits_shouldFail() throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(FpeFfxKeyType.FPE_FF31_256_DIGITS.name()));
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        for (int digits : new int[] {3, 5}) {
+            assertThatExceptionOfType(IncompatiblePlaintextException.class)
+                    .isThrownBy(() -> fpe.encryptNumber(123, digits, FpeParams.DEFAULT))
+                    .withMessage("number of digits " + digits + " is not within min 6 and max 18 bounds");
+            assertThatExceptionOfType(IncompatiblePlaintextException.class)
+                    .isThrownBy(() -> fpe.decryptNumber(123, digits, FpeParams.DEFAULT));
+        }
+    }
+
+    @Test
+    void encryptNumber_valueOutOfRange_shouldFail() throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(FpeFfxKeyType.FPE_FF31_256_DIGITS.name()));
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> fpe.encryptNumber(1234567, 6, FpeParams.DEFAULT))
+                .withMessage("number 1234567 cannot be represented by 6 digits");
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> fpe.encryptNumber(1, 19, FpeParams.DEFAULT))
+                .withMessage("number of digits 19 is not within min 6 and max 18 bounds");
+    }
+
+    @Test
+    void encryptNumber_nonNumericAlphabet_shouldFail() throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        assertThatExceptionOfType(IncompatiblePlaintextException.class)
+                .isThrownBy(() -> fpe.encryptNumber(123456789012L, 12, FpeParams.DEFAULT));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {
+            "abc*?_-Xx0;*",
+            "abc?_-Xx0;?",
+            "abc_-Xx0;_",
+            "abc-Xx0;-",
+            "abcXx0;X",
+            "abcx0;x",
+            "0123456789;0",
+    })
+    void redactionCharOf_shouldPickFirstCandidateInAlphabet(String alphabet, char expected) {
+        assertThat(FpeFf3.redactionCharOf(Alphabet.of(alphabet))).isEqualTo(expected);
+    }
+
+    @Test
+    void redactionCharOf_noCandidateInAlphabet_shouldFail() {
+        assertThatExceptionOfType(IllegalStateException.class)
+                .isThrownBy(() -> FpeFf3.redactionCharOf(Alphabet.of("abcdef")))
+                .withMessage("Unable to deduce redaction character for alphabet 'abcdef'");
+    }
+
+    @Test
+    void encryptAndDecryptWithCodebooks_shouldMatchFeistelRounds() throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(FpeFfxKeyType.FPE_FF31_256_DIGITS.name()));
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        Fpe codebookFpe = keysetHandle.getPrimitive(Fpe.class);
+        // Room for the 6 digits codebook (8 MB), but not the 7 digits one
+        FpeParams params = FpeParams.with().tweak(s2b("someTwk"));
+        FpeParams codebookParams = FpeParams.with().tweak(s2b("someTwk")).codebookBudget(10_000_000);
+        Random random = new Random(42);
+
+        for (int i = 0; i < 100; i++) {
+            for (int digits : new int[] {6, 7, 36}) {
+                String plaintext = randomDigits(random, digits);
+                byte[] ciphertext = codebookFpe.encrypt(s2b(plaintext), codebookParams);
+                assertThat(ciphertext).isEqualTo(fpe.encrypt(s2b(plaintext), params));
+                assertThat(b2s(codebookFpe.decrypt(ciphertext, codebookParams))).isEqualTo(plaintext);
+            }
+            long number = random.nextInt(1_000_000);
+            long ciphertext = codebookFpe.encryptNumber(number, 6, codebookParams);
+            assertThat(ciphertext).isEqualTo(fpe.encryptNumber(number, 6, params));
+            assertThat(codebookFpe.decryptNumber(ciphertext, 6, codebookParams)).isEqualTo(number);
+        }
+    }
+
+    @Test
+    void encryptAndDecryptWithParallelChunks_shouldMatchSequential() throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams sequentialParams = FpeParams.with().unknownCharacterStrategy(SKIP);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            FpeParams parallelParams = FpeParams.with().unknownCharacterStrategy(SKIP)
+                    .parallelChunkThreshold(1).forkJoinPool(pool);
+
+            byte[] plaintext = s2b(longText.repeat(20));
+            byte[] ciphertext = fpe.encrypt(plaintext, parallelParams);
+            assertThat(ciphertext).isEqualTo(fpe.encrypt(plaintext, sequentialParams));
+            assertThat(fpe.decrypt(ciphertext, parallelParams)).isEqualTo(plaintext);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void sharedPrimitive_concurrentCalls_shouldMatchSequentialCalls() throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(SKIP).tweak(s2b("someTwk"));
+        List<byte[]> plaintexts = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            plaintexts.add(s2b("Value " + i * 7919 + " of " + longText.substring(0, i * 20)));
+        }
+        List<byte[]> expected = new ArrayList<>();
+        for (byte[] plaintext : plaintexts) {
+            expected.add(fpe.encrypt(plaintext, params));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                tasks.add(executor.submit(() -> {
+                    for (int round = 0; round < 20; round++) {
+                        for (int i = 0; i < plaintexts.size(); i++) {
+                            assertThat(fpe.encrypt(plaintexts.get(i), params)).isEqualTo(expected.get(i));
+                            assertThat(fpe.decrypt(expected.get(i), params)).isEqualTo(plaintexts.get(i));
+                        }
+                        assertThat(fpe.encryptAll(plaintexts, params)).containsExactlyElementsOf(expected);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = UnknownCharacterStrategy.class, names = {"SKIP", "DELETE", "REDACT"})
+    void encryptAllAndDecryptAll_shouldMatchSingleValueCalls(UnknownCharacterStrategy strategy) throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(strategy).tweak(s2b("someTwk"));
+        List<byte[]> plaintexts = new ArrayList<>(List.of(s2b("Foobar"), new byte[0], s2b("Ab"),
+                s2b("Hello, world!"), s2b("Hello, wörld!"), s2b(longText)));
+        // Enough values for the chunks of several values to share AES calls
+        for (int i = 0; i < 100; i++) {
+            plaintexts.add(s2b("ID-" + i * 7919 + "-X"));
+        }
+
+        List<byte[]> ciphertexts = fpe.encryptAll(plaintexts, params);
+        assertThat(ciphertexts).hasSameSizeAs(plaintexts);
+        for (int i = 0; i < plaintexts.size(); i++) {
+            assertThat(ciphertexts.get(i)).isEqualTo(fpe.encrypt(plaintexts.get(i), params));
+        }
+
+        List<byte[]> decrypted = fpe.decryptAll(ciphertexts, params);
+        for (int i = 0; i < plaintexts.size(); i++) {
+            assertThat(decrypted.get(i)).isEqualTo(fpe.decrypt(ciphertexts.get(i), params));
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {
+            "SKIP;Hello, wörld!",
+            "REDACT;Hello, wörld!",
+            "DELETE;Hello, wörld!",
+            "FAIL;Helloworld",
+    })
+    void encryptAndDecryptText_shouldMatchBytes(UnknownCharacterStrategy strategy, String plaintext) throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(strategy);
+        String expectedCiphertext = b2s(fpe.encrypt(s2b(plaintext), params));
+
+        CharSequence ciphertext = fpe.encrypt((CharSequence) plaintext, params);
+        assertThat(ciphertext.toString()).isEqualTo(expectedCiphertext);
+        assertThat(fpe.encrypt(plaintext.toCharArray(), params)).isEqualTo(expectedCiphertext.toCharArray());
+
+        String expectedPlaintext = strategy == SKIP || strategy == FAIL ? plaintext : b2s(fpe.decrypt(s2b(expectedCiphertext), params));
+        assertThat(fpe.decrypt(ciphertext, params).toString()).isEqualTo(expectedPlaintext);
+        assertThat(fpe.decrypt(expectedCiphertext.toCharArray(), params)).isEqualTo(expectedPlaintext.toCharArray());
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {
+            "RAW;false",
+            "RAW;true",
+            "TINK;false",
+            "TINK;true",
+    })
+    void encryptAndDecryptBuffers_shouldMatchBytes(KeyTemplate.OutputPrefixType prefixType, boolean direct) throws Exception {
+        KeyTemplate template = KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name());
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplate.create(template.getTypeUrl(), template.getValue(), prefixType));
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(SKIP);
+        byte[] plaintext = s2b("Hello, wörld!");
+        byte[] expectedCiphertext = fpe.encrypt(plaintext, params);
+
+        ByteBuffer in = direct ? ByteBuffer.allocateDirect(plaintext.length) : ByteBuffer.allocate(plaintext.length);
+        in.put(plaintext).flip();
+        ByteBuffer out = direct ? ByteBuffer.allocateDirect(64) : ByteBuffer.allocate(64);
+        assertThat(fpe.encrypt(in, out, params)).isEqualTo(expectedCiphertext.length);
+        assertThat(in.hasRemaining()).isFalse();
+        byte[] ciphertext = new byte[out.flip().remaining()];
+        out.duplicate().get(ciphertext);
+        assertThat(ciphertext).isEqualTo(expectedCiphertext);
+
+        ByteBuffer decrypted = direct ? ByteBuffer.allocateDirect(64) : ByteBuffer.allocate(64);
+        assertThat(fpe.decrypt(out, decrypted, params)).isEqualTo(plaintext.length);
+        assertThat(decrypted.flip()).isEqualTo(ByteBuffer.wrap(plaintext));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {
+            "Foobar;false",
+            "Foobar;true",
+            "Hello, wörld!;false",
+            "Hello, wörld!;true",
+    })
+    void encryptAndDecryptBufferSlices_shouldMatchBytes(String text, boolean direct) throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(SKIP);
+        // Short values are ciphered within the buffers, and values longer than a session through strings
+        for (String value : List.of(text, text.repeat(200))) {
+            byte[] plaintext = s2b(value);
+            byte[] expectedCiphertext = fpe.encrypt(plaintext, params);
+
+            ByteBuffer in = ByteBuffer.wrap(s2b("--" + value + "--"), 2, plaintext.length).slice();
+            ByteBuffer out = direct ? ByteBuffer.allocateDirect(plaintext.length + 4)
+                    : ByteBuffer.wrap(new byte[plaintext.length + 8], 2, plaintext.length + 4).slice();
+            out.position(2);
+            assertThat(fpe.encrypt(in, out, params)).isEqualTo(expectedCiphertext.length);
+            assertThat(in.hasRemaining()).isFalse();
+            ByteBuffer ciphertext = out.flip().position(2);
+            assertThat(ciphertext).isEqualTo(ByteBuffer.wrap(expectedCiphertext));
+
+            ByteBuffer decrypted = ByteBuffer.allocate(plaintext.length);
+            assertThat(fpe.decrypt(ciphertext, decrypted, params)).isEqualTo(plaintext.length);
+            assertThat(decrypted.flip()).isEqualTo(ByteBuffer.wrap(plaintext));
+        }
+    }
+
+    @Test
+    void encryptText_reusingSessions_shouldMatchBytes() throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(SKIP);
+        // Longer texts leave characters behind in the pooled sessions that shorter texts must not pick up
+        for (String text : List.of("Hello, wörld! ".repeat(100), "Hello, wörld!", "Hellø", "Hello, wörld! ".repeat(5))) {
+            String ciphertext = fpe.encrypt((CharSequence) text, params).toString();
+            assertThat(ciphertext).isEqualTo(b2s(fpe.encrypt(s2b(text), params)));
+            assertThat(fpe.decrypt((CharSequence) ciphertext, params).toString()).isEqualTo(text);
+        }
+    }
+
+    @Test
+    void encryptAndDecryptInPlace_shouldMatchBytes() throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        byte[] plaintext = s2b("Foobar");
+        byte[] buffer = s2b("--Foobar--");
+
+        assertThat(fpe.encrypt(buffer, 2, 6, buffer, 2)).isEqualTo(6);
+        assertThat(b2s(buffer)).isEqualTo("--" + b2s(fpe.encrypt(plaintext)) + "--");
+        assertThat(fpe.decrypt(buffer, 2, 6, buffer, 2)).isEqualTo(6);
+        assertThat(b2s(buffer)).isEqualTo("--Foobar--");
+    }
+
+    @Test
+    void encryptBuffer_insufficientSpace_shouldFailWithoutModifyingBuffers() throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        ByteBuffer in = ByteBuffer.wrap(s2b("Foobar"));
+        ByteBuffer out = ByteBuffer.allocate(5);
+
+        assertThatExceptionOfType(ShortBufferException.class).isThrownBy(() -> fpe.encrypt(in, out, FpeParams.DEFAULT));
+        assertThat(in.remaining()).isEqualTo(6);
+        assertThat(out.position()).isZero();
+        assertThatExceptionOfType(ShortBufferException.class).isThrownBy(() -> fpe.decrypt(in, out, FpeParams.DEFAULT));
+        assertThat(in.remaining()).isEqualTo(6);
+        assertThat(out.position()).isZero();
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {
+            "SKIP;If I cøuld gather Åll the stars ænd håld them in my hænd...",
+            "REDACT;If I cøuld gather Åll the stars ænd håld them in my hænd...",
+            "DELETE;If I cøuld gather Åll the stars ænd håld them in my hænd...",
+            "FAIL;Foobar",
+    })
+    void encryptAndDecryptWithSession_shouldMatchBytes(UnknownCharacterStrategy strategy, String plaintext) throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(strategy);
+        FpeSession session = FpeSession.create(128);
+        byte[] in = s2b(plaintext);
+        byte[] expectedCiphertext = fpe.encrypt(in, params);
+        byte[] expectedPlaintext = fpe.decrypt(expectedCiphertext, params);
+
+        byte[] out = new byte[256];
+        for (int i = 0; i < 3; i++) {
+            int len = fpe.encrypt(in, 0, in.length, out, 0, params, session);
+            assertThat(Arrays.copyOf(out, len)).isEqualTo(expectedCiphertext);
+            len = fpe.decrypt(expectedCiphertext, 0, expectedCiphertext.length, out, 0, params, session);
+            assertThat(Arrays.copyOf(out, len)).isEqualTo(expectedPlaintext);
+        }
+    }
+
+    @Test
+    void encryptWithSession_exceedingCapacity_shouldMatchBytes() throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(SKIP).charset(StandardCharsets.ISO_8859_1);
+        FpeSession session = FpeSession.create(16);
+        byte[] in = longText.getBytes(StandardCharsets.ISO_8859_1);
+
+        byte[] out = new byte[in.length];
+        assertThat(fpe.encrypt(in, 0, in.length, out, 0, params, session)).isEqualTo(in.length);
+        assertThat(out).isEqualTo(fpe.encrypt(in, params));
+        assertThatExceptionOfType(ShortBufferException.class)
+                .isThrownBy(() -> fpe.encrypt(in, 0, 8, new byte[4], 0, params, session));
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {
+            "SKIP;UTF-8", "SKIP;ISO-8859-1", "SKIP;US-ASCII",
+            "REDACT;UTF-8", "REDACT;ISO-8859-1", "REDACT;US-ASCII",
+            "DELETE;UTF-8", "DELETE;ISO-8859-1", "DELETE;US-ASCII",
+            "FAIL;UTF-8", "FAIL;ISO-8859-1", "FAIL;US-ASCII",
+    })
+    void encryptAndDecryptSingleByte_shouldMatchText(UnknownCharacterStrategy strategy, String charsetName) throws Exception {
+        Charset charset = Charset.forName(charsetName);
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(strategy).charset(charset);
+        String plaintext = strategy == FAIL
+                ? "IfICouldGatherAllTheStarsAndHoldThemInMyHand"
+                : "If I cøuld gather Åll the stars ænd håld them in my hænd... 12345";
+        FpeSession session = FpeSession.create(128);
+        for (CharacterGroup alphabet : List.of(CharacterGroup.ALPHANUMERIC, CharacterGroup.ALPHANUMERIC_NO)) {
+            if (charset.equals(StandardCharsets.US_ASCII) && alphabet == CharacterGroup.ALPHANUMERIC_NO) {
+                continue; // The ciphertext cannot be represented in ASCII
+            }
+            Fpe fpe = new FpeFf3(s2b("0123456789abcdef"), alphabet.getChars());
+            byte[] in = plaintext.getBytes(charset);
+            byte[] expectedCiphertext = fpe.encrypt((CharSequence) new String(in, charset), params).toString()
+                    .getBytes(charset);
+            byte[] expectedPlaintext = fpe.decrypt((CharSequence) new String(expectedCiphertext, charset), params)
+                    .toString().getBytes(charset);
+
+            assertThat(fpe.encrypt(in, params)).isEqualTo(expectedCiphertext);
+            assertThat(fpe.decrypt(expectedCiphertext, params)).isEqualTo(expectedPlaintext);
+
+            byte[] out = new byte[256];
+            int len = fpe.encrypt(in, 0, in.length, out, 0, params, session);
+            assertThat(Arrays.copyOf(out, len)).isEqualTo(expectedCiphertext);
+            len = fpe.decrypt(expectedCiphertext, 0, expectedCiphertext.length, out, 0, params, session);
+            assertThat(Arrays.copyOf(out, len)).isEqualTo(expectedPlaintext);
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {
+            "FPE_FF31_256_ALPHANUMERIC;SKIP", "FPE_FF31_256_ALPHANUMERIC;REDACT", "FPE_FF31_256_ALPHANUMERIC;DELETE",
+            "FPE_FF1_256_ALPHANUMERIC;SKIP", "FPE_FF1_256_ALPHANUMERIC;REDACT",
+    })
+    void encryptingWriterReaderAndStreams_shouldMatchWholeText(FpeFfxKeyType keyType, UnknownCharacterStrategy strategy) throws Exception {
+        Fpe fpe = KeysetHandle.generateNew(KeyTemplates.get(keyType.name())).getPrimitive(Fpe.class);
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(strategy);
+        String plaintext = longText + " " + longText;
+        String expectedCiphertext = fpe.encrypt((CharSequence) plaintext, params).toString();
+        String expectedPlaintext = fpe.decrypt((CharSequence) expectedCiphertext, params).toString();
+        Random random = new Random(42);
+
+        StringWriter ciphertext = new StringWriter();
+        try (Writer writer = fpe.encryptingWriter(ciphertext, params)) {
+            for (int pos = 0; pos < plaintext.length(); ) {
+                int len = Math.min(random.nextInt(50), plaintext.length() - pos);
+                writer.write(plaintext, pos, len);
+                pos += len;
+            }
+        }
+        assertThat(ciphertext.toString()).isEqualTo(expectedCiphertext);
+
+        StringWriter decrypted = new StringWriter();
+        try (Writer writer = fpe.decryptingWriter(decrypted, params)) {
+            for (char c : expectedCiphertext.toCharArray()) {
+                writer.write(c);
+            }
+        }
+        assertThat(decrypted.toString()).isEqualTo(expectedPlaintext);
+
+        // Write the bytes in pieces that split multi-byte characters
+        byte[] in = s2b(plaintext);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream stream = fpe.encryptingStream(out, params)) {
+            for (int pos = 0; pos < in.length; pos += 7) {
+                stream.write(in, pos, Math.min(7, in.length - pos));
+            }
+        }
+        assertThat(out.toByteArray()).isEqualTo(fpe.encrypt(in, params));
+
+        out.reset();
+        try (OutputStream stream = fpe.decryptingStream(out, params)) {
+            stream.write(s2b(expectedCiphertext));
+        }
+        assertThat(b2s(out.toByteArray())).isEqualTo(expectedPlaintext);
+
+        // Read side, in pieces of random lengths
+        StringBuilder read = new StringBuilder();
+        try (Reader reader = fpe.encryptingReader(new StringReader(plaintext), params)) {
+            char[] buf = new char[50];
+            for (int n; (n = reader.read(buf, 0, 1 + random.nextInt(buf.length))) >= 0; ) {
+                read.append(buf, 0, n);
+            }
+        }
+        assertThat(read.toString()).isEqualTo(expectedCiphertext);
+
+        try (Reader reader = fpe.decryptingReader(new StringReader(expectedCiphertext), params)) {
+            read.setLength(0);
+            for (int c; (c = reader.read()) >= 0; ) {
+                read.append((char) c);
+            }
+        }
+        assertThat(read.toString()).isEqualTo(expectedPlaintext);
+
+        try (InputStream stream = fpe.encryptingStream(new ByteArrayInputStream(in), params)) {
+            assertThat(stream.readAllBytes()).isEqualTo(fpe.encrypt(in, params));
+        }
+        try (InputStream stream = fpe.decryptingStream(new ByteArrayInputStream(s2b(expectedCiphertext)), params)) {
+            assertThat(b2s(stream.readAllBytes())).isEqualTo(expectedPlaintext);
+        }
+    }
+
+    @Test
+    void encryptingWriter_unknownCharacterWithFail_shouldFail() throws Exception {
+        Fpe fpe = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC).getPrimitive(Fpe.class);
+        Writer writer = fpe.encryptingWriter(new StringWriter(), FpeParams.with().unknownCharacterStrategy(FAIL));
+        writer.write("Foobar");
+        assertThatExceptionOfType(IncompatiblePlaintextException.class)
+                .isThrownBy(() -> writer.write("Foo bar"));
+    }
+
+    @Test
+    void paramsEquality_shouldIgnoreExecutionSettings() {
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(SKIP).tweak(s2b("someTwk"));
+        FpeParams tuned = FpeParams.with().unknownCharacterStrategy(SKIP).tweak(s2b("someTwk"))
+                .parallelChunkThreshold(1000).forkJoinPool(ForkJoinPool.commonPool()).codebookBudget(1024);
+
+        assertThat(tuned).isEqualTo(params).hasSameHashCodeAs(params);
+        assertThat(tuned).isNotEqualTo(FpeParams.with().unknownCharacterStrategy(SKIP));
+    }
+
+    @Test
+    void encryptWithFpeTweak_shouldMatchByteArrayTweak() throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        byte[] tweakBytes = s2b("someTwk");
+        FpeTweak tweak = FpeTweak.of(tweakBytes);
+        FpeParams params = FpeParams.with().tweak(tweak);
+
+        assertThat(params).isEqualTo(FpeParams.with().tweak(tweakBytes));
+        assertThat(fpe.encrypt(s2b("Foobar"), params)).isEqualTo(fpe.encrypt(s2b("Foobar"), FpeParams.with().tweak(tweakBytes)));
+        assertThat(fpe.encrypt(s2b("Foobar"), params)).isNotEqualTo(fpe.encrypt(s2b("Foobar")));
+
+        tweakBytes[0] = 0;
+        assertThat(params.getTweak()).isEqualTo(s2b("someTwk"));
+    }
+
+    @Test
+    void encryptWithInvalidTweakLength_shouldFail() throws Exception {
+        KeysetHandle keysetHandle = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC);
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams params = FpeParams.with().tweak(s2b("tooLongTweak"));
+
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> fpe.encrypt(s2b("Foobar"), params))
+                .withMessage("tweak length 12 is invalid: tweak must be 56 or 64 bits");
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = ';', value = {
+            "SKIP;Hello, wörld!",
+            "REDACT;Hello, wörld!",
+            "DELETE;Hello, wörld!",
+            "FAIL;Helloworld",
+    })
+    void encryptWithCompiledParams_shouldMatchParams(UnknownCharacterStrategy strategy, String plaintext) throws Exception {
+        for (FpeFfxKeyType keyType : List.of(FPE_FF31_256_ALPHANUMERIC, FpeFfxKeyType.FPE_FF1_256_ALPHANUMERIC)) {
+            Fpe fpe = KeysetHandle.generateNew(KeyTemplates.get(keyType.name())).getPrimitive(Fpe.class);
+            FpeParams params = FpeParams.with().unknownCharacterStrategy(strategy).redactionChar('X').tweak(s2b("someTwk"));
+            FpeParams compiled = fpe.compile(params);
+
+            assertThat(compiled).isEqualTo(params);
+            byte[] ciphertext = fpe.encrypt(s2b(plaintext), compiled);
+            assertThat(ciphertext).isEqualTo(fpe.encrypt(s2b(plaintext), params));
+            assertThat(fpe.decrypt(ciphertext, compiled)).isEqualTo(fpe.decrypt(ciphertext, params));
+        }
+    }
+
+    @Test
+    void compile_invalidParams_shouldFail() throws Exception {
+        Fpe fpe = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC).getPrimitive(Fpe.class);
+
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> fpe.compile(FpeParams.with().tweak(s2b("tooLongTweak"))))
+                .withMessage("tweak length 12 is invalid: tweak must be 56 or 64 bits");
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> fpe.compile(FpeParams.with().unknownCharacterStrategy(REDACT).redactionChar('#')))
+                .withMessageStartingWith("redaction character '#' is not part of the alphabet");
+    }
+
+    @Test
+    void compiledParams_changed_shouldApplyTheNewParams() throws Exception {
+        Fpe fpe = TinkUtil.readKeyset(KEYSET_JSON_FF31_256_ALPHANUMERIC).getPrimitive(Fpe.class);
+        FpeParams compiled = fpe.compile(FpeParams.with().unknownCharacterStrategy(REDACT));
+
+        compiled.unknownCharacterStrategy(SKIP).tweak(s2b("someTwk"));
+        FpeParams params = FpeParams.with().unknownCharacterStrategy(SKIP).tweak(s2b("someTwk"));
+        assertThat(compiled).isEqualTo(params);
+        assertThat(fpe.encrypt(s2b("Hello, world!"), compiled)).isEqualTo(fpe.encrypt(s2b("Hello, world!"), params));
+    }
+
+    private static String randomDigits(Random random, int len) {
+        StringBuilder digits = new StringBuilder();
+        for (int i = 0; i < len; i++) {
+            digits.append(random.nextInt(10));
+        }
+        return digits.toString();
+    }
+
 }
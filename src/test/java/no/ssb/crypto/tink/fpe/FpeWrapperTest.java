@@ -0,0 +1,65 @@
+package no.ssb.crypto.tink.fpe;
+
+import com.google.crypto.tink.KeyTemplate;
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.internal.MutableMonitoringRegistry;
+import com.google.crypto.tink.monitoring.MonitoringAnnotations;
+import com.google.crypto.tink.monitoring.MonitoringClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static no.ssb.crypto.tink.fpe.FpeFfxKeyType.FPE_FF31_256_ALPHANUMERIC;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class FpeWrapperTest {
+
+    @BeforeAll
+    static void initTink() throws Exception {
+        FpeConfig.register();
+    }
+
+    @AfterEach
+    void clearMonitoring() {
+        MutableMonitoringRegistry.globalInstance().clear();
+    }
+
+    @Test
+    void streams_prefixedPrimary_shouldLogFailureOfTheirDirection() throws Exception {
+        List<String> failures = new ArrayList<>();
+        MutableMonitoringRegistry.globalInstance().registerMonitoringClient(
+                (keysetInfo, primitive, api) -> new MonitoringClient.Logger() {
+                    @Override
+                    public void log(int keyId, long numBytes) {
+                    }
+
+                    @Override
+                    public void logFailure() {
+                        failures.add(api);
+                    }
+                });
+        KeyTemplate template = KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name());
+        KeysetHandle keysetHandle = KeysetHandle.newBuilder(KeysetHandle.generateNew(KeyTemplate.create(
+                        template.getTypeUrl(), template.getValue(), KeyTemplate.OutputPrefixType.TINK)))
+                .setMonitoringAnnotations(new MonitoringAnnotations.Builder().add("dataset", "test").build())
+                .build();
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+
+        assertThatExceptionOfType(GeneralSecurityException.class)
+                .isThrownBy(() -> fpe.decryptingWriter(new StringWriter(), FpeParams.DEFAULT));
+        assertThatExceptionOfType(GeneralSecurityException.class)
+                .isThrownBy(() -> fpe.decryptingReader(new StringReader("Foobar"), FpeParams.DEFAULT));
+        assertThatExceptionOfType(GeneralSecurityException.class)
+                .isThrownBy(() -> fpe.encryptingWriter(new StringWriter(), FpeParams.DEFAULT));
+        assertThat(failures).containsExactly("decrypt", "decrypt", "encrypt");
+    }
+
+}
@@ -0,0 +1,47 @@
+package no.ssb.crypto.tink.fpe;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StatePoolTest {
+
+    @Test
+    void acquire_shouldReuseReleasedStates() {
+        AtomicInteger created = new AtomicInteger();
+        StatePool<Object> pool = new StatePool<>(() -> {
+            created.incrementAndGet();
+            return new Object();
+        });
+
+        Object state = pool.acquire();
+        pool.release(state);
+        assertThat(pool.acquire()).isSameAs(state);
+        assertThat(pool.acquire()).isNotSameAs(state);
+        assertThat(created).hasValue(2);
+    }
+
+    @Test
+    void release_shouldKeepAtMostMaxIdleStates() {
+        AtomicInteger created = new AtomicInteger();
+        StatePool<Object> pool = new StatePool<>(() -> {
+            created.incrementAndGet();
+            return new Object();
+        });
+
+        List<Object> states = new ArrayList<>();
+        for (int i = 0; i < StatePool.MAX_IDLE + 3; i++) {
+            states.add(pool.acquire());
+        }
+        states.forEach(pool::release);
+        for (int i = 0; i < StatePool.MAX_IDLE + 3; i++) {
+            pool.acquire();
+        }
+        assertThat(created).hasValue(StatePool.MAX_IDLE + 3 + 3);
+    }
+
+}
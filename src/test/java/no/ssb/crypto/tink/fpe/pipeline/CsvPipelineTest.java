@@ -0,0 +1,138 @@
+package no.ssb.crypto.tink.fpe.pipeline;
+
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeConfig;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.FpeTweak;
+import no.ssb.crypto.tink.fpe.IncompatiblePlaintextException;
+import no.ssb.crypto.tink.fpe.UnknownCharacterStrategy;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static no.ssb.crypto.tink.fpe.FpeFfxKeyType.FPE_FF31_256_ALPHANUMERIC;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class CsvPipelineTest {
+
+    private static final String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void initTink() throws Exception {
+        FpeConfig.register();
+    }
+
+    @Test
+    void encryptAndDecrypt_shouldOnlyChangeSelectedColumns() throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name()));
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams idParams = FpeParams.with().tweak(FpeTweak.of("id-col0".getBytes(StandardCharsets.UTF_8)));
+        FpeParams nameParams = FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.SKIP);
+
+        // Mixed line endings, quoted fields and empty fields
+        Random random = new Random(42);
+        StringBuilder csv = new StringBuilder("id,city,\"name\"\r\n");
+        int rows = 2000;
+        for (int i = 0; i < rows; i++) {
+            String id = randomText(random, 6 + random.nextInt(10));
+            String name = i % 7 == 0 ? "" : randomText(random, 3) + " \"Jr\", " + randomText(random, 4);
+            csv.append(id).append(",Oslo ").append(i).append(",\"").append(name.replace("\"", "\"\"")).append('"')
+                    .append(i % 3 == 0 ? "\r\n" : "\n");
+        }
+        Path plaintext = dir.resolve("plaintext.csv");
+        Path ciphertext = dir.resolve("ciphertext.csv");
+        Path decrypted = dir.resolve("decrypted.csv");
+        Files.write(plaintext, csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        CsvPipeline pipeline = CsvPipeline.with(keysetHandle)
+                .header(true)
+                .column(0, idParams)
+                .column("name", nameParams)
+                .threads(4)
+                .segmentSize(1000);
+        PipelineResult result = pipeline.encrypt(plaintext, ciphertext);
+        assertThat(result.getRows()).isEqualTo(rows);
+        assertThat(result.getBytesRead()).isEqualTo(Files.size(plaintext));
+        assertThat(result.getBytesWritten()).isEqualTo(Files.size(ciphertext));
+
+        List<String> plaintextLines = Files.readAllLines(plaintext);
+        List<String> ciphertextLines = Files.readAllLines(ciphertext);
+        assertThat(ciphertextLines).hasSize(rows + 1);
+        assertThat(ciphertextLines.get(0)).isEqualTo(plaintextLines.get(0));
+        for (int i = 1; i <= rows; i++) {
+            String[] expected = plaintextLines.get(i).split(",", 2);
+            String[] actual = ciphertextLines.get(i).split(",", 2);
+            assertThat(actual[0]).isEqualTo(new String(fpe.encrypt(expected[0].getBytes(), idParams)));
+            assertThat(actual[1]).startsWith("Oslo " + (i - 1) + ",\"");
+            if (expected[1].endsWith(",\"\"")) {
+                assertThat(actual[1]).isEqualTo(expected[1]);
+            }
+            else {
+                assertThat(actual[1]).isNotEqualTo(expected[1]).matches("Oslo \\d+,\"\\w{3} \"\"\\w{2}\"\", \\w{4}\"");
+            }
+        }
+
+        pipeline.threads(3).segmentSize(4096).decrypt(ciphertext, decrypted);
+        assertThat(Files.readAllBytes(decrypted)).isEqualTo(Files.readAllBytes(plaintext));
+    }
+
+    @Test
+    void encrypt_headerInOtherCharset_shouldSelectColumnByName() throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name()));
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams params = FpeParams.with().charset(StandardCharsets.ISO_8859_1);
+        Path plaintext = dir.resolve("plaintext.csv");
+        Path ciphertext = dir.resolve("ciphertext.csv");
+
+        Files.write(plaintext, "id,f\u00f8dselsnr\n1,abcdef\n".getBytes(StandardCharsets.ISO_8859_1));
+        CsvPipeline.with(keysetHandle).header(true).charset(StandardCharsets.ISO_8859_1).column("f\u00f8dselsnr", params)
+                .encrypt(plaintext, ciphertext);
+        assertThat(Files.readAllLines(ciphertext, StandardCharsets.ISO_8859_1)).containsExactly("id,f\u00f8dselsnr",
+                "1," + new String(fpe.encrypt("abcdef".getBytes(StandardCharsets.ISO_8859_1), params),
+                        StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void encrypt_invalidField_shouldFailWithOffset() throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name()));
+        Path plaintext = dir.resolve("plaintext.csv");
+        Path ciphertext = dir.resolve("ciphertext.csv");
+
+        Files.write(plaintext, "abcdef;x\nabc-def;y\n".getBytes(StandardCharsets.UTF_8));
+        CsvPipeline pipeline = CsvPipeline.with(keysetHandle).delimiter(';').column(0, FpeParams.DEFAULT);
+        assertThatExceptionOfType(IncompatiblePlaintextException.class)
+                .isThrownBy(() -> pipeline.encrypt(plaintext, ciphertext))
+                .withMessageStartingWith("Error encrypting column 0 of the record at byte offset 9: ");
+
+        Files.write(plaintext, "abcdef;x\n\"abcdef;y\n".getBytes(StandardCharsets.UTF_8));
+        assertThatExceptionOfType(IOException.class)
+                .isThrownBy(() -> pipeline.encrypt(plaintext, ciphertext))
+                .withMessageStartingWith("unterminated quoted field at byte offset 9");
+
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> pipeline.column("id", FpeParams.DEFAULT).encrypt(plaintext, ciphertext))
+                .withMessage("column 'id' can only be selected by name if the CSV has a header");
+    }
+
+    private static String randomText(Random random, int len) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < len; i++) {
+            text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return text.toString();
+    }
+
+}
@@ -0,0 +1,117 @@
+package no.ssb.crypto.tink.fpe.pipeline;
+
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeConfig;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.IncompatiblePlaintextException;
+import no.ssb.crypto.tink.fpe.UnknownCharacterStrategy;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static no.ssb.crypto.tink.fpe.FpeFfxKeyType.FPE_FF31_256_ALPHANUMERIC;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class FixedWidthPipelineTest {
+
+    private static final String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final int RECORD_LENGTH = 40;
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void initTink() throws Exception {
+        FpeConfig.register();
+    }
+
+    @Test
+    void encryptAndDecrypt_shouldRewriteFieldsInPlace() throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name()));
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams nameParams = FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.SKIP);
+
+        // id (11), name (20, space padded), other (8), line feed. The last record has no line feed.
+        Random random = new Random(42);
+        int records = 1000;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < records; i++) {
+            String name = randomText(random, 2 + random.nextInt(10)) + " " + randomText(random, 5);
+            text.append(randomText(random, 11)).append(String.format("%-20s", name)).append("other.").append(i % 100)
+                    .append(i % 100 < 10 ? " " : "").append('\n');
+        }
+        text.setLength(text.length() - 1);
+        byte[] plaintext = text.toString().getBytes(StandardCharsets.UTF_8);
+        Path file = dir.resolve("records.txt");
+        Files.write(file, plaintext);
+
+        FixedWidthPipeline pipeline = FixedWidthPipeline.with(keysetHandle)
+                .recordLength(RECORD_LENGTH)
+                .field(0, 11, FpeParams.DEFAULT)
+                .field(11, 20, nameParams)
+                .threads(3)
+                .segmentSize(1000);
+        PipelineResult result = pipeline.encrypt(file);
+        assertThat(result.getRows()).isEqualTo(records);
+
+        byte[] ciphertext = Files.readAllBytes(file);
+        assertThat(ciphertext).hasSameSizeAs(plaintext);
+        for (int i = 0; i < records; i++) {
+            int base = i * RECORD_LENGTH;
+            assertThat(Arrays.copyOfRange(ciphertext, base, base + 11))
+                    .isEqualTo(fpe.encrypt(Arrays.copyOfRange(plaintext, base, base + 11), FpeParams.DEFAULT));
+            assertThat(Arrays.copyOfRange(ciphertext, base + 11, base + 31))
+                    .isEqualTo(fpe.encrypt(Arrays.copyOfRange(plaintext, base + 11, base + 31), nameParams));
+            int end = Math.min(base + RECORD_LENGTH, plaintext.length);
+            assertThat(Arrays.copyOfRange(ciphertext, base + 31, end))
+                    .isEqualTo(Arrays.copyOfRange(plaintext, base + 31, end));
+        }
+
+        pipeline.threads(2).decrypt(file);
+        assertThat(Files.readAllBytes(file)).isEqualTo(plaintext);
+    }
+
+    @Test
+    void encrypt_lengthChangingField_shouldFailWithoutRewritingField() throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name()));
+        Path file = dir.resolve("records.txt");
+        byte[] plaintext = "abcdef-123\nabcdef1234\n".getBytes(StandardCharsets.UTF_8);
+        Files.write(file, plaintext);
+
+        FixedWidthPipeline pipeline = FixedWidthPipeline.with(keysetHandle).recordLength(11)
+                .field(0, 10, FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.DELETE));
+        assertThatExceptionOfType(IncompatiblePlaintextException.class)
+                .isThrownBy(() -> pipeline.encrypt(file))
+                .withMessage("Error encrypting the field at offset 0 of the record at byte offset 0: the result is 9 "
+                        + "bytes, but must be 10 bytes to be written in place");
+        assertThat(Files.readAllBytes(file)).isEqualTo(plaintext);
+
+        Files.write(file, "abcdef1234\nabc".getBytes(StandardCharsets.UTF_8));
+        assertThatExceptionOfType(IOException.class)
+                .isThrownBy(() -> pipeline.encrypt(file))
+                .withMessage("the last record is truncated (3 of 11 bytes)");
+
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> pipeline.field(5, 10, FpeParams.DEFAULT))
+                .withMessage("field (offset 5, length 10) overlaps field (offset 0, length 10)");
+    }
+
+    private static String randomText(Random random, int len) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < len; i++) {
+            text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return text.toString();
+    }
+
+}
@@ -0,0 +1,128 @@
+package no.ssb.crypto.tink.fpe.pipeline;
+
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeConfig;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import no.ssb.crypto.tink.fpe.IncompatiblePlaintextException;
+import no.ssb.crypto.tink.fpe.UnknownCharacterStrategy;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static no.ssb.crypto.tink.fpe.FpeFfxKeyType.FPE_FF31_256_ALPHANUMERIC;
+import static no.ssb.crypto.tink.fpe.FpeFfxKeyType.FPE_FF31_256_DIGITS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class JsonFpeTransformerTest {
+
+    @BeforeAll
+    static void initTink() throws Exception {
+        FpeConfig.register();
+    }
+
+    @Test
+    void encryptAndDecrypt_shouldOnlyChangeSelectedValues() throws Exception {
+        Fpe fpe = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name())).getPrimitive(Fpe.class);
+        FpeParams skip = FpeParams.with().unknownCharacterStrategy(UnknownCharacterStrategy.SKIP);
+        JsonFpeTransformer transformer = JsonFpeTransformer.with(fpe)
+                .path("/name", skip)
+                .path("/accounts/*/number", FpeParams.DEFAULT)
+                .path("/accounts/0/owner", skip)
+                .path("/a~1b", FpeParams.DEFAULT);
+
+        // Newline delimited JSON
+        String json = "{\"name\":\"Kari Nordmann\",\"accounts\":[{\"number\":\"A1234567\",\"owner\":\"Kari\"},"
+                + "{\"number\":\"B7654321\",\"owner\":\"Ola\",\"limit\":1.5}],\"a/b\":\"secret\",\"age\":42}\n"
+                + "{\"name\":\"\",\"accounts\":[],\"other\":{\"name\":\"Ola Nordmann\"},\"active\":true}\n";
+        ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        long count = transformer.encrypt(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), ciphertext);
+        assertThat(count).isEqualTo(5);
+
+        String expected = json
+                .replace("Kari Nordmann", enc(fpe, "Kari Nordmann", skip))
+                .replace("A1234567", enc(fpe, "A1234567", FpeParams.DEFAULT))
+                .replace("B7654321", enc(fpe, "B7654321", FpeParams.DEFAULT))
+                .replace("\"Kari\"", "\"" + enc(fpe, "Kari", skip) + "\"")
+                .replace("secret", enc(fpe, "secret", FpeParams.DEFAULT));
+        assertThat(ciphertext.toString(StandardCharsets.UTF_8)).isEqualTo(expected);
+
+        ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+        transformer.decrypt(new ByteArrayInputStream(ciphertext.toByteArray()), plaintext);
+        assertThat(plaintext.toString(StandardCharsets.UTF_8)).isEqualTo(json);
+    }
+
+    @Test
+    void path_addedAfterUse_shouldApplyToLaterTransformations() throws Exception {
+        Fpe fpe = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_ALPHANUMERIC.name())).getPrimitive(Fpe.class);
+        JsonFpeTransformer transformer = JsonFpeTransformer.with(fpe).path("/a", FpeParams.DEFAULT);
+        String json = "{\"a\":\"abcdef\",\"b\":\"ghijkl\"}\n";
+
+        ByteArrayOutputStream before = new ByteArrayOutputStream();
+        transformer.encrypt(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), before);
+        assertThat(before.toString(StandardCharsets.UTF_8))
+                .isEqualTo("{\"a\":\"" + enc(fpe, "abcdef", FpeParams.DEFAULT) + "\",\"b\":\"ghijkl\"}\n");
+
+        transformer.path("/b", FpeParams.DEFAULT);
+        ByteArrayOutputStream after = new ByteArrayOutputStream();
+        transformer.encrypt(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), after);
+        assertThat(after.toString(StandardCharsets.UTF_8)).isEqualTo("{\"a\":\"" + enc(fpe, "abcdef", FpeParams.DEFAULT)
+                + "\",\"b\":\"" + enc(fpe, "ghijkl", FpeParams.DEFAULT) + "\"}\n");
+    }
+
+    @Test
+    void encryptNumbers_shouldUseConfiguredDigits() throws Exception {
+        Fpe fpe = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_DIGITS.name())).getPrimitive(Fpe.class);
+        JsonFpeTransformer transformer = JsonFpeTransformer.with(fpe)
+                .path("/ids/*", 11, FpeParams.DEFAULT)
+                .path("/phone", FpeParams.DEFAULT);
+
+        String json = "{\"ids\":[1234567890,\"12345678901\"],\"count\":2}\n";
+        ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+        transformer.encrypt(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), ciphertext);
+        assertThat(ciphertext.toString(StandardCharsets.UTF_8)).isEqualTo("{\"ids\":["
+                + fpe.encryptNumber(1234567890L, 11, FpeParams.DEFAULT) + ",\""
+                + enc(fpe, "12345678901", FpeParams.DEFAULT) + "\"],\"count\":2}\n");
+
+        ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+        transformer.decrypt(new ByteArrayInputStream(ciphertext.toByteArray()), plaintext);
+        assertThat(plaintext.toString(StandardCharsets.UTF_8)).isEqualTo(json);
+
+        assertThatExceptionOfType(IncompatiblePlaintextException.class)
+                .isThrownBy(() -> transformer.encrypt(new ByteArrayInputStream(
+                        "{\"phone\":12345678}".getBytes(StandardCharsets.UTF_8)), new ByteArrayOutputStream()))
+                .withMessage("Error encrypting the value at /phone: the path '/phone' must be configured with digits "
+                        + "to transform numbers");
+    }
+
+    @Test
+    void path_invalidPointer_shouldFail() {
+        JsonFpeTransformer transformer = JsonFpeTransformer.with(new Fpe() {
+            @Override
+            public byte[] encrypt(byte[] plaintext, FpeParams params) {
+                return plaintext;
+            }
+
+            @Override
+            public byte[] decrypt(byte[] ciphertext, FpeParams params) {
+                return ciphertext;
+            }
+        });
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> transformer.path("name", FpeParams.DEFAULT))
+                .withMessage("invalid JSON Pointer 'name': must be empty or start with '/'");
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> transformer.path("/a~2", FpeParams.DEFAULT))
+                .withMessage("invalid JSON Pointer '/a~2': '~' must be followed by '0' or '1'");
+    }
+
+    private static String enc(Fpe fpe, String plaintext, FpeParams params) throws Exception {
+        return new String(fpe.encrypt(plaintext.getBytes(StandardCharsets.UTF_8), params), StandardCharsets.UTF_8);
+    }
+
+}
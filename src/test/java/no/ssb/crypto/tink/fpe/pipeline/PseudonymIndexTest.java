@@ -0,0 +1,146 @@
+package no.ssb.crypto.tink.fpe.pipeline;
+
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import no.ssb.crypto.tink.fpe.Fpe;
+import no.ssb.crypto.tink.fpe.FpeConfig;
+import no.ssb.crypto.tink.fpe.FpeParams;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static no.ssb.crypto.tink.fpe.FpeFfxKeyType.FPE_FF31_256_DIGITS;
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.b2s;
+import static no.ssb.crypto.tink.fpe.util.ByteArrayUtil.s2b;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class PseudonymIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void initTink() throws Exception {
+        FpeConfig.register();
+    }
+
+    @Test
+    void lookups_shouldMatchPrimitiveAndFallBackForOtherValues() throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_DIGITS.name()));
+        Fpe fpe = keysetHandle.getPrimitive(Fpe.class);
+        FpeParams params = FpeParams.with().tweak(s2b("fnr-idx"));
+
+        Random random = new Random(42);
+        Set<String> universe = new LinkedHashSet<>();
+        while (universe.size() < 5000) {
+            universe.add(String.format("%011d", Math.floorMod(random.nextLong(), 100_000_000_000L)));
+        }
+        Path values = dir.resolve("values.txt");
+        Files.write(values, universe, StandardCharsets.US_ASCII);
+        Path indexFile = dir.resolve("fnr.idx");
+
+        PipelineResult result = PseudonymIndexBuilder.with(keysetHandle).params(params).threads(3)
+                .build(values, indexFile);
+        assertThat(result.getRows()).isEqualTo(5000);
+        assertThat(result.getBytesWritten()).isEqualTo(PseudonymIndex.HEADER_SIZE + 4 * 11 * 5000);
+
+        PseudonymIndex index = PseudonymIndex.open(indexFile);
+        assertThat(index.size()).isEqualTo(5000);
+        assertThat(index.width()).isEqualTo(11);
+        List<String> calls = new ArrayList<>();
+        Fpe indexed = index.wrap(countingFpe(fpe, calls));
+        calls.clear();
+
+        for (String value : universe) {
+            byte[] ciphertext = indexed.encrypt(s2b(value), params);
+            assertThat(ciphertext).isEqualTo(fpe.encrypt(s2b(value), params));
+            assertThat(b2s(indexed.decrypt(ciphertext, params))).isEqualTo(value);
+        }
+        long number = Long.parseLong(universe.iterator().next());
+        assertThat(indexed.encryptNumber(number, 11, params)).isEqualTo(fpe.encryptNumber(number, 11, params));
+        assertThat(calls).isEmpty();
+
+        // Values outside the universe, other lengths and other params fall back to the primitive
+        String other = "99999999999";
+        assertThat(universe).doesNotContain(other);
+        assertThat(indexed.encrypt(s2b(other), params)).isEqualTo(fpe.encrypt(s2b(other), params));
+        assertThat(indexed.encrypt(s2b("123456"), params)).isEqualTo(fpe.encrypt(s2b("123456"), params));
+        String value = universe.iterator().next();
+        assertThat(indexed.encrypt(s2b(value), FpeParams.DEFAULT)).isEqualTo(fpe.encrypt(s2b(value), FpeParams.DEFAULT));
+        assertThat(calls).containsExactly("encrypt", "encrypt", "encrypt");
+
+        // Batches are served from the index, and only the other values are passed on as one batch
+        calls.clear();
+        List<byte[]> batch = List.of(s2b(value), s2b(other), s2b("123456"));
+        List<byte[]> ciphertexts = indexed.encryptAll(batch, params);
+        for (int i = 0; i < batch.size(); i++) {
+            assertThat(ciphertexts.get(i)).isEqualTo(fpe.encrypt(batch.get(i), params));
+        }
+        assertThat(indexed.decryptAll(ciphertexts, params)).containsExactlyElementsOf(batch);
+        assertThat(calls).containsExactly("encryptAll:2", "decryptAll:2");
+
+        // An index of another key is rejected
+        KeysetHandle otherKey = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_DIGITS.name()));
+        assertThatExceptionOfType(GeneralSecurityException.class)
+                .isThrownBy(() -> index.wrap(otherKey))
+                .withMessage("the pseudonym index was built with another key");
+    }
+
+    @Test
+    void build_invalidValues_shouldFail() throws Exception {
+        KeysetHandle keysetHandle = KeysetHandle.generateNew(KeyTemplates.get(FPE_FF31_256_DIGITS.name()));
+        Path values = dir.resolve("values.txt");
+        Path indexFile = dir.resolve("values.idx");
+        PseudonymIndexBuilder builder = PseudonymIndexBuilder.with(keysetHandle);
+
+        Files.write(values, List.of("12345678901", "1234567890"), StandardCharsets.US_ASCII);
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> builder.build(values, indexFile))
+                .withMessage("line 2 has 10 bytes, but the values must all have 11 bytes");
+
+        Files.write(values, List.of("12345678901", "10987654321", "12345678901"), StandardCharsets.US_ASCII);
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> builder.build(values, indexFile))
+                .withMessage("the values must be unique, but value 3 is the same as value 1");
+    }
+
+    private static Fpe countingFpe(Fpe fpe, List<String> calls) {
+        return new Fpe() {
+            @Override
+            public byte[] encrypt(byte[] plaintext, FpeParams params) throws GeneralSecurityException {
+                calls.add("encrypt");
+                return fpe.encrypt(plaintext, params);
+            }
+
+            @Override
+            public byte[] decrypt(byte[] ciphertext, FpeParams params) throws GeneralSecurityException {
+                calls.add("decrypt");
+                return fpe.decrypt(ciphertext, params);
+            }
+
+            @Override
+            public List<byte[]> encryptAll(List<byte[]> plaintexts, FpeParams params) throws GeneralSecurityException {
+                calls.add("encryptAll:" + plaintexts.size());
+                return fpe.encryptAll(plaintexts, params);
+            }
+
+            @Override
+            public List<byte[]> decryptAll(List<byte[]> ciphertexts, FpeParams params) throws GeneralSecurityException {
+                calls.add("decryptAll:" + ciphertexts.size());
+                return fpe.decryptAll(ciphertexts, params);
+            }
+        };
+    }
+
+}
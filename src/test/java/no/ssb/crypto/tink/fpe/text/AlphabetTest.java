@@ -0,0 +1,66 @@
+package no.ssb.crypto.tink.fpe.text;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+class AlphabetTest {
+
+    @ParameterizedTest
+    @EnumSource(value = CharacterGroup.class, names = {"DIGITS", "ALPHANUMERIC", "ALPHANUMERIC_NO", "LETTERS_ALL", "ANYCHAR"})
+    void alphabet_lookups_shouldMatchString(CharacterGroup group) {
+        String chars = group.getChars();
+        Alphabet alphabet = Alphabet.of(group);
+        assertThat(alphabet.radix()).isEqualTo(chars.length());
+        assertThat(alphabet.toString()).isEqualTo(chars);
+        for (char c = 0; c < 0x3000; c++) {
+            assertThat(alphabet.indexOf(c)).isEqualTo(chars.indexOf(c));
+            assertThat(alphabet.contains(c)).isEqualTo(chars.indexOf(c) != -1);
+            assertThat(alphabet.matcher().matches(c)).isEqualTo(chars.indexOf(c) != -1);
+        }
+        for (int i = 0; i < chars.length(); i++) {
+            assertThat(alphabet.charAt(i)).isEqualTo(chars.charAt(i));
+        }
+    }
+
+    @Test
+    void alphabet_toIndexesAndBack_shouldRoundTrip() {
+        Alphabet alphabet = Alphabet.of("abc\uFFFF");
+        char[] text = "xxcab\uFFFFxx".toCharArray();
+        int[] numerals = new int[4];
+        alphabet.toIndexes(text, 2, 4, numerals);
+        assertThat(numerals).containsExactly(2, 0, 1, 3);
+
+        char[] result = new char[6];
+        alphabet.toChars(numerals, 4, result, 1);
+        assertThat(new String(result, 1, 4)).isEqualTo("cab\uFFFF");
+    }
+
+    @Test
+    void alphabet_unknownCharacter_shouldFail() {
+        Alphabet alphabet = Alphabet.of(CharacterGroup.DIGITS);
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> alphabet.numeralOf('a'))
+                .withMessage("character 'a' is not part of the alphabet");
+    }
+
+    @Test
+    void alphabet_invalidChars_shouldFail() {
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> Alphabet.of("a"))
+                .withMessage("alphabet must contain at least 2 characters");
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> Alphabet.of("abca"))
+                .withMessage("alphabet contains duplicate character 'a'");
+    }
+
+    @Test
+    void alphabet_equals_shouldCompareChars() {
+        assertThat(Alphabet.of(CharacterGroup.DIGITS)).isEqualTo(Alphabet.of("0123456789"));
+        assertThat(Alphabet.of("0123456789")).isNotEqualTo(Alphabet.of("9876543210"));
+    }
+
+}
@@ -1,5 +1,6 @@
 package no.ssb.crypto.tink.fpe.text;
 
+import com.google.common.base.CharMatcher;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 
@@ -31,4 +32,17 @@ class CharacterSkipperTest {
         assertThat(rebuilt.toString()).isEqualTo(text);
     }
 
-}
\ No newline at end of file
+    @ParameterizedTest
+    @ValueSource(strings = {"", "-", "--foo--", "a-b-c", "-a-b-c-", "f.o,o b!a?r", "...x"})
+    void characterSkipper_injectSkippedInto_shouldPlaceCharsAtOriginalIndexes(String text) {
+        CharacterSkipper skipper = CharacterSkipper.of(text, CharMatcher.anyOf(ALPHANUMERIC.getChars()));
+        String processed = skipper.getProcessedText();
+        assertThat(processed).isEqualTo(CharMatcher.anyOf(ALPHANUMERIC.getChars()).retainFrom(text));
+
+        // The skipped characters are injected at their indexes, regardless of the other characters
+        StringBuilder replaced = new StringBuilder(processed.toUpperCase());
+        skipper.injectSkippedInto(replaced);
+        assertThat(replaced.toString()).isEqualTo(text.toUpperCase());
+    }
+
+}